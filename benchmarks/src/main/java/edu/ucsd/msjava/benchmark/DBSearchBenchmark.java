@@ -0,0 +1,71 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msdbsearch.DBScanner;
+import edu.ucsd.msjava.msdbsearch.ScoredSpectraMap;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scan of the whole synthetic database (DBScanner.dbSearch) by a single thread, with preprocessed spectra.
+ * Spectral E-values are not computed; see GeneratingFunctionBenchmark.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DBSearchBenchmark {
+
+    @Param({"2000"})
+    public int numProteins;
+
+    @Param({"1000"})
+    public int numSpectra;
+
+    /**
+     * Number of tolerable termini: 2 for fully tryptic, 1 for semi-tryptic peptides
+     */
+    @Param({"2", "1"})
+    public int ntt;
+
+    private SearchFixture fixture;
+    private ScoredSpectraMap specScanner;
+    private PrintStream nullStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new SearchFixture(numProteins, numSpectra, "-ntt", String.valueOf(ntt));
+        specScanner = fixture.makeScoredSpectraMap();
+        nullStream = new PrintStream(new NullOutputStream());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public Object dbSearch() {
+        DBScanner scanner = fixture.makeDBScanner(specScanner);
+        scanner.setPrintStream(nullStream);
+        scanner.dbSearch(fixture.getNumAllowableNonEnzymaticTermini(), 0, fixture.getSuffixArray().getSize(), false);
+        return scanner.getSpecKeyDBMatchMap();
+    }
+}
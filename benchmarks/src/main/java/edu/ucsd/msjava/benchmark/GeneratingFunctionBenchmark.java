@@ -0,0 +1,119 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msdbsearch.ScoredSpectraMap;
+import edu.ucsd.msjava.msgf.DeNovoGraph;
+import edu.ucsd.msjava.msgf.FlexAminoAcidGraph;
+import edu.ucsd.msjava.msgf.GeneratingFunction;
+import edu.ucsd.msjava.msgf.GeneratingFunctionGroup;
+import edu.ucsd.msjava.msgf.NominalMass;
+import edu.ucsd.msjava.msscorer.SimpleDBSearchScorer;
+import edu.ucsd.msjava.msutil.AminoAcid;
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.Composition;
+import edu.ucsd.msjava.msutil.Enzyme;
+import edu.ucsd.msjava.msutil.SpecKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spectral probability of the peptide of each spectrum, computed as in DBScanner.computeSpecEValue:
+ * one FlexAminoAcidGraph and GeneratingFunction per nominal peptide mass within the precursor tolerance,
+ * combined by GeneratingFunctionGroup.computeGeneratingFunction.
+ * Graphs are built in the measured method because a generating function can only be computed once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GeneratingFunctionBenchmark {
+
+    @Param({"200"})
+    public int numSpectra;
+
+    private SearchFixture fixture;
+    private AminoAcidSet aaSet;
+    private Enzyme enzyme;
+    private ScoredSpectraMap specScanner;
+
+    private List<SimpleDBSearchScorer<NominalMass>> scorers;
+    private List<Integer> thresholdScores;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new SearchFixture(200, numSpectra);
+        aaSet = fixture.getAASet();
+        enzyme = fixture.getParams().getEnzyme();
+        specScanner = fixture.makeScoredSpectraMap();
+
+        scorers = new ArrayList<SimpleDBSearchScorer<NominalMass>>();
+        thresholdScores = new ArrayList<Integer>();
+        for (SpecKey specKey : fixture.getSpecKeyList()) {
+            SimpleDBSearchScorer<NominalMass> scorer = specScanner.getSpecKeyScorerMap().get(specKey);
+            if (scorer == null)
+                continue;
+            String peptide = fixture.getPeptides().get(specKey.getSpecIndex() - 1);
+            double[] prm = new double[peptide.length() + 1];
+            int[] nominalPRM = new int[peptide.length() + 1];
+            for (int i = 0; i < peptide.length(); i++) {
+                AminoAcid aa = aaSet.getAminoAcid(peptide.charAt(i));
+                prm[i + 1] = prm[i] + aa.getAccurateMass();
+                nominalPRM[i + 1] = nominalPRM[i] + aa.getNominalMass();
+            }
+            scorers.add(scorer);
+            thresholdScores.add(scorer.getScore(prm, nominalPRM, 1, nominalPRM.length, 0));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public double computeGeneratingFunction() {
+        double sumSpecProb = 0;
+        for (int i = 0; i < scorers.size(); i++) {
+            SimpleDBSearchScorer<NominalMass> scoredSpec = scorers.get(i);
+            int score = thresholdScores.get(i);
+
+            GeneratingFunctionGroup<NominalMass> gf = new GeneratingFunctionGroup<NominalMass>();
+            float peptideMass = scoredSpec.getPrecursorPeak().getMass() - (float) Composition.H2O;
+            int nominalPeptideMass = NominalMass.toNominalMass(peptideMass);
+            float tolDaLeft = specScanner.getLeftPrecursorMassTolerance().getToleranceAsDa(peptideMass);
+            float tolDaRight = specScanner.getRightPrecursorMassTolerance().getToleranceAsDa(peptideMass);
+            int maxPeptideMassIndex = nominalPeptideMass - specScanner.getMinIsotopeError() + Math.round(tolDaLeft - 0.4999f);
+            int minPeptideMassIndex = nominalPeptideMass - specScanner.getMaxIsotopeError() - Math.round(tolDaRight - 0.4999f);
+
+            for (int peptideMassIndex = minPeptideMassIndex; peptideMassIndex <= maxPeptideMassIndex; peptideMassIndex++) {
+                DeNovoGraph<NominalMass> graph = new FlexAminoAcidGraph(aaSet, peptideMassIndex, enzyme, scoredSpec, false, false);
+                GeneratingFunction<NominalMass> gfi = new GeneratingFunction<NominalMass>(graph)
+                        .doNotBacktrack()
+                        .doNotCalcNumber();
+                gfi.setUpScoreThreshold(score);
+                gf.registerGF(graph.getPMNode(), gfi);
+            }
+
+            if (gf.computeGeneratingFunction())
+                sumSpecProb += gf.getSpectralProbability(score);
+        }
+        return sumSpecProb;
+    }
+}
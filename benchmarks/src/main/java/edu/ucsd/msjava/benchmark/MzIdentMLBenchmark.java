@@ -0,0 +1,62 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msdbsearch.MSGFPlusMatch;
+import edu.ucsd.msjava.mzid.MZIdentMLGen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the search results of the synthetic spectra as mzIdentML (MZIdentMLGen.writeResults).
+ * The search itself is run once, during setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MzIdentMLBenchmark {
+
+    @Param({"1000"})
+    public int numSpectra;
+
+    private SearchFixture fixture;
+    private List<MSGFPlusMatch> resultList;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new SearchFixture(500, numSpectra);
+        resultList = fixture.search();
+        outputFile = new File(fixture.getWorkDir(), "benchmark.mzid");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public long writeResults() {
+        MZIdentMLGen mzidGen = new MZIdentMLGen(fixture.getParams(), fixture.getAASet(),
+                fixture.getSuffixArray(), fixture.getSpectraAccessor(), 0);
+        mzidGen.writeResults(resultList, outputFile);
+        return outputFile.length();
+    }
+}
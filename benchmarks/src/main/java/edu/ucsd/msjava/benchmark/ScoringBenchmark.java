@@ -0,0 +1,137 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msdbsearch.ScoredSpectraMap;
+import edu.ucsd.msjava.msdbsearch.SearchParams;
+import edu.ucsd.msjava.msgf.NominalMass;
+import edu.ucsd.msjava.msscorer.NewRankScorer;
+import edu.ucsd.msjava.msscorer.NewScorerFactory;
+import edu.ucsd.msjava.msscorer.SimpleDBSearchScorer;
+import edu.ucsd.msjava.msutil.AminoAcid;
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.Peak;
+import edu.ucsd.msjava.msutil.SpecKey;
+import edu.ucsd.msjava.msutil.Spectrum;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spectrum scoring: NewRankScorer.getScoredSpectrum for each spectrum (spectrum preprocessing),
+ * and the score of the peptide of each spectrum by the scorer used during the database scan
+ * (DBScanScorer with edge scores, FastScorer without).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScoringBenchmark {
+
+    @Param({"500"})
+    public int numSpectra;
+
+    /**
+     * 0: edge scores (DBScanScorer), 1: no edge scores (FastScorer)
+     */
+    @Param({"0", "1"})
+    public int edgeScore;
+
+    private SearchFixture fixture;
+    private NewRankScorer rankScorer;
+    private List<Spectrum> spectra;
+    private List<Spectrum> spectraToScore;
+
+    private List<SimpleDBSearchScorer<NominalMass>> scorers;
+    private List<double[]> prmList;
+    private List<int[]> nominalPRMList;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new SearchFixture(200, numSpectra, "-edgeScore", String.valueOf(edgeScore));
+        SearchParams params = fixture.getParams();
+        rankScorer = NewScorerFactory.get(params.getActivationMethod(), params.getInstType(), params.getEnzyme(), params.getProtocol());
+        if (params.doNotUseEdgeScore())
+            rankScorer.doNotUseError();
+
+        spectra = new ArrayList<Spectrum>();
+        for (SpecKey specKey : fixture.getSpecKeyList()) {
+            Spectrum spec = fixture.getSpectraAccessor().getSpectrumBySpecIndex(specKey.getSpecIndex());
+            spec.setCharge(specKey.getCharge());
+            spectra.add(spec);
+        }
+
+        ScoredSpectraMap specScanner = fixture.makeScoredSpectraMap();
+        AminoAcidSet aaSet = fixture.getAASet();
+        scorers = new ArrayList<SimpleDBSearchScorer<NominalMass>>();
+        prmList = new ArrayList<double[]>();
+        nominalPRMList = new ArrayList<int[]>();
+        for (SpecKey specKey : fixture.getSpecKeyList()) {
+            SimpleDBSearchScorer<NominalMass> scorer = specScanner.getSpecKeyScorerMap().get(specKey);
+            if (scorer == null)
+                continue;
+            String peptide = fixture.getPeptides().get(specKey.getSpecIndex() - 1);
+            double[] prm = new double[peptide.length() + 1];
+            int[] nominalPRM = new int[peptide.length() + 1];
+            for (int i = 0; i < peptide.length(); i++) {
+                AminoAcid aa = aaSet.getAminoAcid(peptide.charAt(i));
+                prm[i + 1] = prm[i] + aa.getAccurateMass();
+                nominalPRM[i + 1] = nominalPRM[i] + aa.getNominalMass();
+            }
+            scorers.add(scorer);
+            prmList.add(prm);
+            nominalPRMList.add(nominalPRM);
+        }
+    }
+
+    /**
+     * NewScoredSpectrum filters and ranks the peaks of the spectrum in place, so every invocation scores fresh copies.
+     */
+    @Setup(Level.Invocation)
+    public void copySpectra() {
+        spectraToScore = new ArrayList<Spectrum>(spectra.size());
+        for (Spectrum spec : spectra) {
+            Spectrum copy = spec.getCloneWithoutPeakList();
+            for (Peak p : spec)
+                copy.add(p.clone());
+            spectraToScore.add(copy);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.delete();
+    }
+
+    @Benchmark
+    public void getScoredSpectrum(Blackhole blackhole) {
+        for (Spectrum spec : spectraToScore)
+            blackhole.consume(rankScorer.getScoredSpectrum(spec));
+    }
+
+    @Benchmark
+    public int getScore() {
+        int sum = 0;
+        for (int i = 0; i < scorers.size(); i++) {
+            int[] nominalPRM = nominalPRMList.get(i);
+            sum += scorers.get(i).getScore(prmList.get(i), nominalPRM, 1, nominalPRM.length, 0);
+        }
+        return sum;
+    }
+}
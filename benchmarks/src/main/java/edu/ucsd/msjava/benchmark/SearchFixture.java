@@ -0,0 +1,214 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msdbsearch.CompactFastaSequence;
+import edu.ucsd.msjava.msdbsearch.CompactSuffixArray;
+import edu.ucsd.msjava.msdbsearch.ConcurrentMSGFPlus;
+import edu.ucsd.msjava.msdbsearch.DBScanner;
+import edu.ucsd.msjava.msdbsearch.MSGFPlusMatch;
+import edu.ucsd.msjava.msdbsearch.ScoredSpectraMap;
+import edu.ucsd.msjava.msdbsearch.SearchParams;
+import edu.ucsd.msjava.msscorer.NewScorerFactory.SpecDataType;
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.SpecFileFormat;
+import edu.ucsd.msjava.msutil.SpecKey;
+import edu.ucsd.msjava.msutil.SpectraAccessor;
+import edu.ucsd.msjava.params.ParamManager;
+import edu.ucsd.msjava.sequences.Constants;
+import edu.ucsd.msjava.ui.MSGFPlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Synthetic database and spectra in a temporary directory, with the objects MS-GF+ builds from them
+ * before the database search. Search parameters are parsed from MS-GF+ command line arguments.
+ */
+public class SearchFixture {
+
+    private static final long SEED = 20230112L;
+
+    private final File workDir;
+    private final File fastaFile;
+    private final File mgfFile;
+    private final List<String> peptides;
+
+    private final SearchParams params;
+    private final AminoAcidSet aaSet;
+    private final CompactSuffixArray sa;
+    private final SpectraAccessor specAcc;
+    private final List<SpecKey> specKeyList;
+    private final SpecDataType specDataType;
+
+    /**
+     * @param numProteins number of proteins of the database
+     * @param numSpectra  number of spectra
+     * @param searchArgs  additional MS-GF+ arguments, e.g. "-ntt", "1"
+     */
+    public SearchFixture(int numProteins, int numSpectra, String... searchArgs) throws IOException {
+        workDir = Files.createTempDirectory("msgfplus-benchmark").toFile();
+        fastaFile = new File(workDir, "synthetic.fasta");
+        mgfFile = new File(workDir, "synthetic.mgf");
+
+        SyntheticData data = new SyntheticData(SEED);
+        data.writeFasta(fastaFile, numProteins);
+        data.writeMgf(mgfFile, numSpectra, AminoAcidSet.getStandardAminoAcidSetWithFixedCarbamidomethylatedCys());
+        peptides = data.getPeptides();
+
+        List<String> argList = new ArrayList<String>(Arrays.asList(
+                "-s", mgfFile.getPath(),
+                "-d", fastaFile.getPath(),
+                "-o", new File(workDir, "synthetic.mzid").getPath(),
+                "-t", "20ppm",
+                "-inst", "3",
+                "-tda", "0"
+        ));
+        argList.addAll(Arrays.asList(searchArgs));
+
+        ParamManager paramManager = new ParamManager("MS-GF+", MSGFPlus.VERSION, MSGFPlus.RELEASE_DATE, "java -jar benchmarks.jar");
+        paramManager.addMSGFPlusParams();
+        String errMsg = paramManager.parseParams(argList.toArray(new String[0]));
+        if (errMsg != null)
+            throw new IllegalArgumentException(errMsg);
+        params = new SearchParams();
+        errMsg = params.parse(paramManager);
+        if (errMsg != null)
+            throw new IllegalArgumentException(errMsg);
+
+        aaSet = params.getAASet();
+        DBScanner.setAminoAcidProbabilities(fastaFile.getPath(), aaSet);
+        aaSet.registerEnzyme(params.getEnzyme());
+
+        sa = new CompactSuffixArray(new CompactFastaSequence(fastaFile.getPath()), params.getMaxPeptideLength());
+
+        specAcc = new SpectraAccessor(mgfFile, SpecFileFormat.MGF);
+        specKeyList = SpecKey.getSpecKeyList(specAcc,
+                params.getStartSpecIndex(), params.getEndSpecIndex(), params.getMinCharge(), params.getMaxCharge(),
+                params.getActivationMethod(), Constants.MIN_NUM_PEAKS_PER_SPECTRUM, params.getAllowDenseCentroidedPeaks());
+        specDataType = new SpecDataType(params.getActivationMethod(), params.getInstType(), params.getEnzyme(), params.getProtocol());
+    }
+
+    public File getWorkDir() {
+        return workDir;
+    }
+
+    public File getMgfFile() {
+        return mgfFile;
+    }
+
+    /**
+     * @return peptide of each spectrum, by spectrum index - 1
+     */
+    public List<String> getPeptides() {
+        return peptides;
+    }
+
+    public SearchParams getParams() {
+        return params;
+    }
+
+    public AminoAcidSet getAASet() {
+        return aaSet;
+    }
+
+    public CompactSuffixArray getSuffixArray() {
+        return sa;
+    }
+
+    public SpectraAccessor getSpectraAccessor() {
+        return specAcc;
+    }
+
+    public List<SpecKey> getSpecKeyList() {
+        return specKeyList;
+    }
+
+    /**
+     * @return scored spectra of all spectra, as built by a single search task
+     */
+    public ScoredSpectraMap makeScoredSpectraMap() {
+        ScoredSpectraMap specScanner = new ScoredSpectraMap(
+                specAcc,
+                Collections.synchronizedList(specKeyList),
+                params.getLeftPrecursorMassTolerance(),
+                params.getRightPrecursorMassTolerance(),
+                params.getMinIsotopeError(),
+                params.getMaxIsotopeError(),
+                specDataType,
+                params.outputAdditionalFeatures(),
+                false
+        );
+        if (params.doNotUseEdgeScore())
+            specScanner.turnOffEdgeScoring();
+        specScanner.makePepMassSpecKeyMap();
+        specScanner.preProcessSpectra();
+        return specScanner;
+    }
+
+    public DBScanner makeDBScanner(ScoredSpectraMap specScanner) {
+        return new DBScanner(
+                specScanner,
+                sa,
+                params.getEnzyme(),
+                aaSet,
+                params.getNumMatchesPerSpec(),
+                params.getMinPeptideLength(),
+                params.getMaxPeptideLength(),
+                params.getMaxNumVariantsPerPeptide(),
+                params.getMinDeNovoScore(),
+                params.ignoreMetCleavage(),
+                params.getMaxMissedCleavages()
+        );
+    }
+
+    /**
+     * @return number of allowable non-enzymatic termini, the argument of DBScanner.dbSearch
+     */
+    public int getNumAllowableNonEnzymaticTermini() {
+        int ntt = params.getNumTolerableTermini();
+        if (params.getEnzyme() == null)
+            ntt = 0;
+        return 2 - ntt;
+    }
+
+    /**
+     * Run a complete search task
+     *
+     * @return sorted matches, as passed to MZIdentMLGen
+     */
+    public List<MSGFPlusMatch> search() {
+        ScoredSpectraMap specScanner = new ScoredSpectraMap(
+                specAcc,
+                Collections.synchronizedList(specKeyList),
+                params.getLeftPrecursorMassTolerance(),
+                params.getRightPrecursorMassTolerance(),
+                params.getMinIsotopeError(),
+                params.getMaxIsotopeError(),
+                specDataType,
+                params.outputAdditionalFeatures(),
+                false
+        );
+        if (params.doNotUseEdgeScore())
+            specScanner.turnOffEdgeScoring();
+        List<MSGFPlusMatch> resultList = Collections.synchronizedList(new ArrayList<MSGFPlusMatch>());
+        new ConcurrentMSGFPlus.RunMSGFPlus(specScanner, sa, params, resultList, 1).run();
+        Collections.sort(resultList);
+        return resultList;
+    }
+
+    /**
+     * Delete the temporary directory
+     */
+    public void delete() {
+        File[] files = workDir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        workDir.delete();
+    }
+}
@@ -0,0 +1,74 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.Spectrum;
+import edu.ucsd.msjava.parser.BufferedLineReader;
+import edu.ucsd.msjava.parser.MgfSpectrumParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of a synthetic MGF file with MgfSpectrumParser.readSpectrum
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SpectrumParsingBenchmark {
+
+    @Param({"5000"})
+    public int numSpectra;
+
+    private File workDir;
+    private File mgfFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("msgfplus-benchmark").toFile();
+        mgfFile = new File(workDir, "synthetic.mgf");
+        File fastaFile = new File(workDir, "synthetic.fasta");
+        SyntheticData data = new SyntheticData(20230112L);
+        data.writeFasta(fastaFile, 200);
+        data.writeMgf(mgfFile, numSpectra, AminoAcidSet.getStandardAminoAcidSetWithFixedCarbamidomethylatedCys());
+        fastaFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mgfFile.delete();
+        workDir.delete();
+    }
+
+    @Benchmark
+    public int readSpectrum(Blackhole blackhole) throws IOException {
+        BufferedLineReader lineReader = new BufferedLineReader(mgfFile.getPath());
+        MgfSpectrumParser parser = new MgfSpectrumParser();
+        int numSpecs = 0;
+        Spectrum spec;
+        while ((spec = parser.readSpectrum(lineReader)) != null) {
+            blackhole.consume(spec);
+            numSpecs++;
+        }
+        lineReader.close();
+        return numSpecs;
+    }
+}
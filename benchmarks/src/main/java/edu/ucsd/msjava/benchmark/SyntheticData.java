@@ -0,0 +1,155 @@
+package edu.ucsd.msjava.benchmark;
+
+import edu.ucsd.msjava.msutil.AminoAcid;
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.Composition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a random protein database and spectra of tryptic peptides of the database.
+ * The same seed always gives the same files, so that benchmark results are comparable between builds.
+ */
+public class SyntheticData {
+
+    // Residues and their approximate frequencies in UniProt (%)
+    private static final String RESIDUES = "ACDEFGHIKLMNPQRSTVWY";
+    private static final double[] FREQUENCIES = {
+            8.3, 1.4, 5.5, 6.7, 3.9, 7.1, 2.3, 5.9, 5.8, 9.7,
+            2.4, 4.1, 4.7, 3.9, 5.5, 6.6, 5.3, 6.9, 1.1, 2.9
+    };
+
+    private static final int MIN_PEPTIDE_LENGTH = 7;
+    private static final int MAX_PEPTIDE_LENGTH = 25;
+    private static final int NUM_NOISE_PEAKS = 80;
+
+    private final Random random;
+    private final double[] cumulativeFrequencies;
+    private final List<String> proteins = new ArrayList<String>();
+    private final List<String> peptides = new ArrayList<String>();
+
+    public SyntheticData(long seed) {
+        random = new Random(seed);
+        cumulativeFrequencies = new double[FREQUENCIES.length];
+        double sum = 0;
+        for (int i = 0; i < FREQUENCIES.length; i++) {
+            sum += FREQUENCIES[i];
+            cumulativeFrequencies[i] = sum;
+        }
+        for (int i = 0; i < cumulativeFrequencies.length; i++)
+            cumulativeFrequencies[i] /= sum;
+    }
+
+    /**
+     * Write a FASTA file of random proteins
+     *
+     * @param fastaFile   output file
+     * @param numProteins number of proteins
+     */
+    public void writeFasta(File fastaFile, int numProteins) throws IOException {
+        PrintStream out = new PrintStream(fastaFile, "UTF-8");
+        for (int i = 0; i < numProteins; i++) {
+            int length = 100 + random.nextInt(700);
+            StringBuilder protein = new StringBuilder(length);
+            protein.append('M');
+            for (int j = 1; j < length; j++)
+                protein.append(nextResidue());
+            proteins.add(protein.toString());
+
+            out.println(">SYN" + i + " Synthetic protein " + i);
+            for (int j = 0; j < length; j += 60)
+                out.println(protein.substring(j, Math.min(length, j + 60)));
+        }
+        out.close();
+    }
+
+    /**
+     * Write an MGF file of spectra of tryptic peptides of the proteins written by writeFasta.
+     * Each spectrum has the b and y ions of its peptide, with some missing, plus random noise peaks.
+     *
+     * @param mgfFile    output file
+     * @param numSpectra number of spectra
+     * @param aaSet      amino acid set used to compute fragment masses
+     */
+    public void writeMgf(File mgfFile, int numSpectra, AminoAcidSet aaSet) throws IOException {
+        List<String> trypticPeptides = getTrypticPeptides();
+        PrintStream out = new PrintStream(mgfFile, "UTF-8");
+        for (int i = 0; i < numSpectra; i++) {
+            String peptide = trypticPeptides.get(random.nextInt(trypticPeptides.size()));
+            peptides.add(peptide);
+            int charge = peptide.length() > 15 ? 3 : 2;
+
+            double[] prefixMass = new double[peptide.length() + 1];
+            for (int j = 0; j < peptide.length(); j++) {
+                AminoAcid aa = aaSet.getAminoAcid(peptide.charAt(j));
+                prefixMass[j + 1] = prefixMass[j] + aa.getAccurateMass();
+            }
+            double peptideMass = prefixMass[peptide.length()];
+            double precursorMz = (peptideMass + Composition.H2O + charge * Composition.PROTON) / charge;
+
+            List<double[]> peaks = new ArrayList<double[]>();
+            for (int j = 1; j < peptide.length(); j++) {
+                if (random.nextDouble() < 0.8)
+                    peaks.add(new double[]{prefixMass[j] + Composition.PROTON, 200 + random.nextInt(2000)});
+                if (random.nextDouble() < 0.9)
+                    peaks.add(new double[]{peptideMass - prefixMass[j] + Composition.H2O + Composition.PROTON, 500 + random.nextInt(5000)});
+            }
+            for (int j = 0; j < NUM_NOISE_PEAKS; j++)
+                peaks.add(new double[]{100 + random.nextDouble() * (precursorMz * charge - 100), 10 + random.nextInt(400)});
+            double[][] peakArr = peaks.toArray(new double[0][]);
+            Arrays.sort(peakArr, (p1, p2) -> Double.compare(p1[0], p2[0]));
+
+            out.println("BEGIN IONS");
+            out.println("TITLE=Synthetic." + (i + 1) + "." + (i + 1) + "." + charge);
+            out.println("SCANS=" + (i + 1));
+            out.println(String.format(Locale.US, "PEPMASS=%.5f", precursorMz));
+            out.println("CHARGE=" + charge + "+");
+            for (double[] peak : peakArr)
+                out.println(String.format(Locale.US, "%.4f %.1f", peak[0], peak[1]));
+            out.println("END IONS");
+        }
+        out.close();
+    }
+
+    /**
+     * @return peptide of each spectrum written by writeMgf
+     */
+    public List<String> getPeptides() {
+        return peptides;
+    }
+
+    private List<String> getTrypticPeptides() {
+        List<String> trypticPeptides = new ArrayList<String>();
+        for (String protein : proteins) {
+            int start = 0;
+            for (int i = 0; i < protein.length(); i++) {
+                char residue = protein.charAt(i);
+                boolean isCleavageSite = (residue == 'K' || residue == 'R')
+                        && (i + 1 == protein.length() || protein.charAt(i + 1) != 'P');
+                if (isCleavageSite || i + 1 == protein.length()) {
+                    int length = i + 1 - start;
+                    if (length >= MIN_PEPTIDE_LENGTH && length <= MAX_PEPTIDE_LENGTH)
+                        trypticPeptides.add(protein.substring(start, i + 1));
+                    start = i + 1;
+                }
+            }
+        }
+        return trypticPeptides;
+    }
+
+    private char nextResidue() {
+        double r = random.nextDouble();
+        for (int i = 0; i < cumulativeFrequencies.length; i++) {
+            if (r < cumulativeFrequencies[i])
+                return RESIDUES.charAt(i);
+        }
+        return RESIDUES.charAt(RESIDUES.length() - 1);
+    }
+}
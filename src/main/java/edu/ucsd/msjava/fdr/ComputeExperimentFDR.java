@@ -0,0 +1,258 @@
+package edu.ucsd.msjava.fdr;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Experiment-level FDR: PSM and peptide q-values over the results of many spectrum files, computed as MS-GF+ computes
+ * them for one file (see MSGFPlusQValues), from the PSM score files written by MS-GF+ with -experimentFDR 1 or 2
+ * (see PSMScoreWriter). The q-values are added to the TSV file of each score file ([OutputFileName].tsv) as the columns
+ * ExperimentQValue and ExperimentPepQValue; the mzIdentML files are not read.
+ * <p>
+ * The scores of all PSMs are kept in primitive arrays (about 25 bytes per PSM); peptides are identified by a 64-bit key.
+ */
+public class ComputeExperimentFDR {
+    public static final String QVALUE_COLUMN = "ExperimentQValue";
+    public static final String PEP_QVALUE_COLUMN = "ExperimentPepQValue";
+
+    public static void main(String argv[]) {
+        List<File> scoreFiles = new ArrayList<File>();
+
+        int i = 0;
+        while (i < argv.length) {
+            // -i ScoreFile|ResultFile|Directory
+            if (argv[i].equalsIgnoreCase("-i")) {
+                if (i + 1 >= argv.length)
+                    printUsageAndExit("Invalid parameter: " + argv[i]);
+                File file = new File(argv[i + 1]);
+                if (file.isDirectory()) {
+                    File[] files = file.listFiles();
+                    Arrays.sort(files);
+                    for (File f : files) {
+                        if (f.isFile() && f.getName().endsWith(PSMScoreWriter.EXTENSION))
+                            scoreFiles.add(f);
+                    }
+                } else if (file.isFile()) {
+                    // result files (e.g. Sample.mzid or Sample.tsv) are replaced with their score file
+                    if (!file.getName().endsWith(PSMScoreWriter.EXTENSION))
+                        file = PSMScoreWriter.getScoreFile(file);
+                    if (!file.isFile())
+                        printUsageAndExit(file.getPath() + " doesn't exist.");
+                    scoreFiles.add(file);
+                } else {
+                    printUsageAndExit(argv[i + 1] + " doesn't exist.");
+                }
+                i += 2;
+            } else {
+                printUsageAndExit("Invalid parameter: " + argv[i]);
+            }
+        }
+
+        if (scoreFiles.isEmpty())
+            printUsageAndExit("No score files (*" + PSMScoreWriter.EXTENSION + ")");
+
+        long startTime = System.currentTimeMillis();
+        String errMsg = computeExperimentFDR(scoreFiles);
+        if (errMsg != null) {
+            System.err.println("[Error] " + errMsg);
+            System.exit(-1);
+        }
+        System.out.format("ComputeExperimentFDR complete (total elapsed time: %.2f sec)\n", (System.currentTimeMillis() - startTime) / (float) 1000);
+    }
+
+    public static void printUsageAndExit(String message) {
+        System.err.println(message);
+        System.out.print("Usage: java -cp MSGFPlus.jar edu.ucsd.msjava.fdr.ComputeExperimentFDR\n" +
+                "\t -i ScoreFile|ResultFile|Directory (*" + PSMScoreWriter.EXTENSION + " written by MS-GF+ with -experimentFDR 1;" +
+                " repeat -i for more files or directories)\n" +
+                "The q-values are added to the TSV file of each score file as the columns " + QVALUE_COLUMN + " and " + PEP_QVALUE_COLUMN + "\n"
+        );
+        System.exit(-1);
+    }
+
+    /**
+     * Compute PSM and peptide q-values over the PSMs of all score files and add them to their TSV files
+     *
+     * @param scoreFiles PSM score files
+     * @return error message, or null if successful
+     */
+    public static String computeExperimentFDR(List<File> scoreFiles) {
+        // PSMs of score file f are numbered from fileOffsets[f] to fileOffsets[f + 1]
+        int[] fileOffsets = new int[scoreFiles.size() + 1];
+        long totalNumPSMs = 0;
+        for (int f = 0; f < scoreFiles.size(); f++) {
+            File scoreFile = scoreFiles.get(f);
+            long numBytes = scoreFile.length() - PSMScoreWriter.HEADER_SIZE;
+            if (numBytes < 0 || numBytes % PSMScoreWriter.RECORD_SIZE != 0)
+                return "Invalid score file: " + scoreFile.getPath();
+            totalNumPSMs += numBytes / PSMScoreWriter.RECORD_SIZE;
+            if (totalNumPSMs > Integer.MAX_VALUE - 8)
+                return "Too many PSMs; at most " + (Integer.MAX_VALUE - 8) + " PSMs are supported";
+            fileOffsets[f + 1] = (int) totalNumPSMs;
+        }
+        int numPSMs = (int) totalNumPSMs;
+
+        System.out.println("Reading " + numPSMs + " PSMs from " + scoreFiles.size() + " score files...");
+        float[] psmScores = new float[numPSMs];
+        long[] pepKeys = new long[numPSMs];
+        BitSet isDecoy = new BitSet(numPSMs);
+        BitSet hasTSVRow = new BitSet(numPSMs);
+        for (int f = 0; f < scoreFiles.size(); f++) {
+            File scoreFile = scoreFiles.get(f);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(scoreFile), 1 << 16))) {
+                if (in.readInt() != PSMScoreWriter.FORMAT_ID || in.readInt() != PSMScoreWriter.VERSION)
+                    return "Invalid score file: " + scoreFile.getPath();
+                for (int psmIndex = fileOffsets[f]; psmIndex < fileOffsets[f + 1]; psmIndex++) {
+                    psmScores[psmIndex] = in.readFloat();
+                    pepKeys[psmIndex] = in.readLong();
+                    byte flags = in.readByte();
+                    if ((flags & PSMScoreWriter.DECOY) != 0)
+                        isDecoy.set(psmIndex);
+                    if ((flags & PSMScoreWriter.TSV_ROW) != 0)
+                        hasTSVRow.set(psmIndex);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return "Error while reading " + scoreFile.getPath() + ": " + e.getMessage();
+            }
+        }
+
+        // peptides: distinct peptide keys, sorted
+        long[] peptides = pepKeys.clone();
+        Arrays.sort(peptides);
+        int numPeptides = 0;
+        for (int k = 0; k < numPSMs; k++) {
+            if (k == 0 || peptides[k] != peptides[k - 1])
+                peptides[numPeptides++] = peptides[k];
+        }
+        int[] pepIndices = new int[numPSMs];
+        for (int psmIndex = 0; psmIndex < numPSMs; psmIndex++)
+            pepIndices[psmIndex] = Arrays.binarySearch(peptides, 0, numPeptides, pepKeys[psmIndex]);
+        peptides = null;
+        pepKeys = null;
+
+        float[] pepQValues = MSGFPlusQValues.getPepQValues(psmScores, isDecoy, pepIndices, numPSMs, numPeptides);
+        MSGFPlusQValues.toQValues(psmScores, isDecoy, numPSMs);
+        float[] psmQValues = psmScores;
+
+        int numTargetPSMs = 0;
+        BitSet targetPeptides = new BitSet(numPeptides);
+        for (int psmIndex = 0; psmIndex < numPSMs; psmIndex++) {
+            if (isDecoy.get(psmIndex))
+                continue;
+            if (psmQValues[psmIndex] <= 0.01f)
+                numTargetPSMs++;
+            if (pepQValues[pepIndices[psmIndex]] <= 0.01f)
+                targetPeptides.set(pepIndices[psmIndex]);
+        }
+        System.out.println("Target PSMs at 1% FDR: " + numTargetPSMs + "; target peptides at 1% peptide-level FDR: " + targetPeptides.cardinality());
+
+        // All TSV files are written to temporary files first, so that no TSV file is changed if any of them does not match
+        List<File> tsvFiles = new ArrayList<File>();
+        List<File> tmpFiles = new ArrayList<File>();
+        try {
+            for (int f = 0; f < scoreFiles.size(); f++) {
+                File tsvFile = getTSVFile(scoreFiles.get(f));
+                if (!tsvFile.exists()) {
+                    System.out.println("Note: " + tsvFile.getPath() + " not found; the q-values of " + scoreFiles.get(f).getName() + " are not written");
+                    continue;
+                }
+                File tmpFile = new File(tsvFile.getPath() + ".tmp");
+                tsvFiles.add(tsvFile);
+                tmpFiles.add(tmpFile);
+                String errMsg = addQValues(tsvFile, tmpFile, psmQValues, pepQValues, pepIndices, hasTSVRow, fileOffsets[f], fileOffsets[f + 1]);
+                if (errMsg != null)
+                    return errMsg;
+            }
+
+            for (int i = 0; i < tsvFiles.size(); i++) {
+                File tsvFile = tsvFiles.get(i);
+                try {
+                    Files.move(tmpFiles.get(i).toPath(), tsvFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return "Error while writing " + tsvFile.getPath() + ": " + e.getMessage();
+                }
+                System.out.println("File: " + tsvFile.getPath());
+            }
+        } finally {
+            for (File tmpFile : tmpFiles)
+                tmpFile.delete();
+        }
+        return null;
+    }
+
+    /**
+     * TSV file of a score file: the score file with the extension .tsv
+     */
+    public static File getTSVFile(File scoreFile) {
+        String path = scoreFile.getPath();
+        return new File(path.substring(0, path.length() - PSMScoreWriter.EXTENSION.length()) + ".tsv");
+    }
+
+    /**
+     * Write the rows of a TSV file with the q-values of the PSMs fromIndex to toIndex to another file,
+     * replacing those of an earlier run if any
+     *
+     * @param tmpFile file to write
+     * @return error message, or null if successful
+     */
+    private static String addQValues(File tsvFile, File tmpFile, float[] psmQValues, float[] pepQValues, int[] pepIndices, BitSet hasTSVRow,
+                                     int fromIndex, int toIndex) {
+        String errMsg = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(tsvFile), StandardCharsets.UTF_8), 1 << 16);
+             Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), StandardCharsets.UTF_8), 1 << 16)) {
+            String header = in.readLine();
+            if (header == null)
+                header = "";
+
+            List<String> columns = Arrays.asList(header.split("\t", -1));
+            int qValueCol = columns.indexOf(QVALUE_COLUMN);
+            int pepQValueCol = columns.indexOf(PEP_QVALUE_COLUMN);
+            boolean append = qValueCol < 0 || pepQValueCol < 0;
+
+            out.write(header);
+            if (append)
+                out.write("\t" + QVALUE_COLUMN + "\t" + PEP_QVALUE_COLUMN);
+            out.write('\n');
+
+            int psmIndex = hasTSVRow.nextSetBit(fromIndex);
+            boolean isRowMissing = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (psmIndex < 0 || psmIndex >= toIndex) {
+                    isRowMissing = true;    // more rows than PSMs with rows
+                    break;
+                }
+                String qValue = String.valueOf(psmQValues[psmIndex]);
+                String pepQValue = String.valueOf(pepQValues[pepIndices[psmIndex]]);
+                if (append) {
+                    out.write(line);
+                    out.write('\t');
+                    out.write(qValue);
+                    out.write('\t');
+                    out.write(pepQValue);
+                } else {
+                    String[] token = line.split("\t", -1);
+                    token[qValueCol] = qValue;
+                    token[pepQValueCol] = pepQValue;
+                    out.write(String.join("\t", token));
+                }
+                out.write('\n');
+                psmIndex = hasTSVRow.nextSetBit(psmIndex + 1);
+            }
+            if (isRowMissing || (psmIndex >= 0 && psmIndex < toIndex))
+                errMsg = "The rows of " + tsvFile.getPath() + " do not match its score file; was it written by the same search?";
+        } catch (IOException e) {
+            e.printStackTrace();
+            errMsg = "Error while writing " + tsvFile.getPath() + ": " + e.getMessage();
+        }
+        return errMsg;
+    }
+}
@@ -1,12 +1,10 @@
 package edu.ucsd.msjava.fdr;
 
 import edu.ucsd.msjava.msdbsearch.CompactSuffixArray;
-import edu.ucsd.msjava.msdbsearch.DatabaseMatch;
 import edu.ucsd.msjava.msdbsearch.MSGFPlusMatch;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.List;
 
 public class ComputeFDR {
     public static final float FDR_REPORT_THRESHOLD = 0.1f;
@@ -245,7 +243,19 @@ public class ComputeFDR {
     }
 
     public static void addQValues(
-            List<MSGFPlusMatch> resultList,
+            Iterable<MSGFPlusMatch> resultList,
+            CompactSuffixArray sa,
+            boolean considerBestMatchOnly,
+            String decoyProteinPrefix) {
+
+        new MSGFPlusQValues(resultList, sa, considerBestMatchOnly, decoyProteinPrefix).addQValues(resultList);
+    }
+
+    /**
+     * Target-decoy analysis of MS-GF+ results; reads the results twice, once for the targets and once for the decoys
+     */
+    public static TargetDecoyAnalysis getTargetDecoyAnalysis(
+            Iterable<MSGFPlusMatch> resultList,
             CompactSuffixArray sa,
             boolean considerBestMatchOnly,
             String decoyProteinPrefix) {
@@ -258,24 +268,6 @@ public class ComputeFDR {
         decoy.setConsiderBestMatchOnly(considerBestMatchOnly);
         decoy.read();
 
-        TargetDecoyAnalysis tda = new TargetDecoyAnalysis(target, decoy);
-
-        for (MSGFPlusMatch match : resultList) {
-            List<DatabaseMatch> dbMatchList;
-            if (considerBestMatchOnly) {
-                dbMatchList = new ArrayList<DatabaseMatch>();
-                dbMatchList.add(match.getBestDBMatch());
-            } else
-                dbMatchList = match.getMatchList();
-
-            for (DatabaseMatch m : dbMatchList) {
-                float psmQValue = tda.getPSMQValue((float) m.getSpecEValue());
-                Float pepQValue = tda.getPepQValue(m.getPepSeq());
-
-                m.setPSMQValue(psmQValue);
-                m.setPepQValue(pepQValue);
-            }
-
-        }
+        return new TargetDecoyAnalysis(target, decoy);
     }
 }
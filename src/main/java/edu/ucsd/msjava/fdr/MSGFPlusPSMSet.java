@@ -11,7 +11,7 @@ import java.util.List;
 
 public class MSGFPlusPSMSet extends PSMSet {
 
-    private final List<MSGFPlusMatch> msgfPlusPSMList;
+    private final Iterable<MSGFPlusMatch> msgfPlusPSMList;
     private final boolean isDecoy;
     private final CompactSuffixArray sa;
     private final String decoyProteinPrefix;
@@ -19,7 +19,7 @@ public class MSGFPlusPSMSet extends PSMSet {
     private boolean considerBestMatchOnly = false;
 
     public MSGFPlusPSMSet(
-            List<MSGFPlusMatch> msgfPlusPSMList,
+            Iterable<MSGFPlusMatch> msgfPlusPSMList,
             boolean isDecoy,
             CompactSuffixArray sa,
             String decoyProteinPrefix) {
@@ -0,0 +1,289 @@
+package edu.ucsd.msjava.fdr;
+
+import edu.ucsd.msjava.msdbsearch.CompactFastaSequence;
+import edu.ucsd.msjava.msdbsearch.CompactSuffixArray;
+import edu.ucsd.msjava.msdbsearch.DatabaseMatch;
+import edu.ucsd.msjava.msdbsearch.MSGFPlusMatch;
+import edu.ucsd.msjava.ui.MSGFPlus;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PSM and peptide q-values of MS-GF+ results (spectral E-values, smaller is better), the same as those of
+ * TargetDecoyAnalysis with MSGFPlusPSMSet, computed with primitive arrays:
+ * the results are read once, a match is a decoy if all its proteins are decoys (looked up in a bitset of decoy proteins),
+ * and the q-values are computed by sorting the scores and sweeping them once.
+ * <p>
+ * The q-values are stored by the position of the match in the results, so the results must be iterated in the same order
+ * (with the same match lists) when the q-values are added, as MSGFPlusResultStore does.
+ */
+public class MSGFPlusQValues {
+    private final boolean considerBestMatchOnly;
+
+    private float[] psmQValues;    // PSM -> q-value; PSMs are numbered in the order of the results
+    private int[] pepIndices;    // PSM -> peptide
+    private float[] pepQValues;    // peptide -> peptide q-value
+    private int numPSMs;
+
+    // decoy proteins
+    private final int[] proteinEndPositions;
+    private final BitSet decoyProteins;
+
+    public MSGFPlusQValues(
+            Iterable<MSGFPlusMatch> resultList,
+            CompactSuffixArray sa,
+            boolean considerBestMatchOnly,
+            String decoyProteinPrefix) {
+        this.considerBestMatchOnly = considerBestMatchOnly;
+
+        if (decoyProteinPrefix == null || decoyProteinPrefix.trim().isEmpty())
+            decoyProteinPrefix = MSGFPlus.DEFAULT_DECOY_PROTEIN_PREFIX;
+        CompactFastaSequence seq = sa.getSequence();
+        proteinEndPositions = seq.getProteinEndPositions();
+        decoyProteins = seq.getDecoyProteins(decoyProteinPrefix);
+
+        read(resultList);
+    }
+
+    public int getNumPSMs() {
+        return numPSMs;
+    }
+
+    /**
+     * Set the PSM and peptide q-values of the results; they must be the results the q-values were computed from
+     */
+    public void addQValues(Iterable<MSGFPlusMatch> resultList) {
+        Iterator<MSGFPlusMatch> itr = withQValues(resultList).iterator();
+        while (itr.hasNext())
+            itr.next();
+    }
+
+    /**
+     * Results whose PSM and peptide q-values are set as they are iterated; they must be the results the q-values were computed from
+     */
+    public Iterable<MSGFPlusMatch> withQValues(final Iterable<MSGFPlusMatch> resultList) {
+        return new Iterable<MSGFPlusMatch>() {
+            public Iterator<MSGFPlusMatch> iterator() {
+                final Iterator<MSGFPlusMatch> itr = resultList.iterator();
+                return new Iterator<MSGFPlusMatch>() {
+                    private int psmIndex = 0;
+
+                    public boolean hasNext() {
+                        return itr.hasNext();
+                    }
+
+                    public MSGFPlusMatch next() {
+                        MSGFPlusMatch match = itr.next();
+                        if (considerBestMatchOnly) {
+                            setQValues(match.getBestDBMatch(), psmIndex++);
+                        } else {
+                            for (DatabaseMatch m : match.getMatchList())
+                                setQValues(m, psmIndex++);
+                        }
+                        return match;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    private void setQValues(DatabaseMatch m, int psmIndex) {
+        if (psmIndex >= numPSMs)
+            throw new IllegalStateException("The results differ from those the q-values were computed from");
+        m.setPSMQValue(psmQValues[psmIndex]);
+        m.setPepQValue(pepQValues[pepIndices[psmIndex]]);
+    }
+
+    private void read(Iterable<MSGFPlusMatch> resultList) {
+        float[] psmScores = new float[1 << 10];
+        BitSet isDecoyPSM = new BitSet();
+        pepIndices = new int[psmScores.length];
+        Map<String, Integer> pepIndexMap = new HashMap<String, Integer>();
+
+        numPSMs = 0;
+        for (MSGFPlusMatch match : resultList) {
+            List<DatabaseMatch> dbMatchList = match.getMatchList();
+            int fromIndex = considerBestMatchOnly ? dbMatchList.size() - 1 : 0;    // the best match is the last one
+            for (int i = fromIndex; i < dbMatchList.size(); i++) {
+                DatabaseMatch m = dbMatchList.get(i);
+                if (numPSMs == psmScores.length) {
+                    psmScores = Arrays.copyOf(psmScores, numPSMs * 2);
+                    pepIndices = Arrays.copyOf(pepIndices, numPSMs * 2);
+                }
+
+                psmScores[numPSMs] = (float) m.getSpecEValue();
+                if (isDecoy(m))
+                    isDecoyPSM.set(numPSMs);
+
+                Integer pepIndex = pepIndexMap.get(m.getPepSeq());
+                if (pepIndex == null) {
+                    pepIndex = pepIndexMap.size();
+                    pepIndexMap.put(m.getPepSeq(), pepIndex);
+                }
+                pepIndices[numPSMs] = pepIndex;
+                numPSMs++;
+            }
+        }
+        int numPeptides = pepIndexMap.size();
+        pepIndexMap = null;
+
+        pepQValues = getPepQValues(psmScores, isDecoyPSM, pepIndices, numPSMs, numPeptides);
+
+        toQValues(psmScores, isDecoyPSM, numPSMs);
+        psmQValues = psmScores;
+    }
+
+    /**
+     * Peptide q-values, as TargetDecoyAnalysis.getPepQValue computes them: the score of a peptide is that of its best
+     * target PSM, or of its best decoy PSM if it has no target PSM, and the FDRs are those of the best target and
+     * the best decoy PSM of each peptide.
+     *
+     * @param psmScores  PSM scores (smaller is better)
+     * @param isDecoyPSM decoy PSMs
+     * @param pepIndices PSM -> peptide
+     * @param numPSMs    number of PSMs
+     * @param numPeptides number of peptides
+     * @return peptide -> q-value
+     */
+    static float[] getPepQValues(float[] psmScores, BitSet isDecoyPSM, int[] pepIndices, int numPSMs, int numPeptides) {
+        float[] pepTargetScores = new float[numPeptides];    // best score of the target PSMs of a peptide
+        float[] pepDecoyScores = new float[numPeptides];    // best score of the decoy PSMs of a peptide
+        BitSet hasTargetPSM = new BitSet(numPeptides);
+        BitSet hasDecoyPSM = new BitSet(numPeptides);
+        for (int psmIndex = 0; psmIndex < numPSMs; psmIndex++) {
+            int pepIndex = pepIndices[psmIndex];
+            float score = psmScores[psmIndex];
+            if (isDecoyPSM.get(psmIndex)) {
+                if (!hasDecoyPSM.get(pepIndex) || score < pepDecoyScores[pepIndex])
+                    pepDecoyScores[pepIndex] = score;
+                hasDecoyPSM.set(pepIndex);
+            } else {
+                if (!hasTargetPSM.get(pepIndex) || score < pepTargetScores[pepIndex])
+                    pepTargetScores[pepIndex] = score;
+                hasTargetPSM.set(pepIndex);
+            }
+        }
+
+        int numPepScores = hasTargetPSM.cardinality() + hasDecoyPSM.cardinality();
+        float[] pepScores = new float[numPepScores];
+        BitSet isDecoyPep = new BitSet(numPepScores);
+        int[] pepScoreIndices = new int[numPeptides];
+        int numScores = 0;
+        for (int pepIndex = 0; pepIndex < numPeptides; pepIndex++) {
+            if (hasTargetPSM.get(pepIndex)) {
+                pepScoreIndices[pepIndex] = numScores;
+                pepScores[numScores++] = pepTargetScores[pepIndex];
+            }
+            if (hasDecoyPSM.get(pepIndex)) {
+                if (!hasTargetPSM.get(pepIndex))
+                    pepScoreIndices[pepIndex] = numScores;
+                isDecoyPep.set(numScores);
+                pepScores[numScores++] = pepDecoyScores[pepIndex];
+            }
+        }
+        toQValues(pepScores, isDecoyPep, numScores);
+
+        float[] pepQValues = new float[numPeptides];
+        for (int pepIndex = 0; pepIndex < numPeptides; pepIndex++)
+            pepQValues[pepIndex] = pepScores[pepScoreIndices[pepIndex]];
+        return pepQValues;
+    }
+
+    /**
+     * A match is a decoy if all of its proteins are decoys
+     */
+    boolean isDecoy(DatabaseMatch m) {
+        for (int index : m.getIndices()) {
+            // the protein at a position is the first one ending after it
+            int proteinIndex = Arrays.binarySearch(proteinEndPositions, index);
+            proteinIndex = proteinIndex >= 0 ? proteinIndex + 1 : -proteinIndex - 1;
+            if (proteinIndex >= proteinEndPositions.length || !decoyProteins.get(proteinIndex))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Replace scores (smaller is better) with their q-values, as TargetDecoyAnalysis.getFDRMap and getPSMQValue compute them:
+     * at each decoy score, FDR = #decoys / #targets with a smaller score, up to the first FDR of 1;
+     * the q-value of a score is the minimum FDR at the decoy scores greater than it (1 above the last one, 0 without decoys).
+     *
+     * @param scores  scores, replaced with their q-values
+     * @param isDecoy decoy scores
+     * @param size    number of scores
+     */
+    static void toQValues(float[] scores, BitSet isDecoy, int size) {
+        // scores sorted with their indices: sortable score bits in the upper half, index in the lower half
+        long[] sortedScores = new long[size];
+        for (int i = 0; i < size; i++)
+            sortedScores[i] = ((long) toSortableInt(scores[i]) << 32) | i;
+        Arrays.sort(sortedScores);
+
+        // FDRs at the decoy scores, in increasing order of scores
+        int[] fdrScores = new int[size];
+        float[] fdrs = new float[size];
+        int numFDRs = 0;
+        int numTargets = 0;
+        int numDecoys = 0;
+        int from = 0;
+        while (from < size) {
+            int score = (int) (sortedScores[from] >> 32);
+            int to = from;
+            int numDecoysWithScore = 0;
+            while (to < size && (int) (sortedScores[to] >> 32) == score) {
+                if (isDecoy.get((int) sortedScores[to]))
+                    numDecoysWithScore++;
+                to++;
+            }
+
+            if (numDecoysWithScore > 0 && numTargets > 0) {
+                float fdr;
+                if (numTargets <= numDecoys)
+                    fdr = 1;
+                else
+                    fdr = Math.min(numDecoys / (float) numTargets, 1f);
+                fdrScores[numFDRs] = score;
+                fdrs[numFDRs++] = fdr;
+                if (fdr >= 1)
+                    break;
+            }
+            numDecoys += numDecoysWithScore;
+            numTargets += to - from - numDecoysWithScore;
+            from = to;
+        }
+
+        // q-value at each decoy score: minimum FDR at this or a greater decoy score
+        float maxQValue = isDecoy.isEmpty() ? 0 : 1;
+        float qValue = maxQValue;
+        for (int i = numFDRs - 1; i >= 0; i--) {
+            qValue = Math.min(qValue, fdrs[i]);
+            fdrs[i] = qValue;
+        }
+
+        // q-value of each score: that of the first decoy score greater than it
+        int fdrIndex = 0;
+        for (long sortedScore : sortedScores) {
+            int score = (int) (sortedScore >> 32);
+            while (fdrIndex < numFDRs && fdrScores[fdrIndex] <= score)
+                fdrIndex++;
+            scores[(int) sortedScore] = fdrIndex < numFDRs ? fdrs[fdrIndex] : maxQValue;
+        }
+    }
+
+    /**
+     * Int whose order is that of Float.compare
+     */
+    private static int toSortableInt(float f) {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+}
@@ -0,0 +1,70 @@
+package edu.ucsd.msjava.fdr;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the PSM score file of a search ([OutputFileName].scores), read by ComputeExperimentFDR to compute q-values
+ * over many spectrum files without parsing their results.
+ * <p>
+ * The file has a header (FORMAT_ID, VERSION) followed by a fixed size record per PSM, in the order the PSMs are written
+ * to the TSV file: spectral E-value (float), peptide key (long, see getPeptideKey) and flags (byte, DECOY and TSV_ROW).
+ * The PSMs with TSV_ROW are those of the rows of the TSV file, in the same order.
+ */
+public class PSMScoreWriter implements Closeable {
+    public static final String EXTENSION = ".scores";
+
+    public static final int FORMAT_ID = 0x50534d53;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = 13;
+
+    // flags
+    public static final byte DECOY = 1;
+    public static final byte TSV_ROW = 2;
+
+    private final DataOutputStream out;
+
+    public PSMScoreWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(FORMAT_ID);
+        out.writeInt(VERSION);
+    }
+
+    public void write(float specEValue, String pepSeq, boolean isDecoy, boolean hasTSVRow) throws IOException {
+        out.writeFloat(specEValue);
+        out.writeLong(getPeptideKey(pepSeq));
+        out.writeByte((isDecoy ? DECOY : 0) | (hasTSVRow ? TSV_ROW : 0));
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * 64-bit hash (FNV-1a) of the peptide (as in DatabaseMatch.getPepSeq), identifying the peptides of all files
+     */
+    public static long getPeptideKey(String pepSeq) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < pepSeq.length(); i++) {
+            hash ^= pepSeq.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Score file of a search: the output file with the extension .scores
+     */
+    public static File getScoreFile(File outputFile) {
+        String path = outputFile.getPath();
+        int extIndex = path.lastIndexOf('.');
+        if (extIndex <= path.lastIndexOf(File.separatorChar))
+            extIndex = path.length();
+        return new File(path.substring(0, extIndex) + EXTENSION);
+    }
+}
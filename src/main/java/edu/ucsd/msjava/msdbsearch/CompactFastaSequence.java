@@ -31,6 +31,16 @@ public class CompactFastaSequence implements Sequence {
      */
     private TreeMap<Integer, String> annotations;
 
+    /**
+     * End positions of the proteins (see getProteinEndPositions), built on first use
+     */
+    private int[] proteinEndPositions;
+
+    /**
+     * Decoy proteins by decoy protein prefix (see getDecoyProteins), built on first use
+     */
+    private final Map<String, BitSet> decoyProteinsByPrefix = new HashMap<String, BitSet>();
+
     /**
      * Contents of the sequence concatenated into a long string
      */
@@ -51,6 +61,12 @@ public class CompactFastaSequence implements Sequence {
      */
     private HashMap<Byte, Character> byte2alpha;
 
+    /**
+     * Reverse translation table indexed by (byte & 0xFF); '?' for bytes not in the alphabet.
+     * Used by getCharAt, which is called for every residue scanned during the database search
+     */
+    private char[] byte2char;
+
     /**
      * String representation of the alphabet
      */
@@ -242,8 +258,7 @@ public class CompactFastaSequence implements Sequence {
     }
 
     public char toChar(byte b) {
-        if (byte2alpha.containsKey(b)) return byte2alpha.get(b);
-        return '?';
+        return byte2char[b & 0xFF];
     }
 
     public int getAlphabetSize() {
@@ -271,15 +286,13 @@ public class CompactFastaSequence implements Sequence {
     }
 
     public char getCharAt(long position) {
-        return toChar(this.sequence[(int) position]);
+        return byte2char[this.sequence[(int) position] & 0xFF];
     }
 
     public String toString(byte[] sequence) {
         String retVal = "";
         for (byte item : sequence) {
-            Character c = byte2alpha.get(item);
-            if (c != null) retVal += c;
-            else retVal += '?';
+            retVal += toChar(item);
         }
         return retVal;
     }
@@ -398,6 +411,11 @@ public class CompactFastaSequence implements Sequence {
             }
             byte2alpha.put(value, tokens[i].charAt(0));
         }
+
+        this.byte2char = new char[256];
+        Arrays.fill(byte2char, '?');
+        for (Entry<Byte, Character> entry : byte2alpha.entrySet())
+            byte2char[entry.getKey() & 0xFF] = entry.getValue();
     }
 
     /**
@@ -579,6 +597,43 @@ public class CompactFastaSequence implements Sequence {
         return annotations.keySet().size();
     }
 
+    /**
+     * End positions (terminators) of the proteins, in increasing order.
+     * The protein at a position is the first one whose end position is greater than the position, as in getAnnotation.
+     * Built on the first call; the returned array is shared and must not be modified.
+     *
+     * @return end positions, indexed by protein
+     */
+    public synchronized int[] getProteinEndPositions() {
+        if (proteinEndPositions == null) {
+            int[] endPositions = new int[annotations.size()];
+            int proteinIndex = 0;
+            for (int endPosition : annotations.keySet())
+                endPositions[proteinIndex++] = endPosition;
+            proteinEndPositions = endPositions;
+        }
+        return proteinEndPositions;
+    }
+
+    /**
+     * Proteins whose annotation starts with decoyProteinPrefix, indexed as getProteinEndPositions.
+     * Built on the first call for each prefix; the returned bitset is shared and must not be modified.
+     */
+    public synchronized BitSet getDecoyProteins(String decoyProteinPrefix) {
+        BitSet decoyProteins = decoyProteinsByPrefix.get(decoyProteinPrefix);
+        if (decoyProteins == null) {
+            decoyProteins = new BitSet(annotations.size());
+            int proteinIndex = 0;
+            for (String annotation : annotations.values()) {
+                if (annotation.startsWith(decoyProteinPrefix))
+                    decoyProteins.set(proteinIndex);
+                proteinIndex++;
+            }
+            decoyProteinsByPrefix.put(decoyProteinPrefix, decoyProteins);
+        }
+        return decoyProteins;
+    }
+
     public float getRatioUniqueProteins() {
         int numProteins = 0;
         ArrayList<Integer> proteinLastIndexList = new ArrayList<Integer>(annotations.keySet());
@@ -6,6 +6,9 @@ import edu.ucsd.msjava.sequences.Constants;
 import edu.ucsd.msjava.suffixarray.SuffixFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
@@ -42,6 +45,13 @@ public class CompactSuffixArray {
      */
     protected static final int INT_BYTE_SIZE = Integer.SIZE / Byte.SIZE;
 
+    /**
+     * log2 of the number of suffix indices per memory-mapped region of the index file (1GB per region)
+     */
+    private static final int INDEX_REGION_SHIFT = 28;
+
+    private static final int INDEX_REGION_MASK = (1 << INDEX_REGION_SHIFT) - 1;
+
     /***** MEMBERS *****/
     /**
      * Tracks indices of the sorted suffixes
@@ -78,6 +88,17 @@ public class CompactSuffixArray {
      */
     private int[] numDistinctPeptides;
 
+    /**
+     * Memory-mapped view of the sorted suffix indices, split into regions of at most 2^INDEX_REGION_SHIFT ints;
+     * only absolute gets are used, so the view can be shared by all threads
+     */
+    private IntBuffer[] indexRegions;
+
+    /**
+     * Memory-mapped view of the neighboring LCPs; shared by all threads
+     */
+    private ByteBuffer neighboringLcps;
+
 
     /**
      * Constructor that attempts to read the suffix array from the provided file.
@@ -106,6 +127,8 @@ public class CompactSuffixArray {
             System.err.println("Please recreate the suffix array file by deleting the .canno, .cseq, and .csarr files.");
             System.exit(-1);
         }
+
+        mapSuffixArrayFiles();
     }
 
     /**
@@ -135,6 +158,28 @@ public class CompactSuffixArray {
         return size;
     }
 
+    /**
+     * Get the position in the sequence of the suffix at the given rank of the suffix array.
+     * Thread-safe; reads from the memory-mapped index file.
+     *
+     * @param rank rank of the suffix, from 0 to getSize()-1
+     * @return index of the suffix in the sequence
+     */
+    public int getSuffixIndex(int rank) {
+        return indexRegions[rank >>> INDEX_REGION_SHIFT].get(rank & INDEX_REGION_MASK);
+    }
+
+    /**
+     * Get the longest common prefix of the suffix at the given rank and the suffix preceding it.
+     * Thread-safe; reads from the memory-mapped nlcp file.
+     *
+     * @param rank rank of the suffix, from 0 to getSize()-1
+     * @return neighboring lcp
+     */
+    public byte getNeighboringLcp(int rank) {
+        return neighboringLcps.get(rank);
+    }
+
     public int getNumDistinctPeptides(int length) {
         // no boundary check
         return numDistinctPeptides[length];
@@ -197,37 +242,54 @@ public class CompactSuffixArray {
 
         // This array keeps track of the number of possible peptides of each length
         numDistinctPeptides = new int[maxPeptideLength + 2];
-        try {
-            File indexFile = getIndexFile();
-            System.out.printf("Counting number of distinct peptides in %s using %s\n", indexFile.getName(), nlcpFile.getName());
-
-            DataInputStream indices = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
-            indices.skip(CompactSuffixArray.INT_BYTE_SIZE * 2);    // skip size and id
+        System.out.printf("Counting number of distinct peptides in %s using %s\n", indexFile.getName(), nlcpFile.getName());
 
-            DataInputStream neighboringLcps = new DataInputStream(new BufferedInputStream(new FileInputStream(nlcpFile)));
-            int size = neighboringLcps.readInt();
-            neighboringLcps.readInt();    // skip id
+        long lastStatusTime = System.currentTimeMillis();
 
-            long lastStatusTime = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            // print progress
+            if (i % 100000 == 0 && System.currentTimeMillis() - lastStatusTime > 2000) {
+                lastStatusTime = System.currentTimeMillis();
+                System.out.printf("Counting distinct peptides: %.2f%% complete.\n", i * 100.0 / size);
+            }
 
-            for (int i = 0; i < size; i++) {
-                // print progress
-                if (i % 100000 == 0 && System.currentTimeMillis() - lastStatusTime > 2000) {
-                    lastStatusTime = System.currentTimeMillis();
-                    System.out.printf("Counting distinct peptides: %.2f%% complete.\n", i * 100.0 / size);
-                }
+            int index = getSuffixIndex(i);
+            byte lcp = getNeighboringLcp(i);
+            int idx = sequence.getCharAt(index);
+            if (isValidResidue[idx] == false)
+                continue;
 
-                int index = indices.readInt();
-                byte lcp = neighboringLcps.readByte();
-                int idx = sequence.getCharAt(index);
-                if (isValidResidue[idx] == false)
-                    continue;
+            for (int l = lcp + 1; l < numDistinctPeptides.length; l++) {
+                numDistinctPeptides[l]++;
+            }
+        }
+    }
 
-                for (int l = lcp + 1; l < numDistinctPeptides.length; l++) {
-                    numDistinctPeptides[l]++;
-                }
+    /**
+     * Helper method that maps the index and nlcp files into memory (read-only).
+     * The mapped views are shared by all threads scanning the suffix array,
+     * and allow random access to any range of suffixes without re-reading the files.
+     */
+    private void mapSuffixArrayFiles() {
+        try {
+            // skip size and id
+            long startPos = INT_BYTE_SIZE * 2;
+
+            RandomAccessFile indexRaf = new RandomAccessFile(indexFile, "r");
+            FileChannel fc = indexRaf.getChannel();
+            int numRegions = size == 0 ? 1 : ((size - 1) >>> INDEX_REGION_SHIFT) + 1;
+            indexRegions = new IntBuffer[numRegions];
+            for (int i = 0; i < numRegions; i++) {
+                long regionStart = (long) i << INDEX_REGION_SHIFT;
+                long regionSize = Math.min(size - regionStart, 1L << INDEX_REGION_SHIFT);
+                indexRegions[i] = fc.map(FileChannel.MapMode.READ_ONLY,
+                        startPos + regionStart * INT_BYTE_SIZE, regionSize * INT_BYTE_SIZE).asIntBuffer();
             }
-            neighboringLcps.close();
+            indexRaf.close();
+
+            RandomAccessFile nlcpRaf = new RandomAccessFile(nlcpFile, "r");
+            neighboringLcps = nlcpRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, startPos, size);
+            nlcpRaf.close();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
@@ -473,17 +535,11 @@ public class CompactSuffixArray {
         int[] numPeptides = new int[maxPeptideLength];
         int[][] numPepWithError = new int[maxPeptideLength][11];
 
-        DataInputStream indices = new DataInputStream(new BufferedInputStream(new FileInputStream(getIndexFile())));
-        indices.skip(CompactSuffixArray.INT_BYTE_SIZE * 2);    // skip size and id
-
-        DataInputStream nlcps = new DataInputStream(new BufferedInputStream(new FileInputStream(getNeighboringLcpFile())));
-        nlcps.skip(CompactSuffixArray.INT_BYTE_SIZE * 2);
-
         int size = this.getSize();
         int index = -1;
         for (int bufferIndex = 0; bufferIndex < size; bufferIndex++) {
-            index = indices.readInt();
-            int lcp = nlcps.readByte();
+            index = getSuffixIndex(bufferIndex);
+            int lcp = getNeighboringLcp(bufferIndex);
 
             int idx = sequence.getCharAt(index);
             if (aaMass[idx] <= 0)
@@ -531,9 +587,6 @@ public class CompactSuffixArray {
         }
         System.out.println("Total #Peptides\t" + total);
         System.out.println("Total #Peptides with nominalMass errors\t" + totalErr + "\t" + totalErr / (double) total);
-
-        indices.close();
-        nlcps.close();
     }
 
     /**
@@ -4,7 +4,7 @@ import edu.ucsd.msjava.misc.ProgressData;
 import edu.ucsd.msjava.misc.ProgressReporter;
 
 import java.io.PrintStream;
-import java.util.List;
+import java.util.Collection;
 
 import org.apache.commons.io.output.NullOutputStream;
 
@@ -13,7 +13,7 @@ public class ConcurrentMSGFPlus {
         private final ScoredSpectraMap specScanner;
         private final DBScanner scanner;
         SearchParams params;
-        List<MSGFPlusMatch> resultList;
+        Collection<MSGFPlusMatch> resultList;
         private final int taskNum;
         private ProgressData progress;
 
@@ -31,7 +31,7 @@ public class ConcurrentMSGFPlus {
                 ScoredSpectraMap specScanner,
                 CompactSuffixArray sa,
                 SearchParams params,
-                List<MSGFPlusMatch> resultList,
+                Collection<MSGFPlusMatch> resultList,
                 int taskNum
         ) {
             this.specScanner = specScanner;
@@ -82,16 +82,19 @@ public class ConcurrentMSGFPlus {
             if (specScanner.getPepMassSpecKeyMap().size() == 0)
                 specScanner.makePepMassSpecKeyMap();
 
-            output.println(threadName + ": Preprocessing spectra...");
-            if (Thread.currentThread().isInterrupted()) {
-                return;
-            }
-            specScanner.preProcessSpectra();
-            if (Thread.currentThread().isInterrupted()) {
-                return;
+            // Spectra may have been preprocessed for all tasks before the search
+            if (!specScanner.isPreProcessed()) {
+                output.println(threadName + ": Preprocessing spectra...");
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                specScanner.preProcessSpectra();
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                output.print(threadName + ": Preprocessing spectra finished ");
+                output.format("(elapsed time: %.2f sec)\n", (float) ((System.currentTimeMillis() - startTimePreprocess) / 1000));
             }
-            output.print(threadName + ": Preprocessing spectra finished ");
-            output.format("(elapsed time: %.2f sec)\n", (float) ((System.currentTimeMillis() - startTimePreprocess) / 1000));
 
             specScanner.getProgressObj().setParentProgressObj(null);
             progress.report(5.0);
@@ -156,4 +159,167 @@ public class ConcurrentMSGFPlus {
             output.println(threadName + ": Task " + taskNum + " completed.");
         }
     }
+
+    /**
+     * Preprocesses a range of spectra of a ScoredSpectraMap shared by all threads
+     * (used to preprocess all spectra before the database search)
+     */
+    public static class PreProcessSpectraRange implements Runnable, ProgressReporter {
+        private final ScoredSpectraMap specScanner;
+        private final int fromIndex;
+        private final int toIndex;
+        private ProgressData progress;
+
+        @Override
+        public void setProgressData(ProgressData data) {
+            progress = data;
+        }
+
+        @Override
+        public ProgressData getProgressData() {
+            return progress;
+        }
+
+        public PreProcessSpectraRange(ScoredSpectraMap specScanner, int fromIndex, int toIndex) {
+            this.specScanner = specScanner;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            progress = null;
+        }
+
+        @Override
+        public void run() {
+            if (progress == null) {
+                progress = new ProgressData();
+            }
+            specScanner.preProcessSpectra(fromIndex, toIndex, progress);
+        }
+    }
+
+    /**
+     * Scans a contiguous range of suffix array indices against all spectra of a shared ScoredSpectraMap
+     * (used when the database is partitioned across threads); matches are kept in this task's own DBScanner
+     * and merged once all partitions have been searched
+     */
+    public static class RunDBSearchPartition implements Runnable, ProgressReporter {
+        private final DBScanner scanner;
+        private final SearchParams params;
+        private final int fromIndex;
+        private final int toIndex;
+        private final int taskNum;
+        private ProgressData progress;
+
+        @Override
+        public void setProgressData(ProgressData data) {
+            progress = data;
+        }
+
+        @Override
+        public ProgressData getProgressData() {
+            return progress;
+        }
+
+        public RunDBSearchPartition(
+                ScoredSpectraMap specScanner,
+                CompactSuffixArray sa,
+                SearchParams params,
+                int fromIndex,
+                int toIndex,
+                int taskNum
+        ) {
+            this.params = params;
+            this.scanner = new DBScanner(
+                    specScanner,
+                    sa,
+                    params.getEnzyme(),
+                    params.getAASet(),
+                    params.getNumMatchesPerSpec(),
+                    params.getMinPeptideLength(),
+                    params.getMaxPeptideLength(),
+                    params.getMaxNumVariantsPerPeptide(),
+                    params.getMinDeNovoScore(),
+                    params.ignoreMetCleavage(),
+                    params.getMaxMissedCleavages()
+            );
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.taskNum = taskNum;
+            progress = null;
+        }
+
+        public DBScanner getScanner() {
+            return scanner;
+        }
+
+        @Override
+        public void run() {
+            if (progress == null) {
+                progress = new ProgressData();
+            }
+
+            PrintStream output;
+            if (params.getVerbose()) {
+                output = System.out;
+            } else {
+                output = new PrintStream(new NullOutputStream());
+            }
+
+            String threadName = Thread.currentThread().getName();
+            output.println(threadName + ": Searching database partition " + taskNum + " (suffixes " + fromIndex + "-" + (toIndex - 1) + ")");
+            long startTime = System.currentTimeMillis();
+
+            scanner.setProgressObj(new ProgressData(progress));
+            scanner.setThreadName(threadName);
+            scanner.setPrintStream(output);
+
+            int ntt = params.getNumTolerableTermini();
+            if (params.getEnzyme() == null)
+                ntt = 0;
+            int nnet = 2 - ntt;
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            scanner.dbSearch(nnet, fromIndex, toIndex, params.getVerbose());
+
+            scanner.getProgressObj().setParentProgressObj(null);
+            output.print(threadName + ": Database partition " + taskNum + " finished ");
+            output.format("(elapsed time: %.2f sec)\n", (float) ((System.currentTimeMillis() - startTime) / 1000));
+            progress.report(100.0);
+        }
+    }
+
+    /**
+     * Computes spectral E-values for a range of spectra, after the partitioned database search results have been merged
+     */
+    public static class ComputeSpecEValueRange implements Runnable, ProgressReporter {
+        private final DBScanner scanner;
+        private final int fromIndex;
+        private final int toIndex;
+        private ProgressData progress;
+
+        @Override
+        public void setProgressData(ProgressData data) {
+            progress = data;
+        }
+
+        @Override
+        public ProgressData getProgressData() {
+            return progress;
+        }
+
+        public ComputeSpecEValueRange(DBScanner scanner, int fromIndex, int toIndex) {
+            this.scanner = scanner;
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            progress = null;
+        }
+
+        @Override
+        public void run() {
+            if (progress == null) {
+                progress = new ProgressData();
+            }
+            scanner.computeSpecEValue(false, fromIndex, toIndex, progress);
+        }
+    }
 }
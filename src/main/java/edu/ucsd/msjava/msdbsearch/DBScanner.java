@@ -129,8 +129,40 @@ public class DBScanner {
             if (existingQueue == null) {
                 existingQueue = new PriorityQueue<DatabaseMatch>();
                 specKeyDBMatchMap.put(specKey, existingQueue);
+                existingQueue.addAll(queue);
+                continue;
+            }
+
+            // Matches coming from a different partition of the database; the same peptide may have been found on both sides
+            for (DatabaseMatch m : queue) {
+                DatabaseMatch existingMatch = null;
+                for (DatabaseMatch e : existingQueue) {
+                    if (e.getScore() == m.getScore() && m.getPepSeq() != null && m.getPepSeq().equals(e.getPepSeq())) {
+                        existingMatch = e;
+                        break;
+                    }
+                }
+                if (existingMatch != null) {
+                    for (int index : m.getIndices())
+                        existingMatch.addIndex(index);
+                } else {
+                    existingQueue.add(m);
+                }
+            }
+
+            // Keep the top numPeptidesPerSpec matches (plus ties), as dbSearch does for a single scan
+            while (existingQueue.size() > this.numPeptidesPerSpec) {
+                int worstScore = existingQueue.peek().getScore();
+                int numWorst = 0;
+                for (DatabaseMatch e : existingQueue) {
+                    if (e.getScore() == worstScore)
+                        numWorst++;
+                }
+                if (existingQueue.size() - numWorst < this.numPeptidesPerSpec)
+                    break;
+                while (!existingQueue.isEmpty() && existingQueue.peek().getScore() == worstScore)
+                    existingQueue.poll();
             }
-            existingQueue.addAll(queue);
         }
     }
 
@@ -187,7 +219,11 @@ public class DBScanner {
             progress = new ProgressData();
         }
 
-        Map<SpecKey, PriorityQueue<DatabaseMatch>> curSpecKeyDBMatchMap = new HashMap<SpecKey, PriorityQueue<DatabaseMatch>>();
+        long startTime = System.nanoTime();
+        // counted locally and added to the shared metrics once, at the end of the scan
+        long numCandidatePeptides = 0;
+        long numPrecursorWindowHits = 0;
+        long numPSMsScored = 0;
 
         CandidatePeptideGrid candidatePepGrid;
         if (enzyme != null && !ignoreNTermMetCleavage)
@@ -207,209 +243,207 @@ public class DBScanner {
 
         boolean containsCTermMod = aaSet.containsCTermModification();
 
-        try {
-            DataInputStream indices = new DataInputStream(new BufferedInputStream(new FileInputStream(sa.getIndexFile())));
+        // suffix indices and neighboring lcps are read from the memory-mapped suffix array, shared by all threads
+        CompactFastaSequence sequence = sa.getSequence();
+        PrecursorMassIndex precursorMassIndex = specScanner.getPrecursorMassIndex();
 
-            // skip size and id
-            indices.skip(CompactSuffixArray.INT_BYTE_SIZE * 2 + CompactSuffixArray.INT_BYTE_SIZE * fromIndex);
+        // top matches of each spectrum, kept as primitives until the end of the scan
+        TopNMatchCollector matchCollector = new TopNMatchCollector(precursorMassIndex.getNumSpecKeys(), numPeptidesPerSpec);
 
-            DataInputStream nlcps = new DataInputStream(new BufferedInputStream(new FileInputStream(sa.getNeighboringLcpFile())));
+        // scorers by SpecKey ordinal, to avoid the synchronized map lookup for every candidate
+        @SuppressWarnings("unchecked")
+        SimpleDBSearchScorer<NominalMass>[] scorers = new SimpleDBSearchScorer[precursorMassIndex.getNumSpecKeys()];
 
-            // skip size
-            nlcps.skip(CompactSuffixArray.INT_BYTE_SIZE * 2 + fromIndex);
-            CompactFastaSequence sequence = sa.getSequence();
+        boolean isProteinNTerm = true;
+        int nTermCleavageScore = 0;
 
-            boolean isProteinNTerm = true;
-            int nTermCleavageScore = 0;
+        boolean isExtensionAtTheSameIndex;
 
-            boolean isExtensionAtTheSameIndex;
+        // number of non-enzymatic termini
+        int numNonEnzTermini = 0;
 
-            // number of non-enzymatic termini
-            int numNonEnzTermini = 0;
+        int numIndices = toIndex - fromIndex;
 
-            int numIndices = toIndex - fromIndex;
+        // handles of the matches found at the previous suffix, by peptide length
+        long[][] prevMatchList = new long[maxPeptideLength + 2][];
+        int[] prevMatchListSize = new int[maxPeptideLength + 2];
 
-            class MatchList extends ArrayList<DatabaseMatch> {
-                private static final long serialVersionUID = 1L;
+        for (int bufferIndex = 0; bufferIndex < numIndices; bufferIndex++) {
+            // Print out the progress
+            if (verbose && bufferIndex % 2000000 == 0) {
+                output.print(threadName + ": Database search progress... ");
+                output.format("%.1f%% complete\n", bufferIndex / (float) numIndices * 100);
             }
-            MatchList[] prevMatchList = new MatchList[maxPeptideLength + 2];
-
-            for (int bufferIndex = 0; bufferIndex < numIndices; bufferIndex++) {
-                // Print out the progress
-                if (verbose && bufferIndex % 2000000 == 0) {
-                    output.print(threadName + ": Database search progress... ");
-                    output.format("%.1f%% complete\n", bufferIndex / (float) numIndices * 100);
-                }
-                progress.report(bufferIndex, numIndices);
-                isExtensionAtTheSameIndex = false;
-                int index = indices.readInt();
-                int lcp = nlcps.readByte();
-                if (bufferIndex == 0)
-                    lcp = 0;
-
-                // For debugging
+            progress.report(bufferIndex, numIndices);
+            isExtensionAtTheSameIndex = false;
+            int index = sa.getSuffixIndex(fromIndex + bufferIndex);
+            int lcp = sa.getNeighboringLcp(fromIndex + bufferIndex);
+            if (bufferIndex == 0)
+                lcp = 0;
+
+            // For debugging
 //				System.out.println(index+": " +sequence.getSubsequence(index, sequence.getSize()));
 //				if(index == 4)
 //					System.out.println("Debug");
-                // skip redundant peptides
+            // skip redundant peptides
+
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
 
+            // lcp: shared prefix length
+            for (int peptideLength = minPeptideLength; peptideLength < prevMatchList.length; peptideLength++) {
                 if (Thread.currentThread().isInterrupted()) {
                     return;
                 }
 
-                // lcp: shared prefix length
-                for (int peptideLength = minPeptideLength; peptideLength < prevMatchList.length; peptideLength++) {
-                    if (Thread.currentThread().isInterrupted()) {
-                        return;
+                if (lcp >= peptideLength + 2)    // peptide, N-term, C-term are shared
+                {
+                    for (int k = 0; k < prevMatchListSize[peptideLength]; k++) {
+                        matchCollector.addIndex(prevMatchList[peptideLength][k], index);
                     }
+                } else if (lcp == peptideLength + 1) {
+                    for (int k = 0; k < prevMatchListSize[peptideLength]; k++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
 
-                    if (lcp >= peptideLength + 2)    // peptide, N-term, C-term are shared
-                    {
-                        if (prevMatchList[peptideLength] != null) {
-                            for (DatabaseMatch m : prevMatchList[peptideLength]) {
-                                m.addIndex(index);
-                            }
+                        long m = prevMatchList[peptideLength][k];
+                        if (!matchCollector.isLive(m))
+                            continue;
+
+                        if (!matchCollector.isProteinCTerm(m) || enzyme == null || enzyme.isNTerm() || numberOfAllowableNonEnzymaticTermini == 2) {
+                            matchCollector.addIndex(m, index);
+                            continue;
                         }
-                    } else if (lcp == peptideLength + 1) {
-                        if (prevMatchList[peptideLength] != null) {
-                            for (DatabaseMatch m : prevMatchList[peptideLength]) {
-                                if (Thread.currentThread().isInterrupted()) {
-                                    return;
-                                }
 
-                                if (!m.isProteinCTerm() || enzyme == null || enzyme.isNTerm() || numberOfAllowableNonEnzymaticTermini == 2) {
-                                    m.addIndex(index);
-                                    continue;
-                                }
+                        char pre = sequence.getCharAt(index);
+                        if (numberOfAllowableNonEnzymaticTermini == 1 && enzyme.isCleavable(pre)) {
+                            matchCollector.addIndex(m, index);
+                            continue;
+                        }
 
-                                char pre = sequence.getCharAt(index);
-                                if (numberOfAllowableNonEnzymaticTermini == 1 && enzyme.isCleavable(pre)) {
-                                    m.addIndex(index);
-                                    continue;
-                                }
+                        // C-term should be enzymatic
+                        char cTermResidue = sequence.getCharAt(index + peptideLength);
+                        if (enzyme.isCleavable(cTermResidue)) {
+                            matchCollector.addIndex(m, index);
+                            continue;
+                        }
 
-                                // C-term should be enzymatic
-                                char cTermResidue = sequence.getCharAt(index + peptideLength);
-                                if (enzyme.isCleavable(cTermResidue)) {
-                                    m.addIndex(index);
-                                    continue;
-                                }
+                        // post should be protein c term
+                        char post = sequence.getCharAt(index + peptideLength + 1);
+                        if (post == Constants.TERMINATOR_CHAR) {
+                            matchCollector.addIndex(m, index);
+                        }
+                    }
+                } else
+                    prevMatchListSize[peptideLength] = 0;
+            }
 
-                                // post should be protein c term
-                                char post = sequence.getCharAt(index + peptideLength + 1);
-                                if (post == Constants.TERMINATOR_CHAR) {
-                                    m.addIndex(index);
-                                }
+            if (lcp >= peptideLengthIndex + 2 ||
+                    lcp == peptideLengthIndex + 1 && (enzyme == null || enzyme.isCTerm())) {
+                continue;
+            }
+            else if (lcp == 0)    // preceding aa is changed
+            {
+                char precedingAA = sequence.getCharAt(index);
+                isProteinNTerm = precedingAA == Constants.TERMINATOR_CHAR;
+
+                // determine neighboring N-term score
+                if (enzyme == null || enzyme.isNTerm()) {
+                    nTermCleavageScore = 0;
+                } else if (enzyme.isCTerm()) {
+                    if (isProteinNTerm || enzyme.isCleavable(precedingAA))// || precedingAA == Constants.INVALID_CHAR)
+                    {
+                        nTermCleavageScore = neighboringAACleavageCredit;
+                        if (enzymaticSearch)
+                            numNonEnzTermini = 0;
+                    } else {
+                        nTermCleavageScore = neighboringAACleavagePenalty;
+                        if (enzymaticSearch) {
+                            numNonEnzTermini = 1;
+                            if (numNonEnzTermini > numberOfAllowableNonEnzymaticTermini) {
+                                peptideLengthIndex = 0;
+                                continue;
                             }
                         }
-                    } else
-                        prevMatchList[peptideLength] = null;
+                    }
                 }
+            }    // end lcp=0
 
-                if (lcp >= peptideLengthIndex + 2 ||
-                        lcp == peptideLengthIndex + 1 && (enzyme == null || enzyme.isCTerm())) {
-                    continue;
+            if (lcp == 0)
+                peptideLengthIndex = 1;
+                //else if(lcp < peptideLengthIndex + 1)
+            else {
+                if (enzyme != null && enzyme.isNTerm()) {
+                    if (lcp > 1)
+                        peptideLengthIndex = lcp - 1;
+                    else
+                        peptideLengthIndex = 1;
+                } else {
+                    peptideLengthIndex = lcp;
+                }
+            }
+
+            for (; peptideLengthIndex <= maxPeptideLength && index + peptideLengthIndex < size - 1; peptideLengthIndex++)    // ith character of a peptide
+            {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
                 }
-                else if (lcp == 0)    // preceding aa is changed
+
+                char residue = sequence.getCharAt(index + peptideLengthIndex);
+                boolean isProteinCTerm = false;
+                if (peptideLengthIndex == 1)    // N-term residue
                 {
-                    char precedingAA = sequence.getCharAt(index);
-                    isProteinNTerm = precedingAA == Constants.TERMINATOR_CHAR;
-
-                    // determine neighboring N-term score
-                    if (enzyme == null || enzyme.isNTerm()) {
-                        nTermCleavageScore = 0;
-                    } else if (enzyme.isCTerm()) {
-                        if (isProteinNTerm || enzyme.isCleavable(precedingAA))// || precedingAA == Constants.INVALID_CHAR)
+                    if (enzyme != null && enzyme.isNTerm()) {
+                        if (isProteinNTerm || enzyme.isCleavable(residue))    // || sequence.getCharAt(index) == Constants.INVALID_CHAR)
                         {
-                            nTermCleavageScore = neighboringAACleavageCredit;
+                            nTermCleavageScore = peptideCleavageCredit;
                             if (enzymaticSearch)
                                 numNonEnzTermini = 0;
                         } else {
-                            nTermCleavageScore = neighboringAACleavagePenalty;
+                            nTermCleavageScore = peptideCleavagePenalty;
                             if (enzymaticSearch) {
                                 numNonEnzTermini = 1;
-                                if (numNonEnzTermini > numberOfAllowableNonEnzymaticTermini) {
-                                    peptideLengthIndex = 0;
-                                    continue;
-                                }
+                                if (numNonEnzTermini > numberOfAllowableNonEnzymaticTermini)
+                                    break;
                             }
                         }
                     }
-                }    // end lcp=0
 
-                if (lcp == 0)
-                    peptideLengthIndex = 1;
-                    //else if(lcp < peptideLengthIndex + 1)
-                else {
-                    if (enzyme != null && enzyme.isNTerm()) {
-                        if (lcp > 1)
-                            peptideLengthIndex = lcp - 1;
-                        else
-                            peptideLengthIndex = 1;
+                    if (isProteinNTerm) {
+                        if (candidatePepGrid.addProtNTermResidue(residue) == false)
+                            break;
                     } else {
-                        peptideLengthIndex = lcp;
-                    }
-                }
-
-                for (; peptideLengthIndex <= maxPeptideLength && index + peptideLengthIndex < size - 1; peptideLengthIndex++)    // ith character of a peptide
-                {
-                    if (Thread.currentThread().isInterrupted()) {
-                        return;
+                        if (candidatePepGrid.addNTermResidue(residue) == false)
+                            break;
                     }
-
-                    char residue = sequence.getCharAt(index + peptideLengthIndex);
-                    boolean isProteinCTerm = false;
-                    if (peptideLengthIndex == 1)    // N-term residue
-                    {
-                        if (enzyme != null && enzyme.isNTerm()) {
-                            if (isProteinNTerm || enzyme.isCleavable(residue))    // || sequence.getCharAt(index) == Constants.INVALID_CHAR)
-                            {
-                                nTermCleavageScore = peptideCleavageCredit;
-                                if (enzymaticSearch)
-                                    numNonEnzTermini = 0;
-                            } else {
-                                nTermCleavageScore = peptideCleavagePenalty;
-                                if (enzymaticSearch) {
-                                    numNonEnzTermini = 1;
-                                    if (numNonEnzTermini > numberOfAllowableNonEnzymaticTermini)
-                                        break;
-                                }
-                            }
-                        }
-
-                        if (isProteinNTerm) {
-                            if (candidatePepGrid.addProtNTermResidue(residue) == false)
-                                break;
-                        } else {
-                            if (candidatePepGrid.addNTermResidue(residue) == false)
-                                break;
-                        }
+                } else {
+                    if (!containsCTermMod) {
+                        if (candidatePepGrid.addResidue(peptideLengthIndex, residue) == false)
+                            break;
                     } else {
-                        if (!containsCTermMod) {
+                        if (peptideLengthIndex < minPeptideLength) {
                             if (candidatePepGrid.addResidue(peptideLengthIndex, residue) == false)
                                 break;
+                            else
+                                continue;
                         } else {
-                            if (peptideLengthIndex < minPeptideLength) {
-                                if (candidatePepGrid.addResidue(peptideLengthIndex, residue) == false)
-                                    break;
-                                else
-                                    continue;
-                            } else {
-                                if (isExtensionAtTheSameIndex && peptideLengthIndex > minPeptideLength)
-                                    candidatePepGrid.addResidue(peptideLengthIndex - 1, sequence.getCharAt(index + peptideLengthIndex - 1));
-                                boolean success;
-                                if (isProteinCTerm = (sequence.getCharAt(index + peptideLengthIndex + 1) == Constants.TERMINATOR_CHAR))    // protein C-term
-                                    success = candidatePepGrid.addProtCTermResidue(peptideLengthIndex, residue);
-                                else    // peptide C-term
-                                    success = candidatePepGrid.addCTermResidue(peptideLengthIndex, residue);
-                                if (!success)
-                                    break;
-                            }
+                            if (isExtensionAtTheSameIndex && peptideLengthIndex > minPeptideLength)
+                                candidatePepGrid.addResidue(peptideLengthIndex - 1, sequence.getCharAt(index + peptideLengthIndex - 1));
+                            boolean success;
+                            if (isProteinCTerm = (sequence.getCharAt(index + peptideLengthIndex + 1) == Constants.TERMINATOR_CHAR))    // protein C-term
+                                success = candidatePepGrid.addProtCTermResidue(peptideLengthIndex, residue);
+                            else    // peptide C-term
+                                success = candidatePepGrid.addCTermResidue(peptideLengthIndex, residue);
+                            if (!success)
+                                break;
                         }
                     }
+                }
 
-                    if (peptideLengthIndex < minPeptideLength)
-                        continue;
+                if (peptideLengthIndex < minPeptideLength)
+                    continue;
 
 //					System.out.println(sequence.getSubsequence(index+1, index+i+1));
 //					if(sequence.getSubsequence(index+1, index+i+1).equalsIgnoreCase("KYPCRYCEK"))
@@ -417,69 +451,70 @@ public class DBScanner {
 //						System.out.println("DebugSequence: " + sequence.getSubsequence(index, index+i+1));
 //					}
 
-                    int cTermCleavageScore = 0;
-                    if (enzyme != null) {
-                        char cTermNeighboringResidue = sequence.getCharAt(index + peptideLengthIndex + 1);
-                        isProteinCTerm = (cTermNeighboringResidue == Constants.TERMINATOR_CHAR);
-                        if (enzyme.isCTerm()) {
+                int cTermCleavageScore = 0;
+                if (enzyme != null) {
+                    char cTermNeighboringResidue = sequence.getCharAt(index + peptideLengthIndex + 1);
+                    isProteinCTerm = (cTermNeighboringResidue == Constants.TERMINATOR_CHAR);
+                    if (enzyme.isCTerm()) {
 //							if(isProteinCTerm || enzyme.isCleavable(residue)) // || cTermNeighboringResidue == Constants.INVALID_CHAR)
-                            if (enzyme.isCleavable(residue)) // || cTermNeighboringResidue == Constants.INVALID_CHAR)	// changed by Sangtae to avoid SpecProb=0
-                                cTermCleavageScore = peptideCleavageCredit;
-                            else {
-                                cTermCleavageScore = peptideCleavagePenalty;
-                                if (!isProteinCTerm && numNonEnzTermini + 1 > numberOfAllowableNonEnzymaticTermini) {
-                                    isExtensionAtTheSameIndex = true;
-                                    continue;
-                                }
+                        if (enzyme.isCleavable(residue)) // || cTermNeighboringResidue == Constants.INVALID_CHAR)	// changed by Sangtae to avoid SpecProb=0
+                            cTermCleavageScore = peptideCleavageCredit;
+                        else {
+                            cTermCleavageScore = peptideCleavagePenalty;
+                            if (!isProteinCTerm && numNonEnzTermini + 1 > numberOfAllowableNonEnzymaticTermini) {
+                                isExtensionAtTheSameIndex = true;
+                                continue;
                             }
-                        } else if (enzyme.isNTerm()) {
-                            if (isProteinCTerm || enzyme.isCleavable(cTermNeighboringResidue)) // || cTermNeighboringResidue == Constants.INVALID_CHAR)
-                                cTermCleavageScore = neighboringAACleavageCredit;
-                            else {
-                                cTermCleavageScore = neighboringAACleavagePenalty;
-                                if (numNonEnzTermini + 1 > numberOfAllowableNonEnzymaticTermini) {
-                                    isExtensionAtTheSameIndex = true;
-                                    continue;
-                                }
+                        }
+                    } else if (enzyme.isNTerm()) {
+                        if (isProteinCTerm || enzyme.isCleavable(cTermNeighboringResidue)) // || cTermNeighboringResidue == Constants.INVALID_CHAR)
+                            cTermCleavageScore = neighboringAACleavageCredit;
+                        else {
+                            cTermCleavageScore = neighboringAACleavagePenalty;
+                            if (numNonEnzTermini + 1 > numberOfAllowableNonEnzymaticTermini) {
+                                isExtensionAtTheSameIndex = true;
+                                continue;
                             }
                         }
                     }
+                }
 
-                    int cleavageScore = nTermCleavageScore + cTermCleavageScore;
+                int cleavageScore = nTermCleavageScore + cTermCleavageScore;
 
-                    for (int j = 0; j < candidatePepGrid.size(); j++) {
-                        if (Thread.currentThread().isInterrupted()) {
-                            return;
-                        }
+                for (int j = 0; j < candidatePepGrid.size(); j++) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
 
-                        /*
-                         * Check for edge case where peptides derived from the
-                         * start of a protein sequence containing an N-terminus
-                         * methionine may have more missed cleavages than the
-                         * peptides derived from removing the methionine when
-                         * digesting with N-term enzymes.
-                         *
-                         * E.g., a grid that considers methionine cleavage on
-                         * protein sequence 'MDT' will return peptides
-                         * ['MDT','DT']. If we are using AspN as the enzyme
-                         * the MDT peptide has one missed cleavage and the DT
-                         * peptide has zero. We want to skip the peptides that
-                         * are over the maximum number of missed cleavages.
-                         *
-                         */
-                        if (candidatePepGrid.gridIsOverMaxMissedCleavages(j))
-                            continue;
+                    /*
+                     * Check for edge case where peptides derived from the
+                     * start of a protein sequence containing an N-terminus
+                     * methionine may have more missed cleavages than the
+                     * peptides derived from removing the methionine when
+                     * digesting with N-term enzymes.
+                     *
+                     * E.g., a grid that considers methionine cleavage on
+                     * protein sequence 'MDT' will return peptides
+                     * ['MDT','DT']. If we are using AspN as the enzyme
+                     * the MDT peptide has one missed cleavage and the DT
+                     * peptide has zero. We want to skip the peptides that
+                     * are over the maximum number of missed cleavages.
+                     *
+                     */
+                    if (candidatePepGrid.gridIsOverMaxMissedCleavages(j))
+                        continue;
+                    numCandidatePeptides++;
 
-                        float theoPeptideMass = candidatePepGrid.getPeptideMass(j);
+                    float theoPeptideMass = candidatePepGrid.getPeptideMass(j);
 //						/// Debug
 //						System.out.println("PepStr: " + candidatePepGrid.getPeptideSeq(j) + " GridSize:" + candidatePepGrid.size());
 //						///
-                        int nominalPeptideMass = candidatePepGrid.getNominalPeptideMass(j);
-                        float tolDaLeft = specScanner.getLeftPrecursorMassTolerance().getToleranceAsDa(theoPeptideMass);
-                        float tolDaRight = specScanner.getRightPrecursorMassTolerance().getToleranceAsDa(theoPeptideMass);
+                    int nominalPeptideMass = candidatePepGrid.getNominalPeptideMass(j);
+                    float tolDaLeft = specScanner.getLeftPrecursorMassTolerance().getToleranceAsDa(theoPeptideMass);
+                    float tolDaRight = specScanner.getRightPrecursorMassTolerance().getToleranceAsDa(theoPeptideMass);
 
-                        double leftThr = (double) (theoPeptideMass - tolDaLeft);
-                        double rightThr = (double) (theoPeptideMass + tolDaRight);
+                    double leftThr = (double) (theoPeptideMass - tolDaLeft);
+                    double rightThr = (double) (theoPeptideMass + tolDaRight);
 
 //						float tolDaLeft = specScanner.getLeftPrecursorMassTolerance().getToleranceAsDa(peptideMass);
 //						float tolDaRight = specScanner.getRightPrecursorMassTolerance().getToleranceAsDa(peptideMass);
@@ -488,93 +523,98 @@ public class DBScanner {
 //						maxPeptideMassIndex = maxNominalPeptideMass + Math.round(tolDaLeft-0.4999f);
 //						minPeptideMassIndex = minNominalPeptideMass - Math.round(tolDaRight-0.4999f);
 
-                        if (leftThr < 1 || rightThr < 1) {
-                            // Either or both of the thresholds is less than 1 (and probably negative)
-                            // This can happen when a dynamic mod with a large negative mass is defined and is applied to a small peptide
+                    if (leftThr < 1 || rightThr < 1) {
+                        // Either or both of the thresholds is less than 1 (and probably negative)
+                        // This can happen when a dynamic mod with a large negative mass is defined and is applied to a small peptide
 
-                            // For example:
-                            //  DynamicMod=304.207146,  *,  opt, N-term,    TMTpro                # 16-plex TMT
-                            //  DynamicMod=304.207146,  K,  opt, any,       TMTpro                # 16-plex TMT
-                            //  DynamicMod=-190.164215, K,  opt, any,       UbNoTMT16             # Residue tagged by MS-GF+ with TMT16, but is actually ubiquitinated and does not have TMT (+114.042931 - 304.207146)
-                            continue;
-                        }
+                        // For example:
+                        //  DynamicMod=304.207146,  *,  opt, N-term,    TMTpro                # 16-plex TMT
+                        //  DynamicMod=304.207146,  K,  opt, any,       TMTpro                # 16-plex TMT
+                        //  DynamicMod=-190.164215, K,  opt, any,       UbNoTMT16             # Residue tagged by MS-GF+ with TMT16, but is actually ubiquitinated and does not have TMT (+114.042931 - 304.207146)
+                        continue;
+                    }
 
-                        Collection<SpecKey> matchedSpecKeyList = specScanner.getPepMassSpecKeyMap().subMap(leftThr, rightThr).values();
-                        if (matchedSpecKeyList.size() > 0) {
-                            //////
+                    int fromMatchIndex = precursorMassIndex.ceilingIndex(leftThr);
+                    int toMatchIndex = precursorMassIndex.ceilingIndex(rightThr);
+                    if (fromMatchIndex < toMatchIndex) {
+                        numPrecursorWindowHits++;
+                        //////
 //							System.out.println("\tMatch: " + sequence.getCharAt(index)+"."+sequence.getSubsequence(index+1, index+i+1)+"."+sequence.getCharAt(index+i+1));
-                            ///////
-                            boolean isNTermMetCleaved = candidatePepGrid.isNTermMetCleaved(j);
+                        ///////
+                        boolean isNTermMetCleaved = candidatePepGrid.isNTermMetCleaved(j);
 //							int pepLength = i;
-                            int pepLength;
-                            if (!isNTermMetCleaved)
-                                pepLength = peptideLengthIndex;
-                            else
-                                pepLength = peptideLengthIndex - 1;
+                        int pepLength;
+                        if (!isNTermMetCleaved)
+                            pepLength = peptideLengthIndex;
+                        else
+                            pepLength = peptideLengthIndex - 1;
 
-                            if (pepLength < minPeptideLength)
-                                continue;
+                        if (pepLength < minPeptideLength)
+                            continue;
 
-                            for (SpecKey specKey : matchedSpecKeyList) {
-                                if (Thread.currentThread().isInterrupted()) {
-                                    return;
-                                }
+                        for (int matchIndex = fromMatchIndex; matchIndex < toMatchIndex; matchIndex++) {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return;
+                            }
+
+                            int ordinal = precursorMassIndex.getSpecKeyOrdinal(matchIndex);
 
 //								Tolerance specSpecificTol;
 //								if((specSpecificTol = specScanner.getSpectrumSpecificPrecursorTolerance(specKey)) != null)
 //								{
 //								}
 
-                                SimpleDBSearchScorer<NominalMass> scorer = specScanner.getSpecKeyScorerMap().get(specKey);
+                            SimpleDBSearchScorer<NominalMass> scorer = scorers[ordinal];
+                            if (scorer == null) {
+                                scorer = specScanner.getSpecKeyScorerMap().get(precursorMassIndex.getSpecKey(matchIndex));
+                                scorers[ordinal] = scorer;
+                            }
 //								if(sequence.getSubsequence(index, index+i+1).equalsIgnoreCase("SRDTAIKT"))
 //									System.out.println("Debug");
-                                int score = cleavageScore + scorer.getScore(candidatePepGrid.getPRMGrid(j), candidatePepGrid.getNominalPRMGrid(j), 1, pepLength + 1, candidatePepGrid.getNumMods(j));
-                                PriorityQueue<DatabaseMatch> prevMatchQueue = curSpecKeyDBMatchMap.get(specKey);
-                                if (prevMatchQueue == null) {
-                                    prevMatchQueue = new PriorityQueue<DatabaseMatch>();
-                                    curSpecKeyDBMatchMap.put(specKey, prevMatchQueue);
-                                }
-
-                                if (prevMatchQueue.size() < this.numPeptidesPerSpec || score == prevMatchQueue.peek().getScore()) {
-                                    DatabaseMatch dbMatch = new DatabaseMatch(index, (byte) (pepLength + 2), score, theoPeptideMass, nominalPeptideMass, specKey.getCharge(), candidatePepGrid.getPeptideSeq(j), scorer.getActivationMethodArr()).setProteinNTerm(isProteinNTerm).setProteinCTerm(isProteinCTerm);
-                                    dbMatch.setNTermMetCleaved(isNTermMetCleaved);
-                                    prevMatchQueue.add(dbMatch);
-                                    if (prevMatchList[peptideLengthIndex] == null)
-                                        prevMatchList[peptideLengthIndex] = new MatchList();
-                                    prevMatchList[peptideLengthIndex].add(dbMatch);
-                                } else if (prevMatchQueue.size() >= this.numPeptidesPerSpec) {
-                                    int worstScore = prevMatchQueue.peek().getScore();
-                                    if (score > worstScore) {
-                                        List<DatabaseMatch> removed = new ArrayList<DatabaseMatch>();
-                                        while (!prevMatchQueue.isEmpty() && prevMatchQueue.peek().getScore() == worstScore) {
-                                            removed.add(prevMatchQueue.poll());
-                                        }
-                                        DatabaseMatch dbMatch = new DatabaseMatch(index, (byte) (pepLength + 2), score, theoPeptideMass, nominalPeptideMass, specKey.getCharge(), candidatePepGrid.getPeptideSeq(j), scorer.getActivationMethodArr()).setProteinNTerm(isProteinNTerm).setProteinCTerm(isProteinCTerm);
-                                        dbMatch.setNTermMetCleaved(isNTermMetCleaved);
-                                        prevMatchQueue.add(dbMatch);
-
-                                        if (prevMatchQueue.size() < this.numPeptidesPerSpec) {
-                                            for (DatabaseMatch m : removed)
-                                                prevMatchQueue.add(m);
-                                        }
-
-                                        if (prevMatchList[peptideLengthIndex] == null)
-                                            prevMatchList[peptideLengthIndex] = new MatchList();
-                                        prevMatchList[peptideLengthIndex].add(dbMatch);
-                                    }
+                            int score = cleavageScore + scorer.getScore(candidatePepGrid.getPRMGrid(j), candidatePepGrid.getNominalPRMGrid(j), 1, pepLength + 1, candidatePepGrid.getNumMods(j));
+                            numPSMsScored++;
+
+                            // Keep the top numPeptidesPerSpec matches (plus ties); the peptide string is only created for matches that are kept
+                            if (matchCollector.accepts(ordinal, score)) {
+                                long handle = matchCollector.add(ordinal, score, index, pepLength + 2, theoPeptideMass, nominalPeptideMass,
+                                        candidatePepGrid.getPeptideSeq(j), isProteinNTerm, isProteinCTerm, isNTermMetCleaved);
+
+                                long[] handles = prevMatchList[peptideLengthIndex];
+                                if (handles == null) {
+                                    handles = new long[8];
+                                    prevMatchList[peptideLengthIndex] = handles;
+                                } else if (prevMatchListSize[peptideLengthIndex] == handles.length) {
+                                    handles = Arrays.copyOf(handles, handles.length * 2);
+                                    prevMatchList[peptideLengthIndex] = handles;
                                 }
+                                handles[prevMatchListSize[peptideLengthIndex]++] = handle;
                             }
                         }
                     }
-                    isExtensionAtTheSameIndex = true;
                 }
+                isExtensionAtTheSameIndex = true;
             }
-            this.addDBMatches(curSpecKeyDBMatchMap);
-            indices.close();
-            nlcps.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(-1);
+        }
+
+        // Create DatabaseMatch objects for the matches that were kept
+        Map<SpecKey, PriorityQueue<DatabaseMatch>> curSpecKeyDBMatchMap = new HashMap<SpecKey, PriorityQueue<DatabaseMatch>>();
+        for (int ordinal = 0; ordinal < precursorMassIndex.getNumSpecKeys(); ordinal++) {
+            if (matchCollector.getNumMatches(ordinal) == 0)
+                continue;
+            SpecKey specKey = precursorMassIndex.getSpecKeyByOrdinal(ordinal);
+            PriorityQueue<DatabaseMatch> matchQueue = new PriorityQueue<DatabaseMatch>();
+            matchCollector.addMatches(ordinal, specKey.getCharge(), scorers[ordinal].getActivationMethodArr(), matchQueue);
+            curSpecKeyDBMatchMap.put(specKey, matchQueue);
+        }
+        this.addDBMatches(curSpecKeyDBMatchMap);
+
+        SearchMetrics metrics = specScanner.getMetrics();
+        if (metrics != null) {
+            metrics.add(SearchMetrics.Counter.SUFFIXES_SCANNED, numIndices);
+            metrics.add(SearchMetrics.Counter.CANDIDATE_PEPTIDES, numCandidatePeptides);
+            metrics.add(SearchMetrics.Counter.PRECURSOR_WINDOW_HITS, numPrecursorWindowHits);
+            metrics.add(SearchMetrics.Counter.PSMS_SCORED, numPSMsScored);
+            metrics.addTime(SearchMetrics.Phase.DATABASE_SEARCH, startTime);
         }
     }
 
@@ -586,8 +626,25 @@ public class DBScanner {
         if (progress == null) {
             progress = new ProgressData();
         }
+        computeSpecEValue(storeScoreDist, fromIndex, toIndex, progress);
+    }
+
+    /**
+     * Compute spectral E-values for a range of spectra, reporting to the given progress object;
+     * several threads can call this concurrently on disjoint ranges after the database search has finished
+     *
+     * @param storeScoreDist whether to store the score distribution in each match
+     * @param fromIndex      start index in the spectrum key list (inclusive)
+     * @param toIndex        end index in the spectrum key list (exclusive)
+     * @param progress       progress object for this range
+     */
+    public void computeSpecEValue(boolean storeScoreDist, int fromIndex, int toIndex, ProgressData progress) {
         List<SpecKey> specKeyList = specScanner.getSpecKeyList().subList(fromIndex, toIndex);
 
+        long startTime = System.nanoTime();
+        long numGraphs = 0;
+        long numSpecEValues = 0;
+
         int numSpecs = toIndex - fromIndex;
         int numProcessedSpecs = 0;
         for (SpecKey specKey : specKeyList) {
@@ -652,6 +709,7 @@ public class DBScanner {
                         .doNotCalcNumber();
                 gfi.setUpScoreThreshold(minScore);
                 gf.registerGF(graph.getPMNode(), gfi);
+                numGraphs++;
             }
 
             boolean isGFComputed = gf.computeGeneratingFunction();
@@ -668,9 +726,17 @@ public class DBScanner {
                     match.setSpecProb(specProb);
                     if (storeScoreDist)
                         match.setScoreDist(gf.getScoreDist());
+                    numSpecEValues++;
                 }
             }
         }
+
+        SearchMetrics metrics = specScanner.getMetrics();
+        if (metrics != null) {
+            metrics.add(SearchMetrics.Counter.GF_GRAPHS_BUILT, numGraphs);
+            metrics.add(SearchMetrics.Counter.SPEC_EVALUES_COMPUTED, numSpecEValues);
+            metrics.addTime(SearchMetrics.Phase.SPEC_EVALUES, startTime);
+        }
     }
 
     public synchronized void generateSpecIndexDBMatchMap() {
@@ -733,12 +799,17 @@ public class DBScanner {
         }
     }
 
-    public synchronized void addResultsToList(List<MSGFPlusMatch> resultList) {
+    /**
+     * Add the results of this scanner to a collection (e.g. MSGFPlusResultStore) with a single call of addAll
+     */
+    public synchronized void addResultsToList(Collection<MSGFPlusMatch> resultList) {
+        List<MSGFPlusMatch> results = new ArrayList<MSGFPlusMatch>(specIndexDBMatchMap.size());
         Iterator<Entry<Integer, PriorityQueue<DatabaseMatch>>> itr = specIndexDBMatchMap.entrySet().iterator();
         while (itr.hasNext()) {
             Entry<Integer, PriorityQueue<DatabaseMatch>> entry = itr.next();
-            resultList.add(new MSGFPlusMatch(entry.getKey(), entry.getValue()));
+            results.add(new MSGFPlusMatch(entry.getKey(), entry.getValue()));
         }
+        resultList.addAll(results);
     }
 
     public void addAdditionalFeatures() {
@@ -917,6 +988,16 @@ public class DBScanner {
     }
 
     public static void setAminoAcidProbabilities(String databaseFileName, AminoAcidSet aaSet) {
+        setAminoAcidProbabilities(getResidueCounts(databaseFileName), aaSet);
+    }
+
+    /**
+     * Count the residues of the database
+     *
+     * @param databaseFileName fasta file
+     * @return number of occurrences of each letter, indexed by its ASCII code
+     */
+    public static long[] getResidueCounts(String databaseFileName) {
         BufferedLineReader in = null;
         try {
             in = new BufferedLineReader(databaseFileName);
@@ -936,6 +1017,22 @@ public class DBScanner {
                     aaCount[residue]++;
             }
         }
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return aaCount;
+    }
+
+    /**
+     * Set the probabilities of the amino acids of aaSet from the residue counts of the database
+     * (see AminoAcidSet.setProbability; the AminoAcid objects are not changed)
+     *
+     * @param aaCount residue counts, from getResidueCounts()
+     * @param aaSet   amino acid set
+     */
+    public static void setAminoAcidProbabilities(long[] aaCount, AminoAcidSet aaSet) {
         long totalAACount = 0;
         for (AminoAcid aa : aaSet.getAAList(Location.Anywhere))
             if (!aa.isModified())
@@ -948,7 +1045,7 @@ public class DBScanner {
                 success = false;
                 break;
             }
-            aa.setProbability(count / (float) totalAACount);
+            aaSet.setProbability(aa, count / (float) totalAACount);
         }
         for (int i = 0; i < 128; i++) {
             if (!aaSet.contains((char) i) && aaCount[i] > 0) {
@@ -962,7 +1059,7 @@ public class DBScanner {
             System.out.println("Warning: database does not contain all standard amino acids. " +
                     "Probability 0.05 will be used for all amino acids.");
             for (AminoAcid aa : aaSet.getAllAminoAcidArr())
-                aa.setProbability(0.05f);
+                aaSet.setProbability(aa, 0.05f);
         }
     }
 }
@@ -89,6 +89,10 @@ public class DatabaseMatch extends Match {
         return indices;
     }
 
+    public int getNumIndices() {
+        return indices == null ? 1 : indices.size();
+    }
+
     public int getIndex() {
         return index;
     }
@@ -192,8 +192,10 @@ public class LibraryScanner {
 
                 double leftThr = (double) (peptideMass - tolDaRight);
                 double rightThr = (double) (peptideMass + tolDaLeft);
-                Collection<SpecKey> matchedSpecKeyList = specScanner.getPepMassSpecKeyMap().subMap(leftThr, rightThr).values();
-                for (SpecKey specKey : matchedSpecKeyList) {
+                PrecursorMassIndex precursorMassIndex = specScanner.getPrecursorMassIndex();
+                int toMatchIndex = precursorMassIndex.ceilingIndex(rightThr);
+                for (int matchIndex = precursorMassIndex.ceilingIndex(leftThr); matchIndex < toMatchIndex; matchIndex++) {
+                    SpecKey specKey = precursorMassIndex.getSpecKey(matchIndex);
                     if (charge != specKey.getCharge())
                         continue;
                     SimpleDBSearchScorer<NominalMass> scorer = specScanner.getSpecKeyScorerMap().get(specKey);
@@ -336,8 +338,10 @@ public class LibraryScanner {
 
             double leftThr = (double) (peptideMass - tolDaRight);
             double rightThr = (double) (peptideMass + tolDaLeft);
-            Collection<SpecKey> matchedSpecKeyList = specScanner.getPepMassSpecKeyMap().subMap(leftThr, rightThr).values();
-            for (SpecKey specKey : matchedSpecKeyList) {
+            PrecursorMassIndex precursorMassIndex = specScanner.getPrecursorMassIndex();
+            int toMatchIndex = precursorMassIndex.ceilingIndex(rightThr);
+            for (int matchIndex = precursorMassIndex.ceilingIndex(leftThr); matchIndex < toMatchIndex; matchIndex++) {
+                SpecKey specKey = precursorMassIndex.getSpecKey(matchIndex);
                 if (charge != specKey.getCharge())
                     continue;
                 SimpleDBSearchScorer<NominalMass> scorer = specScanner.getSpecKeyScorerMap().get(specKey);
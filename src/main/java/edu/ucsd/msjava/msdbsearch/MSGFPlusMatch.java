@@ -18,6 +18,13 @@ public class MSGFPlusMatch implements Comparable<MSGFPlusMatch> {
         specEValue = getBestDBMatch().getSpecEValue();
     }
 
+    // matchList must be sorted by Match.SpecProbComparator (used by MSGFPlusResultStore)
+    MSGFPlusMatch(int specIndex, List<DatabaseMatch> matchList) {
+        this.specIndex = specIndex;
+        this.matchList = matchList;
+        specEValue = getBestDBMatch().getSpecEValue();
+    }
+
     public DatabaseMatch getBestDBMatch() {
         return matchList.get(matchList.size() - 1);
     }
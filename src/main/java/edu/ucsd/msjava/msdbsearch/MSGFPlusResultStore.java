@@ -0,0 +1,429 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msutil.ActivationMethod;
+import edu.ucsd.msjava.msutil.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Search results (MSGFPlusMatch) of a spectrum file, kept in memory up to a limit.
+ * Once the results in memory exceed the limit, they are sorted by spectral E-value and written to a temporary file
+ * (a sorted run), and removed from memory. Iterating the store merges the sorted runs with the results still in memory,
+ * so the results are returned in increasing order of spectral E-value, as Collections.sort orders a list of MSGFPlusMatch.
+ * <p>
+ * Results can be added by several threads at the same time; iterate only after all results are added.
+ * Each iteration reads the runs again, so the store can be iterated several times (e.g. for computing q-values,
+ * then for writing the results). Results read from a run are new objects: changes to them (e.g. q-values) are not kept
+ * by the store. Score distributions (Match.getScoreDist) are not written to runs.
+ * <p>
+ * Run layout (big-endian, as written by DataOutputStream): number of results, then one record per result,
+ * in increasing order of spectral E-value: spectrum index, number of matches, then the matches in the order of
+ * MSGFPlusMatch.getMatchList().
+ */
+public class MSGFPlusResultStore extends AbstractCollection<MSGFPlusMatch> implements Closeable {
+
+    // Approximate heap size of an MSGFPlusMatch with its match list, and of a DatabaseMatch without its peptide string
+    private static final int MATCH_BYTES = 80;
+    private static final int DB_MATCH_BYTES = 120;
+
+    private final long maxBytesInMemory;
+    private final File tempDir;
+
+    private List<MSGFPlusMatch> memoryResults = new ArrayList<MSGFPlusMatch>();
+    private long bytesInMemory = 0;
+    private final List<File> runFiles = new ArrayList<File>();
+    private int size = 0;
+
+    /**
+     * @param maxBytesInMemory approximate maximum memory of the results kept in memory, in bytes;
+     *                         0 to write the results of every task to a run
+     * @param tempDir          directory of the temporary files, or null for the default temporary directory
+     */
+    public MSGFPlusResultStore(long maxBytesInMemory, File tempDir) {
+        this.maxBytesInMemory = maxBytesInMemory;
+        this.tempDir = tempDir;
+    }
+
+    @Override
+    public synchronized boolean add(MSGFPlusMatch match) {
+        addToMemory(match);
+        spillIfFull();
+        return true;
+    }
+
+    /**
+     * Add the results of a task; the results are written to a run at most once, after all of them are added
+     */
+    @Override
+    public synchronized boolean addAll(Collection<? extends MSGFPlusMatch> matches) {
+        for (MSGFPlusMatch match : matches)
+            addToMemory(match);
+        spillIfFull();
+        return !matches.isEmpty();
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return number of sorted runs written to temporary files
+     */
+    public synchronized int getNumRuns() {
+        return runFiles.size();
+    }
+
+    /**
+     * @return the results in increasing order of spectral E-value
+     * @throws IllegalStateException if a run cannot be read
+     */
+    @Override
+    public synchronized Iterator<MSGFPlusMatch> iterator() {
+        Collections.sort(memoryResults);
+        if (runFiles.isEmpty())
+            return Collections.unmodifiableList(memoryResults).iterator();
+
+        List<Iterator<MSGFPlusMatch>> runs = new ArrayList<Iterator<MSGFPlusMatch>>();
+        for (File runFile : runFiles)
+            runs.add(new RunReader(runFile));
+        runs.add(Collections.unmodifiableList(memoryResults).iterator());
+        return new MergeIterator(runs);
+    }
+
+    /**
+     * Delete the temporary files and discard all results
+     */
+    public synchronized void close() {
+        for (File runFile : runFiles) {
+            if (!runFile.delete() && runFile.exists())
+                System.out.println("Note: could not delete temporary file " + runFile.getPath());
+        }
+        runFiles.clear();
+        memoryResults = new ArrayList<MSGFPlusMatch>();
+        bytesInMemory = 0;
+        size = 0;
+    }
+
+    private void addToMemory(MSGFPlusMatch match) {
+        memoryResults.add(match);
+        bytesInMemory += estimateBytes(match);
+        size++;
+    }
+
+    private void spillIfFull() {
+        if (bytesInMemory <= maxBytesInMemory || memoryResults.isEmpty())
+            return;
+        try {
+            writeRun();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write search results to a temporary file in " +
+                    (tempDir == null ? System.getProperty("java.io.tmpdir") : tempDir.getPath()), e);
+        }
+    }
+
+    private void writeRun() throws IOException {
+        Collections.sort(memoryResults);
+        File runFile = File.createTempFile("MSGFPlusResults", ".tmp", tempDir);
+        runFile.deleteOnExit();
+        runFiles.add(runFile);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16));
+        try {
+            out.writeInt(memoryResults.size());
+            for (MSGFPlusMatch match : memoryResults)
+                writeMatch(out, match);
+        } finally {
+            out.close();
+        }
+        memoryResults = new ArrayList<MSGFPlusMatch>();
+        bytesInMemory = 0;
+    }
+
+    /**
+     * @return approximate heap size of a result in bytes
+     */
+    static long estimateBytes(MSGFPlusMatch match) {
+        long bytes = MATCH_BYTES;
+        for (DatabaseMatch m : match.getMatchList()) {
+            bytes += DB_MATCH_BYTES + 2L * m.getPepSeq().length();
+            if (m.getNumIndices() > 1)
+                bytes += 48L * m.getNumIndices();
+            if (m.getAdditionalFeatureList() != null) {
+                for (Pair<String, String> feature : m.getAdditionalFeatureList())
+                    bytes += 100 + 2L * feature.getSecond().length();
+            }
+        }
+        return bytes;
+    }
+
+    static void writeMatch(DataOutput out, MSGFPlusMatch match) throws IOException {
+        out.writeInt(match.getSpecIndex());
+        List<DatabaseMatch> matchList = match.getMatchList();
+        out.writeInt(matchList.size());
+        for (DatabaseMatch m : matchList) {
+            out.writeInt(m.getIndex());
+            out.writeByte(m.getLength());
+            out.writeInt(m.getScore());
+            out.writeFloat(m.getPeptideMass());
+            out.writeInt(m.getNominalPeptideMass());
+            out.writeInt(m.getCharge());
+            writeString(out, m.getPepSeq());
+
+            ActivationMethod[] actMethodArr = m.getActivationMethodArr();
+            out.writeInt(actMethodArr == null ? -1 : actMethodArr.length);
+            if (actMethodArr != null) {
+                for (ActivationMethod actMethod : actMethodArr)
+                    writeString(out, actMethod.getName());
+            }
+
+            out.writeBoolean(m.isProteinNTerm());
+            out.writeBoolean(m.isProteinCTerm());
+            out.writeBoolean(m.isNTermMetCleaved());
+            out.writeInt(m.getDeNovoScore());
+            out.writeDouble(m.getSpecEValue());
+
+            out.writeBoolean(m.getPSMQValue() != null);
+            if (m.getPSMQValue() != null)
+                out.writeFloat(m.getPSMQValue());
+            out.writeBoolean(m.getPepQValue() != null);
+            if (m.getPepQValue() != null)
+                out.writeFloat(m.getPepQValue());
+
+            if (m.getNumIndices() > 1) {
+                out.writeInt(m.getNumIndices());
+                for (int index : m.getIndices())
+                    out.writeInt(index);
+            } else {
+                out.writeInt(1);
+            }
+
+            List<Pair<String, String>> features = m.getAdditionalFeatureList();
+            out.writeInt(features == null ? -1 : features.size());
+            if (features != null) {
+                for (Pair<String, String> feature : features) {
+                    writeString(out, feature.getFirst());
+                    writeString(out, feature.getSecond());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param actMethodTable activation methods already read, by their names joined with '/'; the arrays are shared by the
+     *                       matches read, as they are shared by the matches of a search
+     */
+    static MSGFPlusMatch readMatch(DataInput in, HashMap<String, ActivationMethod[]> actMethodTable) throws IOException {
+        int specIndex = in.readInt();
+        int numMatches = in.readInt();
+        List<DatabaseMatch> matchList = new ArrayList<DatabaseMatch>(numMatches);
+        for (int i = 0; i < numMatches; i++) {
+            int index = in.readInt();
+            byte length = in.readByte();
+            int score = in.readInt();
+            float peptideMass = in.readFloat();
+            int nominalPeptideMass = in.readInt();
+            int charge = in.readInt();
+            String pepSeq = readString(in);
+            ActivationMethod[] actMethodArr = readActivationMethods(in, actMethodTable);
+
+            DatabaseMatch m = new DatabaseMatch(index, length, score, peptideMass, nominalPeptideMass, charge, pepSeq, actMethodArr)
+                    .setProteinNTerm(in.readBoolean())
+                    .setProteinCTerm(in.readBoolean())
+                    .setNTermMetCleaved(in.readBoolean());
+            m.setDeNovoScore(in.readInt());
+            m.setSpecProb(in.readDouble());
+
+            if (in.readBoolean())
+                m.setPSMQValue(in.readFloat());
+            if (in.readBoolean())
+                m.setPepQValue(in.readFloat());
+
+            int numIndices = in.readInt();
+            if (numIndices > 1) {
+                for (int j = 0; j < numIndices; j++)
+                    m.addIndex(in.readInt());
+            }
+
+            int numFeatures = in.readInt();
+            for (int j = 0; j < numFeatures; j++)
+                m.addAdditionalFeature(readString(in), readString(in));
+
+            matchList.add(m);
+        }
+        return new MSGFPlusMatch(specIndex, matchList);
+    }
+
+    private static ActivationMethod[] readActivationMethods(DataInput in, HashMap<String, ActivationMethod[]> actMethodTable) throws IOException {
+        int numActMethods = in.readInt();
+        if (numActMethods < 0)
+            return null;
+
+        String[] names = new String[numActMethods];
+        for (int i = 0; i < numActMethods; i++)
+            names[i] = readString(in);
+        String key = String.join("/", names);
+        ActivationMethod[] actMethodArr = actMethodTable.get(key);
+        if (actMethodArr == null) {
+            actMethodArr = new ActivationMethod[numActMethods];
+            for (int i = 0; i < numActMethods; i++)
+                actMethodArr[i] = getActivationMethod(names[i]);
+            actMethodTable.put(key, actMethodArr);
+        }
+        return actMethodArr;
+    }
+
+    private static ActivationMethod getActivationMethod(String name) {
+        ActivationMethod actMethod = ActivationMethod.get(name);
+        if (actMethod != null)
+            return actMethod;
+        // methods that are only in the list of registered methods, e.g. ASWRITTEN
+        for (ActivationMethod m : ActivationMethod.getAllRegisteredActivationMethods()) {
+            if (m.getName().equals(name))
+                return m;
+        }
+        return ActivationMethod.register(name, name);
+    }
+
+    // Strings are written as their UTF-8 length followed by the UTF-8 bytes (DataOutput.writeUTF is limited to 64KB)
+    private static void writeString(DataOutput out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the results of a run; the file is closed once all results are read
+     */
+    private static class RunReader implements Iterator<MSGFPlusMatch> {
+        private final File runFile;
+        private final HashMap<String, ActivationMethod[]> actMethodTable = new HashMap<String, ActivationMethod[]>();
+        private DataInputStream in;
+        private int numRemaining;
+
+        RunReader(File runFile) {
+            this.runFile = runFile;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), 1 << 16));
+                numRemaining = in.readInt();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read search results from " + runFile.getPath(), e);
+            }
+            closeIfDone();
+        }
+
+        public boolean hasNext() {
+            return numRemaining > 0;
+        }
+
+        public MSGFPlusMatch next() {
+            if (numRemaining <= 0)
+                throw new NoSuchElementException();
+            MSGFPlusMatch match;
+            try {
+                match = readMatch(in, actMethodTable);
+            } catch (EOFException e) {
+                throw new IllegalStateException("Truncated search results in " + runFile.getPath(), e);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read search results from " + runFile.getPath(), e);
+            }
+            numRemaining--;
+            closeIfDone();
+            return match;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void closeIfDone() {
+            if (numRemaining <= 0 && in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Merges iterators sorted by spectral E-value; for equal spectral E-values, results of earlier iterators come first
+     */
+    private static class MergeIterator implements Iterator<MSGFPlusMatch> {
+        private final PriorityQueue<Head> queue = new PriorityQueue<Head>();
+
+        MergeIterator(List<Iterator<MSGFPlusMatch>> runs) {
+            for (int i = 0; i < runs.size(); i++) {
+                Iterator<MSGFPlusMatch> run = runs.get(i);
+                if (run.hasNext())
+                    queue.add(new Head(i, run));
+            }
+        }
+
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        public MSGFPlusMatch next() {
+            Head head = queue.poll();
+            if (head == null)
+                throw new NoSuchElementException();
+            MSGFPlusMatch match = head.match;
+            if (head.run.hasNext()) {
+                head.match = head.run.next();
+                queue.add(head);
+            }
+            return match;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class Head implements Comparable<Head> {
+        private final int runIndex;
+        private final Iterator<MSGFPlusMatch> run;
+        private MSGFPlusMatch match;
+
+        Head(int runIndex, Iterator<MSGFPlusMatch> run) {
+            this.runIndex = runIndex;
+            this.run = run;
+            this.match = run.next();
+        }
+
+        public int compareTo(Head o) {
+            int c = match.compareTo(o.match);
+            return c != 0 ? c : runIndex - o.runIndex;
+        }
+    }
+}
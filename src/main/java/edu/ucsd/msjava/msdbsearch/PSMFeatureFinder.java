@@ -14,6 +14,14 @@ import java.util.List;
 
 public class PSMFeatureFinder {
 
+    // Names of the features of getAllFeatures(), in order; a feature is omitted if it cannot be computed
+    public static final String[] FEATURE_NAMES = {
+            "ExplainedIonCurrentRatio", "NTermIonCurrentRatio", "CTermIonCurrentRatio", "MS2IonCurrent",
+            "MS1IonCurrent", "IsolationWindowEfficiency", "NumMatchedMainIons",
+            "MeanErrorAll", "StdevErrorAll", "MeanErrorTop7", "StdevErrorTop7",
+            "MeanRelErrorAll", "StdevRelErrorAll", "MeanRelErrorTop7", "StdevRelErrorTop7"
+    };
+
     private final Spectrum spec;    // MS/MS spectrum
     //	private final Spectrum precursorSpec;
     private final Peptide peptide;
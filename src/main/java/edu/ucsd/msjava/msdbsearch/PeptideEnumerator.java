@@ -54,11 +54,6 @@ public class PeptideEnumerator {
 
         PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
 
-        DataInputStream indices = new DataInputStream(new BufferedInputStream(new FileInputStream(sa.getIndexFile())));
-        indices.skip(CompactSuffixArray.INT_BYTE_SIZE * 2);    // skip size and id
-
-        DataInputStream nlcps = new DataInputStream(new BufferedInputStream(new FileInputStream(sa.getNeighboringLcpFile())));
-        nlcps.skip(CompactSuffixArray.INT_BYTE_SIZE * 2);
         CompactFastaSequence sequence = sa.getSequence();
 
         int i = Integer.MAX_VALUE - 1000;
@@ -79,8 +74,8 @@ public class PeptideEnumerator {
         int[] numMissedCleavages = new int[MAX_PEPTIDE_LENGTH + 1];
         int nnet = 0;
         for (int bufferIndex = 0; bufferIndex < size; bufferIndex++) {
-            int index = indices.readInt();
-            int lcp = nlcps.readByte();
+            int index = sa.getSuffixIndex(bufferIndex);
+            int lcp = sa.getNeighboringLcp(bufferIndex);
             if (lcp >= i + 1) {
                 continue;
             } else if (lcp == 0)    // preceding aa is changed
@@ -142,8 +137,6 @@ public class PeptideEnumerator {
             }
         }
 
-        indices.close();
-        nlcps.close();
         out.close();
 
         System.out.println("Done");
@@ -0,0 +1,137 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msutil.SpecKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Read-only index of SpecKeys sorted by peptide mass, backed by primitive arrays.
+ * Built once from the peptide mass to SpecKey map after all spectra have been added;
+ * range lookups use a nominal mass bucket table plus a binary search and take no locks,
+ * so one index can be shared by all threads scanning the database.
+ * Each distinct SpecKey is also given an ordinal, so that per-spectrum state can be kept in arrays.
+ */
+public class PrecursorMassIndex {
+
+    private final double[] masses;
+    private final SpecKey[] specKeys;
+    private final int[] specKeyOrdinals;
+
+    /**
+     * Distinct SpecKeys, indexed by ordinal
+     */
+    private final SpecKey[] distinctSpecKeys;
+
+    /**
+     * Integer part of masses[0]
+     */
+    private final int minBucket;
+
+    /**
+     * bucketStart[b] is the index of the first mass whose integer part is at least minBucket + b;
+     * the last entry is masses.length
+     */
+    private final int[] bucketStart;
+
+    public PrecursorMassIndex(SortedMap<Double, SpecKey> pepMassSpecKeyMap) {
+        int size = pepMassSpecKeyMap.size();
+        masses = new double[size];
+        specKeys = new SpecKey[size];
+        specKeyOrdinals = new int[size];
+        Map<SpecKey, Integer> ordinalMap = new HashMap<SpecKey, Integer>();
+        List<SpecKey> distinctSpecKeyList = new ArrayList<SpecKey>();
+        int i = 0;
+        for (Map.Entry<Double, SpecKey> entry : pepMassSpecKeyMap.entrySet()) {
+            SpecKey specKey = entry.getValue();
+            Integer ordinal = ordinalMap.get(specKey);
+            if (ordinal == null) {
+                ordinal = distinctSpecKeyList.size();
+                ordinalMap.put(specKey, ordinal);
+                distinctSpecKeyList.add(specKey);
+            }
+            masses[i] = entry.getKey();
+            specKeys[i] = specKey;
+            specKeyOrdinals[i] = ordinal;
+            i++;
+        }
+        distinctSpecKeys = distinctSpecKeyList.toArray(new SpecKey[0]);
+
+        if (size == 0) {
+            minBucket = 0;
+            bucketStart = new int[]{0};
+            return;
+        }
+
+        minBucket = (int) Math.floor(masses[0]);
+        int maxBucket = (int) Math.floor(masses[size - 1]);
+        bucketStart = new int[maxBucket - minBucket + 2];
+        int index = 0;
+        for (int b = 0; b < bucketStart.length; b++) {
+            while (index < size && Math.floor(masses[index]) < minBucket + b)
+                index++;
+            bucketStart[b] = index;
+        }
+    }
+
+    public int size() {
+        return masses.length;
+    }
+
+    public double getMass(int index) {
+        return masses[index];
+    }
+
+    public SpecKey getSpecKey(int index) {
+        return specKeys[index];
+    }
+
+    /**
+     * @param index index of an entry
+     * @return ordinal of the SpecKey of the entry, from 0 to getNumSpecKeys()-1
+     */
+    public int getSpecKeyOrdinal(int index) {
+        return specKeyOrdinals[index];
+    }
+
+    public int getNumSpecKeys() {
+        return distinctSpecKeys.length;
+    }
+
+    public SpecKey getSpecKeyByOrdinal(int ordinal) {
+        return distinctSpecKeys[ordinal];
+    }
+
+    /**
+     * Get the index of the first entry whose mass is greater than or equal to the given mass.
+     * Entries matching [leftThr, rightThr) are those from ceilingIndex(leftThr) (inclusive)
+     * to ceilingIndex(rightThr) (exclusive), the same as subMap(leftThr, rightThr) of the source map.
+     *
+     * @param mass peptide mass
+     * @return index of the first entry with mass >= the given mass, or size() if there is none
+     */
+    public int ceilingIndex(double mass) {
+        double bucket = Math.floor(mass);
+        if (bucket < minBucket)
+            return 0;
+        if (bucket >= minBucket + bucketStart.length - 1)
+            return masses.length;
+
+        int b = (int) bucket - minBucket;
+        int low = bucketStart[b];
+        int high = bucketStart[b + 1];
+
+        // binary search within the bucket
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (masses[mid] < mass)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
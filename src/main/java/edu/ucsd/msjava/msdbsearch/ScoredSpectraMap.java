@@ -21,6 +21,7 @@ public class ScoredSpectraMap {
     private final SpecDataType specDataType;
 
     private SortedMap<Double, SpecKey> pepMassSpecKeyMap;
+    private PrecursorMassIndex precursorMassIndex;
     private Map<SpecKey, SimpleDBSearchScorer<NominalMass>> specKeyScorerMap;
     private Map<Pair<Integer, Integer>, SpecKey> specIndexChargeToSpecKeyMap;
 
@@ -30,8 +31,12 @@ public class ScoredSpectraMap {
 
     private boolean turnOffEdgeScoring = false;
 
+    private boolean isPreProcessed = false;
+
     private ProgressData progress;
 
+    private SearchMetrics metrics;
+
     public ScoredSpectraMap(
             SpectraAccessor specAcc,
             List<SpecKey> specKeyList,
@@ -52,6 +57,7 @@ public class ScoredSpectraMap {
         this.specDataType = specDataType;
 
         pepMassSpecKeyMap = Collections.synchronizedSortedMap((new TreeMap<Double, SpecKey>()));
+        precursorMassIndex = new PrecursorMassIndex(pepMassSpecKeyMap);
         specKeyScorerMap = Collections.synchronizedMap(new HashMap<SpecKey, SimpleDBSearchScorer<NominalMass>>());
         specIndexChargeToSpecKeyMap = Collections.synchronizedMap(new HashMap<Pair<Integer, Integer>, SpecKey>());
 
@@ -94,10 +100,63 @@ public class ScoredSpectraMap {
         return this;
     }
 
+    /**
+     * Returns a map over a range of the spectra of this map that shares the scorers of this map,
+     * used to search the spectra in several tasks after they were preprocessed once.
+     * The returned map has its own precursor mass index, built by makePepMassSpecKeyMap().
+     *
+     * @param fromIndex start index in specKeyList (inclusive)
+     * @param toIndex   end index in specKeyList (exclusive)
+     * @return the map over the range
+     */
+    public ScoredSpectraMap getSubMap(int fromIndex, int toIndex) {
+        ScoredSpectraMap subMap = new ScoredSpectraMap(
+                specAcc,
+                specKeyList.subList(fromIndex, toIndex),
+                leftPrecursorMassTolerance,
+                rightPrecursorMassTolerance,
+                minIsotopeError,
+                maxIsotopeError,
+                specDataType,
+                false,
+                false
+        );
+        subMap.specKeyScorerMap = this.specKeyScorerMap;
+        subMap.specKeyRankScorerMap = this.specKeyRankScorerMap;
+        subMap.turnOffEdgeScoring = this.turnOffEdgeScoring;
+        subMap.isPreProcessed = this.isPreProcessed;
+        subMap.metrics = this.metrics;
+        return subMap;
+    }
+
+    /**
+     * Call once all spectra have been preprocessed; the scorer maps are replaced by unsynchronized
+     * read-only copies, since they are only read (by many threads) during the database search
+     */
+    public ScoredSpectraMap setPreProcessed() {
+        specKeyScorerMap = Collections.unmodifiableMap(new HashMap<SpecKey, SimpleDBSearchScorer<NominalMass>>(specKeyScorerMap));
+        if (specKeyRankScorerMap != null)
+            specKeyRankScorerMap = Collections.unmodifiableMap(new HashMap<SpecKey, NewRankScorer>(specKeyRankScorerMap));
+        isPreProcessed = true;
+        return this;
+    }
+
+    public boolean isPreProcessed() {
+        return isPreProcessed;
+    }
+
     public SortedMap<Double, SpecKey> getPepMassSpecKeyMap() {
         return pepMassSpecKeyMap;
     }
 
+    /**
+     * Lock-free, array-backed copy of the peptide mass to SpecKey map, used for precursor mass lookups
+     * during the database search; rebuilt by makePepMassSpecKeyMap()
+     */
+    public PrecursorMassIndex getPrecursorMassIndex() {
+        return precursorMassIndex;
+    }
+
     public Map<SpecKey, SimpleDBSearchScorer<NominalMass>> getSpecKeyScorerMap() {
         return specKeyScorerMap;
     }
@@ -183,6 +242,7 @@ public class ScoredSpectraMap {
                 // Skip since precursor m/z is zero
             }
         }
+        precursorMassIndex = new PrecursorMassIndex(pepMassSpecKeyMap);
         return this;
     }
 
@@ -194,6 +254,20 @@ public class ScoredSpectraMap {
         return progress;
     }
 
+    /**
+     * Set the metrics to update while preprocessing spectra and searching them (DBScanner uses the same object)
+     *
+     * @param metrics metrics of the search, or null to not record metrics
+     */
+    public ScoredSpectraMap setMetrics(SearchMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public SearchMetrics getMetrics() {
+        return metrics;
+    }
+
     public void preProcessSpectra() {
         preProcessSpectra(0, specKeyList.size());
     }
@@ -202,13 +276,31 @@ public class ScoredSpectraMap {
         if (progress == null) {
             progress = new ProgressData();
         }
+        preProcessSpectra(fromIndex, toIndex, progress);
+    }
+
+    /**
+     * Preprocess a range of spectra, reporting to the given progress object;
+     * several threads can call this concurrently on disjoint ranges of the same map
+     *
+     * @param fromIndex start index in specKeyList (inclusive)
+     * @param toIndex   end index in specKeyList (exclusive)
+     * @param progress  progress object for this range
+     */
+    public void preProcessSpectra(int fromIndex, int toIndex, ProgressData progress) {
+        long startTime = System.nanoTime();
         if (specDataType.getActivationMethod() != ActivationMethod.FUSION)
-            preProcessIndividualSpectra(fromIndex, toIndex);
+            preProcessIndividualSpectra(fromIndex, toIndex, progress);
         else
             preProcessFusedSpectra(fromIndex, toIndex);
+
+        if (metrics != null) {
+            metrics.add(SearchMetrics.Counter.SPECTRA_PREPROCESSED, toIndex - fromIndex);
+            metrics.addTime(SearchMetrics.Phase.PREPROCESS_SPECTRA, startTime);
+        }
     }
 
-    private void preProcessIndividualSpectra(int fromIndex, int toIndex) {
+    private void preProcessIndividualSpectra(int fromIndex, int toIndex, ProgressData progress) {
         NewRankScorer scorer = null;
         ActivationMethod activationMethod = specDataType.getActivationMethod();
         InstrumentType instType = specDataType.getInstrumentType();
@@ -218,8 +310,10 @@ public class ScoredSpectraMap {
         if (activationMethod != ActivationMethod.ASWRITTEN && activationMethod != ActivationMethod.FUSION) {
             scorer = NewScorerFactory.get(activationMethod, instType, enzyme, protocol);
             if (this.turnOffEdgeScoring)
-                scorer.doNotUseError();
+                scorer = scorer.withoutError();
         }
+        // scorers without errors, by the shared scorer of NewScorerFactory they are copied from (never modified)
+        Map<NewRankScorer, NewRankScorer> scorersWithoutError = new IdentityHashMap<NewRankScorer, NewRankScorer>();
         int count = 0;
         int countIgnored = 0;
         int total = toIndex - fromIndex;
@@ -232,8 +326,14 @@ public class ScoredSpectraMap {
             Spectrum spec = specAcc.getSpectrumBySpecIndex(specIndex);
             if (activationMethod == ActivationMethod.ASWRITTEN || activationMethod == ActivationMethod.FUSION) {
                 scorer = NewScorerFactory.get(spec.getActivationMethod(), instType, enzyme, protocol);
-                if (this.turnOffEdgeScoring)
-                    scorer.doNotUseError();
+                if (this.turnOffEdgeScoring) {
+                    NewRankScorer sharedScorer = scorer;
+                    scorer = scorersWithoutError.get(sharedScorer);
+                    if (scorer == null) {
+                        scorer = sharedScorer.withoutError();
+                        scorersWithoutError.put(sharedScorer, scorer);
+                    }
+                }
             }
             int charge = specKey.getCharge();
             spec.setCharge(charge);
@@ -0,0 +1,232 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timers describing the search of one spectrum file, shared by all threads of the search.
+ * Values are kept in striped counters (LongAdder), so that concurrent updates do not contend;
+ * hot loops should count locally and add their totals once per task.
+ * Phase timers accumulate the time of each thread that ran the phase, so for phases split across threads
+ * the total exceeds the elapsed time of the phase.
+ */
+public class SearchMetrics {
+
+    public enum Counter {
+        SPECTRA_READ("spectra_read", "Spectra read from the spectrum file (spectrum/charge pairs to search)"),
+        SPECTRA_PREPROCESSED("spectra_preprocessed", "Spectra converted to scored spectra"),
+        SUFFIXES_SCANNED("suffixes_scanned", "Suffix array entries scanned by the database search"),
+        CANDIDATE_PEPTIDES("candidate_peptides", "Candidate peptide variants (with modifications) generated from the database"),
+        PRECURSOR_WINDOW_HITS("precursor_window_hits", "Candidate peptides matching the precursor mass of at least one spectrum"),
+        PSMS_SCORED("psms_scored", "Peptide-spectrum matches scored"),
+        GF_GRAPHS_BUILT("gf_graphs_built", "Amino acid graphs built for generating functions"),
+        SPEC_EVALUES_COMPUTED("spec_evalues_computed", "Matches whose spectral E-value was computed by a generating function"),
+        BYTES_WRITTEN("bytes_written", "Bytes written to the result file");
+
+        private final String name;
+        private final String description;
+
+        Counter(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    public enum Phase {
+        LOAD_DATABASE("load_database", "Loading the database and its suffix array"),
+        READ_SPECTRA("read_spectra", "Reading the spectrum file"),
+        PREPROCESS_SPECTRA("preprocess_spectra", "Preprocessing spectra"),
+        DATABASE_SEARCH("database_search", "Scanning the database"),
+        SPEC_EVALUES("spec_evalues", "Computing spectral E-values"),
+        Q_VALUES("q_values", "Computing q-values"),
+        WRITE_RESULTS("write_results", "Writing the result file"),
+        TOTAL("total", "Searching the spectrum file, end to end");
+
+        private final String name;
+        private final String description;
+
+        Phase(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final String specFileName;
+    private final LongAdder[] counters;
+    private final LongAdder[] phaseNanos;
+    private final LongAdder[] phaseCounts;
+
+    public SearchMetrics(String specFileName) {
+        this.specFileName = specFileName;
+        counters = new LongAdder[Counter.values().length];
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+        phaseNanos = new LongAdder[Phase.values().length];
+        phaseCounts = new LongAdder[Phase.values().length];
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCounts[i] = new LongAdder();
+        }
+    }
+
+    public String getSpecFileName() {
+        return specFileName;
+    }
+
+    public void add(Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+    }
+
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Record that the calling thread spent the time since startNanos (from System.nanoTime()) in the given phase
+     *
+     * @param phase      phase
+     * @param startNanos value of System.nanoTime() when the phase started
+     */
+    public void addTime(Phase phase, long startNanos) {
+        addNanos(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Record time spent in the given phase, e.g. in a phase shared by the searches of several spectrum files
+     *
+     * @param phase phase
+     * @param nanos time in nanoseconds
+     */
+    public void addNanos(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+        phaseCounts[phase.ordinal()].increment();
+    }
+
+    public double getSeconds(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum() / 1e9;
+    }
+
+    public long getCount(Phase phase) {
+        return phaseCounts[phase.ordinal()].sum();
+    }
+
+    /**
+     * Write the metrics as a JSON object
+     *
+     * @param out output stream
+     */
+    public void writeJson(PrintStream out) {
+        out.println("{");
+        out.println("  \"specFile\": \"" + escapeJson(specFileName) + "\",");
+        out.println("  \"counters\": {");
+        Counter[] counterArr = Counter.values();
+        for (int i = 0; i < counterArr.length; i++) {
+            out.print("    \"" + counterArr[i].getName() + "\": " + get(counterArr[i]));
+            out.println(i < counterArr.length - 1 ? "," : "");
+        }
+        out.println("  },");
+        out.println("  \"phases\": {");
+        Phase[] phaseArr = Phase.values();
+        for (int i = 0; i < phaseArr.length; i++) {
+            out.print(String.format(Locale.US, "    \"%s\": {\"seconds\": %.3f, \"count\": %d}",
+                    phaseArr[i].getName(), getSeconds(phaseArr[i]), getCount(phaseArr[i])));
+            out.println(i < phaseArr.length - 1 ? "," : "");
+        }
+        out.println("  }");
+        out.println("}");
+    }
+
+    /**
+     * Write the metrics in the Prometheus text exposition format (e.g. for the node exporter textfile collector)
+     *
+     * @param out output stream
+     */
+    public void writePrometheus(PrintStream out) {
+        String fileLabel = "{file=\"" + escapePrometheus(specFileName) + "\"}";
+        for (Counter counter : Counter.values()) {
+            String name = "msgfplus_" + counter.getName() + "_total";
+            out.println("# HELP " + name + " " + counter.getDescription());
+            out.println("# TYPE " + name + " counter");
+            out.println(name + fileLabel + " " + get(counter));
+        }
+
+        out.println("# HELP msgfplus_phase_seconds_total Time spent in each search phase, summed over threads");
+        out.println("# TYPE msgfplus_phase_seconds_total counter");
+        for (Phase phase : Phase.values())
+            out.println(String.format(Locale.US, "msgfplus_phase_seconds_total{file=\"%s\",phase=\"%s\"} %.3f",
+                    escapePrometheus(specFileName), phase.getName(), getSeconds(phase)));
+
+        out.println("# HELP msgfplus_phase_runs_total Number of times (tasks) each search phase was run");
+        out.println("# TYPE msgfplus_phase_runs_total counter");
+        for (Phase phase : Phase.values())
+            out.println("msgfplus_phase_runs_total{file=\"" + escapePrometheus(specFileName) + "\",phase=\"" + phase.getName() + "\"} " + getCount(phase));
+    }
+
+    /**
+     * Write the metrics to [outputFileBaseName].metrics.json and, optionally, [outputFileBaseName].prom
+     *
+     * @param outputFile      result file of the search; the metrics files are written next to it
+     * @param writePrometheus whether to also write the Prometheus text format
+     */
+    public void writeFiles(File outputFile, boolean writePrometheus) {
+        String path = outputFile.getPath();
+        int extIndex = path.lastIndexOf('.');
+        if (extIndex > path.lastIndexOf(File.separatorChar))
+            path = path.substring(0, extIndex);
+
+        File jsonFile = new File(path + ".metrics.json");
+        try (PrintStream out = new PrintStream(jsonFile)) {
+            writeJson(out);
+            System.out.println("Metrics: " + jsonFile.getPath());
+        } catch (IOException e) {
+            System.err.println("Error writing metrics to " + jsonFile.getPath() + ": " + e.getMessage());
+        }
+
+        if (writePrometheus) {
+            File promFile = new File(path + ".prom");
+            try (PrintStream out = new PrintStream(promFile)) {
+                writePrometheus(out);
+                System.out.println("Metrics: " + promFile.getPath());
+            } catch (IOException e) {
+                System.err.println("Error writing metrics to " + promFile.getPath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String escapeJson(String str) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\')
+                buf.append('\\').append(c);
+            else if (c < 0x20)
+                buf.append(String.format("\\u%04x", (int) c));
+            else
+                buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    private static String escapePrometheus(String str) {
+        return str.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -41,10 +41,20 @@ public class SearchParams {
     private int maxCharge;
     private int numThreads;
     private int numTasks;
+    private int numConcurrentFiles;
+    private boolean partitionDatabase;
     private boolean verbose;
+    private int metrics;
+    private long spectrumStoreMaxBytes;
+    private long resultStoreMaxBytes;
+    private boolean useSpectrumCache;
+    private File spectrumCacheDir;
     private boolean doNotUseEdgeScore;
     private File dbIndexDir;
     private boolean outputAdditionalFeatures;
+    private boolean writeMzIdentML;
+    private boolean writeTSV;
+    private int experimentFDR;
     private int minNumPeaksPerSpectrum;
     private int minDeNovoScore;
     private double chargeCarrierMass;
@@ -178,10 +188,53 @@ public class SearchParams {
         return numTasks;
     }
 
+    /**
+     * @return number of spectrum files searched at the same time, sharing the threads and the spectrum store memory
+     */
+    public int getNumConcurrentFiles() {
+        return numConcurrentFiles;
+    }
+
+    public boolean partitionDatabase() {
+        return partitionDatabase;
+    }
+
     public boolean getVerbose() {
         return verbose;
     }
 
+    /**
+     * @return 0 to not write metrics, 1 to write them as JSON, 2 to also write them in the Prometheus text format
+     */
+    public int getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return maximum memory of the in-memory spectrum store in bytes; 0 to re-read spectra from the file instead
+     */
+    public long getSpectrumStoreMaxBytes() {
+        return spectrumStoreMaxBytes;
+    }
+
+    /**
+     * @return maximum memory of the search results kept in memory in bytes; results beyond it are written to temporary files
+     */
+    public long getResultStoreMaxBytes() {
+        return resultStoreMaxBytes;
+    }
+
+    public boolean useSpectrumCache() {
+        return useSpectrumCache;
+    }
+
+    /**
+     * @return directory of the spectrum cache files, or null for the directory of each spectrum file
+     */
+    public File getSpectrumCacheDir() {
+        return spectrumCacheDir;
+    }
+
     // Used by MS-GF+
     public boolean doNotUseEdgeScore() {
         return doNotUseEdgeScore;
@@ -196,6 +249,21 @@ public class SearchParams {
         return outputAdditionalFeatures;
     }
 
+    // Used by MS-GF+
+    public boolean writeMzIdentML() {
+        return writeMzIdentML;
+    }
+
+    // Used by MS-GF+
+    public boolean writeTSV() {
+        return writeTSV;
+    }
+
+    // Used by MS-GF+
+    public int getExperimentFDR() {
+        return experimentFDR;
+    }
+
     // Used by MS-GF+
     public int getMinNumPeaksPerSpectrum() {
         return minNumPeaksPerSpectrum;
@@ -237,16 +305,32 @@ public class SearchParams {
 
     // Used by MS-GF+
     public String parse(ParamManager paramManager) {
+        return parse(paramManager, true);
+    }
+
+    /**
+     * Parse the parameters
+     *
+     * @param paramManager         parameters
+     * @param setChargeCarrierMass if false, the charge carrier mass is only kept in these parameters and not set for the whole process
+     *                             (see Composition.setChargeCarrierMass), e.g. by MSGFPlusServer, whose searches share the process
+     * @return error message, or null if successful
+     */
+    public String parse(ParamManager paramManager, boolean setChargeCarrierMass) {
         AminoAcidSet configAASet = null;
         FileParameter configFileParam = paramManager.getConfigFileParam();
 
         if (configFileParam != null && configFileParam.getFile() != null) {
-            configAASet = parseConfigParamFile(paramManager);
+            String configError = parseConfigParamFile(paramManager);
+            if (configError != null)
+                return configError;
+            configAASet = aaSet;
         }
 
         // Charge carrier mass
         chargeCarrierMass = paramManager.getChargeCarrierMass();
-        Composition.setChargeCarrierMass(chargeCarrierMass);
+        if (setChargeCarrierMass)
+            Composition.setChargeCarrierMass(chargeCarrierMass);
 
         // Spectrum file
         FileParameter specParam = paramManager.getSpecFileParam();
@@ -330,8 +414,13 @@ public class SearchParams {
 
         aaSet = null;
         File modFile = paramManager.getModFileParam().getFile();
-        if (modFile == null && configAASet == null)
-            aaSet = AminoAcidSet.getStandardAminoAcidSetWithFixedCarbamidomethylatedCys();
+        if (modFile == null && configAASet == null) {
+            // a new set rather than the shared standard one, as the amino acid probabilities and the enzyme
+            // of the search are set in it (searches of MSGFPlusServer run in the same process)
+            ArrayList<Modification.Instance> mods = new ArrayList<Modification.Instance>();
+            mods.add(new Modification.Instance(Modification.Carbamidomethyl, 'C').fixedModification());
+            aaSet = AminoAcidSet.getAminoAcidSet(mods);
+        }
         else {
             if (modFile != null) {
                 String modFileName = modFile.getName();
@@ -340,6 +429,8 @@ public class SearchParams {
                     aaSet = AminoAcidSet.getAminoAcidSetFromXMLFile(modFile.getPath());
                 else
                     aaSet = AminoAcidSet.getAminoAcidSetFromModFile(modFile.getPath(), paramManager);
+                if (aaSet == null)
+                    return "Error parsing modification file: " + modFile.getPath();
             } else {
                 aaSet = configAASet;
             }
@@ -370,6 +461,16 @@ public class SearchParams {
         useTDA = paramManager.getTDA() == 1;
         ignoreMetCleavage = paramManager.getIgnoreMetCleavage() == 1;
         outputAdditionalFeatures = paramManager.getOutputAdditionalFeatures() == 1;
+        writeMzIdentML = paramManager.getOutputFormat() != 1;
+        writeTSV = paramManager.getOutputFormat() != 0;
+
+        experimentFDR = paramManager.getExperimentFDR();
+        if (experimentFDR > 0 && !useTDA) {
+            return "ExperimentFDR requires searching the decoy database (-tda 1)";
+        }
+        if (experimentFDR == 2 && !writeTSV) {
+            return "ExperimentFDR 2 adds the q-values to the TSV files; use -outputFormat 1 or 2";
+        }
 
         minPeptideLength = paramManager.getMinPeptideLength();
         maxPeptideLength = paramManager.getMaxPeptideLength();
@@ -389,7 +490,22 @@ public class SearchParams {
 
         numThreads = paramManager.getNumThreads();
         numTasks = paramManager.getNumTasks();
+        numConcurrentFiles = paramManager.getNumConcurrentFiles();
+        partitionDatabase = paramManager.getPartitionDatabase() == 1;
         verbose = paramManager.getVerboseFlag() == 1;
+        metrics = paramManager.getMetrics();
+        int specStoreMB = paramManager.getSpecStoreMB();
+        if (specStoreMB < 0)
+            spectrumStoreMaxBytes = Runtime.getRuntime().maxMemory() / 4;
+        else
+            spectrumStoreMaxBytes = (long) specStoreMB << 20;
+        int resultStoreMB = paramManager.getResultStoreMB();
+        if (resultStoreMB < 0)
+            resultStoreMaxBytes = Runtime.getRuntime().maxMemory() / 10;
+        else
+            resultStoreMaxBytes = (long) resultStoreMB << 20;
+        useSpectrumCache = paramManager.getSpecCache() == 1;
+        spectrumCacheDir = paramManager.getSpecCacheDir();
         doNotUseEdgeScore = paramManager.getEdgeScoreFlag() == 1;
 
         dbIndexDir = paramManager.getDatabaseIndexDir();
@@ -414,10 +530,9 @@ public class SearchParams {
         int maxNumModsCompare = aaSet.getMaxNumberOfVariableModificationsPerPeptide();
 
         if (maxNumMods != maxNumModsCompare) {
-            System.err.println("Error, code bug: " +
+            return "Error, code bug: " +
                     "MaxNumModsPerPeptide tracked by the ParamManager does not match the value tracked by the AminoAcidSet: " +
-                    maxNumMods + " vs. " + maxNumModsCompare);
-            System.exit(-1);
+                    maxNumMods + " vs. " + maxNumModsCompare;
         }
 
         // Make sure all unique modifications have unique identifiers...
@@ -427,18 +542,22 @@ public class SearchParams {
     }
 
     // Used by MS-GF+
-    private AminoAcidSet parseConfigParamFile(ParamManager paramManager) {
+    /**
+     * Parse the parameter file given by -conf; modifications and custom amino acids defined there are stored in aaSet
+     *
+     * @param paramManager parameters
+     * @return error message, or null if successful
+     */
+    private String parseConfigParamFile(ParamManager paramManager) {
 
-        BufferedLineReader reader = null;
+        BufferedLineReader reader;
 
         File paramFile = paramManager.getConfigFileParam().getFile();
 
         try {
             reader = new BufferedLineReader(paramFile.getPath());
         } catch (IOException e) {
-            System.err.println("Error opening parameter file " + paramFile.getPath());
-            e.printStackTrace();
-            System.exit(-1);
+            return "Error opening parameter file " + paramFile.getPath() + ": " + e.getMessage();
         }
 
         String dataLine;
@@ -456,7 +575,6 @@ public class SearchParams {
 
         int invalidParameterCount = 0;
 
-        assert reader != null;
         while ((dataLine = reader.readLine()) != null) {
             lineNum++;
 
@@ -508,9 +626,9 @@ public class SearchParams {
                                 continue;
                             }
 
-                            System.err.println("Error parsing '" + lineSetting + "' in config file " +
-                                    paramFile.getAbsolutePath() + ": " + parseError);
-                            System.exit(-1);
+                            closeQuietly(reader);
+                            return "Error parsing '" + lineSetting + "' in config file " +
+                                    paramFile.getAbsolutePath() + ": " + parseError;
                         }
                     }
                 }
@@ -528,13 +646,25 @@ public class SearchParams {
             }
 
         }
+        closeQuietly(reader);
 
         if (invalidParameterCount > 0) {
             System.out.println("Valid parameters are described in the example parameter file at " +
                     "https://github.com/MSGFPlus/msgfplus/blob/master/docs/examples/MSGFPlus_Params.txt");
         }
 
-        return AminoAcidSet.getAminoAcidSetFromList(paramFile.getName(), customAAByLine, modsByLine, paramManager);
+        aaSet = AminoAcidSet.getAminoAcidSetFromList(paramFile.getName(), customAAByLine, modsByLine, paramManager);
+        if (aaSet == null)
+            return "Error parsing modifications in config file " + paramFile.getPath();
+        return null;
+    }
+
+    private static void closeQuietly(BufferedLineReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -0,0 +1,258 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msutil.ActivationMethod;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Collects the top-scoring peptide matches of each spectrum during a single database scan.
+ * Spectra are addressed by SpecKey ordinal (see PrecursorMassIndex); each spectrum keeps a min-heap on score
+ * of the top numPeptidesPerSpec matches plus ties, as primitive fields in a shared pool of match slots.
+ * DatabaseMatch objects are only created for the survivors, at the end of the scan.
+ * <p>
+ * A match is referred to by a handle that combines its slot and the generation of the slot,
+ * so that handles to evicted matches (whose slots may have been reused) are ignored by addIndex.
+ * Not thread-safe; use one collector per scan.
+ */
+public class TopNMatchCollector {
+
+    private static final int FLAG_PROTEIN_N_TERM = 1;
+    private static final int FLAG_PROTEIN_C_TERM = 2;
+    private static final int FLAG_N_TERM_MET_CLEAVED = 4;
+
+    private final int numPeptidesPerSpec;
+
+    // Per spectrum: min-heap (by score) of match slots
+    private final int[][] heaps;
+    private final int[] heapSizes;
+
+    // Match slots
+    private int[] score;
+    private int[] index;
+    private byte[] length;
+    private byte[] flags;
+    private float[] peptideMass;
+    private int[] nominalPeptideMass;
+    private String[] pepSeq;
+    private int[] generation;
+
+    // Indices of other occurrences of the same peptide, allocated on demand
+    private int[][] otherIndices;
+    private int[] numOtherIndices;
+
+    private int numSlots;
+    private int[] freeSlots;
+    private int numFreeSlots;
+
+    // Scratch space for matches removed from a heap
+    private int[] removed;
+
+    public TopNMatchCollector(int numSpecKeys, int numPeptidesPerSpec) {
+        this.numPeptidesPerSpec = numPeptidesPerSpec;
+        heaps = new int[numSpecKeys][];
+        heapSizes = new int[numSpecKeys];
+
+        int capacity = Math.max(16, numSpecKeys);
+        score = new int[capacity];
+        index = new int[capacity];
+        length = new byte[capacity];
+        flags = new byte[capacity];
+        peptideMass = new float[capacity];
+        nominalPeptideMass = new int[capacity];
+        pepSeq = new String[capacity];
+        generation = new int[capacity];
+        otherIndices = new int[capacity][];
+        numOtherIndices = new int[capacity];
+        freeSlots = new int[16];
+        removed = new int[16];
+    }
+
+    /**
+     * Check whether a match with the given score would be kept for the given spectrum
+     *
+     * @param ordinal SpecKey ordinal
+     * @param score   score of the match
+     * @return true if add would keep the match
+     */
+    public boolean accepts(int ordinal, int score) {
+        return heapSizes[ordinal] < numPeptidesPerSpec || score >= this.score[heaps[ordinal][0]];
+    }
+
+    /**
+     * Add a match to the given spectrum. If the spectrum already has numPeptidesPerSpec matches
+     * and the new score is higher than the lowest score, the matches with the lowest score are removed
+     * unless that would leave fewer than numPeptidesPerSpec matches.
+     * Callers should check accepts() first; a match that is not accepted is still added.
+     *
+     * @return handle of the new match
+     */
+    public long add(int ordinal, int score, int index, int length, float peptideMass, int nominalPeptideMass,
+                    String pepSeq, boolean isProteinNTerm, boolean isProteinCTerm, boolean isNTermMetCleaved) {
+        int slot = allocateSlot();
+        this.score[slot] = score;
+        this.index[slot] = index;
+        this.length[slot] = (byte) length;
+        this.flags[slot] = (byte) ((isProteinNTerm ? FLAG_PROTEIN_N_TERM : 0)
+                | (isProteinCTerm ? FLAG_PROTEIN_C_TERM : 0)
+                | (isNTermMetCleaved ? FLAG_N_TERM_MET_CLEAVED : 0));
+        this.peptideMass[slot] = peptideMass;
+        this.nominalPeptideMass[slot] = nominalPeptideMass;
+        this.pepSeq[slot] = pepSeq;
+        numOtherIndices[slot] = 0;
+
+        if (heaps[ordinal] == null)
+            heaps[ordinal] = new int[Math.max(2, numPeptidesPerSpec)];
+
+        if (heapSizes[ordinal] >= numPeptidesPerSpec && score > this.score[heaps[ordinal][0]]) {
+            int worstScore = this.score[heaps[ordinal][0]];
+            int numRemoved = 0;
+            while (heapSizes[ordinal] > 0 && this.score[heaps[ordinal][0]] == worstScore) {
+                if (numRemoved == removed.length)
+                    removed = Arrays.copyOf(removed, numRemoved * 2);
+                removed[numRemoved++] = poll(ordinal);
+            }
+            push(ordinal, slot);
+
+            if (heapSizes[ordinal] < numPeptidesPerSpec) {
+                for (int i = 0; i < numRemoved; i++)
+                    push(ordinal, removed[i]);
+            } else {
+                for (int i = 0; i < numRemoved; i++)
+                    freeSlot(removed[i]);
+            }
+        } else {
+            push(ordinal, slot);
+        }
+
+        return ((long) generation[slot] << 32) | slot;
+    }
+
+    /**
+     * @return false if the match has been evicted
+     */
+    public boolean isLive(long handle) {
+        return generation[(int) handle] == (int) (handle >>> 32);
+    }
+
+    public boolean isProteinCTerm(long handle) {
+        return (flags[(int) handle] & FLAG_PROTEIN_C_TERM) != 0;
+    }
+
+    /**
+     * Record another occurrence of the peptide of a match; ignored if the match has been evicted
+     *
+     * @param handle handle returned by add
+     * @param index  suffix index of the other occurrence
+     */
+    public void addIndex(long handle, int index) {
+        if (!isLive(handle))
+            return;
+        int slot = (int) handle;
+        int[] indices = otherIndices[slot];
+        if (indices == null) {
+            indices = new int[4];
+            otherIndices[slot] = indices;
+        } else if (numOtherIndices[slot] == indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+            otherIndices[slot] = indices;
+        }
+        indices[numOtherIndices[slot]++] = index;
+    }
+
+    public int getNumMatches(int ordinal) {
+        return heapSizes[ordinal];
+    }
+
+    /**
+     * Create DatabaseMatch objects for the matches kept for a spectrum
+     *
+     * @param ordinal      SpecKey ordinal
+     * @param charge       charge of the SpecKey
+     * @param actMethodArr activation methods of the scorer of the SpecKey
+     * @param matches      collection to add the matches to
+     */
+    public void addMatches(int ordinal, int charge, ActivationMethod[] actMethodArr, Collection<DatabaseMatch> matches) {
+        for (int i = 0; i < heapSizes[ordinal]; i++) {
+            int slot = heaps[ordinal][i];
+            DatabaseMatch dbMatch = new DatabaseMatch(index[slot], length[slot], score[slot], peptideMass[slot],
+                    nominalPeptideMass[slot], charge, pepSeq[slot], actMethodArr)
+                    .setProteinNTerm((flags[slot] & FLAG_PROTEIN_N_TERM) != 0)
+                    .setProteinCTerm((flags[slot] & FLAG_PROTEIN_C_TERM) != 0);
+            dbMatch.setNTermMetCleaved((flags[slot] & FLAG_N_TERM_MET_CLEAVED) != 0);
+            for (int j = 0; j < numOtherIndices[slot]; j++)
+                dbMatch.addIndex(otherIndices[slot][j]);
+            matches.add(dbMatch);
+        }
+    }
+
+    private int allocateSlot() {
+        if (numFreeSlots > 0)
+            return freeSlots[--numFreeSlots];
+
+        if (numSlots == score.length) {
+            int capacity = numSlots * 2;
+            score = Arrays.copyOf(score, capacity);
+            index = Arrays.copyOf(index, capacity);
+            length = Arrays.copyOf(length, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            peptideMass = Arrays.copyOf(peptideMass, capacity);
+            nominalPeptideMass = Arrays.copyOf(nominalPeptideMass, capacity);
+            pepSeq = Arrays.copyOf(pepSeq, capacity);
+            generation = Arrays.copyOf(generation, capacity);
+            otherIndices = Arrays.copyOf(otherIndices, capacity);
+            numOtherIndices = Arrays.copyOf(numOtherIndices, capacity);
+        }
+        return numSlots++;
+    }
+
+    private void freeSlot(int slot) {
+        generation[slot]++;
+        pepSeq[slot] = null;
+        if (numFreeSlots == freeSlots.length)
+            freeSlots = Arrays.copyOf(freeSlots, numFreeSlots * 2);
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    private void push(int ordinal, int slot) {
+        int[] heap = heaps[ordinal];
+        int i = heapSizes[ordinal]++;
+        if (i == heap.length) {
+            heap = Arrays.copyOf(heap, heap.length * 2);
+            heaps[ordinal] = heap;
+        }
+        int s = score[slot];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (score[heap[parent]] <= s)
+                break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = slot;
+    }
+
+    private int poll(int ordinal) {
+        int[] heap = heaps[ordinal];
+        int top = heap[0];
+        int size = --heapSizes[ordinal];
+        if (size > 0) {
+            int last = heap[size];
+            int s = score[last];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && score[heap[child + 1]] < score[heap[child]])
+                    child++;
+                if (score[heap[child]] >= s)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+        }
+        return top;
+    }
+}
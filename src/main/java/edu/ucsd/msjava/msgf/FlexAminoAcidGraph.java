@@ -4,12 +4,19 @@ import edu.ucsd.msjava.msutil.*;
 import edu.ucsd.msjava.msutil.Modification.Location;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Amino acid graph of the peptides with a given nominal mass, scored against a spectrum.
+ * Nodes and edges come from a FlexAminoAcidGraphTopology shared by all spectra;
+ * node and edge scores are computed per spectrum and stored in arrays indexed like the nodes and edges of the graph.
+ * Edge objects are only created if getEdges() is called.
+ */
 public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
     public static final int MODIFIED_EDGE_PENALTY = 0;
+    private static final int NO_SCORE = Integer.MIN_VALUE;
     private ScoredSpectrum<NominalMass> scoredSpec;
     private Enzyme enzyme;
     private boolean direction;    // true: forward (e.g. Lys-C), false: reverse (e.g. Trypsin)
@@ -17,8 +24,23 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
     private boolean useProtNTerm;
     private boolean useProtCTerm;
 
+    private FlexAminoAcidGraphTopology topology;
+
+    // Index of the node with nominal mass m is nodeIndex[m-minNodeMass], or -1 if there is no such node;
+    // intermediate nodes (including the source) come first, followed by the sink
+    private int minNodeMass;
+    private int[] nodeIndex;
+    private int[] nodeScore;
+
+    // Incoming edges of node i are edgeStart[i] (inclusive) to edgeStart[i+1] (exclusive)
+    private int[] edgeStart;
+    private int[] edgePrevNode;
+    private AminoAcid[] edgeAminoAcid;
+    private float[] edgeProbability;    // probability of the amino acid of the edge in aaSet
+    private int[] edgeErrorScore;
+    private int[] edgeCleavageScore;
+
     private HashMap<NominalMass, ArrayList<DeNovoGraph.Edge<NominalMass>>> edgeMap;
-    private HashMap<NominalMass, Integer> nodeScore;
 
     private static AtomicInteger negativeCompNodeMassWarnCount;
     private static AtomicInteger negativeNodeMassWarnCount;
@@ -50,8 +72,6 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
         this.useProtNTerm = useProteinNTerm;
         this.useProtCTerm = useProteinCTerm;
 
-        super.source = new NominalMass(0);
-
         super.pmNode = new NominalMass(peptideMass);
 
         if (negativeNodeMassWarnCount == null) {
@@ -70,12 +90,8 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
             exceptionCountGetNodeScore = new AtomicInteger();
         }
 
-        edgeMap = new HashMap<NominalMass, ArrayList<DeNovoGraph.Edge<NominalMass>>>();
-        edgeMap.put(source, new ArrayList<DeNovoGraph.Edge<NominalMass>>());
-        setForwardEdgesFromSource();
-        setForwardEdgesFromIntermediateNodes();
-        super.intermediateNodes = new ArrayList<NominalMass>(edgeMap.keySet());
-        Collections.sort(super.intermediateNodes);
+        setForwardEdges();
+        super.source = topology.getNode(0);
         this.setBackwardEdgesFromSink();
 
         super.sinkNodes = new ArrayList<NominalMass>();
@@ -91,7 +107,8 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
 
     @Override
     public ArrayList<DeNovoGraph.Edge<NominalMass>> getEdges(NominalMass curNode) {
-
+        if (edgeMap == null)
+            makeEdgeMap();
         return edgeMap.get(curNode);
     }
 
@@ -106,17 +123,15 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
             return 0;
         }
 
-        try {
-            return nodeScore.get(node);
-        } catch (Exception ex) {
+        int index = getNodeIndex(node.getNominalMass());
+        if (index < 0 || nodeScore[index] == NO_SCORE) {
             int errorCount = exceptionCountGetNodeScore.addAndGet(1);
             if (notifyError(errorCount)) {
-                System.out.println("Note: Exception in getNodeScore retrieving node at nominal mass " +
-                        node.getNominalMass() + ": " + ex.getMessage());
+                System.out.println("Note: node at nominal mass " + node.getNominalMass() + " not found in getNodeScore");
             }
             return 0;
         }
-
+        return nodeScore[index];
     }
 
     @Override
@@ -189,16 +204,68 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
         return aaSet;
     }
 
+    // Nodes and edges by index, for FlexAminoAcidGraphGF
+
+    /**
+     * @return number of nodes; intermediate nodes (including the source) have indices 0 to getNumNodes()-2,
+     * the sink is getNumNodes()-1
+     */
+    int getNumNodes() {
+        return intermediateNodes.size() + 1;
+    }
+
+    int getSourceIndex() {
+        return getNodeIndex(0);
+    }
+
+    int getNodeMass(int node) {
+        return node < intermediateNodes.size() ? intermediateNodes.get(node).getNominalMass() : pmNode.getNominalMass();
+    }
+
+    int getNodeScoreAt(int node) {
+        if (nodeScore[node] == NO_SCORE)
+            return getNodeScore(node < intermediateNodes.size() ? intermediateNodes.get(node) : pmNode);
+        return nodeScore[node];
+    }
+
+    int getEdgeStart(int node) {
+        return edgeStart[node];
+    }
+
+    int getEdgeEnd(int node) {
+        return edgeStart[node + 1];
+    }
+
+    int getEdgePrevNode(int edge) {
+        return edgePrevNode[edge];
+    }
+
+    int getEdgeScore(int edge) {
+        return edgeCleavageScore[edge] + edgeErrorScore[edge];
+    }
+
+    float getEdgeProbability(int edge) {
+        return edgeProbability[edge];
+    }
+
+    private int getNodeIndex(int nodeMass) {
+        int m = nodeMass - minNodeMass;
+        if (m < 0 || m >= nodeIndex.length)
+            return -1;
+        return nodeIndex[m];
+    }
+
     private void computeNodeScores() {
-        nodeScore = new HashMap<NominalMass, Integer>();
-        nodeScore.put(source, 0);
+        nodeScore = new int[intermediateNodes.size() + sinkNodes.size()];
+        Arrays.fill(nodeScore, NO_SCORE);
+        nodeScore[getNodeIndex(0)] = 0;
 
         boolean warnNegativeNodeMass = false;
         boolean warnNegativeCompNodeMass = false;
 
         for (int i = 1; i < intermediateNodes.size(); i++) {
             NominalMass node = intermediateNodes.get(i);
-            NominalMass compNode = this.getComplementNode(node);
+            NominalMass compNode = topology.getNode(pmNode.getNominalMass() - node.getNominalMass());
             if (node.getNominalMass() < 0 && !warnNegativeNodeMass) {
                 warnNegativeNodeMass = true;
                 // Mass of the node is negative
@@ -222,10 +289,10 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
                 score = scoredSpec.getNodeScore(compNode, node);
             else
                 score = scoredSpec.getNodeScore(node, compNode);
-            nodeScore.put(node, score);
+            nodeScore[i] = score;
         }
-        for (NominalMass node : this.sinkNodes)
-            nodeScore.put(node, 0);
+        for (int i = intermediateNodes.size(); i < nodeScore.length; i++)
+            nodeScore[i] = 0;
     }
 
     private boolean notifyError(int errorCount) {
@@ -236,7 +303,7 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
         }
     }
 
-    private void setForwardEdgesFromSource() {
+    private void setForwardEdges() {
         Location location;
         if (direction) {
             if (!this.useProtNTerm)
@@ -250,14 +317,78 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
                 location = Location.Protein_C_Term;
         }
 
-        ArrayList<AminoAcid> aaList = aaSet.getAAList(location);
-        makeForwardEdges(source, aaList, enzyme != null && direction == enzyme.isNTerm());
-    }
+        int peptideNominalMass = pmNode.getNominalMass();
+        topology = FlexAminoAcidGraphTopology.getTopology(aaSet, location, peptideNominalMass);
+        boolean addCleavageScore = enzyme != null && direction == enzyme.isNTerm();
+
+        // nodes lighter than the peptide that have an edge from the source or from a node lighter than the peptide
+        minNodeMass = Math.min(topology.getMinMass(), peptideNominalMass);
+        int maxNodeMass = Math.max(peptideNominalMass, 0);
+        nodeIndex = new int[maxNodeMass - minNodeMass + 1];
+        Arrays.fill(nodeIndex, -1);
+        super.intermediateNodes = new ArrayList<NominalMass>();
+        int numEdges = 0;
+        for (int nodeMass = topology.getMinMass(); nodeMass <= maxNodeMass; nodeMass++) {
+            int numNodeEdges = 0;
+            if (nodeMass < peptideNominalMass) {
+                for (int e = topology.getEdgeStart(nodeMass); e < topology.getEdgeEnd(nodeMass); e++) {
+                    if (topology.isSourceEdge(e) || topology.getPrevMass(e) < peptideNominalMass)
+                        numNodeEdges++;
+                }
+            }
+            if (numNodeEdges > 0 || nodeMass == 0) {
+                nodeIndex[nodeMass - minNodeMass] = intermediateNodes.size();
+                intermediateNodes.add(topology.getNode(nodeMass));
+                numEdges += numNodeEdges;
+            }
+        }
 
-    private void setForwardEdgesFromIntermediateNodes() {
-        ArrayList<AminoAcid> aaList = aaSet.getAAList(Location.Anywhere);
-        for (int i = 1; i < pmNode.getNominalMass(); i++)
-            makeForwardEdges(new NominalMass(i), aaList, false);
+        // the sink has at most one edge per amino acid
+        numEdges += aaSet.size();
+        edgeStart = new int[intermediateNodes.size() + 2];
+        edgePrevNode = new int[numEdges];
+        edgeAminoAcid = new AminoAcid[numEdges];
+        edgeProbability = new float[numEdges];
+        edgeErrorScore = new int[numEdges];
+        edgeCleavageScore = new int[numEdges];
+
+        int edgeIndex = 0;
+        for (int i = 0; i < intermediateNodes.size(); i++) {
+            edgeStart[i] = edgeIndex;
+            NominalMass curNode = intermediateNodes.get(i);
+            int nodeMass = curNode.getNominalMass();
+            if (nodeMass >= peptideNominalMass)
+                continue;
+            for (int e = topology.getEdgeStart(nodeMass); e < topology.getEdgeEnd(nodeMass); e++) {
+                boolean isSourceEdge = topology.isSourceEdge(e);
+                if (!isSourceEdge && topology.getPrevMass(e) >= peptideNominalMass)
+                    continue;
+                AminoAcid aa = topology.getAminoAcid(e);
+                NominalMass prevNode = topology.getNode(topology.getPrevMass(e));
+                int errorScore = scoredSpec.getEdgeScore(curNode, prevNode, aa.getMass());
+                if (errorScore < -100 || errorScore > 100) {
+                    System.err.println("Warning, invalid ErrorScore: " + errorScore);
+
+                    // Could abort the search
+                    // System.exit(-1);
+
+                    // Instead, use a score of -4
+                    errorScore = -4;
+                }
+                edgePrevNode[edgeIndex] = getNodeIndex(prevNode.getNominalMass());
+                edgeAminoAcid[edgeIndex] = aa;
+                edgeProbability[edgeIndex] = aaSet.getProbability(aa);
+                edgeErrorScore[edgeIndex] = errorScore;
+                if (isSourceEdge && addCleavageScore) {
+                    if (enzyme.isCleavable(aa))
+                        edgeCleavageScore[edgeIndex] = aaSet.getPeptideCleavageCredit();
+                    else
+                        edgeCleavageScore[edgeIndex] = aaSet.getPeptideCleavagePenalty();
+                }
+                edgeIndex++;
+            }
+        }
+        edgeStart[intermediateNodes.size()] = edgeIndex;
     }
 
     private void setBackwardEdgesFromSink() {
@@ -282,68 +413,57 @@ public class FlexAminoAcidGraph extends DeNovoGraph<NominalMass> {
 //			aaList = aaSet.getAAList(location);
 
         int peptideNominalMass = pmNode.getNominalMass();
-        ArrayList<DeNovoGraph.Edge<NominalMass>> edges = new ArrayList<DeNovoGraph.Edge<NominalMass>>();
+        int edgeIndex = edgeStart[intermediateNodes.size()];
         for (AminoAcid aa : aaList) {
-            NominalMass prevNode = new NominalMass(peptideNominalMass - aa.getNominalMass());
-            if (edgeMap.containsKey(prevNode)) {
-                DeNovoGraph.Edge<NominalMass> edge = new DeNovoGraph.Edge<NominalMass>(prevNode, aa.getProbability(), aaSet.getIndex(aa), aa.getMass());
-                edges.add(edge);
+            int prevNodeIndex = getNodeIndex(peptideNominalMass - aa.getNominalMass());
+            if (prevNodeIndex >= 0) {
+                if (edgeIndex == edgePrevNode.length)
+                    growEdgeArrays();
+                edgePrevNode[edgeIndex] = prevNodeIndex;
+                edgeAminoAcid[edgeIndex] = aa;
+                edgeProbability[edgeIndex] = aaSet.getProbability(aa);
                 if (enzyme != null && direction != enzyme.isNTerm()) {
                     if (enzyme.isCleavable(aa))
-                        edge.setCleavageScore(aaSet.getPeptideCleavageCredit());
+                        edgeCleavageScore[edgeIndex] = aaSet.getPeptideCleavageCredit();
                     else
-                        edge.setCleavageScore(aaSet.getPeptideCleavagePenalty());
+                        edgeCleavageScore[edgeIndex] = aaSet.getPeptideCleavagePenalty();
                 }
                 if (aa.isModified())
-                    edge.setErrorScore(MODIFIED_EDGE_PENALTY);
+                    edgeErrorScore[edgeIndex] = MODIFIED_EDGE_PENALTY;
+                edgeIndex++;
             }
         }
-        edgeMap.put(pmNode, edges);
+        edgeStart[intermediateNodes.size() + 1] = edgeIndex;
+        nodeIndex[peptideNominalMass - minNodeMass] = intermediateNodes.size();
     }
 
-    private void makeForwardEdges(NominalMass curNode, ArrayList<AminoAcid> aaList, boolean addCleavageScore) {
-        if (edgeMap.get(curNode) == null)
-            return;
-        int curNominalMass = curNode.getNominalMass();
-        for (AminoAcid aa : aaList) {
-            int nextNodeNominalMass = curNominalMass + aa.getNominalMass();
-            if (nextNodeNominalMass >= pmNode.getNominalMass())
-                continue;
-            NominalMass nextNode = new NominalMass(nextNodeNominalMass);
-            ArrayList<DeNovoGraph.Edge<NominalMass>> edges = edgeMap.get(nextNode);
-            if (edges == null) {
-                edges = new ArrayList<DeNovoGraph.Edge<NominalMass>>();
-                edgeMap.put(nextNode, edges);
-            }
+    private void growEdgeArrays() {
+        int capacity = edgePrevNode.length * 2 + 1;
+        edgePrevNode = Arrays.copyOf(edgePrevNode, capacity);
+        edgeAminoAcid = Arrays.copyOf(edgeAminoAcid, capacity);
+        edgeProbability = Arrays.copyOf(edgeProbability, capacity);
+        edgeErrorScore = Arrays.copyOf(edgeErrorScore, capacity);
+        edgeCleavageScore = Arrays.copyOf(edgeCleavageScore, capacity);
+    }
 
-            DeNovoGraph.Edge<NominalMass> edge = new DeNovoGraph.Edge<NominalMass>(
-                    curNode,
-                    aa.getProbability(),
-                    aaSet.getIndex(aa),
-                    aa.getMass());
-//			if(curNode.getNominalMass() == 57 && nextNode.getNominalMass() == 114)
-//				System.out.println("Debug");
-            int errorScore = scoredSpec.getEdgeScore(nextNode, curNode, aa.getMass());
-//			if(aa.isModified())
-//				errorScore += MODIFIED_EDGE_PENALTY;
-            if (errorScore < -100 || errorScore > 100) {
-                System.err.println("Warning, invalid ErrorScore: " + errorScore);
-
-                // Could abort the search
-                // System.exit(-1);
-
-                // Instead, use a score of -4
-                errorScore = -4;
-            }
-            edge.setErrorScore(errorScore);
-            if (addCleavageScore) {
-                if (enzyme.isCleavable(aa))
-                    edge.setCleavageScore(aaSet.getPeptideCleavageCredit());
-                else
-                    edge.setCleavageScore(aaSet.getPeptideCleavagePenalty());
+    private void makeEdgeMap() {
+        edgeMap = new HashMap<NominalMass, ArrayList<DeNovoGraph.Edge<NominalMass>>>();
+        int numNodes = intermediateNodes.size() + 1;
+        for (int i = 0; i < numNodes; i++) {
+            NominalMass curNode = i < intermediateNodes.size() ? intermediateNodes.get(i) : pmNode;
+            ArrayList<DeNovoGraph.Edge<NominalMass>> edges = new ArrayList<DeNovoGraph.Edge<NominalMass>>(edgeStart[i + 1] - edgeStart[i]);
+            for (int e = edgeStart[i]; e < edgeStart[i + 1]; e++) {
+                AminoAcid aa = edgeAminoAcid[e];
+                DeNovoGraph.Edge<NominalMass> edge = new DeNovoGraph.Edge<NominalMass>(
+                        intermediateNodes.get(edgePrevNode[e]),
+                        edgeProbability[e],
+                        aaSet.getIndex(aa),
+                        aa.getMass());
+                edge.setErrorScore(edgeErrorScore[e]);
+                edge.setCleavageScore(edgeCleavageScore[e]);
+                edges.add(edge);
             }
-
-            edges.add(edge);
+            edgeMap.put(curNode, edges);
         }
     }
 
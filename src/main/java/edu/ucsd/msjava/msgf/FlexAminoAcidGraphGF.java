@@ -0,0 +1,209 @@
+package edu.ucsd.msjava.msgf;
+
+import java.util.Arrays;
+
+/**
+ * Generating function of a FlexAminoAcidGraph computed over node indices instead of NominalMass keys.
+ * Used by GeneratingFunction when only probabilities are needed (no backtracking, no numbers of peptides),
+ * which is how database search computes spectral E-values.
+ * <p>
+ * The score distributions of all nodes are stored one after another in a single double array,
+ * each with its own score range, and the score thresholds of the nodes in an int array.
+ * These buffers are kept per thread and reused for the next graph, so they are only allocated
+ * while they grow to the size needed by the largest graph.
+ */
+class FlexAminoAcidGraphGF {
+
+    private static final ThreadLocal<FlexAminoAcidGraphGF> instance = new ThreadLocal<FlexAminoAcidGraphGF>() {
+        @Override
+        protected FlexAminoAcidGraphGF initialValue() {
+            return new FlexAminoAcidGraphGF();
+        }
+    };
+
+    // Per node
+    private boolean[] hasMinScore = new boolean[0];
+    private int[] minScoreTable = new int[0];
+    private boolean[] hasDist = new boolean[0];
+    private int[] distMinScore = new int[0];
+    private int[] distMaxScore = new int[0];
+    private int[] distStart = new int[0];
+
+    // Probabilities of all score distributions; distribution of node i is
+    // prob[distStart[i]] (score distMinScore[i]) to prob[distStart[i]+distMaxScore[i]-distMinScore[i]-1]
+    private double[] prob = new double[1024];
+    private int probSize;
+
+    static FlexAminoAcidGraphGF getInstance() {
+        return instance.get();
+    }
+
+    /**
+     * Compute the score distribution of the peptides of the graph
+     *
+     * @param graph             graph
+     * @param useScoreThreshold if true, ignore peptides whose score is below scoreThreshold
+     * @param scoreThreshold    minimum score at the sink
+     * @param factory           factory of the returned distribution
+     * @return score distribution at the sink, or null if the sink cannot be reached
+     */
+    ScoreDist computeSinkDist(FlexAminoAcidGraph graph, boolean useScoreThreshold, int scoreThreshold, ScoreDistFactory factory) {
+        int numNodes = graph.getNumNodes();
+        int sink = numNodes - 1;
+        ensureCapacity(numNodes);
+
+        if (useScoreThreshold)
+            setUpScoreThreshold(graph, scoreThreshold);
+
+        Arrays.fill(hasDist, 0, numNodes, false);
+        probSize = 0;
+
+        // initialization of the source
+        int source = graph.getSourceIndex();
+        int start = allocate(1);
+        prob[start] = 1;
+        setDist(source, 0, 1, start);
+
+        // dynamic programming, source node (i=0) is excluded
+        for (int i = 1; i < sink; i++)
+            setCurNode(graph, i, useScoreThreshold);
+        setCurNode(graph, sink, useScoreThreshold);
+
+        if (!hasDist[sink])
+            return null;
+
+        ScoreDist sinkDist = factory.getInstance(distMinScore[sink], distMaxScore[sink]);
+        for (int t = distMinScore[sink]; t < distMaxScore[sink]; t++)
+            sinkDist.setProb(t, prob[distStart[sink] + t - distMinScore[sink]]);
+        return sinkDist;
+    }
+
+    private void setUpScoreThreshold(FlexAminoAcidGraph graph, int score) {
+        int numNodes = graph.getNumNodes();
+        int sink = numNodes - 1;
+        Arrays.fill(hasMinScore, 0, numNodes, false);
+
+        hasMinScore[sink] = true;
+        minScoreTable[sink] = score;
+        for (int e = graph.getEdgeStart(sink); e < graph.getEdgeEnd(sink); e++)
+            updateMinScore(graph.getEdgePrevNode(e), score - graph.getEdgeScore(e));
+
+        for (int i = sink - 1; i >= 0; i--) {
+            if (!hasMinScore[i])
+                continue;
+            int curScore = minScoreTable[i];
+            int curNodeScore = graph.getNodeScoreAt(i);
+            for (int e = graph.getEdgeStart(i); e < graph.getEdgeEnd(i); e++)
+                updateMinScore(graph.getEdgePrevNode(e), curScore - (curNodeScore + graph.getEdgeScore(e)));
+        }
+    }
+
+    private void updateMinScore(int node, int newMinScore) {
+        if (!hasMinScore[node] || minScoreTable[node] > newMinScore) {
+            hasMinScore[node] = true;
+            minScoreTable[node] = newMinScore;
+        }
+    }
+
+    private void setCurNode(FlexAminoAcidGraph graph, int curNode, boolean useScoreThreshold) {
+        int curNodeScore = graph.getNodeScoreAt(curNode);
+        int curMaxScore = Integer.MIN_VALUE;
+        int curMinScore;
+        if (!useScoreThreshold)
+            curMinScore = Integer.MAX_VALUE;
+        else {
+            if (!hasMinScore[curNode])
+                return;
+            curMinScore = minScoreTable[curNode];
+        }
+
+        // determine minScore and maxScore
+        int edgeStart = graph.getEdgeStart(curNode);
+        int edgeEnd = graph.getEdgeEnd(curNode);
+        for (int e = edgeStart; e < edgeEnd; e++) {
+            int prevNode = graph.getEdgePrevNode(e);
+            if (hasDist[prevNode]) {
+                int combinedScore = curNodeScore + graph.getEdgeScore(e);
+                if (distMaxScore[prevNode] + combinedScore > curMaxScore)
+                    curMaxScore = distMaxScore[prevNode] + combinedScore;
+                if (!useScoreThreshold) {
+                    if (distMinScore[prevNode] + combinedScore < curMinScore)
+                        curMinScore = distMinScore[prevNode] + combinedScore;
+                }
+            }
+        }
+        if (curMinScore >= curMaxScore)
+            return;
+
+        if (curMinScore < -10000) {
+            System.err.println("Warning, MinScore is abnormally low; "
+                    + "MinScore: " + curMinScore + ", MaxScore: " + curMaxScore + ", "
+                    + "CurNode: " + graph.getNodeMass(curNode) + ", CurNodeScore: " + curNodeScore);
+            // Skip this node
+            return;
+        }
+
+        if (curMaxScore > 10000) {
+            System.err.println("Warning, MaxScore is abnormally high; "
+                    + "MinScore: " + curMinScore + ", MaxScore: " + curMaxScore + ", "
+                    + "CurNode: " + graph.getNodeMass(curNode) + ", CurNodeScore: " + curNodeScore);
+            // Skip this node
+            return;
+        }
+
+        int curStart = allocate(curMaxScore - curMinScore);
+        double[] prob = this.prob;
+        for (int e = edgeStart; e < edgeEnd; e++) {
+            int prevNode = graph.getEdgePrevNode(e);
+            if (hasDist[prevNode]) {
+                int combinedScore = curNodeScore + graph.getEdgeScore(e);
+                float aaProb = graph.getEdgeProbability(e);
+                int prevMinScore = distMinScore[prevNode];
+                int prevMaxScore = distMaxScore[prevNode];
+                int prevStart = distStart[prevNode];
+                for (int t = Math.max(prevMinScore, curMinScore - combinedScore); t < prevMaxScore; t++)
+                    prob[curStart + t + combinedScore - curMinScore] += prob[prevStart + t - prevMinScore] * aaProb;
+            }
+        }
+        int last = curStart + curMaxScore - curMinScore - 1;
+        if (prob[last] == 0)    // to avoid underflow
+        {
+            assert (false) : "Underflow! " + graph.getNodeMass(curNode) + " " + prob[last];
+            prob[last] = Float.MIN_VALUE;
+        }
+        setDist(curNode, curMinScore, curMaxScore, curStart);
+    }
+
+    private void setDist(int node, int minScore, int maxScore, int start) {
+        hasDist[node] = true;
+        distMinScore[node] = minScore;
+        distMaxScore[node] = maxScore;
+        distStart[node] = start;
+    }
+
+    /**
+     * Reserve a zero-filled range of the probability array
+     *
+     * @return start of the range
+     */
+    private int allocate(int size) {
+        int start = probSize;
+        if (start + size > prob.length)
+            prob = Arrays.copyOf(prob, Math.max(prob.length * 2, start + size));
+        Arrays.fill(prob, start, start + size, 0);
+        probSize = start + size;
+        return start;
+    }
+
+    private void ensureCapacity(int numNodes) {
+        if (hasDist.length >= numNodes)
+            return;
+        int capacity = Math.max(numNodes, hasDist.length * 2);
+        hasMinScore = new boolean[capacity];
+        minScoreTable = new int[capacity];
+        hasDist = new boolean[capacity];
+        distMinScore = new int[capacity];
+        distMaxScore = new int[capacity];
+        distStart = new int[capacity];
+    }
+}
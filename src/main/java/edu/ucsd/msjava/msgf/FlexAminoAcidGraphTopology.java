@@ -0,0 +1,204 @@
+package edu.ucsd.msjava.msgf;
+
+import edu.ucsd.msjava.msutil.AminoAcid;
+import edu.ucsd.msjava.msutil.AminoAcidSet;
+import edu.ucsd.msjava.msutil.Modification.Location;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Spectrum-independent part of FlexAminoAcidGraph: the nodes reachable from the source and their incoming edges,
+ * stored as int arrays grouped by the nominal mass of the node (compressed sparse row form).
+ * <p>
+ * An edge from a node is only added if the node is lighter than the peptide, and whether the node has outgoing
+ * edges only depends on lighter nodes, so the forward edges of the graph of a peptide with nominal mass M
+ * are exactly the edges of this topology between nodes lighter than M.
+ * One topology per amino acid set and source location is thus shared by all spectra and all peptide masses
+ * up to getMaxPeptideMass(); getTopology() replaces it by a larger one when a heavier peptide is requested.
+ * Topologies are immutable and can be used by multiple threads.
+ */
+public class FlexAminoAcidGraphTopology {
+
+    /**
+     * Peptide masses covered by a topology are rounded up to a multiple of this value
+     */
+    private static final int MASS_INCREMENT = 1024;
+
+    private static final Map<AminoAcidSet, Map<Location, FlexAminoAcidGraphTopology>> topologyMap =
+            new WeakHashMap<AminoAcidSet, Map<Location, FlexAminoAcidGraphTopology>>();
+
+    private final int minMass;
+    private final int maxPeptideMass;
+
+    /**
+     * Amino acids of the edges from the source, followed by those of the other edges
+     */
+    private final AminoAcid[] aminoAcids;
+    private final int numSourceAminoAcids;
+
+    /**
+     * Incoming edges of the node with nominal mass m are edgeStart[m-minMass] (inclusive)
+     * to edgeStart[m-minMass+1] (exclusive)
+     */
+    private final int[] edgeStart;
+    private final int[] edgePrevMass;
+    private final int[] edgeAminoAcid;
+
+    private final NominalMass[] nodes;
+
+    /**
+     * Get the topology for the given amino acid set and source location covering the given peptide mass
+     *
+     * @param aaSet          amino acid set
+     * @param sourceLocation location of the amino acids of the edges from the source
+     * @param peptideMass    nominal peptide mass
+     * @return topology with getMaxPeptideMass() >= peptideMass
+     */
+    public static FlexAminoAcidGraphTopology getTopology(AminoAcidSet aaSet, Location sourceLocation, int peptideMass) {
+        synchronized (topologyMap) {
+            Map<Location, FlexAminoAcidGraphTopology> locationMap = topologyMap.get(aaSet);
+            if (locationMap == null) {
+                locationMap = new EnumMap<Location, FlexAminoAcidGraphTopology>(Location.class);
+                topologyMap.put(aaSet, locationMap);
+            }
+            FlexAminoAcidGraphTopology topology = locationMap.get(sourceLocation);
+            if (topology == null || topology.maxPeptideMass < peptideMass) {
+                int maxPeptideMass = (Math.max(peptideMass, 0) / MASS_INCREMENT + 1) * MASS_INCREMENT;
+                topology = new FlexAminoAcidGraphTopology(aaSet, sourceLocation, maxPeptideMass);
+                locationMap.put(sourceLocation, topology);
+            }
+            return topology;
+        }
+    }
+
+    private FlexAminoAcidGraphTopology(AminoAcidSet aaSet, Location sourceLocation, int maxPeptideMass) {
+        this.maxPeptideMass = maxPeptideMass;
+
+        ArrayList<AminoAcid> sourceAAList = aaSet.getAAList(sourceLocation);
+        ArrayList<AminoAcid> aaList = aaSet.getAAList(Location.Anywhere);
+        numSourceAminoAcids = sourceAAList.size();
+        aminoAcids = new AminoAcid[numSourceAminoAcids + aaList.size()];
+        int minAAMass = 0;
+        for (int i = 0; i < aminoAcids.length; i++) {
+            AminoAcid aa = i < numSourceAminoAcids ? sourceAAList.get(i) : aaList.get(i - numSourceAminoAcids);
+            aminoAcids[i] = aa;
+            minAAMass = Math.min(minAAMass, aa.getNominalMass());
+        }
+        minMass = minAAMass;
+
+        // edges from the source first, then from positive nodes in increasing order of mass
+        // (nodes with negative masses have no outgoing edges)
+        int numMasses = maxPeptideMass - minMass;
+        boolean[] isNode = new boolean[numMasses];
+        isNode[-minMass] = true;
+        int[] edgeMass = new int[1024];
+        int[] prevMass = new int[1024];
+        int[] aminoAcid = new int[1024];
+        int numEdges = 0;
+        for (int curMass = 0; curMass < maxPeptideMass; curMass++) {
+            if (!isNode[curMass - minMass])
+                continue;
+            int from = curMass == 0 ? 0 : numSourceAminoAcids;
+            int to = curMass == 0 ? numSourceAminoAcids : aminoAcids.length;
+            for (int a = from; a < to; a++) {
+                int nextMass = curMass + aminoAcids[a].getNominalMass();
+                if (nextMass >= maxPeptideMass)
+                    continue;
+                if (numEdges == edgeMass.length) {
+                    edgeMass = Arrays.copyOf(edgeMass, numEdges * 2);
+                    prevMass = Arrays.copyOf(prevMass, numEdges * 2);
+                    aminoAcid = Arrays.copyOf(aminoAcid, numEdges * 2);
+                }
+                edgeMass[numEdges] = nextMass;
+                prevMass[numEdges] = curMass;
+                aminoAcid[numEdges] = a;
+                numEdges++;
+                isNode[nextMass - minMass] = true;
+            }
+        }
+
+        // group edges by the mass of their node, keeping the order of edges of each node
+        edgeStart = new int[numMasses + 1];
+        for (int e = 0; e < numEdges; e++)
+            edgeStart[edgeMass[e] - minMass + 1]++;
+        for (int m = 0; m < numMasses; m++)
+            edgeStart[m + 1] += edgeStart[m];
+        int[] next = Arrays.copyOf(edgeStart, numMasses);
+        edgePrevMass = new int[numEdges];
+        edgeAminoAcid = new int[numEdges];
+        for (int e = 0; e < numEdges; e++) {
+            int pos = next[edgeMass[e] - minMass]++;
+            edgePrevMass[pos] = prevMass[e];
+            edgeAminoAcid[pos] = aminoAcid[e];
+        }
+
+        nodes = new NominalMass[numMasses];
+        for (int m = 0; m < numMasses; m++)
+            nodes[m] = new NominalMass(m + minMass);
+    }
+
+    /**
+     * @return lowest node mass; 0 unless an amino acid has a negative nominal mass
+     */
+    public int getMinMass() {
+        return minMass;
+    }
+
+    /**
+     * @return largest peptide mass covered by this topology
+     */
+    public int getMaxPeptideMass() {
+        return maxPeptideMass;
+    }
+
+    /**
+     * @param nodeMass node mass, from getMinMass() to getMaxPeptideMass()-1
+     * @return index of the first incoming edge of the node
+     */
+    public int getEdgeStart(int nodeMass) {
+        return edgeStart[nodeMass - minMass];
+    }
+
+    /**
+     * @param nodeMass node mass, from getMinMass() to getMaxPeptideMass()-1
+     * @return index after the last incoming edge of the node
+     */
+    public int getEdgeEnd(int nodeMass) {
+        return edgeStart[nodeMass - minMass + 1];
+    }
+
+    /**
+     * @return mass of the node the edge comes from; 0 for the source
+     */
+    public int getPrevMass(int edgeIndex) {
+        return edgePrevMass[edgeIndex];
+    }
+
+    public AminoAcid getAminoAcid(int edgeIndex) {
+        return aminoAcids[edgeAminoAcid[edgeIndex]];
+    }
+
+    /**
+     * @return true if the edge comes from the source (its amino acid is from the source location)
+     */
+    public boolean isSourceEdge(int edgeIndex) {
+        return edgeAminoAcid[edgeIndex] < numSourceAminoAcids;
+    }
+
+    /**
+     * Get a node object; objects of masses covered by this topology are shared
+     *
+     * @param nodeMass nominal mass
+     * @return node with the given mass
+     */
+    public NominalMass getNode(int nodeMass) {
+        int m = nodeMass - minMass;
+        if (m >= 0 && m < nodes.length)
+            return nodes[m];
+        return new NominalMass(nodeMass);
+    }
+}
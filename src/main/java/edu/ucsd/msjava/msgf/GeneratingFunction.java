@@ -47,6 +47,10 @@ public class GeneratingFunction<T extends Matter> implements GF<T> {
     private HashMap<T, ScoreDist> fwdTable;
     private HashMap<T, Integer> minScoreTable = null;
 
+    // Score threshold at the sink when the graph is computed by FlexAminoAcidGraphGF
+    private boolean useScoreThreshold = false;
+    private int scoreThreshold;
+
     private boolean isGFComputed = false;
 
 //	private HashMap<T, Integer> srmScore = null;
@@ -251,11 +255,26 @@ public class GeneratingFunction<T extends Matter> implements GF<T> {
         return this.distribution.getMaxScore();
     }
 
+    /**
+     * @return true if the generating function is computed by FlexAminoAcidGraphGF rather than over fwdTable
+     */
+    private boolean useFlexAminoAcidGraphGF() {
+        return graph instanceof FlexAminoAcidGraph && !backtrack && !calcNumber && calcProb;
+    }
+
     public void setUpScoreThreshold(int score) {
-        minScoreTable = new HashMap<T, Integer>();
         if (enzyme != null)
             score -= graph.getAASet().getNeighboringAACleavageCredit();
 
+        if (useFlexAminoAcidGraphGF()) {
+            // the threshold table is computed together with the generating function
+            useScoreThreshold = true;
+            scoreThreshold = score;
+            return;
+        }
+
+        minScoreTable = new HashMap<T, Integer>();
+
         for (T sink : graph.getSinkList()) {
             minScoreTable.put(sink, score);
             for (DeNovoGraph.Edge<T> edge : graph.getEdges(sink)) {
@@ -287,36 +306,19 @@ public class GeneratingFunction<T extends Matter> implements GF<T> {
 
     public boolean computeGeneratingFunction() {
         ScoreDistFactory factory = new ScoreDistFactory(calcNumber, calcProb);
-        // initialization of the source
-        ScoreDist sourceDist = factory.getInstance(0, 1);
-        if (calcNumber)
-            sourceDist.setNumber(0, 1);
-        if (calcProb)
-            sourceDist.setProb(0, 1);
-        fwdTable = new GFTable(gfTableCapacity);
-        fwdTable.put(graph.getSource(), sourceDist);
-        if (backtrack) {
-            backtrackTable = new BacktrackTable<T>(graph);
-            BacktrackPointer sourcePointer = new BacktrackPointer(0, 1, 0);
-            sourcePointer.setBacktrack(0, 0);
-            backtrackTable.put(graph.getSource(), sourcePointer);
-        }
-
-        // dynamic programming, source node (i=0) is excluded
-        ArrayList<T> intermediateNodeList = graph.getIntermediateNodeList();
-
-        for (int i = 1; i < intermediateNodeList.size(); i++) {
-            T curNode = intermediateNodeList.get(i);
-            setCurNode(curNode, factory);
+        ArrayList<ScoreDist> sinkDistList;
+        if (useFlexAminoAcidGraphGF()) {
+            sinkDistList = new ArrayList<ScoreDist>(1);
+            sinkDistList.add(FlexAminoAcidGraphGF.getInstance().computeSinkDist(
+                    (FlexAminoAcidGraph) graph, useScoreThreshold, scoreThreshold, factory));
+        } else {
+            sinkDistList = computeSinkDists(factory);
         }
 
-        // process dest node
         int minScore = Integer.MAX_VALUE;
         int maxScore = Integer.MIN_VALUE;
 
-        for (T curNode : graph.getSinkList()) {
-            setCurNode(curNode, factory);
-            ScoreDist curDist = fwdTable.get(curNode);
+        for (ScoreDist curDist : sinkDistList) {
             if (curDist == null)    // curNode is not connected from the source
                 continue;
             if (curDist.getMinScore() < minScore)
@@ -335,11 +337,11 @@ public class GeneratingFunction<T extends Matter> implements GF<T> {
 
         // merge distributions of dest nodes
         ScoreDist mergedDist = factory.getInstance(minScore, maxScore);
-        for (T sinkNode : graph.getSinkList()) {
+        for (ScoreDist sinkDist : sinkDistList) {
             if (calcNumber)
-                mergedDist.addNumDist(fwdTable.get(sinkNode), 0);
+                mergedDist.addNumDist(sinkDist, 0);
             if (calcProb)
-                mergedDist.addProbDist(fwdTable.get(sinkNode), 0, 1);
+                mergedDist.addProbDist(sinkDist, 0, 1);
         }
 
         // process neighboring amino acid
@@ -365,6 +367,39 @@ public class GeneratingFunction<T extends Matter> implements GF<T> {
         return true;
     }
 
+    private ArrayList<ScoreDist> computeSinkDists(ScoreDistFactory factory) {
+        // initialization of the source
+        ScoreDist sourceDist = factory.getInstance(0, 1);
+        if (calcNumber)
+            sourceDist.setNumber(0, 1);
+        if (calcProb)
+            sourceDist.setProb(0, 1);
+        fwdTable = new GFTable(gfTableCapacity);
+        fwdTable.put(graph.getSource(), sourceDist);
+        if (backtrack) {
+            backtrackTable = new BacktrackTable<T>(graph);
+            BacktrackPointer sourcePointer = new BacktrackPointer(0, 1, 0);
+            sourcePointer.setBacktrack(0, 0);
+            backtrackTable.put(graph.getSource(), sourcePointer);
+        }
+
+        // dynamic programming, source node (i=0) is excluded
+        ArrayList<T> intermediateNodeList = graph.getIntermediateNodeList();
+
+        for (int i = 1; i < intermediateNodeList.size(); i++) {
+            T curNode = intermediateNodeList.get(i);
+            setCurNode(curNode, factory);
+        }
+
+        // process dest node
+        ArrayList<ScoreDist> sinkDistList = new ArrayList<ScoreDist>();
+        for (T curNode : graph.getSinkList()) {
+            setCurNode(curNode, factory);
+            sinkDistList.add(fwdTable.get(curNode));
+        }
+        return sinkDistList;
+    }
+
     // scoreThreshold : inclusive
     public HashMap<T, Float> getDestProfile(int scoreThreshold) {
         assert (calcNumber);
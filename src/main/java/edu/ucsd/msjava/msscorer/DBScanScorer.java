@@ -11,6 +11,11 @@ public class DBScanScorer extends FastScorer {
     private float probPeak;
     private boolean isNodeMassPRM;    // prefix: true, suffix: false
 
+    // edge scores of this spectrum's partition
+    private final float[] ionExistenceScore;    // by ionExistenceIndex
+    private final float[] errorScore;    // by error bin
+    private final int errorScalingFactor;
+
     public DBScanScorer(NewScoredSpectrum<NominalMass> scoredSpec, int peptideMass) {
         super(scoredSpec, peptideMass);
         this.scorer = scoredSpec.getScorer();
@@ -29,6 +34,10 @@ public class DBScanScorer extends FastScorer {
 
         partition = scoredSpec.getPartition();
         probPeak = scoredSpec.getProbPeak();
+
+        ionExistenceScore = scorer.getIonExistenceScoreTable(partition, probPeak);
+        errorScore = scorer.getErrorScoreTable(partition);
+        errorScalingFactor = scorer.getNumErrorBins();
     }
 
     // fromIndex: inclusive, toIndex: exclusive
@@ -68,9 +77,15 @@ public class DBScanScorer extends FastScorer {
         if (prevMass >= 0)
             ionExistenceIndex += 2;
 
-        float edgeScore = scorer.getIonExistenceScore(partition, ionExistenceIndex, probPeak);
+        float edgeScore = ionExistenceScore[ionExistenceIndex];
         if (ionExistenceIndex == 3) {
-            edgeScore += scorer.getErrorScore(partition, curMass - prevMass - theoMass);
+            // same as NewRankScorer.getErrorScore
+            int errIndex = Math.round((curMass - prevMass - theoMass) * errorScalingFactor);
+            if (errIndex > errorScalingFactor)
+                errIndex = errorScalingFactor;
+            else if (errIndex < -errorScalingFactor)
+                errIndex = -errorScalingFactor;
+            edgeScore += errorScore[errIndex + errorScalingFactor];
         }
         return Math.round(edgeScore);
     }
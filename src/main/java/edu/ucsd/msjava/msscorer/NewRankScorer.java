@@ -43,6 +43,7 @@ public class NewRankScorer implements NewAdditiveScorer {
     protected Hashtable<Partition, Float[]> ionErrDistTable = null;
     protected Hashtable<Partition, Float[]> noiseErrDistTable = null;
     protected Hashtable<Partition, Float[]> ionExistenceTable = null;
+    private HashMap<Partition, float[]> errorScoreTable = null;    // partition -> log(ionErr/noiseErr) by error bin; read-only once built
 
     // Ion Types
     private HashMap<Partition, IonType> mainIonTable;
@@ -59,6 +60,33 @@ public class NewRankScorer implements NewAdditiveScorer {
         readFromInputStream(is, false);
     }
 
+    /**
+     * Copy of a scorer sharing its (read-only) parameter tables
+     */
+    private NewRankScorer(NewRankScorer scorer) {
+        this.filter = scorer.filter;
+        this.dataType = scorer.dataType;
+        this.numSegments = scorer.numSegments;
+        this.chargeHist = scorer.chargeHist;
+        this.partitionSet = scorer.partitionSet;
+        this.precursorOFFMap = scorer.precursorOFFMap;
+        this.fragOFFTable = scorer.fragOFFTable;
+        this.insignificantFragOFFTable = scorer.insignificantFragOFFTable;
+        this.rankDistTable = scorer.rankDistTable;
+        this.mme = scorer.mme;
+        this.applyDeconvolution = scorer.applyDeconvolution;
+        this.deconvolutionErrorTolerance = scorer.deconvolutionErrorTolerance;
+        this.numPrecurOFF = scorer.numPrecurOFF;
+        this.maxRank = scorer.maxRank;
+        this.errorScalingFactor = scorer.errorScalingFactor;
+        this.ionErrDistTable = scorer.ionErrDistTable;
+        this.noiseErrDistTable = scorer.noiseErrDistTable;
+        this.ionExistenceTable = scorer.ionExistenceTable;
+        this.errorScoreTable = scorer.errorScoreTable;
+        this.mainIonTable = scorer.mainIonTable;
+        this.ionTypeTable = scorer.ionTypeTable;
+    }
+
     public <T extends Matter> NewScoredSpectrum<T> getScoredSpectrum(Spectrum spec) {
         return new NewScoredSpectrum<T>(spec, this);
     }
@@ -94,6 +122,16 @@ public class NewRankScorer implements NewAdditiveScorer {
         return this;
     }
 
+    /**
+     * Scorer with the same parameters that does not use errors (edge scores); this scorer is not changed.
+     * Use this instead of doNotUseError for the shared scorers of NewScorerFactory.
+     */
+    public NewRankScorer withoutError() {
+        if (errorScalingFactor == 0)
+            return this;
+        return new NewRankScorer(this).doNotUseError();
+    }
+
     public boolean supportEdgeScores() {
         return errorScalingFactor != 0;
     }
@@ -131,6 +169,48 @@ public class NewRankScorer implements NewAdditiveScorer {
         return (float) Math.log(ionErrHist[errIndex] / noiseErrHist[errIndex]);
     }
 
+    /**
+     * Get the error scores of a partition as a flat array, indexed by
+     * Math.round(error * errorScalingFactor) + errorScalingFactor (clamped to [0, 2 * errorScalingFactor]).
+     * Values are the same as getErrorScore. Precomputed when the parameters are read;
+     * the returned array must not be modified.
+     *
+     * @param part partition
+     * @return error scores by error bin
+     */
+    public float[] getErrorScoreTable(Partition part) {
+        float[] table = null;
+        if (errorScoreTable != null)
+            table = errorScoreTable.get(part);
+        if (table == null)
+            table = computeErrorScoreTable(part);
+        return table;
+    }
+
+    private float[] computeErrorScoreTable(Partition part) {
+        Float[] ionErrHist = this.ionErrDistTable.get(part);
+        Float[] noiseErrHist = this.noiseErrDistTable.get(part);
+        float[] table = new float[ionErrHist.length];
+        for (int i = 0; i < table.length; i++)
+            table[i] = (float) Math.log(ionErrHist[i] / noiseErrHist[i]);
+        return table;
+    }
+
+    /**
+     * Get the ion existence scores of a partition for a spectrum with the given peak probability,
+     * indexed by ionExistenceIndex (see getIonExistenceScore)
+     *
+     * @param part     partition
+     * @param probPeak probability of a peak in the spectrum
+     * @return ion existence scores for indices 0 to 3
+     */
+    public float[] getIonExistenceScoreTable(Partition part, float probPeak) {
+        float[] table = new float[4];
+        for (int index = 0; index < table.length; index++)
+            table[index] = getIonExistenceScore(part, index, probPeak);
+        return table;
+    }
+
     public float getIonExistenceScore(Partition part, int index, float probPeak) {
         Float[] ionExistenceProb = this.ionExistenceTable.get(part);
         float noiseExistenceProb;
@@ -407,6 +487,10 @@ public class NewRankScorer implements NewAdditiveScorer {
                     }
                     ionExistenceTable.put(partition, ionExTable);
                 }
+
+                errorScoreTable = new HashMap<Partition, float[]>();
+                for (Partition partition : partitionSet)
+                    errorScoreTable.put(partition, computeErrorScoreTable(partition));
             }
 
             int validation = in.readInt();
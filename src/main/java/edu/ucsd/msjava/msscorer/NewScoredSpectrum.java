@@ -6,7 +6,7 @@ import edu.ucsd.msjava.msutil.*;
 
 public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
 
-    private Spectrum spec;
+    private PeakArray peaks;    // peaks after filtering and deconvolution, with ranks
     private NewRankScorer scorer;
     private Tolerance mme;
 
@@ -20,6 +20,10 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
     private Partition partition;    // partition of the last segment
     private float probPeak;
 
+    // edge scores of the partition, null if the scorer does not support edge scores
+    private float[] ionExistenceScore;    // by ionExistenceIndex
+    private float[] errorScore;    // by error bin
+
     public NewScoredSpectrum(Spectrum spec, NewRankScorer scorer) {
         this.scorer = scorer;
 
@@ -44,11 +48,15 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
         // filter precursor peaks
         for (PrecursorOffsetFrequency off : scorer.getPrecursorOFF(spec.getCharge()))
             spec.filterPrecursorPeaks(mme, off.getReducedCharge(), off.getOffset());
-        spec.setRanksOfPeaks();
 
         // deconvolute spectra
-        if (scorer.applyDeconvolution())
+        if (scorer.applyDeconvolution()) {
+            // deconvoluted peaks keep the ranks of the original peaks
+            spec.setRanksOfPeaks();
             spec = spec.getDeconvolutedSpectrum(scorer.deconvolutionErrorTolerance());
+            peaks = new PeakArray(spec);
+        } else
+            peaks = spec.getPeakArray();
 
         // for edge scoring
         partition = scorer.getPartition(spec.getCharge(), spec.getPrecursorMass(), scorer.getNumSegments() - 1);
@@ -61,7 +69,10 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
         else
             probPeak = spec.size() / Math.max(approxNumBins, 1);
 
-        this.spec = spec;
+        if (scorer.supportEdgeScores()) {
+            ionExistenceScore = scorer.getIonExistenceScoreTable(partition, probPeak);
+            errorScore = scorer.getErrorScoreTable(partition);
+        }
     }
 
     public Peak getPrecursorPeak() {
@@ -90,9 +101,17 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
         if (prevNodeMass >= 0)
             ionExistenceIndex += 2;
 
-        float edgeScore = scorer.getIonExistenceScore(partition, ionExistenceIndex, probPeak);
-        if (ionExistenceIndex == 3)
-            edgeScore += scorer.getErrorScore(partition, curNodeMass - prevNodeMass - theoMass);
+        float edgeScore = ionExistenceScore[ionExistenceIndex];
+        if (ionExistenceIndex == 3) {
+            // same as NewRankScorer.getErrorScore
+            int errorScalingFactor = scorer.getNumErrorBins();
+            int errIndex = Math.round((curNodeMass - prevNodeMass - theoMass) * errorScalingFactor);
+            if (errIndex > errorScalingFactor)
+                errIndex = errorScalingFactor;
+            else if (errIndex < -errorScalingFactor)
+                errIndex = -errorScalingFactor;
+            edgeScore += errorScore[errIndex + errorScalingFactor];
+        }
 
 //		// debug
 //		if(edgeScore < -1000 || edgeScore > 1000)
@@ -136,9 +155,9 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
         if (node.getNominalMass() == 0)
             return 0;
         float theoMass = mainIon.getMz(node.getMass());
-        Peak p = spec.getPeakByMass(theoMass, scorer.getMME());
-        if (p != null)
-            return mainIon.getMass(p.getMz());
+        int peakIndex = getPeakIndexByMass(theoMass, scorer.getMME());
+        if (peakIndex >= 0)
+            return mainIon.getMass(peaks.getMz(peakIndex));
         else
             return -1;
     }
@@ -169,11 +188,11 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
                 if (segNum != segIndex)
                     continue;
 
-                Peak p = spec.getPeakByMass(theoMass, mme);
+                int peakIndex = getPeakIndexByMass(theoMass, mme);
                 Partition part = scorer.getPartition(charge, parentMass, segNum);
 
-                if (p != null)    // peak exists
-                    score += scorer.getNodeScore(part, ion, p.getRank());
+                if (peakIndex >= 0)    // peak exists
+                    score += scorer.getNodeScore(part, ion, peaks.getRank(peakIndex));
                 else    // missing peak
                     score += scorer.getMissingIonScore(part, ion);
             }
@@ -203,10 +222,10 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
                 if (segNum != segIndex)
                     continue;
 
-                Peak p = spec.getPeakByMass(theoMass, fragmentTolerance);
+                int peakIndex = getPeakIndexByMass(theoMass, fragmentTolerance);
 
-                if (p != null)    // peak exists
-                    explainedIonCurrent += p.getIntensity();
+                if (peakIndex >= 0)    // peak exists
+                    explainedIonCurrent += peaks.getIntensity(peakIndex);
             }
         }
         return explainedIonCurrent;
@@ -241,15 +260,15 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
                 if (segNum != segIndex)
                     continue;
 
-                Peak p = spec.getPeakByMass(theoMass, fragmentTolerance);
+                int peakIndex = getPeakIndexByMass(theoMass, fragmentTolerance);
 
-                if (p != null)    // peak exists
+                if (peakIndex >= 0)    // peak exists
                 {
-                    float err = (p.getMz() - theoMass) / theoMass * 1e6f;
+                    float err = (peaks.getMz(peakIndex) - theoMass) / theoMass * 1e6f;
 //					float err = p.getMz() - theoMass;
 //					if(err < 0)
 //						err = -err;
-                    float intensity = p.getIntensity();
+                    float intensity = peaks.getIntensity(peakIndex);
                     // Debug
 //					System.out.println(residueMass + " " + ion.getName() + " " + err + " " + intensity);
                     if (intensity > maxIntensity) {
@@ -297,14 +316,14 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
                 if (segNum != segIndex)
                     continue;
 
-                Peak p = spec.getPeakByMass(theoMass, mme);
+                int peakIndex = getPeakIndexByMass(theoMass, mme);
                 Partition part = scorer.getPartition(charge, parentMass, segNum);
 
-                if (p != null)    // peak exists
+                if (peakIndex >= 0)    // peak exists
                 {
-                    float score = scorer.getNodeScore(part, ion, p.getRank());
+                    float score = scorer.getNodeScore(part, ion, peaks.getRank(peakIndex));
                     if (ion.getCharge() == 1 && score > curBestScore) {
-                        nodeMass = ion.getMass(p.getMz());
+                        nodeMass = ion.getMass(peaks.getMz(peakIndex));
                         curBestScore = score;
                     }
                     nodeScore += score;
@@ -320,4 +339,16 @@ public class NewScoredSpectrum<T extends Matter> implements ScoredSpectrum<T> {
     public int[] getScanNumArr() {
         return scanNumArr;
     }
+
+    /**
+     * Returns the index of the most intense peak within tolerance of the target m/z, same as Spectrum.getPeakByMass
+     *
+     * @param mass      target m/z
+     * @param tolerance tolerance
+     * @return peak index, or -1 if there is no matching peak
+     */
+    private int getPeakIndexByMass(float mass, Tolerance tolerance) {
+        float toleranceDa = tolerance.getToleranceAsDa(mass, charge);
+        return peaks.getMostIntensePeakIndex(mass - toleranceDa, mass + toleranceDa);
+    }
 }
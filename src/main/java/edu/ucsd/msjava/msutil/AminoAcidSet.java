@@ -54,6 +54,7 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
     private HashMap<Location, HashMap<Integer, AminoAcid[]>> nominalMass2aa;    // nominalMass -> array of amino acids
 
     private AminoAcid[] allAminoAcidArr;
+    private float[] aaProbabilities;    // probability of each amino acid by index (set by setProbability), or null
     private int maxNumberOfVariableModificationsPerPeptide = 3;
 
     private boolean containsModification;    // true if this contains any variable or terminal (fixed or variable) modification
@@ -295,6 +296,38 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
         return index;
     }
 
+    /**
+     * Get the probability of an amino acid in this set: the one set by setProbability (e.g. from the residue frequencies
+     * of the searched database), or else the default probability of the amino acid
+     *
+     * @param aa amino acid
+     * @return probability of aa
+     */
+    public float getProbability(AminoAcid aa) {
+        if (aaProbabilities != null) {
+            Integer index = aa2index.get(aa);
+            if (index != null)
+                return aaProbabilities[index];
+        }
+        return aa.getProbability();
+    }
+
+    /**
+     * Set the probability of an amino acid of this set. The AminoAcid object is not changed, as it may be shared
+     * by other amino acid sets (e.g. of other searches in the same process).
+     *
+     * @param aa          amino acid of this set
+     * @param probability probability of aa
+     */
+    public void setProbability(AminoAcid aa, float probability) {
+        if (aaProbabilities == null) {
+            aaProbabilities = new float[allAminoAcidArr.length];
+            for (int i = 0; i < allAminoAcidArr.length; i++)
+                aaProbabilities[i] = allAminoAcidArr[i].getProbability();
+        }
+        aaProbabilities[getIndex(aa)] = probability;
+    }
+
     /**
      * Get the peptide corresponding to the string sequence.
      *
@@ -377,7 +410,7 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
                 System.err.println("Invalid Enzyme cleavage site: " + residue);
                 System.exit(-1);
             }
-            probCleavageSites += aa.getProbability();
+            probCleavageSites += getProbability(aa);
         }
 
         if (probCleavageSites == 0 || probCleavageSites == 1) {
@@ -770,10 +803,10 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
      *
      * @param modFilePath  Path to the mods.txt file
      * @param paramManager Parameter manager
-     * @return
+     * @return AminoAcidSet, or null if the file cannot be opened or has an invalid entry (the error is printed)
      */
     public static AminoAcidSet getAminoAcidSetFromModFile(String modFilePath, ParamManager paramManager) {
-        BufferedLineReader reader = null;
+        BufferedLineReader reader;
         File modFile = new File(modFilePath);
 
         try {
@@ -781,7 +814,7 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
         } catch (IOException e) {
             System.err.println("Error opening modification file " + modFile.getPath());
             e.printStackTrace();
-            System.exit(-1);
+            return null;
         }
 
         ArrayList<Modification.Instance> mods = new ArrayList<>();
@@ -796,7 +829,12 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
             lineNum++;
             boolean success = parseConfigEntry(sourceFileName, lineNum, dataLine, mods, customAA, modMetadata);
             if (!success) {
-                System.exit(-1);
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return null;
             }
         }
 
@@ -817,7 +855,7 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
      * @param customAAByLine    Hashtable where keys are the line number in the MSGF+ parameter file and values are the text from the given line
      * @param modsByLine        Hashtable where keys are the line number in the MSGF+ parameter file and values are the text from the given line
      * @param paramManager      Parameter manager
-     * @return AminoAcidSet
+     * @return AminoAcidSet, or null if an entry is invalid (the error is printed)
      */
     public static AminoAcidSet getAminoAcidSetFromList(
             String modConfigFilePath,
@@ -831,20 +869,16 @@ public class AminoAcidSet implements Iterable<AminoAcid> {
         ModificationMetadata modMetadata = new ModificationMetadata(maxNumMods);
 
         // First parse any custom amino acid definitions
-        customAAByLine.forEach((lineNum, dataLine) -> {
-            boolean success = parseConfigEntry(modConfigFilePath, lineNum, dataLine, mods, customAA, modMetadata);
-            if (!success) {
-                System.exit(-1);
-            }
-        });
+        for (Map.Entry<Integer, String> entry : customAAByLine.entrySet()) {
+            if (!parseConfigEntry(modConfigFilePath, entry.getKey(), entry.getValue(), mods, customAA, modMetadata))
+                return null;
+        }
 
         // Now parse the static and dynamic mods
-        modsByLine.forEach((lineNum, dataLine) -> {
-            boolean success = parseConfigEntry(modConfigFilePath, lineNum, dataLine, mods, customAA, modMetadata);
-            if (!success) {
-                System.exit(-1);
-            }
-        });
+        for (Map.Entry<Integer, String> entry : modsByLine.entrySet()) {
+            if (!parseConfigEntry(modConfigFilePath, entry.getKey(), entry.getValue(), mods, customAA, modMetadata))
+                return null;
+        }
 
         AminoAcidSet aaSet = getAminoAcidSetAndUpdateParams(mods, customAA, modMetadata, paramManager);
 
@@ -0,0 +1,163 @@
+package edu.ucsd.msjava.msutil;
+
+import java.util.List;
+
+/**
+ * Peaks of a spectrum stored as primitive arrays (m/z, intensity and rank), sorted by m/z.
+ * Used for scoring, where the peaks of a spectrum are looked up many times and Peak objects are not needed.
+ * Peak objects can still be obtained with get(index) for legacy callers.
+ */
+public class PeakArray {
+    private final int size;
+    private final float[] mz;
+    private final float[] intensity;
+    private final int[] rank;
+
+    /**
+     * Copy m/z, intensity and rank of the peaks.
+     *
+     * @param peaks peaks sorted by m/z, e.g. a Spectrum
+     */
+    public PeakArray(List<Peak> peaks) {
+        size = peaks.size();
+        mz = new float[size];
+        intensity = new float[size];
+        rank = new int[size];
+        for (int i = 0; i < size; i++) {
+            Peak p = peaks.get(i);
+            mz[i] = p.getMz();
+            intensity[i] = p.getIntensity();
+            rank[i] = p.getRank();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float getMz(int index) {
+        return mz[index];
+    }
+
+    public float getIntensity(int index) {
+        return intensity[index];
+    }
+
+    public int getRank(int index) {
+        return rank[index];
+    }
+
+    /**
+     * Returns a new Peak object for the peak at the index. The peak has charge 1.
+     *
+     * @param index peak index
+     * @return the peak
+     */
+    public Peak get(int index) {
+        Peak p = new Peak(mz[index], intensity[index], 1);
+        p.setRank(rank[index]);
+        return p;
+    }
+
+    /**
+     * Sets the ranks of the peaks by intensity, same as Spectrum.setRanksOfPeaks().
+     * Rank 1: highest intensity peak
+     */
+    public void setRanksByIntensity() {
+        setRanksByIntensity(mz, intensity, rank, size);
+    }
+
+    /**
+     * Returns the index of the most intense peak with m/z within [minMz, maxMz].
+     * If several peaks have the highest intensity, the one with the largest m/z is returned.
+     *
+     * @param minMz minimum m/z
+     * @param maxMz maximum m/z
+     * @return peak index, or -1 if there is no peak in the range
+     */
+    public int getMostIntensePeakIndex(float minMz, float maxMz) {
+        int best = -1;
+        for (int i = getLowerBound(mz, size, minMz); i < size && mz[i] <= maxMz; i++) {
+            if (best < 0 || intensity[i] > intensity[best] || (intensity[i] == intensity[best] && mz[i] > mz[best]))
+                best = i;
+        }
+        return best;
+    }
+
+    /**
+     * Binary search for the first m/z value that is not smaller than the key.
+     *
+     * @param mz   m/z values sorted in increasing order
+     * @param size number of m/z values
+     * @param key  m/z
+     * @return index of the first m/z value >= key, or size if there is none
+     */
+    public static int getLowerBound(float[] mz, int size, float key) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mz[mid] < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Sets rank[i] to the rank of peak i by intensity (rank 1: highest intensity).
+     * Ties are broken by larger m/z first, then by peak index, i.e. the order of a stable sort by decreasing intensity and m/z.
+     *
+     * @param mz        m/z values
+     * @param intensity intensities
+     * @param rank      array for the ranks
+     * @param size      number of peaks
+     */
+    public static void setRanksByIntensity(float[] mz, float[] intensity, int[] rank, int size) {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        mergeSort(order, new int[size], 0, size, mz, intensity);
+        for (int i = 0; i < size; i++)
+            rank[order[i]] = i + 1;
+    }
+
+    // stable sort of the peak indices in [from, to) by decreasing intensity, then by decreasing m/z
+    private static void mergeSort(int[] order, int[] buf, int from, int to, float[] mz, float[] intensity) {
+        if (to - from <= 16) {
+            for (int i = from + 1; i < to; i++) {
+                int index = order[i];
+                int j = i - 1;
+                while (j >= from && precedes(index, order[j], mz, intensity)) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = index;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, buf, from, mid, mz, intensity);
+        mergeSort(order, buf, mid, to, mz, intensity);
+        if (!precedes(order[mid], order[mid - 1], mz, intensity))
+            return;
+        System.arraycopy(order, from, buf, from, to - from);
+        int i = from;
+        int j = mid;
+        for (int k = from; k < to; k++) {
+            if (j >= to || (i < mid && !precedes(buf[j], buf[i], mz, intensity)))
+                order[k] = buf[i++];
+            else
+                order[k] = buf[j++];
+        }
+    }
+
+    private static boolean precedes(int index1, int index2, float[] mz, float[] intensity) {
+        if (intensity[index1] > intensity[index2])
+            return true;
+        if (intensity[index2] > intensity[index1])
+            return false;
+        return mz[index1] > mz[index2];
+    }
+}
@@ -7,12 +7,13 @@ import edu.ucsd.msjava.mzml.MzMLSpectraMap;
 import edu.ucsd.msjava.parser.*;
 import uk.ac.ebi.jmzidml.model.mzidml.CvParam;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Iterator;
 
-public class SpectraAccessor {
+public class SpectraAccessor implements Closeable {
     private final File specFile;
     private final SpecFileFormat specFormat;
 
@@ -20,6 +21,8 @@ public class SpectraAccessor {
 
     private MzMLAdapter mzmlAdapter = null;
 
+    private SpectrumStore specStore = null;
+
     SpectrumAccessorBySpecIndex specMap = null;
     Iterator<Spectrum> specItr = null;
 
@@ -116,6 +119,115 @@ public class SpectraAccessor {
         return specItr;
     }
 
+    /**
+     * Read the spectrum file once, keeping all spectra in an in-memory SpectrumStore that is then used
+     * by getSpecMap() and getSpecItr() instead of re-reading the file.
+     * If the spectra need more than maxBytes, the store is discarded and spectra are re-read from the file as needed.
+     * Must be called before getSpecMap() and getSpecItr().
+     *
+     * @param maxBytes maximum estimated memory of the store, in bytes; 0 or less to not use a store
+     * @return true if the spectra were loaded into the store
+     */
+    public boolean loadSpectrumStore(long maxBytes) {
+        if (maxBytes <= 0 || specMap != null || specItr != null)
+            return false;
+
+        Iterator<Spectrum> itr = getSpecItr();
+        if (itr == null)
+            return false;
+
+        SpectrumStore store = new SpectrumStore(maxBytes);
+        try {
+            while (itr.hasNext()) {
+                if (!store.add(itr.next())) {
+                    System.out.println("Note: spectra need more than " + (maxBytes >> 20) + " MB; spectra will be re-read from the file as needed");
+                    closeSpecItr();
+                    return false;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Note: " + e.getMessage() + "; spectra will be re-read from the file as needed");
+            closeSpecItr();
+            return false;
+        }
+        store.trimToSize();
+
+        specStore = store;
+        specMap = store;
+        specItr = store.iterator();
+        return true;
+    }
+
+    /**
+     * Use the binary spectrum cache of the spectrum file (see SpectrumCacheFile) if it is up to date;
+     * otherwise read the spectrum file as loadSpectrumStore does and write the cache for later searches.
+     * A store read from the cache keeps its peaks in the memory-mapped cache file, so maxBytes does not apply to it.
+     * Must be called before getSpecMap() and getSpecItr().
+     *
+     * @param cacheDir directory of the cache file, or null for the directory of the spectrum file
+     * @param maxBytes maximum estimated memory of the in-memory store if the spectrum file has to be read
+     * @return true if the spectra were read from the cache
+     */
+    public boolean loadSpectrumCache(File cacheDir, long maxBytes) {
+        if (specMap != null || specItr != null)
+            return false;
+
+        File cacheFile = SpectrumCacheFile.getCacheFile(specFile, cacheDir);
+        if (cacheFile.exists()) {
+            try {
+                SpectrumStore store = SpectrumCacheFile.read(cacheFile, specFile);
+                if (store != null) {
+                    System.out.println("Reading spectra from cache " + cacheFile.getPath());
+                    specStore = store;
+                    specMap = store;
+                    specItr = store.iterator();
+                    return true;
+                }
+                System.out.println("Note: spectrum cache " + cacheFile.getPath() + " is out of date; it will be rewritten");
+            } catch (IOException e) {
+                System.out.println("Note: cannot read spectrum cache " + cacheFile.getPath() + " (" + e.getMessage() + "); it will be rewritten");
+            }
+        }
+
+        boolean isStoreLoaded = loadSpectrumStore(maxBytes);
+        Iterator<Spectrum> itr = isStoreLoaded ? specStore.iterator() : getSpecItr();
+        if (itr == null)
+            return false;
+
+        try {
+            SpectrumCacheFile.write(itr, specFile, cacheFile);
+            System.out.println("Wrote spectrum cache " + cacheFile.getPath());
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Note: cannot write spectrum cache " + cacheFile.getPath() + " (" + e.getMessage() + ")");
+            return false;
+        } finally {
+            if (!isStoreLoaded)
+                closeSpecItr();
+        }
+
+        if (!isStoreLoaded) {
+            // the spectra did not fit in memory; read them from the memory-mapped cache instead of re-reading the spectrum file
+            try {
+                SpectrumStore store = SpectrumCacheFile.read(cacheFile, specFile);
+                if (store != null) {
+                    specStore = store;
+                    specMap = store;
+                    specItr = store.iterator();
+                }
+            } catch (IOException e) {
+                System.out.println("Note: cannot read spectrum cache " + cacheFile.getPath() + " (" + e.getMessage() + ")");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the in-memory spectrum store, or null if loadSpectrumStore was not called or did not succeed
+     */
+    public SpectrumStore getSpectrumStore() {
+        return specStore;
+    }
+
     public Spectrum getSpectrumBySpecIndex(int specIndex) {
         return getSpecMap().getSpectrumBySpecIndex(specIndex);
     }
@@ -144,6 +256,38 @@ public class SpectraAccessor {
         return getSpecMap().getTitle(specIndex);
     }
 
+    /**
+     * Close the spectrum file if it is kept open for random access (mzML, or the spectrum map of a text spectrum file)
+     * or for iteration; spectra must not be read through this accessor afterwards
+     */
+    @Override
+    public void close() {
+        if (mzmlAdapter != null)
+            mzmlAdapter.close();
+        if (specMap instanceof Closeable) {
+            try {
+                ((Closeable) specMap).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        closeSpecItr();
+    }
+
+    /**
+     * Close the spectrum iterator if it reads from the spectrum file, and discard it
+     */
+    private void closeSpecItr() {
+        if (specItr instanceof Closeable) {
+            try {
+                ((Closeable) specItr).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        specItr = null;
+    }
+
     public CvParam getSpectrumIDFormatCvParam() {
         CvParam cvParam = null;
         if (specFormat == SpecFileFormat.DTA_TXT
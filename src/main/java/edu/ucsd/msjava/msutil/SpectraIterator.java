@@ -1,15 +1,20 @@
 package edu.ucsd.msjava.msutil;
 
-import edu.ucsd.msjava.parser.BufferedLineReader;
 import edu.ucsd.msjava.parser.LineReader;
+import edu.ucsd.msjava.parser.MappedFileLineReader;
 import edu.ucsd.msjava.parser.SpectrumParser;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Iterator;
 
 
-public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
+/**
+ * Iterator over the spectra of one or more text spectrum files.
+ * Each file is closed once its last spectrum is read; close() closes the current file if iteration stops earlier.
+ */
+public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum>, Closeable {
     private String[] filenames = null;
     private String nextSpecFilePath;
     private int nextFileIndex;
@@ -22,7 +27,7 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
     public SpectraIterator(String fileName, SpectrumParser parser) throws IOException {
         nextSpecFilePath = fileName;
 
-        lineReader = new BufferedLineReader(fileName);
+        lineReader = new MappedFileLineReader(fileName);
 
         this.parser = parser;
         specIndex = 0;
@@ -53,6 +58,7 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
         Spectrum curSpecCopy = currentSpectrum;
         currentSpectrum = parser.readSpectrum(lineReader);
         if (currentSpectrum == null) { // Means file has ended
+            closeLineReader();
             if (filenames == null || !nextFile()) hasNext = false;
         } else {
             currentSpectrum.determineIsCentroided();
@@ -70,6 +76,15 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
         return this;
     }
 
+    /**
+     * Close the file being read; no spectra can be read afterwards
+     */
+    @Override
+    public void close() {
+        hasNext = false;
+        closeLineReader();
+    }
+
     /**
      * @return Filename of source file of next spectrum to be returned by next(). Returns null if last spectrum in last file was returned.
      */
@@ -78,12 +93,13 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
     }
 
     private boolean nextFile() {
+        closeLineReader();
         lineReader = null;
         nextSpecFilePath = null;
         while (nextFileIndex < filenames.length) {
             try {
                 nextSpecFilePath = filenames[nextFileIndex++];
-                lineReader = new BufferedLineReader(nextSpecFilePath);
+                lineReader = new MappedFileLineReader(nextSpecFilePath);
                 break;
             } catch (IOException e) {
                 // Suppress file not found error - when files in directory has disappeared while reading other files
@@ -100,7 +116,10 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
     private void parseFirstSpectrum() {
         currentSpectrum = parser.readSpectrum(lineReader);
 
-        if (currentSpectrum == null) throw new Error("Error while parsing the first  spectrum");
+        if (currentSpectrum == null) {
+            closeLineReader();
+            throw new Error("Error while parsing the first  spectrum");
+        }
         if (currentSpectrum != null) {
             hasNext = true;
             currentSpectrum.determineIsCentroided();
@@ -109,4 +128,14 @@ public class SpectraIterator implements Iterator<Spectrum>, Iterable<Spectrum> {
         } else
             hasNext = false;
     }
+
+    private void closeLineReader() {
+        if (lineReader instanceof Closeable) {
+            try {
+                ((Closeable) lineReader).close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
\ No newline at end of file
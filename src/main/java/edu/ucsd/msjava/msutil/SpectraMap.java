@@ -1,32 +1,75 @@
 package edu.ucsd.msjava.msutil;
 
 import edu.ucsd.msjava.parser.BufferedRandomAccessLineReader;
+import edu.ucsd.msjava.parser.ByteArrayLineReader;
 import edu.ucsd.msjava.parser.SpectrumParser;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.Map.Entry;
 
-public class SpectraMap implements SpectrumAccessorBySpecIndex {
+/**
+ * Random access to the spectra of a text spectrum file (e.g. mgf, ms2, pkl) by spectrum index.
+ * The file is read once to build an index of the file offset of each spectrum.
+ * Spectra are then read with positional reads of the bytes between the offset of the spectrum and that of the next spectrum,
+ * so concurrent calls of getSpectrumBySpecIndex do not block each other.
+ * The file stays open until close() is called.
+ */
+public class SpectraMap implements SpectrumAccessorBySpecIndex, Closeable {
     private Map<Integer, SpectrumMetaInfo> specIndexMap = null;    // key: specIndex, value: metaInfo
     private SpectrumParser parser;
-    protected BufferedRandomAccessLineReader lineReader;
+    protected BufferedRandomAccessLineReader lineReader;    // used for building the index
     private ArrayList<Integer> specIndexList = null;
 
+    private final FileChannel channel;
+    private final long fileSize;
+    private long[] sortedOffsets;    // file offsets of all spectra, in increasing order
+
     private Map<String, Integer> idToIndex = null;
 
+    /**
+     * @throws UncheckedIOException if the file cannot be opened
+     */
     public SpectraMap(String fileName, SpectrumParser parser) {
+        try {
+            channel = new RandomAccessFile(fileName, "r").getChannel();
+            fileSize = channel.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open spectrum file " + fileName, e);
+        }
         lineReader = new BufferedRandomAccessLineReader(fileName);
 
         this.parser = parser;
         // set map
-        specIndexMap = parser.getSpecMetaInfoMap(lineReader);
+        specIndexMap = new HashMap<Integer, SpectrumMetaInfo>(parser.getSpecMetaInfoMap(lineReader));
+
+        specIndexList = new ArrayList<Integer>(specIndexMap.keySet());
+        Collections.sort(specIndexList);
+
+        sortedOffsets = new long[specIndexMap.size()];
+        int i = 0;
+        for (SpectrumMetaInfo metaInfo : specIndexMap.values())
+            sortedOffsets[i++] = metaInfo.getPosition();
+        Arrays.sort(sortedOffsets);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            lineReader.close();
+        } finally {
+            channel.close();
+        }
     }
 
     @Override
     public Spectrum getSpectrumById(String specId) {
-        if (idToIndex == null)
-            makeIdToIndexMap();
-        Integer specIndex = idToIndex.get(specId);
+        Integer specIndex = getIdToIndexMap().get(specId);
         if (specIndex == null)
             return null;
         else
@@ -34,13 +77,17 @@ public class SpectraMap implements SpectrumAccessorBySpecIndex {
     }
 
     @Override
-    public synchronized Spectrum getSpectrumBySpecIndex(int specIndex) {
+    public Spectrum getSpectrumBySpecIndex(int specIndex) {
         Long filePos = getFileOffset(specIndex);
         if (filePos == null)
             return null;
         else {
-            lineReader.seek(filePos);
-            Spectrum spec = parser.readSpectrum(lineReader);
+            byte[] specBytes = readSpectrumBytes(filePos);
+            if (specBytes == null)
+                return null;
+            Spectrum spec = parser.readSpectrum(new ByteArrayLineReader(specBytes));
+            if (spec == null)
+                return null;
             spec.setSpecIndex(specIndex);
             spec.determineIsCentroided();
             spec.setID("index=" + String.valueOf(specIndex - 1));
@@ -83,21 +130,45 @@ public class SpectraMap implements SpectrumAccessorBySpecIndex {
             return metaInfo.getPosition();
     }
 
-    public synchronized ArrayList<Integer> getSpecIndexList() {
-        if (specIndexList == null) {
-            specIndexList = new ArrayList<Integer>(specIndexMap.keySet());
-            Collections.sort(specIndexList);
-        }
+    public ArrayList<Integer> getSpecIndexList() {
         return specIndexList;
     }
 
-    private void makeIdToIndexMap() {
-        idToIndex = new HashMap<String, Integer>();
-        Iterator<Entry<Integer, SpectrumMetaInfo>> itr = specIndexMap.entrySet().iterator();
-        while (itr.hasNext()) {
-            Entry<Integer, SpectrumMetaInfo> entry = itr.next();
-            idToIndex.put(entry.getValue().getID(), entry.getKey());
+    /**
+     * Read the bytes of a spectrum, from its offset to the offset of the next spectrum (or the end of the file)
+     *
+     * @param filePos file offset of the spectrum
+     * @return the bytes, or null if they could not be read
+     */
+    private byte[] readSpectrumBytes(long filePos) {
+        int offsetIndex = Arrays.binarySearch(sortedOffsets, filePos);
+        long endPos = offsetIndex + 1 < sortedOffsets.length ? sortedOffsets[offsetIndex + 1] : fileSize;
+
+        ByteBuffer buf = ByteBuffer.allocate((int) (endPos - filePos));
+        try {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, filePos + buf.position()) < 0)
+                    break;
+            }
+        } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                e.printStackTrace();
+            }
+            return null;
+        }
+        return buf.array();
+    }
+
+    private synchronized Map<String, Integer> getIdToIndexMap() {
+        if (idToIndex == null) {
+            idToIndex = new HashMap<String, Integer>();
+            Iterator<Entry<Integer, SpectrumMetaInfo>> itr = specIndexMap.entrySet().iterator();
+            while (itr.hasNext()) {
+                Entry<Integer, SpectrumMetaInfo> entry = itr.next();
+                idToIndex.put(entry.getValue().getID(), entry.getKey());
+            }
         }
+        return idToIndex;
     }
 
 }
@@ -3,10 +3,15 @@ package edu.ucsd.msjava.msutil;
 import edu.ucsd.msjava.msgf.Tolerance;
 
 import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 
@@ -519,17 +524,18 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
 //				isCentroided = false;
 //		}
         if (this.size() > 0) {
-            ArrayList<Float> diff = new ArrayList<Float>();
+            float[] diff = new float[this.size() - 1];
+            int numDiffs = 0;
             float prevMz = this.get(0).getMz();
             for (int i = 1; i < this.size(); i++) {
                 if (this.get(i).getIntensity() == 0)
                     continue;
                 float curMz = this.get(i).getMz();
-                diff.add((curMz - prevMz) / curMz * 1e6f);
+                diff[numDiffs++] = (curMz - prevMz) / curMz * 1e6f;
                 prevMz = curMz;
             }
-            Collections.sort(diff);
-            if (diff.size() > 0 && diff.get(diff.size() / 2) < 50) {
+            Arrays.sort(diff, 0, numDiffs);
+            if (numDiffs > 0 && diff[numDiffs / 2] < 50) {
                 // Check failed - the median PPM distance between peaks is less than 50 PPM
                 centroidedCheckPass = false;
             }
@@ -598,6 +604,173 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
         return newSpec;
     }
 
+    /**
+     * Gets a copy of all members of this spectrum except the peaks
+     * (unlike getCloneWithoutPeakList, this includes the ID, spectrum index, retention time, activation method, etc.)
+     *
+     * @return a new spectrum without peaks
+     */
+    public Spectrum getCopyWithoutPeakList() {
+        Spectrum newSpec = new Spectrum();
+        newSpec.precursor = this.precursor == null ? null : this.precursor.clone();
+        newSpec.id = this.id;
+        newSpec.startScanNum = this.startScanNum;
+        newSpec.endScanNum = this.endScanNum;
+        newSpec.specIndex = this.specIndex;
+        newSpec.title = this.title;
+        newSpec.annotation = this.annotation;
+        newSpec.seqList = this.seqList;
+        newSpec.rt = this.rt;
+        newSpec.rtIsSeconds = this.rtIsSeconds;
+        newSpec.activationMethod = this.activationMethod;
+        newSpec.msLevel = this.msLevel;
+        newSpec.scanPolarity = this.scanPolarity;
+        newSpec.isCentroided = this.isCentroided;
+        newSpec.externalSetIsCentroided = this.externalSetIsCentroided;
+        newSpec.isCentroidedWithDensePeaks = this.isCentroidedWithDensePeaks;
+        newSpec.isHighPrecision = this.isHighPrecision;
+        if (this.addlCvParams != null)
+            newSpec.addlCvParams = new ArrayList<CvParamInfo>(this.addlCvParams);
+        newSpec.isolationWindowTargetMz = this.isolationWindowTargetMz;
+        return newSpec;
+    }
+
+    /**
+     * Writes all members of this spectrum except the peaks, as read back by readWithoutPeakList (used by SpectrumCacheFile).
+     * The annotation is not written; it is rebuilt from the first SEQ entry, as done by MgfSpectrumParser.
+     *
+     * @param out output to write to
+     * @throws IllegalArgumentException if the spectrum has an annotation that does not come from a SEQ entry
+     */
+    void writeWithoutPeakList(DataOutput out) throws IOException {
+        if (annotation != null && (seqList == null || seqList.isEmpty()))
+            throw new IllegalArgumentException("spectrum " + specIndex + " has an annotation without a SEQ entry");
+
+        out.writeBoolean(precursor != null);
+        if (precursor != null) {
+            out.writeFloat(precursor.getMz());
+            out.writeFloat(precursor.getIntensity());
+            out.writeInt(precursor.getCharge());
+        }
+        writeString(out, id);
+        out.writeInt(startScanNum);
+        out.writeInt(endScanNum);
+        out.writeInt(specIndex);
+        writeString(out, title);
+        out.writeBoolean(annotation != null);
+        out.writeInt(seqList == null ? -1 : seqList.size());
+        if (seqList != null) {
+            for (String seq : seqList)
+                writeString(out, seq);
+        }
+        out.writeFloat(rt);
+        out.writeBoolean(rtIsSeconds);
+        writeString(out, activationMethod == null ? null : activationMethod.getName());
+        out.writeInt(msLevel);
+        out.writeInt(scanPolarity.ordinal());
+        out.writeBoolean(isCentroided);
+        out.writeBoolean(externalSetIsCentroided);
+        out.writeBoolean(isCentroidedWithDensePeaks);
+        out.writeBoolean(isHighPrecision);
+        out.writeInt(addlCvParams == null ? -1 : addlCvParams.size());
+        if (addlCvParams != null) {
+            for (CvParamInfo cvParam : addlCvParams) {
+                writeString(out, cvParam.getAccession());
+                writeString(out, cvParam.getName());
+                writeString(out, cvParam.getValue());
+                boolean hasUnit = Boolean.TRUE.equals(cvParam.getHasUnit());
+                out.writeBoolean(hasUnit);
+                if (hasUnit) {
+                    writeString(out, cvParam.getUnitAccession());
+                    writeString(out, cvParam.getUnitName());
+                }
+            }
+        }
+        out.writeBoolean(isolationWindowTargetMz != null);
+        if (isolationWindowTargetMz != null)
+            out.writeFloat(isolationWindowTargetMz);
+    }
+
+    /**
+     * Reads a spectrum without peaks written by writeWithoutPeakList
+     *
+     * @param in input to read from
+     * @return a new spectrum without peaks
+     */
+    static Spectrum readWithoutPeakList(DataInput in) throws IOException {
+        Spectrum spec = new Spectrum();
+        if (in.readBoolean()) {
+            float mz = in.readFloat();
+            float intensity = in.readFloat();
+            spec.precursor = new Peak(mz, intensity, in.readInt());
+        }
+        spec.id = readString(in);
+        spec.startScanNum = in.readInt();
+        spec.endScanNum = in.readInt();
+        spec.specIndex = in.readInt();
+        spec.title = readString(in);
+        boolean hasAnnotation = in.readBoolean();
+        int numSeqs = in.readInt();
+        if (numSeqs >= 0) {
+            spec.seqList = new ArrayList<String>(numSeqs);
+            for (int i = 0; i < numSeqs; i++)
+                spec.seqList.add(readString(in));
+        }
+        if (hasAnnotation)
+            spec.annotation = new Peptide(spec.seqList.get(0));
+        spec.rt = in.readFloat();
+        spec.rtIsSeconds = in.readBoolean();
+        String activationMethodName = readString(in);
+        if (activationMethodName != null) {
+            spec.activationMethod = ActivationMethod.get(activationMethodName);
+            if (spec.activationMethod == null)
+                spec.activationMethod = ActivationMethod.register(activationMethodName, activationMethodName);
+        }
+        spec.msLevel = in.readInt();
+        spec.scanPolarity = Polarity.values()[in.readInt()];
+        spec.isCentroided = in.readBoolean();
+        spec.externalSetIsCentroided = in.readBoolean();
+        spec.isCentroidedWithDensePeaks = in.readBoolean();
+        spec.isHighPrecision = in.readBoolean();
+        int numCvParams = in.readInt();
+        if (numCvParams >= 0) {
+            spec.addlCvParams = new ArrayList<CvParamInfo>(numCvParams);
+            for (int i = 0; i < numCvParams; i++) {
+                String accession = readString(in);
+                String name = readString(in);
+                String value = readString(in);
+                if (in.readBoolean())
+                    spec.addlCvParams.add(new CvParamInfo(accession, name, value, readString(in), readString(in)));
+                else
+                    spec.addlCvParams.add(new CvParamInfo(accession, name, value));
+            }
+        }
+        if (in.readBoolean())
+            spec.isolationWindowTargetMz = in.readFloat();
+        return spec;
+    }
+
+    // Strings are written as their UTF-8 length (-1 for null) followed by the UTF-8 bytes
+    // (DataOutput.writeUTF is limited to 64KB)
+    private static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
 
     public Spectrum getDeconvolutedSpectrum(float toleranceBetweenIsotopes) {
         int charge = this.getCharge();
@@ -740,11 +913,18 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
      * @return a Peak object if there is match or null otherwise.
      */
     public Peak getPeakByMass(float mass, Tolerance tolerance) {
-        ArrayList<Peak> matchList = getPeakListByMass(mass, tolerance);
-        if (matchList == null || matchList.size() == 0)
-            return null;
-        else
-            return Collections.max(matchList, new IntensityComparator());
+        float toleranceDa = tolerance.getToleranceAsDa(mass, getCharge());
+        float maxMass = mass + toleranceDa;
+        Peak bestPeak = null;
+        for (int i = getLowerBoundIndex(mass - toleranceDa); i < this.size(); i++) {
+            Peak p = this.get(i);
+            if (p.getMz() > maxMass)
+                break;
+            if (bestPeak == null || p.getIntensity() > bestPeak.getIntensity()
+                    || (p.getIntensity() == bestPeak.getIntensity() && p.getMz() > bestPeak.getMz()))
+                bestPeak = p;
+        }
+        return bestPeak;
     }
 
     /**
@@ -758,10 +938,7 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
      */
     public ArrayList<Peak> getPeakListByMassRange(float minMass, float maxMass) {
         ArrayList<Peak> matchList = new ArrayList<Peak>();
-        int start = Collections.binarySearch(this, new Peak(minMass, 0, 0));
-        if (start < 0)
-            start = -start - 1;
-        for (int i = start; i < this.size(); i++) {
+        for (int i = getLowerBoundIndex(minMass); i < this.size(); i++) {
             Peak p = this.get(i);
             if (p.getMz() > maxMass)
                 break;
@@ -771,16 +948,54 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
         return matchList;
     }
 
+    /**
+     * Binary search for the first peak whose m/z is not smaller than the given m/z.
+     * Assuming spectrum is sorted by mass.
+     *
+     * @param mz m/z
+     * @return index of the first peak with m/z >= mz, or size() if there is none
+     */
+    private int getLowerBoundIndex(float mz) {
+        int low = 0;
+        int high = this.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.get(mid).getMz() < mz)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
     /**
      * Goes through the peaks and set their rank by intensity.
      * Rank 1: highest intensity peak
      */
     public void setRanksOfPeaks() {
-        ArrayList<Peak> intensitySorted = new ArrayList<Peak>(this);
-        Collections.sort(intensitySorted, Collections.reverseOrder(new IntensityComparator()));
-        for (int i = 0; i < intensitySorted.size(); i++) {
-            intensitySorted.get(i).setRank(i + 1);
+        int size = this.size();
+        float[] mz = new float[size];
+        float[] intensity = new float[size];
+        for (int i = 0; i < size; i++) {
+            mz[i] = this.get(i).getMz();
+            intensity[i] = this.get(i).getIntensity();
         }
+        int[] rank = new int[size];
+        PeakArray.setRanksByIntensity(mz, intensity, rank, size);
+        for (int i = 0; i < size; i++)
+            this.get(i).setRank(rank[i]);
+    }
+
+    /**
+     * Returns the peaks of this spectrum as primitive arrays, with their ranks by intensity.
+     * Assuming spectrum is sorted by mass.
+     *
+     * @return the peak arrays
+     */
+    public PeakArray getPeakArray() {
+        PeakArray peakArray = new PeakArray(this);
+        peakArray.setRanksByIntensity();
+        return peakArray;
     }
 
     /**
@@ -798,8 +1013,10 @@ public class Spectrum extends ArrayList<Peak> implements Comparable<Spectrum> {
     public void filterPrecursorPeaks(Tolerance tolerance, int reducedCharge, float offset) {
         int c = this.getCharge() - reducedCharge;
         float mass = (this.getPrecursorMass() + c * (float) Composition.ChargeCarrierMass()) / c + offset;
-        for (Peak p : getPeakListByMass(mass, tolerance))
-            p.setIntensity(0);
+        float toleranceDa = tolerance.getToleranceAsDa(mass, getCharge());
+        float maxMass = mass + toleranceDa;
+        for (int i = getLowerBoundIndex(mass - toleranceDa); i < this.size() && this.get(i).getMz() <= maxMass; i++)
+            this.get(i).setIntensity(0);
     }
 
     public void filterPrecursorPeaksAroundPM() {
@@ -0,0 +1,252 @@
+package edu.ucsd.msjava.msutil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+/**
+ * Binary cache of the spectra of a spectrum file, so that later searches of the same file do not need to parse it again.
+ * <p>
+ * Layout (big-endian, as written by DataOutputStream):
+ * <ul>
+ * <li>header: magic number, format version, length, last modified time and checksum of the spectrum file,
+ * number of spectra, number of peaks, position of the spectrum records</li>
+ * <li>m/z of all peaks, as floats, spectrum after spectrum</li>
+ * <li>intensities of all peaks, in the same order</li>
+ * <li>one record per spectrum: number of peaks, then all other members of the spectrum (see Spectrum.writeWithoutPeakList)</li>
+ * </ul>
+ * The peak sections are memory-mapped when the cache is read, so the peaks are not copied to the heap.
+ * A cache is only used if the length, last modified time and checksum of the spectrum file match those in its header;
+ * the checksum covers the first and last megabyte of the spectrum file.
+ */
+public class SpectrumCacheFile {
+
+    public static final String EXTENSION = ".msgfspec";
+
+    private static final int MAGIC = 0x4D534743;    // "MSGC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 4 + 4 + 8;
+    private static final int CHECKSUM_BLOCK_SIZE = 1 << 20;
+
+    private SpectrumCacheFile() {
+    }
+
+    /**
+     * @param specFile spectrum file
+     * @param cacheDir directory of the cache file, or null for the directory of the spectrum file
+     * @return the cache file of the spectrum file
+     */
+    public static File getCacheFile(File specFile, File cacheDir) {
+        File dir = cacheDir != null ? cacheDir : specFile.getAbsoluteFile().getParentFile();
+        return new File(dir, specFile.getName() + EXTENSION);
+    }
+
+    /**
+     * Write the spectra to a cache file. The file is first written to a uniquely named temporary file in the directory
+     * of the cache file, which then atomically replaces the cache file, so an interrupted write never leaves a partial
+     * cache file behind and concurrent writers of the same cache file do not overwrite each other's temporary files.
+     *
+     * @param specItr   spectra to write, in increasing order of spectrum index
+     * @param specFile  spectrum file the spectra were read from
+     * @param cacheFile cache file to write
+     * @throws IllegalArgumentException if the spectra are not in increasing order of spectrum index,
+     *                                  or have more peaks than can be cached
+     */
+    public static void write(Iterator<Spectrum> specItr, File specFile, File cacheFile) throws IOException {
+        File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+        String prefix = cacheFile.getName() + ".";
+        File tmpFile = null;
+        File intensityFile = null;
+        File recordFile = null;
+
+        try {
+            tmpFile = File.createTempFile(prefix, ".tmp", cacheDir);
+            intensityFile = File.createTempFile(prefix, ".intensity.tmp", cacheDir);
+            recordFile = File.createTempFile(prefix, ".records.tmp", cacheDir);
+
+            int numSpecs = 0;
+            long numPeaks = 0;
+            int prevSpecIndex = Integer.MIN_VALUE;
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            DataOutputStream intensityOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(intensityFile)));
+            DataOutputStream recordOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile)));
+            try {
+                // header is filled in once all spectra are written
+                out.write(new byte[HEADER_SIZE]);
+                while (specItr.hasNext()) {
+                    Spectrum spec = specItr.next();
+                    if (spec.getSpecIndex() <= prevSpecIndex)
+                        throw new IllegalArgumentException("Spectra must be cached in increasing order of spectrum index: " + spec.getSpecIndex());
+                    prevSpecIndex = spec.getSpecIndex();
+
+                    for (Peak p : spec) {
+                        out.writeFloat(p.getMz());
+                        intensityOut.writeFloat(p.getIntensity());
+                    }
+                    recordOut.writeInt(spec.size());
+                    spec.writeWithoutPeakList(recordOut);
+                    numSpecs++;
+                    numPeaks += spec.size();
+                }
+            } finally {
+                out.close();
+                intensityOut.close();
+                recordOut.close();
+            }
+            if (numPeaks > Integer.MAX_VALUE - 8)
+                throw new IllegalArgumentException("too many peaks to cache: " + numPeaks);
+
+            RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+            try {
+                FileChannel fc = raf.getChannel();
+                appendFile(fc, intensityFile);
+                appendFile(fc, recordFile);
+
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(specFile.length());
+                raf.writeLong(specFile.lastModified());
+                raf.writeLong(getChecksum(specFile));
+                raf.writeInt(numSpecs);
+                raf.writeInt((int) numPeaks);
+                raf.writeLong(HEADER_SIZE + 8L * numPeaks);
+            } finally {
+                raf.close();
+            }
+
+            moveAtomically(tmpFile, cacheFile);
+        } finally {
+            if (intensityFile != null)
+                intensityFile.delete();
+            if (recordFile != null)
+                recordFile.delete();
+            if (tmpFile != null)
+                tmpFile.delete();
+        }
+    }
+
+    /**
+     * Read a cache file written by write()
+     *
+     * @param cacheFile cache file
+     * @param specFile  spectrum file the cache file was written for
+     * @return a read-only store of the cached spectra, or null if the cache file does not match the spectrum file
+     */
+    public static SpectrumStore read(File cacheFile, File specFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        try {
+            if (raf.length() < HEADER_SIZE || raf.readInt() != MAGIC || raf.readInt() != VERSION)
+                return null;
+            if (raf.readLong() != specFile.length() || raf.readLong() != specFile.lastModified())
+                return null;
+            if (raf.readLong() != getChecksum(specFile))
+                return null;
+
+            int numSpecs = raf.readInt();
+            int numPeaks = raf.readInt();
+            long recordPos = raf.readLong();
+            if (numSpecs < 0 || numPeaks < 0 || recordPos != HEADER_SIZE + 8L * numPeaks || recordPos > raf.length())
+                return null;
+
+            FileChannel fc = raf.getChannel();
+            FloatBuffer[] mzRegions = mapFloats(fc, HEADER_SIZE, numPeaks);
+            FloatBuffer[] intensityRegions = mapFloats(fc, HEADER_SIZE + 4L * numPeaks, numPeaks);
+
+            int[] specIndices = new int[numSpecs];
+            Spectrum[] metaInfo = new Spectrum[numSpecs];
+            int[] peakOffsets = new int[numSpecs + 1];
+            fc.position(recordPos);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fc)));
+            for (int i = 0; i < numSpecs; i++) {
+                peakOffsets[i + 1] = peakOffsets[i] + in.readInt();
+                metaInfo[i] = Spectrum.readWithoutPeakList(in);
+                specIndices[i] = metaInfo[i].getSpecIndex();
+            }
+            if (peakOffsets[numSpecs] != numPeaks)
+                return null;
+
+            return new SpectrumStore(specIndices, metaInfo, peakOffsets, mzRegions, intensityRegions);
+        } finally {
+            // the mapped buffers stay valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Checksum of the first and last megabyte of a file; with the length and last modified time of the file,
+     * this detects a spectrum file that was replaced, without reading all of it
+     */
+    static long getChecksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            byte[] buf = new byte[(int) Math.min(length, CHECKSUM_BLOCK_SIZE)];
+            raf.readFully(buf);
+            crc.update(buf);
+            if (length > CHECKSUM_BLOCK_SIZE) {
+                raf.seek(Math.max(CHECKSUM_BLOCK_SIZE, length - CHECKSUM_BLOCK_SIZE));
+                buf = new byte[(int) (length - raf.getFilePointer())];
+                raf.readFully(buf);
+                crc.update(buf);
+            }
+        } finally {
+            raf.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Replace the target file with the source file; the replacement is atomic unless the file system does not support it
+     */
+    private static void moveAtomically(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void appendFile(FileChannel dest, File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel src = in.getChannel();
+            long size = src.size();
+            long pos = 0;
+            while (pos < size)
+                pos += src.transferTo(pos, size - pos, dest.position(dest.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Map a section of floats of the cache file, in buffers of 2^SpectrumStore.REGION_SHIFT floats
+     */
+    private static FloatBuffer[] mapFloats(FileChannel fc, long startPos, int numFloats) throws IOException {
+        int numRegions = numFloats == 0 ? 1 : ((numFloats - 1) >>> SpectrumStore.REGION_SHIFT) + 1;
+        FloatBuffer[] regions = new FloatBuffer[numRegions];
+        for (int i = 0; i < numRegions; i++) {
+            long regionStart = (long) i << SpectrumStore.REGION_SHIFT;
+            long regionSize = Math.min(numFloats - regionStart, 1L << SpectrumStore.REGION_SHIFT);
+            regions[i] = fc.map(FileChannel.MapMode.READ_ONLY, startPos + 4 * regionStart, 4 * regionSize).asFloatBuffer();
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,268 @@
+package edu.ucsd.msjava.msutil;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * In-memory store of the spectra of a spectrum file, filled by reading the file once.
+ * The peaks of all spectra are packed into two float arrays (m/z and intensity), with the first peak of each spectrum
+ * given by an offset array; the other members of each spectrum are kept in a Spectrum object without peaks.
+ * Spectra must be added in increasing order of their spectrum index.
+ * Once filled, the store is read-only and can be accessed concurrently; every call returns a new Spectrum object,
+ * so callers may modify the spectra they get.
+ * Fragment peaks are assumed to have charge 1, as set by all spectrum parsers.
+ * A store read from a SpectrumCacheFile keeps its peaks in memory-mapped buffers of the cache file instead of float arrays.
+ */
+public class SpectrumStore implements SpectrumAccessorBySpecIndex, Iterable<Spectrum> {
+
+    // Estimated memory of the members of a spectrum other than its peaks (Spectrum and Peak objects, array entries),
+    // not counting the characters of the ID and title
+    private static final int BYTES_PER_SPECTRUM = 400;
+
+    private final long maxBytes;
+
+    private int numSpecs = 0;
+    private int[] specIndices = new int[1024];
+    private Spectrum[] metaInfo = new Spectrum[1024];
+    private int[] peakOffsets = new int[1025];    // peaks of spectrum i: [peakOffsets[i], peakOffsets[i+1])
+
+    private int numPeaks = 0;
+    private float[] mzs = new float[1 << 16];
+    private float[] intensities = new float[1 << 16];
+
+    // Peaks of a store read from a cache file, in regions of 2^REGION_SHIFT peaks (null for a store filled by add())
+    static final int REGION_SHIFT = 28;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+    private FloatBuffer[] mzRegions = null;
+    private FloatBuffer[] intensityRegions = null;
+
+    private long metaInfoBytes = 0;
+
+    private Map<String, Integer> idToPos = null;
+
+    /**
+     * @param maxBytes maximum estimated memory of the store, in bytes
+     */
+    public SpectrumStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a read-only store whose peaks are in memory-mapped buffers (used by SpectrumCacheFile)
+     *
+     * @param specIndices      spectrum indices, in increasing order
+     * @param metaInfo         spectra without peaks
+     * @param peakOffsets      peaks of spectrum i: [peakOffsets[i], peakOffsets[i+1])
+     * @param mzRegions        m/z of the peaks, 2^REGION_SHIFT peaks per buffer
+     * @param intensityRegions intensities of the peaks, 2^REGION_SHIFT peaks per buffer
+     */
+    SpectrumStore(int[] specIndices, Spectrum[] metaInfo, int[] peakOffsets, FloatBuffer[] mzRegions, FloatBuffer[] intensityRegions) {
+        this.maxBytes = 0;
+        this.numSpecs = specIndices.length;
+        this.specIndices = specIndices;
+        this.metaInfo = metaInfo;
+        this.peakOffsets = peakOffsets;
+        this.numPeaks = peakOffsets[numSpecs];
+        this.mzs = new float[0];
+        this.intensities = new float[0];
+        this.mzRegions = mzRegions;
+        this.intensityRegions = intensityRegions;
+        for (Spectrum spec : metaInfo)
+            metaInfoBytes += BYTES_PER_SPECTRUM + 2L * (length(spec.getID()) + length(spec.getTitle()));
+    }
+
+    /**
+     * Add a spectrum to the store
+     *
+     * @param spec spectrum to add; its spectrum index must be larger than those of the spectra added before
+     * @return false if the spectrum could not be added because the store would exceed its memory limit
+     * @throws IllegalArgumentException if the spectra are not in increasing order of spectrum index
+     */
+    public boolean add(Spectrum spec) {
+        if (mzRegions != null)
+            throw new IllegalStateException("Spectra cannot be added to a store read from a cache file");
+        if (numSpecs > 0 && spec.getSpecIndex() <= specIndices[numSpecs - 1])
+            throw new IllegalArgumentException("Spectra must be added in increasing order of spectrum index: " + spec.getSpecIndex());
+
+        long specBytes = BYTES_PER_SPECTRUM + 2L * (length(spec.getID()) + length(spec.getTitle()));
+        long newPeakBytes = 8L * Math.max(0, numPeaks + spec.size() - mzs.length);
+        if (getMemoryUsage() + specBytes + newPeakBytes > maxBytes)
+            return false;
+
+        if (numSpecs == specIndices.length) {
+            int newLength = specIndices.length + (specIndices.length >> 1);
+            specIndices = Arrays.copyOf(specIndices, newLength);
+            metaInfo = Arrays.copyOf(metaInfo, newLength);
+            peakOffsets = Arrays.copyOf(peakOffsets, newLength + 1);
+        }
+        if (numPeaks + spec.size() > mzs.length) {
+            long newLength = Math.max(numPeaks + spec.size(), mzs.length + (mzs.length >> 1));
+            // do not grow the arrays beyond the memory limit
+            newLength = Math.min(newLength, (maxBytes - (getMemoryUsage() - 8L * mzs.length) - specBytes) / 8);
+            if (newLength > Integer.MAX_VALUE - 8)
+                return false;
+            mzs = Arrays.copyOf(mzs, (int) newLength);
+            intensities = Arrays.copyOf(intensities, (int) newLength);
+        }
+
+        for (Peak p : spec) {
+            mzs[numPeaks] = p.getMz();
+            intensities[numPeaks] = p.getIntensity();
+            numPeaks++;
+        }
+        specIndices[numSpecs] = spec.getSpecIndex();
+        metaInfo[numSpecs] = spec.getCopyWithoutPeakList();
+        numSpecs++;
+        peakOffsets[numSpecs] = numPeaks;
+        metaInfoBytes += specBytes;
+        return true;
+    }
+
+    /**
+     * Release the unused capacity of the arrays; call after all spectra were added
+     */
+    public void trimToSize() {
+        if (mzRegions != null)
+            return;
+        specIndices = Arrays.copyOf(specIndices, numSpecs);
+        metaInfo = Arrays.copyOf(metaInfo, numSpecs);
+        peakOffsets = Arrays.copyOf(peakOffsets, numSpecs + 1);
+        mzs = Arrays.copyOf(mzs, numPeaks);
+        intensities = Arrays.copyOf(intensities, numPeaks);
+    }
+
+    /**
+     * @return estimated heap memory used by the store, in bytes (memory-mapped peaks are not counted)
+     */
+    public long getMemoryUsage() {
+        return 8L * mzs.length + 16L * specIndices.length + metaInfoBytes;
+    }
+
+    public int getNumSpectra() {
+        return numSpecs;
+    }
+
+    public int getNumPeaks() {
+        return numPeaks;
+    }
+
+    @Override
+    public Spectrum getSpectrumBySpecIndex(int specIndex) {
+        int pos = getPosition(specIndex);
+        if (pos < 0)
+            return null;
+        return getSpectrum(pos);
+    }
+
+    @Override
+    public Spectrum getSpectrumById(String specId) {
+        Integer pos = getIdToPosMap().get(specId);
+        if (pos == null)
+            return null;
+        return getSpectrum(pos);
+    }
+
+    @Override
+    public ArrayList<Integer> getSpecIndexList() {
+        ArrayList<Integer> specIndexList = new ArrayList<Integer>(numSpecs);
+        for (int i = 0; i < numSpecs; i++)
+            specIndexList.add(specIndices[i]);
+        return specIndexList;
+    }
+
+    @Override
+    public String getID(int specIndex) {
+        int pos = getPosition(specIndex);
+        if (pos < 0)
+            return null;
+        return metaInfo[pos].getID();
+    }
+
+    /**
+     * @return precursor m/z of the spectrum (as set by the spectrum parser), or null if there is no such spectrum
+     */
+    @Override
+    public Float getPrecursorMz(int specIndex) {
+        int pos = getPosition(specIndex);
+        if (pos < 0 || metaInfo[pos].getPrecursorPeak() == null)
+            return null;
+        return metaInfo[pos].getPrecursorPeak().getMz();
+    }
+
+    @Override
+    public String getTitle(int specIndex) {
+        int pos = getPosition(specIndex);
+        if (pos < 0)
+            return null;
+        return metaInfo[pos].getTitle();
+    }
+
+    /**
+     * @return iterator over all spectra in the store, in increasing order of spectrum index
+     */
+    @Override
+    public Iterator<Spectrum> iterator() {
+        return new Iterator<Spectrum>() {
+            private int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                return pos < numSpecs;
+            }
+
+            @Override
+            public Spectrum next() {
+                if (pos >= numSpecs)
+                    throw new NoSuchElementException();
+                return getSpectrum(pos++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("SpectrumStore iterator remove() not implemented");
+            }
+        };
+    }
+
+    private Spectrum getSpectrum(int pos) {
+        Spectrum spec = metaInfo[pos].getCopyWithoutPeakList();
+        int to = peakOffsets[pos + 1];
+        spec.ensureCapacity(to - peakOffsets[pos]);
+        if (mzRegions == null) {
+            for (int i = peakOffsets[pos]; i < to; i++)
+                spec.add(new Peak(mzs[i], intensities[i], 1));
+        } else {
+            // absolute gets do not change the buffers, so concurrent reads are safe
+            for (int i = peakOffsets[pos]; i < to; i++) {
+                int region = i >>> REGION_SHIFT;
+                int offset = i & REGION_MASK;
+                spec.add(new Peak(mzRegions[region].get(offset), intensityRegions[region].get(offset), 1));
+            }
+        }
+        return spec;
+    }
+
+    private int getPosition(int specIndex) {
+        int pos = Arrays.binarySearch(specIndices, 0, numSpecs, specIndex);
+        return pos >= 0 ? pos : -1;
+    }
+
+    private synchronized Map<String, Integer> getIdToPosMap() {
+        if (idToPos == null) {
+            Map<String, Integer> map = new HashMap<String, Integer>(numSpecs * 2);
+            for (int i = 0; i < numSpecs; i++)
+                map.put(metaInfo[i].getID(), i);
+            idToPos = map;
+        }
+        return idToPos;
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+}
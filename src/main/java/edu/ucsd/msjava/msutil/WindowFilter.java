@@ -53,32 +53,37 @@ public class WindowFilter implements Reshape {
         Spectrum retSpec = (Spectrum) s.clone();
         retSpec.clear();    // remove all peaks
 
-        for (int peakIndex = 0; peakIndex < s.size(); peakIndex++) {
+        int size = s.size();
+        float[] mass = new float[size];
+        float[] inten = new float[size];
+        for (int i = 0; i < size; i++) {
+            mass[i] = s.get(i).getMass();
+            inten[i] = s.get(i).getIntensity();
+        }
+
+        for (int peakIndex = 0; peakIndex < size; peakIndex++) {
             int rank = 1;
 
-            Peak thisPeak = s.get(peakIndex);
-            float thisMass = thisPeak.getMass();
-            float thisInten = thisPeak.getIntensity();
+            float thisMass = mass[peakIndex];
+            float thisInten = inten[peakIndex];
 
             // move left
             int prevIndex = peakIndex - 1;
             while (prevIndex >= 0) {
-                Peak prevPeak = s.get(prevIndex);
-                if (thisMass - prevPeak.getMass() > this.window) break;
-                if (prevPeak.getIntensity() > thisInten) rank++;
+                if (thisMass - mass[prevIndex] > this.window) break;
+                if (inten[prevIndex] > thisInten) rank++;
                 prevIndex--;
             }
 
             // move right
             int nextIndex = peakIndex + 1;
-            while (nextIndex < s.size()) {
-                Peak nextPeak = s.get(nextIndex);
-                if (nextPeak.getMass() - thisMass > this.window) break;
-                if (nextPeak.getIntensity() > thisInten) rank++;
+            while (nextIndex < size) {
+                if (mass[nextIndex] - thisMass > this.window) break;
+                if (inten[nextIndex] > thisInten) rank++;
                 nextIndex++;
             }
 
-            if (rank <= this.top) retSpec.add(thisPeak);
+            if (rank <= this.top) retSpec.add(s.get(peakIndex));
         }
         return retSpec;
     }
@@ -6,10 +6,11 @@ import edu.ucsd.msjava.msutil.Modification.Location;
 import edu.ucsd.msjava.ui.MSGFPlus;
 import uk.ac.ebi.jmzidml.model.mzidml.*;
 import uk.ac.ebi.jmzidml.model.mzidml.FileFormat;
-import uk.ac.ebi.jmzidml.model.mzidml.Modification;
-import uk.ac.ebi.jmzidml.model.mzidml.Peptide;
 import uk.ac.ebi.jmzidml.xml.io.MzIdentMLMarshaller;
 
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -20,7 +21,17 @@ import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the results of a search to an mzIdentML file.
+ * The small sections (cvList, AnalysisSoftwareList, AnalysisCollection, AnalysisProtocolCollection and the Inputs of
+ * DataCollection) are marshalled with jmzidml; SequenceCollection and the SpectrumIdentificationResults are streamed
+ * with an XMLStreamWriter, so that the results are never held in memory as jmzidml objects.
+ * As SequenceCollection precedes the results in the file, the results are read twice: once to collect the peptides,
+ * peptide evidences and proteins they refer to, and once to write them.
+ */
 public class MZIdentMLGen {
     private MzIdentMLMarshaller m;
 
@@ -45,11 +56,6 @@ public class MZIdentMLGen {
 //	private Provider provider;
 //	private AuditCollection auditCollection;
 
-    private SequenceCollection sequenceCollection;
-    private List<DBSequence> dbSequenceList;    // list of proteins
-    private List<Peptide> peptideList;            // list of peptides
-    private List<PeptideEvidence> peptideEvidenceList;    // list of peptide to protein matches
-
     private AnalysisCollection analysisCollection;
 
     private AnalysisProtocolCollection analysisProtocolCollection;
@@ -57,20 +63,25 @@ public class MZIdentMLGen {
 
     private DataCollection dataCollection;
     private SpectraData spectraData;
-    private SpectrumIdentificationList siList;    // set of PSMs
+    private SpectrumIdentificationList siList;    // set of PSMs, written separately
     private SearchDatabase searchDatabase;
 
-    private Map<Integer, DBSequence> dbSeqMap;
-    private Map<Integer, Boolean> isDecoyMap;
-    private Map<String, Peptide> pepMap;
-    private Map<String, PeptideEvidence> pepEvMap;
-    private Map<String, List<PeptideEvidenceRef>> evRefListMap;
+    // SequenceCollection, collected from the results before they are written
+    private Map<Integer, Boolean> dbSeqIsDecoyMap;    // start position of a protein -> whether it is a decoy, in order of first use
+    private Map<String, String> pepIDMap;    // peptide string (with modifications) -> Peptide id
+    private Map<String, PeptideEvidenceInfo> pepEvMap;    // PeptideEvidence id -> peptide evidence
+    private Map<String, List<String>> evRefListMap;    // annotation key -> PeptideEvidence ids
 
     private AnalysisProtocolCollectionGen apcGen;
 
+    // indentation of the streamed elements
+    private String indentUnit = "  ";
+
     public static final String encoding = "UTF-8";
     public static final Charset charset = StandardCharsets.UTF_8;
 
+    private static final Pattern NAMESPACE_PATTERN = Pattern.compile("xmlns=\"([^\"]*)\"");
+
     public MZIdentMLGen(SearchParams params, AminoAcidSet aaSet, CompactSuffixArray sa, SpectraAccessor specAcc, int ioIndex) {
         m = new MzIdentMLMarshaller();
         this.params = params;
@@ -81,11 +92,10 @@ public class MZIdentMLGen {
 
         this.decoyProteinPrefix = params.getDecoyProteinPrefix();
 
-        dbSeqMap = new HashMap<Integer, DBSequence>();
-        isDecoyMap = new HashMap<Integer, Boolean>();
-        pepMap = new LinkedHashMap<String, Peptide>();
-        pepEvMap = new LinkedHashMap<String, PeptideEvidence>();
-        evRefListMap = new HashMap<String, List<PeptideEvidenceRef>>();
+        dbSeqIsDecoyMap = new LinkedHashMap<Integer, Boolean>();
+        pepIDMap = new LinkedHashMap<String, String>();
+        pepEvMap = new LinkedHashMap<String, PeptideEvidenceInfo>();
+        evRefListMap = new HashMap<String, List<String>>();
 
         init();
     }
@@ -95,606 +105,547 @@ public class MZIdentMLGen {
         generateAnalysisSoftwareList();
         generateAnalysisProtocolCollection();
         // skip Provider, AuditCollection
-        initSequenceCollection();
         initDataCollection();
         generateAnalysisCollection();
     }
 
-    /**
-     * Output the results to the specified mzIdentML file.
-     *
-     * @param file
-     */
-    public void writeResults(File file) {
-        // Original function - produces e.g. <cvParam ...></cvParam> after updating jmzidentml from 1.1.3 to 1.2.0 or newer
-        /*
-        jmzidentml version notes: 
-        1.1.3 & 1.1.4 produce good output, use self-closing tags, use 4 space indents
-        1.1.5-1.1.9 produce bad output (missing elements), use self-closing tags, 2 space indents
-        1.2.0+ produce good output, use closing tags instead of self-closing tags, 2 space indents
-        */
-        //writeResultsOriginal(file);
-        //writeResultsCleanerTempString(file);
-        writeResultsCleanerTempFile(file);
+    public MZIdentMLGen setEValueThreshold(float eValueThreshold) {
+        this.eValueThreshold = eValueThreshold;
+        return this;
     }
 
     /**
-     * Original writeResults; after a dependency update, this is no longer writing self-closing tags, resulting in larger mzid files.
+     * Output the results to the specified mzIdentML file.
+     * The results are iterated twice and must be the same, in the same order, both times.
      *
+     * @param resultList results sorted in the order they are to be written
      * @param file
      */
-    public void writeResultsOriginal(File file) {
-        OutputStream os = null;
+    public void writeResults(Iterable<MSGFPlusMatch> resultList, File file) {
+        // collect the sequences the results refer to
+        for (MSGFPlusMatch mpMatch : resultList) {
+            List<DatabaseMatch> matchList = mpMatch.getMatchList();
+            int numItems = getNumSpectrumIdentificationItems(matchList);
+            for (int i = matchList.size() - 1; i >= matchList.size() - numItems; --i) {
+                DatabaseMatch match = matchList.get(i);
+                getPeptideEvidenceIDs(match, getPeptideID(match.getPepSeq()));
+            }
+        }
+
+        OutputStream os;
         try {
             os = new FileOutputStream(file);
         } catch (FileNotFoundException e) {
             System.out.println("Could not find file \"" + file.getAbsolutePath() + "\" to write to. Writing to console...");
             os = System.out;
         }
-        OutputStreamWriter out = new OutputStreamWriter(os, charset);
-        writeResults(out);
-    }
 
-    /**
-     * Single function to handle the writing of the results to a Writer
-     *
-     * @param out
-     */
-    private void writeResults(Writer out) {
         try {
-            //out.write(m.createXmlHeader());
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, charset), 1 << 16);
+            // jmzidml (1.2.0 or newer) writes empty elements as <cvParam ...></cvParam>;
+            // the marshalled sections are passed through a transform to make them self-closing
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            // Prevent automatic output of the xml declaration for each section
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+
+            String dataCollectionStr = marshal(dataCollection, transformer);
+            // the streamed results go at the end of SpectrumIdentificationList, after FragmentationTable
+            int siListEnd = dataCollectionStr.lastIndexOf("</SpectrumIdentificationList>");
+            if (siListEnd < 0)
+                throw new IllegalStateException("SpectrumIdentificationList is missing in DataCollection");
+            int splitPos = dataCollectionStr.lastIndexOf('\n', siListEnd);
+            if (splitPos < 0) {
+                splitPos = siListEnd;
+            } else {
+                // SpectrumIdentificationList is at depth 2 of DataCollection
+                String siListIndent = dataCollectionStr.substring(splitPos + 1, siListEnd);
+                if (siListIndent.trim().isEmpty() && siListIndent.length() % 2 == 0)
+                    indentUnit = siListIndent.substring(0, siListIndent.length() / 2);
+            }
+            Matcher nsMatcher = NAMESPACE_PATTERN.matcher(dataCollectionStr);
+            String namespace = nsMatcher.find() ? nsMatcher.group(1) : null;
+
+            // Manually output the xml declaration so that it is on its own line
             out.write("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n");
             out.write(m.createMzIdentMLStartTag("MS-GF+") + "\n");
-            m.marshal(cvList, out);
+            out.write(marshal(cvList, transformer));
             out.write("\n");
-            m.marshal(analysisSoftwareList, out);
+            out.write(marshal(analysisSoftwareList, transformer));
             out.write("\n");
 
-            m.marshal(sequenceCollection, out);
+            XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+            // the results are written as a sequence of elements, not as one document
+            if (outputFactory.isPropertySupported("com.ctc.wstx.outputValidateStructure"))
+                outputFactory.setProperty("com.ctc.wstx.outputValidateStructure", false);
+            XMLStreamWriter xml = outputFactory.createXMLStreamWriter(out);
+
+            writeSequenceCollection(xml, namespace);
+            xml.flush();
             out.write("\n");
 
-            m.marshal(analysisCollection, out);
+            out.write(marshal(analysisCollection, transformer));
             out.write("\n");
 
-            m.marshal(analysisProtocolCollection, out);
+            out.write(marshal(analysisProtocolCollection, transformer));
             out.write("\n");
 
-            m.marshal(dataCollection, out);
-            out.flush();
+            out.write(dataCollectionStr, 0, splitPos);
+            for (MSGFPlusMatch mpMatch : resultList)
+                writeSpectrumIdentificationResult(xml, mpMatch);
+            xml.flush();
+            out.write(dataCollectionStr, splitPos, dataCollectionStr.length() - splitPos);
             out.write("\n");
 
             out.write(m.createMzIdentMLClosingTag() + "\n");
             out.flush();
-            out.close();
+            if (os != System.out)
+                out.close();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (TransformerException e) {
+            e.printStackTrace();
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Output results to a StringWriter, then pipe that string through a transform to make empty elements into self-closing elements
-     *
-     * @param file
+     * Marshal a section with jmzidml, with empty elements written as self-closing elements
      */
-    public void writeResultsCleanerTempString(File file) {
-        OutputStream os = null;
-        try {
-            os = new FileOutputStream(file);
-        } catch (FileNotFoundException e) {
-            System.out.println("Could not find file \"" + file.getAbsolutePath() + "\" to write to. Writing to console...");
-            os = System.out;
-        }
-        try {
-            StringWriter out = new StringWriter();
-            writeResults(out);
-
-            OutputStreamWriter out2 = new OutputStreamWriter(os, charset);
-            StringReader sin = new StringReader(out.toString());
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer transformer = transFactory.newTransformer();
-            transformer.transform(new StreamSource(sin), new StreamResult(out2));
-            out2.flush();
-            out2.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (TransformerException e) {
-            e.printStackTrace();
-        }
+    private String marshal(MzIdentMLObject section, Transformer transformer) throws TransformerException {
+        StringWriter dirty = new StringWriter();
+        m.marshal(section, dirty);
+        StringWriter clean = new StringWriter();
+        transformer.transform(new StreamSource(new StringReader(dirty.toString())), new StreamResult(clean));
+        return clean.toString();
     }
 
     /**
-     * Output results to a temp file, then pipe that file through a transform to make empty elements into self-closing elements
-     *
-     * @param file
+     * Number of SpectrumIdentificationItems of a spectrum: its matches, best first, until one has a de novo score
+     * below the minimum
      */
-    public void writeResultsCleanerTempFile(File file) {
-        FileInputStream is = null;
-        FileOutputStream os = null;
-        String newFileName = file.getAbsolutePath();
-        int decimal = newFileName.lastIndexOf(".");
-        String ext = newFileName.substring(decimal + 1);
-        newFileName = newFileName.substring(0, decimal) + "_dirty." + ext;
-        File tempFile = new File(newFileName);
-
-        writeResultsOriginal(tempFile);
-        try {
-            is = new FileInputStream(tempFile);
-            os = new FileOutputStream(file);
-
-            InputStreamReader tempIn = new InputStreamReader(is, charset);
-            OutputStreamWriter out2 = new OutputStreamWriter(os, charset);
-            // Manually output the xml declaration so that it is on its own line
-            out2.write("<?xml version=\"1.0\" encoding=\"" + encoding + "\"?>\n");
-            out2.flush();
-            TransformerFactory transFactory = TransformerFactory.newInstance();
-            Transformer transformer = transFactory.newTransformer();
-            // Some options to do reformatting of the xml output; they don't seem to do anything to the mzid data.
-            //transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            //transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            // Prevent automatic output of the xml declaration (also removes it if it is already present in the input)
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-            // Another way to make the xml declaration be on a separate line, but it also adds the string 'standalone="yes"' to the xml declaration
-            //transformer.setOutputProperty(OutputKeys.STANDALONE, "yes");
-            transformer.transform(new StreamSource(tempIn), new StreamResult(out2));
-            out2.flush();
-            out2.close();
-            tempFile.deleteOnExit();
-        } catch (IOException e) {
-            System.out.println("Could not reprocess temp file \"" + tempFile + "\". Will not delete file (if file exists).");
-            e.printStackTrace();
-        } catch (TransformerException e) {
-            e.printStackTrace();
+    private int getNumSpectrumIdentificationItems(List<DatabaseMatch> matchList) {
+        if (matchList == null)
+            return 0;
+        int numItems = 0;
+        for (int i = matchList.size() - 1; i >= 0; --i) {
+            if (matchList.get(i).getDeNovoScore() < params.getMinDeNovoScore())
+                break;
+            ++numItems;
         }
+        return numItems;
     }
 
-    public MZIdentMLGen setEValueThreshold(float eValueThreshold) {
-        this.eValueThreshold = eValueThreshold;
-        return this;
-    }
+    private void writeSpectrumIdentificationResult(XMLStreamWriter xml, MSGFPlusMatch mpMatch) throws XMLStreamException {
+        int specIndex = mpMatch.getSpecIndex();
+        List<DatabaseMatch> matchList = mpMatch.getMatchList();
+        int numItems = getNumSpectrumIdentificationItems(matchList);
+        if (numItems == 0)
+            return;
+
+        edu.ucsd.msjava.msutil.Spectrum spec = specAcc.getSpecMap().getSpectrumBySpecIndex(specIndex);
+        String specID = spec.getID();
+        float precursorMz = spec.getPrecursorPeak().getMz();
+
+        startElement(xml, 3, "SpectrumIdentificationResult");
+        xml.writeAttribute("id", Constants.sirID + specIndex);
+        xml.writeAttribute("spectrumID", specID);
+        xml.writeAttribute("spectraData_ref", spectraData.getId());
+
+        int rank = 0;
+        int resultCount = 0;
+        double prevSpecEValue = Double.NaN;
+        for (int i = matchList.size() - 1; i >= matchList.size() - numItems; --i) {
+            ++resultCount;
+            DatabaseMatch match = matchList.get(i);
 
-    public synchronized void addSpectrumIdentificationResults(List<MSGFPlusMatch> resultList) {
-        for (MSGFPlusMatch mpMatch : resultList) {
-            int specIndex = mpMatch.getSpecIndex();
-            List<DatabaseMatch> matchList = mpMatch.getMatchList();
-            if (matchList == null || matchList.size() == 0)
-                continue;
-
-            edu.ucsd.msjava.msutil.Spectrum spec = specAcc.getSpecMap().getSpectrumBySpecIndex(specIndex);
-            String specID = spec.getID();
-            float precursorMz = spec.getPrecursorPeak().getMz();
-
-            SpectrumIdentificationResult sir = new SpectrumIdentificationResult();
-            sir.setId(Constants.sirID + specIndex);
-            sir.setSpectraData(spectraData);
-            sir.setSpectrumID(specID);
-
-            // add title
-            String title = spec.getTitle();
-            if (title != null) {
-                CvParam cvParam = Constants.makeCvParam("MS:1000796", "spectrum title");
-                cvParam.setValue(title);
-                sir.getCvParam().add(cvParam);
-            }
+//				int pepIndex = match.getIndex();	// Position of preAA
+            int length = match.getLength();        // Peptide length + 2
+            int charge = match.getCharge();
 
-            // add scan number
-            int scanNum = spec.getScanNum();
-            if (scanNum >= 0) {
-                CvParam cvParam = Constants.makeCvParam("MS:1001115", "scan number(s)");
-                cvParam.setValue(String.valueOf(scanNum));
-                sir.getCvParam().add(cvParam);
+            float peptideMass = match.getPeptideMass();
+//				float theoMass = peptideMass + (float)Composition.H2O;
+//				float theoMz = theoMass/charge;
+            float theoMz = (peptideMass + (float) Composition.H2O) / charge + (float) Composition.ChargeCarrierMass();
+
+            int score = match.getScore();
+            double specEValue = match.getSpecEValue();
+            int numPeptides = sa.getNumDistinctPeptides(params.getEnzyme() == null ? length - 2 : length - 1);
+            double eValue = specEValue * numPeptides;
+
+            String specEValueStr;
+            if (specEValue < Float.MIN_NORMAL)
+                specEValueStr = String.valueOf(specEValue);
+            else
+                specEValueStr = String.valueOf((float) specEValue);
+
+            // Specification: rank does not increment for equally-scored results
+            if (prevSpecEValue != specEValue) {
+                ++rank;
             }
-
-            // add retention time
-            float scanStartTime = spec.getRt();
-            if (scanStartTime >= 0) {
-                CvParam cvParam = Constants.makeCvParam("MS:1000016", "scan start time");
-                cvParam.setValue(String.valueOf(scanStartTime));
-                if (spec.getRtIsSeconds()) {
-                    cvParam.setUnitCv(Constants.unitCV);
-                    cvParam.setUnitAccession("UO:0000010");
-                    cvParam.setUnitName("second");
-                } else {
-                    cvParam.setUnitCv(Constants.unitCV);
-                    cvParam.setUnitAccession("UO:0000031");
-                    cvParam.setUnitName("minute");
-                }
-                sir.getCvParam().add(cvParam);
+            prevSpecEValue = specEValue;
+
+            String eValueStr;
+            if (specEValue < Float.MIN_NORMAL)
+                eValueStr = String.valueOf(eValue);
+            else
+                eValueStr = String.valueOf((float) eValue);
+
+            String pepID = getPeptideID(match.getPepSeq());
+
+            startElement(xml, 4, "SpectrumIdentificationItem");
+            xml.writeAttribute("id", Constants.siiID + specIndex + "_" + resultCount);
+            xml.writeAttribute("chargeState", String.valueOf(charge));
+            xml.writeAttribute("experimentalMassToCharge", String.valueOf((double) precursorMz));
+            xml.writeAttribute("calculatedMassToCharge", String.valueOf((double) theoMz));
+            xml.writeAttribute("peptide_ref", pepID);
+            xml.writeAttribute("rank", String.valueOf(rank));
+            xml.writeAttribute("passThreshold", String.valueOf(eValue <= eValueThreshold));
+
+            for (String pepEvID : getPeptideEvidenceIDs(match, pepID)) {
+                emptyElement(xml, 5, "PeptideEvidenceRef");
+                xml.writeAttribute("peptideEvidence_ref", pepEvID);
             }
 
-            if (spec.getAddlCvParams() != null) {
-                for (CvParamInfo cvParamInfo : spec.getAddlCvParams()) {
-                    CvParam cvParam = Constants.makeCvParam(cvParamInfo.getAccession(), cvParamInfo.getName());
-                    cvParam.setValue(cvParamInfo.getValue());
-                    if (cvParamInfo.getHasUnit()) {
-                        cvParam.setUnitCv(Constants.unitCV);
-                        cvParam.setUnitAccession(cvParamInfo.getUnitAccession());
-                        cvParam.setUnitName(cvParamInfo.getUnitName());
-                    }
-                    sir.getCvParam().add(cvParam);
-                }
+            writeCvParam(xml, 5, "MS:1002049", "MS-GF:RawScore", String.valueOf(score));
+            writeCvParam(xml, 5, "MS:1002050", "MS-GF:DeNovoScore", String.valueOf(match.getDeNovoScore()));
+            writeCvParam(xml, 5, "MS:1002052", "MS-GF:SpecEValue", specEValueStr);
+            writeCvParam(xml, 5, "MS:1002053", "MS-GF:EValue", eValueStr);
+            if (match.getPSMQValue() != null)
+                writeCvParam(xml, 5, "MS:1002054", "MS-GF:QValue", match.getPSMQValue().toString());
+            if (match.getPepQValue() != null)
+                writeCvParam(xml, 5, "MS:1002055", "MS-GF:PepQValue", match.getPepQValue().toString());
+
+            float expMass = precursorMz * charge;
+            float theoMass = theoMz * charge;
+//				int isotopeError = NominalMass.toNominalMass(expMass) - NominalMass.toNominalMass(theoMass);
+            int isotopeError = Math.round((expMass - theoMass) / (float) Composition.ISOTOPE);
+            writeUserParam(xml, 5, "IsotopeError", String.valueOf(isotopeError));
+
+            ActivationMethod[] activationMethodArr = match.getActivationMethodArr();
+            if (activationMethodArr != null) {
+                StringBuilder actMethodStrBuf = new StringBuilder();
+                actMethodStrBuf.append(activationMethodArr[0]);
+                for (int j = 1; j < activationMethodArr.length; j++)
+                    actMethodStrBuf.append("/").append(activationMethodArr[j]);
+                writeUserParam(xml, 5, "AssumedDissociationMethod", actMethodStrBuf.toString());
             }
 
-            int rank = 0;
-            int resultCount = 0;
-            double prevSpecEValue = Double.NaN;
-            for (int i = matchList.size() - 1; i >= 0; --i) {
-                ++resultCount;
-                DatabaseMatch match = matchList.get(i);
-
-                if (match.getDeNovoScore() < params.getMinDeNovoScore())
-                    break;
-
-//				int pepIndex = match.getIndex();	// Position of preAA
-                int length = match.getLength();        // Peptide length + 2
-                int charge = match.getCharge();
-
-                float peptideMass = match.getPeptideMass();
-//				float theoMass = peptideMass + (float)Composition.H2O;
-//				float theoMz = theoMass/charge;
-                float theoMz = (peptideMass + (float) Composition.H2O) / charge + (float) Composition.ChargeCarrierMass();
-
-                int score = match.getScore();
-                double specEValue = match.getSpecEValue();
-                int numPeptides = sa.getNumDistinctPeptides(params.getEnzyme() == null ? length - 2 : length - 1);
-                double eValue = specEValue * numPeptides;
+            if (match.getAdditionalFeatureList() != null) {
+                for (Pair<String, String> feature : match.getAdditionalFeatureList())
+                    writeUserParam(xml, 5, feature.getFirst(), feature.getSecond());
+            }
 
-                String specEValueStr;
-                if (specEValue < Float.MIN_NORMAL)
-                    specEValueStr = String.valueOf(specEValue);
-                else
-                    specEValueStr = String.valueOf((float) specEValue);
+            endElement(xml, 4);
+        }
 
-                // Specification: rank does not increment for equally-scored results
-                if (prevSpecEValue != specEValue) {
-                    ++rank;
-                }
-                prevSpecEValue = specEValue;
+        // add title
+        String title = spec.getTitle();
+        if (title != null)
+            writeCvParam(xml, 4, "MS:1000796", "spectrum title", title);
+
+        // add scan number
+        int scanNum = spec.getScanNum();
+        if (scanNum >= 0)
+            writeCvParam(xml, 4, "MS:1001115", "scan number(s)", String.valueOf(scanNum));
+
+        // add retention time
+        float scanStartTime = spec.getRt();
+        if (scanStartTime >= 0) {
+            if (spec.getRtIsSeconds())
+                writeCvParam(xml, 4, "MS:1000016", "scan start time", String.valueOf(scanStartTime), "UO:0000010", "second");
+            else
+                writeCvParam(xml, 4, "MS:1000016", "scan start time", String.valueOf(scanStartTime), "UO:0000031", "minute");
+        }
 
-                String eValueStr;
-                if (specEValue < Float.MIN_NORMAL)
-                    eValueStr = String.valueOf(eValue);
+        if (spec.getAddlCvParams() != null) {
+            for (CvParamInfo cvParamInfo : spec.getAddlCvParams()) {
+                if (cvParamInfo.getHasUnit())
+                    writeCvParam(xml, 4, cvParamInfo.getAccession(), cvParamInfo.getName(), cvParamInfo.getValue(),
+                            cvParamInfo.getUnitAccession(), cvParamInfo.getUnitName());
                 else
-                    eValueStr = String.valueOf((float) eValue);
-
-                SpectrumIdentificationItem sii = new SpectrumIdentificationItem();
-
-                sii.setChargeState(charge);
-                sii.setExperimentalMassToCharge(precursorMz);
-                sii.setCalculatedMassToCharge((double) theoMz);
+                    writeCvParam(xml, 4, cvParamInfo.getAccession(), cvParamInfo.getName(), cvParamInfo.getValue());
+            }
+        }
 
-                Peptide pep = getPeptide(match);
-                sii.setPeptide(pep);
+        endElement(xml, 3);
+    }
 
-                sii.setRank(rank);
-                sii.setPassThreshold(eValue <= eValueThreshold);
-                sii.setId(Constants.siiID + specIndex + "_" + resultCount);
+    private void writeSequenceCollection(XMLStreamWriter xml, String namespace) throws XMLStreamException {
+        xml.writeStartElement("SequenceCollection");
+        if (namespace != null)
+            xml.writeDefaultNamespace(namespace);
 
-                sii.getPeptideEvidenceRef().addAll(getPeptideEvidenceList(match, pep));
+        CompactFastaSequence seq = sa.getSequence();
+        for (Map.Entry<Integer, Boolean> entry : dbSeqIsDecoyMap.entrySet()) {
+            int protStartIndex = entry.getKey();
+            boolean isDecoy = entry.getValue();
+            String annotation = seq.getAnnotation(protStartIndex);
+            String proteinSeq = seq.getMatchingEntry(protStartIndex);
+            String accession = annotation.split("\\s+")[0];
 
-                List<CvParam> cvList = sii.getCvParam();
-                List<UserParam> userList = sii.getUserParam();
+            if (isDecoy)
+                emptyElement(xml, 1, "DBSequence");
+            else
+                startElement(xml, 1, "DBSequence");
+            xml.writeAttribute("id", getDBSequenceID(protStartIndex));
+            xml.writeAttribute("accession", accession);
+            xml.writeAttribute("searchDatabase_ref", searchDatabase.getId());
+            xml.writeAttribute("length", String.valueOf(proteinSeq.length()));
+            if (!isDecoy) {
+                writeCvParam(xml, 2, "MS:1001088", "protein description", annotation);
+                endElement(xml, 1);
+            }
+        }
 
-//				ActivationMethod[] activationMethodArr = match.getActivationMethodArr();
-//				if(activationMethodArr != null)
-//				{
-//					for(ActivationMethod actMethod : activationMethodArr)
-//					{
-//						CvParam fragMethodCV = actMethod.getCvParam();
-//						cvList.add(fragMethodCV);
-//					}
-//				}
+        StringBuilder unmodPepStr = new StringBuilder();
+        List<Pair<Integer, edu.ucsd.msjava.msutil.Modification>> modList = new ArrayList<Pair<Integer, edu.ucsd.msjava.msutil.Modification>>();
+        for (Map.Entry<String, String> entry : pepIDMap.entrySet()) {
+            unmodPepStr.setLength(0);
+            modList.clear();
+            parsePeptide(aaSet, apcGen, entry.getKey(), unmodPepStr, modList);
+
+            startElement(xml, 1, "Peptide");
+            xml.writeAttribute("id", entry.getValue());
+            startElement(xml, 2, "PeptideSequence");
+            xml.writeCharacters(unmodPepStr.toString());
+            xml.writeEndElement();
+            for (Pair<Integer, edu.ucsd.msjava.msutil.Modification> locMod : modList) {
+                edu.ucsd.msjava.msutil.Modification mod = locMod.getSecond();
+                startElement(xml, 2, "Modification");
+                xml.writeAttribute("location", String.valueOf(locMod.getFirst()));
+                xml.writeAttribute("monoisotopicMassDelta", String.valueOf(mod.getAccurateMass()));
+                for (CvParam cvParam : apcGen.getSearchModification(mod).getCvParam())
+                    writeCvParam(xml, 3, cvParam);
+                endElement(xml, 2);
+            }
+            endElement(xml, 1);
+        }
 
-                CvParam rawScoreCV = Constants.makeCvParam("MS:1002049", "MS-GF:RawScore");
-                rawScoreCV.setValue(String.valueOf(score));
-                cvList.add(rawScoreCV);
+        for (Map.Entry<String, PeptideEvidenceInfo> entry : pepEvMap.entrySet()) {
+            PeptideEvidenceInfo pepEv = entry.getValue();
+            emptyElement(xml, 1, "PeptideEvidence");
+            xml.writeAttribute("id", entry.getKey());
+            xml.writeAttribute("dBSequence_ref", getDBSequenceID(pepEv.protStartIndex));
+            xml.writeAttribute("peptide_ref", pepEv.peptideID);
+            xml.writeAttribute("start", String.valueOf(pepEv.start));
+            xml.writeAttribute("end", String.valueOf(pepEv.end));
+            xml.writeAttribute("pre", String.valueOf(pepEv.pre));
+            xml.writeAttribute("post", String.valueOf(pepEv.post));
+            xml.writeAttribute("isDecoy", String.valueOf(dbSeqIsDecoyMap.get(pepEv.protStartIndex)));
+        }
 
-                CvParam deNovoScoreCV = Constants.makeCvParam("MS:1002050", "MS-GF:DeNovoScore");
-                deNovoScoreCV.setValue(String.valueOf(match.getDeNovoScore()));
-                cvList.add(deNovoScoreCV);
+        endElement(xml, 0);
+    }
 
-                CvParam specEValueCV = Constants.makeCvParam("MS:1002052", "MS-GF:SpecEValue");
-                specEValueCV.setValue(specEValueStr);
-                cvList.add(specEValueCV);
+    private void startElement(XMLStreamWriter xml, int depth, String localName) throws XMLStreamException {
+        writeIndent(xml, depth);
+        xml.writeStartElement(localName);
+    }
 
-                CvParam eValueCV = Constants.makeCvParam("MS:1002053", "MS-GF:EValue");
-                eValueCV.setValue(eValueStr);
-                cvList.add(eValueCV);
+    private void emptyElement(XMLStreamWriter xml, int depth, String localName) throws XMLStreamException {
+        writeIndent(xml, depth);
+        xml.writeEmptyElement(localName);
+    }
 
-                if (match.getPSMQValue() != null) {
-                    CvParam psmQValueCV = Constants.makeCvParam("MS:1002054", "MS-GF:QValue");
-                    psmQValueCV.setValue(match.getPSMQValue().toString());
-                    cvList.add(psmQValueCV);
-                }
+    private void endElement(XMLStreamWriter xml, int depth) throws XMLStreamException {
+        writeIndent(xml, depth);
+        xml.writeEndElement();
+    }
 
-                if (match.getPepQValue() != null) {
-                    CvParam pepQValueCV = Constants.makeCvParam("MS:1002055", "MS-GF:PepQValue");
-                    pepQValueCV.setValue(match.getPepQValue().toString());
-                    cvList.add(pepQValueCV);
-                }
+    private void writeIndent(XMLStreamWriter xml, int depth) throws XMLStreamException {
+        StringBuilder indent = new StringBuilder("\n");
+        for (int i = 0; i < depth; i++)
+            indent.append(indentUnit);
+        xml.writeCharacters(indent.toString());
+    }
 
-                UserParam isotopeErrorParam = Constants.makeUserParam("IsotopeError");
-                float expMass = precursorMz * charge;
-                float theoMass = theoMz * charge;
-//				int isotopeError = NominalMass.toNominalMass(expMass) - NominalMass.toNominalMass(theoMass);
-                int isotopeError = Math.round((expMass - theoMass) / (float) Composition.ISOTOPE);
-                isotopeErrorParam.setValue(String.valueOf(isotopeError));
-                userList.add(isotopeErrorParam);
-
-                ActivationMethod[] activationMethodArr = match.getActivationMethodArr();
-                if (activationMethodArr != null) {
-                    StringBuffer actMethodStrBuf = new StringBuffer();
-                    actMethodStrBuf.append(activationMethodArr[0]);
-                    for (int j = 1; j < activationMethodArr.length; j++)
-                        actMethodStrBuf.append("/" + activationMethodArr[j]);
-                    UserParam dissociationMethodParam = Constants.makeUserParam("AssumedDissociationMethod");
-                    dissociationMethodParam.setValue(actMethodStrBuf.toString());
-                    userList.add(dissociationMethodParam);
-                }
+    private void writeCvParam(XMLStreamWriter xml, int depth, String accession, String name, String value) throws XMLStreamException {
+        emptyElement(xml, depth, "cvParam");
+        xml.writeAttribute("cvRef", Constants.psiCV.getId());
+        xml.writeAttribute("accession", accession);
+        xml.writeAttribute("name", name);
+        if (value != null)
+            xml.writeAttribute("value", value);
+    }
 
-                if (match.getAdditionalFeatureList() != null) {
-                    for (Pair<String, String> feature : match.getAdditionalFeatureList()) {
-                        String name = feature.getFirst();
-                        String value = feature.getSecond();
-                        UserParam addParam = Constants.makeUserParam(name);
-                        addParam.setValue(value);
-                        userList.add(addParam);
-                    }
-                }
+    private void writeCvParam(XMLStreamWriter xml, int depth, String accession, String name, String value,
+                              String unitAccession, String unitName) throws XMLStreamException {
+        writeCvParam(xml, depth, accession, name, value);
+        xml.writeAttribute("unitCvRef", Constants.unitCV.getId());
+        xml.writeAttribute("unitAccession", unitAccession);
+        xml.writeAttribute("unitName", unitName);
+    }
 
-                sir.getSpectrumIdentificationItem().add(sii);
-            }
-            if (!sir.getSpectrumIdentificationItem().isEmpty())
-                siList.getSpectrumIdentificationResult().add(sir);
+    private void writeCvParam(XMLStreamWriter xml, int depth, CvParam cvParam) throws XMLStreamException {
+        emptyElement(xml, depth, "cvParam");
+        xml.writeAttribute("cvRef", cvParam.getCvRef());
+        xml.writeAttribute("accession", cvParam.getAccession());
+        xml.writeAttribute("name", cvParam.getName());
+        if (cvParam.getValue() != null)
+            xml.writeAttribute("value", cvParam.getValue());
+        if (cvParam.getUnitAccession() != null) {
+            xml.writeAttribute("unitCvRef", cvParam.getUnitCvRef());
+            xml.writeAttribute("unitAccession", cvParam.getUnitAccession());
+            xml.writeAttribute("unitName", cvParam.getUnitName());
         }
     }
 
-    // index: peptide index in sarr
-    // length: peptide length including pre/post
-    // pepStr
-    private Peptide getPeptide(DatabaseMatch match) {
-//		String pvID = pre+pepStr+post;
-
-        String pepStr = match.getPepSeq();
-
-//		/////////
-//		System.out.println("PepStr: " + pepStr);
-//		///////////
-
-        // pepStr is unique to a specific peptide/modification set
-        Peptide mzidPeptide = pepMap.get(pepStr);
-
-//		/////////////
-//		edu.ucsd.msjava.msutil.Peptide testPep = aaSet.getPeptide(pepStr);
-//		System.out.println(testPep);
-//		System.out.println(pepStr+"->"+(mzidPeptide == null ? null : mzidPeptide.getId()));
-        /////////////
+    private void writeUserParam(XMLStreamWriter xml, int depth, String name, String value) throws XMLStreamException {
+        emptyElement(xml, depth, "userParam");
+        xml.writeAttribute("name", name);
+        if (value != null)
+            xml.writeAttribute("value", value);
+    }
 
-        if (mzidPeptide == null) {
+    /**
+     * Peptide id of a peptide string (pepStr is unique to a specific peptide/modification set)
+     */
+    private String getPeptideID(String pepStr) {
+        String pepID = pepIDMap.get(pepStr);
+        if (pepID == null) {
             // new peptide variant
-            mzidPeptide = new Peptide();
-            List<Modification> modList = mzidPeptide.getModification();
-            edu.ucsd.msjava.msutil.Peptide peptide = aaSet.getPeptide(pepStr);
-            StringBuffer unmodPepStr = new StringBuffer();
-            StringBuffer modPepStr = new StringBuffer();
-            int location = 1;
-            for (edu.ucsd.msjava.msutil.AminoAcid aa : peptide) {
-                Location loc;
-                if (location == 1)
-                    loc = Location.N_Term;
-                else if (location == peptide.size())
-                    loc = Location.C_Term;
-                else
-                    loc = Location.Anywhere;
+            pepID = Constants.pepIDPrefix + parsePeptide(aaSet, null, pepStr, null, null);
+            pepIDMap.put(pepStr, pepID);
+        }
+        return pepID;
+    }
 
-                char residue = aa.getUnmodResidue();
+    /**
+     * Parse a peptide string into its unmodified sequence and the modifications of its Peptide element
+     *
+     * @param aaSet       amino acids of the search
+     * @param apcGen      fixed modifications of the search (only used if modList is not null)
+     * @param pepStr      peptide string
+     * @param unmodPepStr unmodified sequence (output; may be null)
+     * @param modList     locations and modifications (output; may be null)
+     * @return modified peptide string used in the Peptide id
+     */
+    static String parsePeptide(AminoAcidSet aaSet, AnalysisProtocolCollectionGen apcGen, String pepStr,
+                               StringBuilder unmodPepStr, List<Pair<Integer, edu.ucsd.msjava.msutil.Modification>> modList) {
+        edu.ucsd.msjava.msutil.Peptide peptide = aaSet.getPeptide(pepStr);
+        StringBuilder modPepStr = new StringBuilder();
+        edu.ucsd.msjava.msutil.Modification.MassComparator massCompare = new edu.ucsd.msjava.msutil.Modification.MassComparator();
+        int location = 1;
+        for (edu.ucsd.msjava.msutil.AminoAcid aa : peptide) {
+            Location loc;
+            if (location == 1)
+                loc = Location.N_Term;
+            else if (location == peptide.size())
+                loc = Location.C_Term;
+            else
+                loc = Location.Anywhere;
+
+            char residue = aa.getUnmodResidue();
+            if (unmodPepStr != null)
                 unmodPepStr.append(residue);
 
-                List<edu.ucsd.msjava.msutil.Modification> anyPosMods = new ArrayList<>();
-                boolean hasNTermMod = false;
-                List<edu.ucsd.msjava.msutil.Modification> nTermMods = new ArrayList<>();
-                boolean hasCTermMod = false;
-                List<edu.ucsd.msjava.msutil.Modification> cTermMods = new ArrayList<>();
-                boolean modified = false;
-                
+            List<edu.ucsd.msjava.msutil.Modification> anyPosMods = new ArrayList<>();
+            List<edu.ucsd.msjava.msutil.Modification> nTermMods = new ArrayList<>();
+            List<edu.ucsd.msjava.msutil.Modification> cTermMods = new ArrayList<>();
+
+            if (modList != null) {
                 if (loc == Location.N_Term || loc == Location.C_Term) {
-                    List<edu.ucsd.msjava.msutil.Modification> fixedTermMods = apcGen.getTerminalFixedModifications(aa.getUnmodResidue(), loc);
-                    for (edu.ucsd.msjava.msutil.Modification fixedMod : fixedTermMods) {
-                        Modification mod = new Modification();
-                        if (loc == Location.N_Term)
-                            mod.setLocation(location - 1);
-                        else
-                            mod.setLocation(location + 1);
-                        mod.setMonoisotopicMassDelta(fixedMod.getAccurateMass());
-                        mod.getCvParam().addAll(apcGen.getSearchModification(fixedMod).getCvParam());
-                        modList.add(mod);
-                    }
+                    List<edu.ucsd.msjava.msutil.Modification> fixedTermMods = apcGen.getTerminalFixedModifications(residue, loc);
+                    for (edu.ucsd.msjava.msutil.Modification fixedMod : fixedTermMods)
+                        modList.add(new Pair<Integer, edu.ucsd.msjava.msutil.Modification>(loc == Location.N_Term ? location - 1 : location + 1, fixedMod));
                 }
-                List<edu.ucsd.msjava.msutil.Modification> fixedMods = apcGen.getFixedModifications(aa.getUnmodResidue());
+                List<edu.ucsd.msjava.msutil.Modification> fixedMods = apcGen.getFixedModifications(residue);
                 if (fixedMods != null) {
-                    for (edu.ucsd.msjava.msutil.Modification fixedMod : fixedMods) {
-                        Modification mod = new Modification();
-                        mod.setLocation(location);
-                        mod.setMonoisotopicMassDelta(fixedMod.getAccurateMass());
-                        mod.getCvParam().addAll(apcGen.getSearchModification(fixedMod).getCvParam());
-                        modList.add(mod);
-                    }
+                    for (edu.ucsd.msjava.msutil.Modification fixedMod : fixedMods)
+                        modList.add(new Pair<Integer, edu.ucsd.msjava.msutil.Modification>(location, fixedMod));
                 }
-                if (aa.isModified()) {
-                    Modification mod = new Modification();
-                    ModifiedAminoAcid modAA = (ModifiedAminoAcid) aa;
+            }
+
+            if (aa.isModified()) {
+                ModifiedAminoAcid modAA = (ModifiedAminoAcid) aa;
+                while (true) {    // aa may have two (or more) modifications
+                    int modLocation;
                     if (location == 1 && modAA.isNTermVariableMod()) {
-                        mod.setLocation(location - 1);
+                        modLocation = location - 1;
                         nTermMods.add(modAA.getModification());
-                        hasNTermMod = true;
-                    }
-                    else if (location == peptide.size() && modAA.isCTermVariableMod()) {
-                        mod.setLocation(location + 1);
+                    } else if (location == peptide.size() && modAA.isCTermVariableMod()) {
+                        modLocation = location + 1;
                         cTermMods.add(modAA.getModification());
-                        hasCTermMod = true;
-                    }
-                    else {
-                        mod.setLocation(location);
+                    } else {
+                        modLocation = location;
                         anyPosMods.add(modAA.getModification());
-                        modified = true;
-                    }
-                    mod.setMonoisotopicMassDelta(modAA.getModification().getAccurateMass());
-
-                    mod.getCvParam().addAll(apcGen.getSearchModification(modAA.getModification()).getCvParam());
-                    modList.add(mod);
-
-                    while (modAA.getTargetAA().isModified())    // aa has two (or more) modifications
-                    {
-                        Modification mod2 = new Modification();
-                        modAA = (ModifiedAminoAcid) modAA.getTargetAA();
-                        if (location == 1 && modAA.isNTermVariableMod()) {
-                            mod2.setLocation(location - 1);
-                            nTermMods.add(modAA.getModification());
-                            hasNTermMod = true;
-                        }
-                        else if (location == peptide.size() && modAA.isCTermVariableMod()) {
-                            mod2.setLocation(location + 1);
-                            cTermMods.add(modAA.getModification());
-                            hasCTermMod = true;
-                        }
-                        else {
-                            mod2.setLocation(location);
-                            anyPosMods.add(modAA.getModification());
-                            modified = true;
-                        }
-                        mod2.setMonoisotopicMassDelta(modAA.getModification().getAccurateMass());
-
-                        mod2.getCvParam().addAll(apcGen.getSearchModification(modAA.getModification()).getCvParam());
-                        modList.add(mod2);
                     }
+                    if (modList != null)
+                        modList.add(new Pair<Integer, edu.ucsd.msjava.msutil.Modification>(modLocation, modAA.getModification()));
+
+                    if (!modAA.getTargetAA().isModified())
+                        break;
+                    modAA = (ModifiedAminoAcid) modAA.getTargetAA();
                 }
-                
-                edu.ucsd.msjava.msutil.Modification.MassComparator massCompare = new edu.ucsd.msjava.msutil.Modification.MassComparator();
-                if (hasNTermMod) {
-                    modPepStr.append("[");
-                    Collections.sort(nTermMods, massCompare);
-                    for (edu.ucsd.msjava.msutil.Modification nTMass : nTermMods) {
-                        modPepStr.append(nTMass.getModId());
-                    }
+            }
+
+            if (!nTermMods.isEmpty()) {
+                modPepStr.append("[");
+                Collections.sort(nTermMods, massCompare);
+                for (edu.ucsd.msjava.msutil.Modification nTMass : nTermMods) {
+                    modPepStr.append(nTMass.getModId());
                 }
-                
-                modPepStr.append(residue);
-                if (modified) {
-                    Collections.sort(anyPosMods, massCompare);
-                    for (edu.ucsd.msjava.msutil.Modification mMass : anyPosMods) {
-                        modPepStr.append(mMass.getModId());
-                    }
+            }
+
+            modPepStr.append(residue);
+            if (!anyPosMods.isEmpty()) {
+                Collections.sort(anyPosMods, massCompare);
+                for (edu.ucsd.msjava.msutil.Modification mMass : anyPosMods) {
+                    modPepStr.append(mMass.getModId());
                 }
-                
-                if (hasCTermMod) {
-                    modPepStr.append("}");
-                    Collections.sort(cTermMods, massCompare);
-                    for (edu.ucsd.msjava.msutil.Modification cTMass : cTermMods) {
-                        modPepStr.append(cTMass.getModId());
-                    }
+            }
+
+            if (!cTermMods.isEmpty()) {
+                modPepStr.append("}");
+                Collections.sort(cTermMods, massCompare);
+                for (edu.ucsd.msjava.msutil.Modification cTMass : cTermMods) {
+                    modPepStr.append(cTMass.getModId());
                 }
-                
-                location++;
             }
 
-            mzidPeptide.setPeptideSequence(unmodPepStr.toString());
-            pepMap.put(pepStr, mzidPeptide);
-            //mzidPeptide.setId(Constants.pepIDPrefix+pepMap.size());
-            mzidPeptide.setId(Constants.pepIDPrefix+modPepStr.toString());
-            peptideList.add(mzidPeptide);
+            location++;
         }
-
-        return mzidPeptide;
+        return modPepStr.toString();
     }
 
-    public List<PeptideEvidenceRef> getPeptideEvidenceList(DatabaseMatch match, Peptide peptide) {
+    /**
+     * PeptideEvidence ids of a match; new peptide evidences and proteins are added to the SequenceCollection
+     */
+    private List<String> getPeptideEvidenceIDs(DatabaseMatch match, String pepID) {
         SortedSet<Integer> indices = match.getIndices();
-        int length = match.getLength();
 
         int startKey = indices.first();
 //		if(match.isNTermMetCleaved())
 //			++startKey;
 
-        String pepIDNum = peptide.getId().substring(Constants.pepIDPrefix.length());
+        String pepIDNum = pepID.substring(Constants.pepIDPrefix.length());
         String annotationKey = (match.isNTermMetCleaved() ? "M" : "") + startKey + "_" + pepIDNum;
-        List<PeptideEvidenceRef> evRefList = evRefListMap.get(annotationKey);
+        List<String> evRefList = evRefListMap.get(annotationKey);
 
         if (evRefList == null) {
-            evRefList = new ArrayList<PeptideEvidenceRef>();
+            evRefList = new ArrayList<String>(indices.size());
+            String peptideSequence = null;
 
             CompactFastaSequence seq = sa.getSequence();
             for (int index : indices) {
-                boolean isNTermMetCleaved = false;
-                
-                // if the sequence matches to a protein N-term that begins with Methionine
-                if (sa.getSequence().getByteAt(index) == 0 && sa.getSequence().getCharAt(index + 1) == 'M') {
-                    // match.isNTermMetCleaved() is specific to only one of the matched peptides in most cases
-                    // Do a double-check that the index/protein match is correct for the sequence by checking
-                    // the first residue (if not 'M') or matching the peptide sequence to sequence at index + 2
-                    isNTermMetCleaved = match.isNTermMetCleaved() || peptide.getPeptideSequence().charAt(0) != 'M';
-                    if (!isNTermMetCleaved) {
-                        // peptideSequence begins with M
-                        // check if the sequence starting at index + 2 matches the provided peptide sequence
-                        String matchSequence = sa.getSequence().getSubsequence(index + 2, index + 3 + peptide.getPeptideSequence().length());
-                        isNTermMetCleaved = matchSequence.startsWith(peptide.getPeptideSequence());
-                    }
-                }
-
-                PeptideEvidence pepEv = new PeptideEvidence();
-
-                char pre = sa.getSequence().getCharAt(index);
-                if (pre == '_') {
-                    if (isNTermMetCleaved)
-                        pre = 'M';
-                    else
-                        pre = '-';
-                }
-                char post;
-                if (isNTermMetCleaved)
-                    post = sa.getSequence().getCharAt(index + length);
-                else
-                    post = sa.getSequence().getCharAt(index + length - 1);
-                if (post == '_')
-                    post = '-';
-                pepEv.setPre(String.valueOf(pre));
-                pepEv.setPost(String.valueOf(post));
-
-                int protStartIndex = (int) seq.getStartPosition(index);
-                DBSequence dbSeq = getDBSequence(protStartIndex);
-                pepEv.setDBSequence(dbSeq);
-                pepEv.setPeptide(peptide);
-
-                int start = index - protStartIndex + 1;
-                if (isNTermMetCleaved)
-                    ++start;
-
-                int end = start + length - 2 - 1;
-                pepEv.setStart(start);
-                pepEv.setEnd(end);
+                if (peptideSequence == null && isAtProteinNTermMet(seq, index))
+                    peptideSequence = getUnmodifiedSequence(aaSet, match);
+                PeptideEvidenceInfo pepEv = getPeptideEvidence(seq, match, index, peptideSequence, pepID);
+                addDBSequence(pepEv.protStartIndex);
 
 //				String pepEvKey = "PepEv"+(index+1)+"_"+length;
-                String pepEvKey = Constants.pepEvIDPrefix + (index + 1) + "_" + pepIDNum + "_" + start;
+                String pepEvKey = Constants.pepEvIDPrefix + (index + 1) + "_" + pepIDNum + "_" + pepEv.start;
 //				if(match.isNTermMetCleaved())
 //					pepEvKey += "_N"+"_"+startKey;
-                pepEv.setId(pepEvKey);
-
-                pepEv.setIsDecoy(isDecoyMap.get(protStartIndex));
 
-                if (pepEvMap.get(pepEvKey) != null) {
-                    // Avoid duplicate peptide evidences
-                    // currently only observed when there are 2 results for a single peptide/mod/dbseq combo,
-                    // one where match.isNTermMetCleaved() is true and sa.getSequence().getCharAt(index + 1) == 'M' is false,
-                    // and another where match.isNTermMetCleaved() is false.
-                    pepEv = pepEvMap.get(pepEvKey);
-                }
-                else {
-                    // New peptide evidence. Add it to the map and to the peptideEvidenceList.
+                if (!pepEvMap.containsKey(pepEvKey)) {
+                    // New peptide evidence. Duplicates are currently only observed when there are 2 results for a
+                    // single peptide/mod/dbseq combo, one where match.isNTermMetCleaved() is true and
+                    // sa.getSequence().getCharAt(index + 1) == 'M' is false, and another where match.isNTermMetCleaved() is false.
                     pepEvMap.put(pepEvKey, pepEv);
-                    peptideEvidenceList.add(pepEv);
                 }
-
-                PeptideEvidenceRef pepEvRef = new PeptideEvidenceRef();
-                pepEvRef.setPeptideEvidence(pepEv);
-                evRefList.add(pepEvRef);
+                evRefList.add(pepEvKey);
             }
             evRefListMap.put(annotationKey, evRefList);
         }
@@ -702,34 +653,103 @@ public class MZIdentMLGen {
         return evRefList;
     }
 
-    public DBSequence getDBSequence(int protStartIndex) {
-        DBSequence dbSeq = dbSeqMap.get(protStartIndex);
-        if (dbSeq == null) {
-            dbSeq = new DBSequence();
+    private void addDBSequence(int protStartIndex) {
+        if (!dbSeqIsDecoyMap.containsKey(protStartIndex)) {
+            String accession = getAccession(sa.getSequence(), protStartIndex);
+            dbSeqIsDecoyMap.put(protStartIndex, accession.startsWith(decoyProteinPrefix));
+        }
+    }
 
-            CompactFastaSequence seq = sa.getSequence();
-            String annotation = seq.getAnnotation(protStartIndex);
-            String proteinSeq = seq.getMatchingEntry(protStartIndex);
-            String accession = annotation.split("\\s+")[0];
+    static String getAccession(CompactFastaSequence seq, int protStartIndex) {
+        return seq.getAnnotation(protStartIndex).split("\\s+")[0];
+    }
 
-            dbSeq.setLength(proteinSeq.length());
-            dbSeq.setSearchDatabase(searchDatabase);
-            dbSeq.setAccession(accession);
-            dbSeq.setId("DBSeq" + (protStartIndex + 1));
+    static String getUnmodifiedSequence(AminoAcidSet aaSet, DatabaseMatch match) {
+        StringBuilder unmodPepStr = new StringBuilder();
+        parsePeptide(aaSet, null, match.getPepSeq(), unmodPepStr, null);
+        return unmodPepStr.toString();
+    }
 
-            boolean isDecoy = accession.startsWith(decoyProteinPrefix);
-            if (!isDecoy) {
-                CvParam protDescCV = Constants.makeCvParam("MS:1001088", "protein description");
-                protDescCV.setValue(annotation);
-                dbSeq.getCvParam().add(protDescCV);
+    /**
+     * Whether index is the position of a protein N-term (the delimiter before it) and the protein begins with Methionine
+     */
+    static boolean isAtProteinNTermMet(CompactFastaSequence seq, int index) {
+        return seq.getByteAt(index) == 0 && seq.getCharAt(index + 1) == 'M';
+    }
+
+    /**
+     * Peptide evidence of a match at one of its positions in the database
+     *
+     * @param peptideSequence unmodified peptide sequence; only needed if isAtProteinNTermMet(seq, index)
+     * @param pepID           Peptide id (may be null)
+     */
+    static PeptideEvidenceInfo getPeptideEvidence(CompactFastaSequence seq, DatabaseMatch match, int index, String peptideSequence, String pepID) {
+        int length = match.getLength();
+        boolean isNTermMetCleaved = false;
+
+        // if the sequence matches to a protein N-term that begins with Methionine
+        if (isAtProteinNTermMet(seq, index)) {
+            // match.isNTermMetCleaved() is specific to only one of the matched peptides in most cases
+            // Do a double-check that the index/protein match is correct for the sequence by checking
+            // the first residue (if not 'M') or matching the peptide sequence to sequence at index + 2
+            isNTermMetCleaved = match.isNTermMetCleaved() || peptideSequence.charAt(0) != 'M';
+            if (!isNTermMetCleaved) {
+                // peptideSequence begins with M
+                // check if the sequence starting at index + 2 matches the provided peptide sequence
+                String matchSequence = seq.getSubsequence(index + 2, index + 3 + peptideSequence.length());
+                isNTermMetCleaved = matchSequence.startsWith(peptideSequence);
             }
+        }
 
-            this.dbSequenceList.add(dbSeq);
-            dbSeqMap.put(protStartIndex, dbSeq);
-            isDecoyMap.put(protStartIndex, isDecoy);
+        char pre = seq.getCharAt(index);
+        if (pre == '_') {
+            if (isNTermMetCleaved)
+                pre = 'M';
+            else
+                pre = '-';
         }
+        char post;
+        if (isNTermMetCleaved)
+            post = seq.getCharAt(index + length);
+        else
+            post = seq.getCharAt(index + length - 1);
+        if (post == '_')
+            post = '-';
+
+        int protStartIndex = (int) seq.getStartPosition(index);
 
-        return dbSeq;
+        int start = index - protStartIndex + 1;
+        if (isNTermMetCleaved)
+            ++start;
+
+        int end = start + length - 2 - 1;
+
+        return new PeptideEvidenceInfo(pepID, protStartIndex, start, end, pre, post);
+    }
+
+    private static String getDBSequenceID(int protStartIndex) {
+        return "DBSeq" + (protStartIndex + 1);
+    }
+
+    /**
+     * A PeptideEvidence, kept until SequenceCollection is written
+     */
+    static class PeptideEvidenceInfo {
+        final String peptideID;
+        final int protStartIndex;
+        final int start;
+        final int end;
+        final char pre;
+        final char post;
+
+        PeptideEvidenceInfo(String peptideID, int protStartIndex, int start, int end, char pre, char post) {
+            this.peptideID = peptideID;
+            this.protStartIndex = protStartIndex;
+            this.start = start;
+            this.end = end;
+            this.pre = pre;
+            this.post = post;
+        }
     }
 
     private void generateCvList() {
@@ -746,13 +766,6 @@ public class MZIdentMLGen {
         analysisSoftwares.add(Constants.msgfPlus);
     }
 
-    private void initSequenceCollection() {
-        sequenceCollection = new SequenceCollection();
-        dbSequenceList = sequenceCollection.getDBSequence();
-        peptideList = sequenceCollection.getPeptide();
-        peptideEvidenceList = sequenceCollection.getPeptideEvidence();
-    }
-
     private void generateAnalysisCollection() {
 
         analysisCollection = new AnalysisCollection();
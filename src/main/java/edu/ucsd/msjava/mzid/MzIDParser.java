@@ -3,33 +3,48 @@ package edu.ucsd.msjava.mzid;
 import edu.ucsd.msjava.msutil.AminoAcidSet;
 import edu.ucsd.msjava.msutil.Composition;
 import edu.ucsd.msjava.mzml.MzMLAdapter;
-import uk.ac.ebi.jmzidml.model.mzidml.*;
-import uk.ac.ebi.jmzidml.xml.io.MzIdentMLUnmarshaller;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Converts an mzIdentML file of MS-GF+ to a TSV file.
+ * The file is read once with a StAX reader: SequenceCollection (which precedes the results in the file) is kept as
+ * compact maps of the TSV strings of peptides and proteins, and each SpectrumIdentificationResult is written as soon as
+ * it is read, so that memory does not grow with the number of results.
+ */
 public class MzIDParser {
-    private final MzIdentMLUnmarshaller unmarshaller;
+    private final File mzIDFile;
     private final boolean showDecoy;
-    private boolean doNotShowQValue;
+    private final boolean doNotShowQValue;
     private final boolean unrollResults;
     private final boolean showMolecularFormula;
 
     private boolean isPrecursorTolerancePPM;
-    private Map<String, Peptide> pepMap;        // Peptide ref -> Peptide
-    private Map<String, DBSequence> dbSeqMap;        // DBSequenhce ref -> DBSequence
-    private Map<String, PeptideEvidence> pepEvMap;    // PeptideEvidence ref -> PeptideEvidence
+    private boolean isMgf;
+    private Map<String, PeptideInfo> pepMap;        // Peptide ref -> Peptide
+    private Map<String, String> dbSeqMap;        // DBSequence ref -> accession
+    private Map<String, PeptideEvidenceInfo> pepEvMap;    // PeptideEvidence ref -> PeptideEvidence
+    private Map<String, String> specFileNameMap;    // SpectraData ref -> spectrum file name
+
+    // SpectrumIdentificationItems of the current SpectrumIdentificationResult; reused
+    private final List<SpectrumIdentificationItemInfo> siiList = new ArrayList<SpectrumIdentificationItemInfo>();
+    private int numSII;
 
     public MzIDParser(File mzIDFile) {
         this(mzIDFile, false, false, false, false);
     }
 
     public MzIDParser(File mzIDFile, boolean showDecoy, boolean doNotShowQValue, boolean unrollResults, boolean showMolecularFormula) {
-        unmarshaller = new MzIdentMLUnmarshaller(mzIDFile);
+        this.mzIDFile = mzIDFile;
         this.showDecoy = showDecoy;
         this.doNotShowQValue = doNotShowQValue;
         this.unrollResults = unrollResults;
@@ -40,7 +55,7 @@ public class MzIDParser {
         PrintStream out = null;
         if (outputFile != null)
             try {
-                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+                out = new PrintStream(new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16));
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             }
@@ -54,283 +69,367 @@ public class MzIDParser {
     }
 
     public void writeToTSVFile(PrintStream out) {
-        unmarshallSequenceCollection();
-        unmarshallAnalysisProtocolCollection();
-
-        DataCollection dc = unmarshaller.unmarshal(DataCollection.class);
-
-        // get spectrum file
-        boolean isMgf = false;
-        Map<String, String> specFileNameMap = new HashMap<String, String>();
-        Inputs inputs = dc.getInputs();
-        for (SpectraData sd : inputs.getSpectraData()) {
-            String specFileName = new File(sd.getLocation()).getName();
-            specFileNameMap.put(sd.getId(), specFileName);
-            FileFormat ff = sd.getFileFormat();
-            if (ff.getCvParam().getAccession().equals("MS:1001062"))
-                isMgf = true;
-        }
-
-        String header =
-                "#SpecFile" +
-                        "\tSpecID" +
-                        "\tScanNum" +
-                        (isMgf ? "\tTitle" : "") +
-                        "\tFragMethod"
-                        + "\tPrecursor"
-                        + "\tIsotopeError"
-                        + "\tPrecursorError("
-                        + (isPrecursorTolerancePPM ? "ppm" : "Da")
-                        + ")" +
-                        "\tCharge" +
-                        "\tPeptide" +
-                        (showMolecularFormula ? "\tFormula" : "") +
-                        "\tProtein" +
-                        "\tDeNovoScore" +
-                        "\tMSGFScore" +
-                        "\tSpecEValue" +
-                        "\tEValue" +
-                        (!this.doNotShowQValue ? "\tQValue\tPepQValue" : "");
-        out.println(header);
-
-        AnalysisData ad = dc.getAnalysisData();
-
-        // Get the list of SpectrumIdentification elements
-        List<SpectrumIdentificationList> sil = ad.getSpectrumIdentificationList();
-
-        for (SpectrumIdentificationList sIdentList : sil) {
-            for (SpectrumIdentificationResult sir
-                    : sIdentList.getSpectrumIdentificationResult()) {
-
-                String specFileName = specFileNameMap.get(sir.getSpectraDataRef());
-                String specID = sir.getSpectrumID();
-                Map<String, CvParam> sirCvParamMap = getCvParamMap(sir.getCvParam());
-
-                String scanNum = "-1";
-                CvParam scanNumParam = sirCvParamMap.get("MS:1001115");
-                if (scanNumParam != null)
-                    scanNum = scanNumParam.getValue();
-
-                String title = "N/A";
-                CvParam titleParam = sirCvParamMap.get("MS:1000796");
-                if (titleParam != null)
-                    title = titleParam.getValue();
-
-                for (SpectrumIdentificationItem sii
-                        : sir.getSpectrumIdentificationItem()) {
-
-                    Double calculatedMassToCharge = sii.getCalculatedMassToCharge();
-                    Double experimentalMassToCharge = sii.getExperimentalMassToCharge();
-                    int charge = sii.getChargeState();
-
-                    Map<String, CvParam> cvParamMap = getCvParamMap(sii.getCvParam());
-                    CvParam cvParam;
-
-//                     String fragMethod = null;
-//                     for(ActivationMethod actMethod : ActivationMethod.getAllRegisteredActivationMethods())
-//                     {
-//                    	 if((cvParam = cvParamMap.get(actMethod.getPSICVAccession())) != null)
-//                    	 {
-//                    		 fragMethod = actMethod.getName();
-//                    		 break;
-//                    	 }
-//                     }
-
-
-                    String deNovoScore = (cvParam = cvParamMap.get("MS:1002050")) == null ? "" : cvParam.getValue();
-                    String rawScore = (cvParam = cvParamMap.get("MS:1002049")) == null ? "" : cvParam.getValue();
-                    String specEValue = (cvParam = cvParamMap.get("MS:1002052")) == null ? "" : cvParam.getValue();
-                    String eValue = (cvParam = cvParamMap.get("MS:1002053")) == null ? "" : cvParam.getValue();
-                    String psmQValue = (cvParam = cvParamMap.get("MS:1002054")) == null ? "" : cvParam.getValue();
-                    String pepQValue = (cvParam = cvParamMap.get("MS:1002055")) == null ? "" : cvParam.getValue();
-
-                    Map<String, UserParam> userParamMap = getUserParamMap(sii.getUserParam());
-                    UserParam userParam;
-                    String fragMethod = (userParam = userParamMap.get("AssumedDissociationMethod")) == null ? null : userParam.getValue();
-                    Integer isotopeError = (userParam = userParamMap.get("IsotopeError")) == null ? null : Integer.parseInt(userParam.getValue());
-
-                    double adjustedExpMz = experimentalMassToCharge - Composition.ISOTOPE * isotopeError / charge;
-                    double precursorError = adjustedExpMz - calculatedMassToCharge;
-                    if (isPrecursorTolerancePPM)
-                        precursorError = precursorError / calculatedMassToCharge * 1e6;
-
-                    Peptide peptide = pepMap.get(sii.getPeptideRef());
-                    String peptideSeq = getPeptideSeq(peptide);
-                    String molecularFormula = null;
-                    if (showMolecularFormula)
-                        molecularFormula = getMolecularFormula(peptide);
-
-                    HashSet<String> proteinSet = new HashSet<String>();
-                    if (this.unrollResults) {
-                        for (PeptideEvidenceRef pepEvRef : sii.getPeptideEvidenceRef()) {
-                            PeptideEvidence pepEv = pepEvMap.get(pepEvRef.getPeptideEvidenceRef());
-
-                            boolean isDecoy = pepEv.isIsDecoy();
-                            if (isDecoy && !this.showDecoy)
-                                continue;
-
-                            String pre = pepEv.getPre();
-                            String post = pepEv.getPost();
-
-                            DBSequence dbSeq = dbSeqMap.get(pepEv.getDBSequenceRef());
-                            String protein = dbSeq.getAccession();
-                            if (proteinSet.add(pre + protein + post)) {
-                                out.print(specFileName
-                                        + "\t" + specID
-                                        + "\t" + scanNum
-                                        + (!isMgf ? "" : "\t" + title)
-                                        + "\t" + fragMethod
-                                        + "\t" + experimentalMassToCharge.floatValue()
-                                        + "\t" + isotopeError
-                                        + "\t" + (float) precursorError
-                                        + "\t" + charge
-                                        + "\t" + pre + "." + peptideSeq + "." + post
-                                        + (molecularFormula == null ? "" : "\t" + molecularFormula)
-                                        + "\t" + protein
-                                        + "\t" + deNovoScore
-                                        + "\t" + rawScore
-                                        + "\t" + specEValue
-                                        + "\t" + eValue
-                                );
-                                if (!this.doNotShowQValue)
-                                    out.print("\t" + psmQValue + "\t" + pepQValue);
-                                out.println();
-                            }
-                        }
-                    } else {
-                        StringBuffer proteinBuf = new StringBuffer();
-                        boolean isAllDecoy = true;
-                        for (PeptideEvidenceRef pepEvRef : sii.getPeptideEvidenceRef()) {
-                            PeptideEvidence pepEv = pepEvMap.get(pepEvRef.getPeptideEvidenceRef());
-
-                            boolean isDecoy = pepEv.isIsDecoy();
-                            if (isDecoy && !this.showDecoy) {
-                                continue;
-                            }
-
-                            isAllDecoy = false;
-                            String pre = pepEv.getPre();
-                            String post = pepEv.getPost();
-
-                            DBSequence dbSeq = dbSeqMap.get(pepEv.getDBSequenceRef());
-                            String protein = dbSeq.getAccession();
-
-                            if (proteinSet.add(pre + protein + post)) {
-                                if (proteinBuf.length() != 0)
-                                    proteinBuf.append(";");
-                                proteinBuf.append(protein + "(pre=" + pre + ",post=" + post + ")");
-                            }
-                        }
-
-                        if (!isAllDecoy) {
-                            out.print(specFileName
-                                    + "\t" + specID
-                                    + "\t" + scanNum
-                                    + (!isMgf ? "" : "\t" + title)
-                                    + "\t" + fragMethod
-                                    + "\t" + experimentalMassToCharge.floatValue()
-                                    + "\t" + isotopeError
-                                    + "\t" + (float) precursorError
-                                    + "\t" + charge
-                                    + "\t" + peptideSeq
-                                    + (molecularFormula == null ? "" : "\t" + molecularFormula)
-                                    + "\t" + proteinBuf.toString()
-                                    + "\t" + deNovoScore
-                                    + "\t" + rawScore
-                                    + "\t" + specEValue
-                                    + "\t" + eValue
-                            );
-                            if (!this.doNotShowQValue)
-                                out.print("\t" + psmQValue + "\t" + pepQValue);
-                            out.println();
-                        }
+        pepMap = new HashMap<String, PeptideInfo>();
+        dbSeqMap = new HashMap<String, String>();
+        pepEvMap = new HashMap<String, PeptideEvidenceInfo>();
+        specFileNameMap = new HashMap<String, String>();
+        isPrecursorTolerancePPM = false;
+        isMgf = false;
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(mzIDFile), 1 << 16)) {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            boolean isHeaderWritten = false;
+            boolean isParentToleranceRead = false;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String name = reader.getLocalName();
+                if (name.equals("DBSequence")) {
+                    dbSeqMap.put(reader.getAttributeValue(null, "id"), reader.getAttributeValue(null, "accession"));
+                } else if (name.equals("Peptide")) {
+                    String id = reader.getAttributeValue(null, "id");
+                    pepMap.put(id, readPeptide(reader));
+                } else if (name.equals("PeptideEvidence")) {
+                    String dbSeqRef = reader.getAttributeValue(null, "dBSequence_ref");
+                    pepEvMap.put(reader.getAttributeValue(null, "id"), new PeptideEvidenceInfo(
+                            reader.getAttributeValue(null, "pre"),
+                            reader.getAttributeValue(null, "post"),
+                            dbSeqMap.get(dbSeqRef),
+                            "true".equals(reader.getAttributeValue(null, "isDecoy"))
+                    ));
+                } else if (name.equals("ParentTolerance") && !isParentToleranceRead) {
+                    // tolerance of the first SpectrumIdentificationProtocol
+                    readParentTolerance(reader);
+                    isParentToleranceRead = true;
+                } else if (name.equals("SpectraData")) {
+                    readSpectraData(reader);
+                } else if (name.equals("AnalysisData")) {
+                    if (!isHeaderWritten) {
+                        out.println(getHeader());
+                        isHeaderWritten = true;
                     }
-
-                } // end spectrum identification item
-            } // end spectrum identification results
+                } else if (name.equals("SpectrumIdentificationResult")) {
+                    writeSpectrumIdentificationResult(reader, out);
+                }
+            }
+            if (!isHeaderWritten)
+                out.println(getHeader());
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
         }
     }
 
-    private Map<String, CvParam> getCvParamMap(List<CvParam> paramList) {
-        Map<String, CvParam> paramMap = new HashMap<String, CvParam>();
+    private String getHeader() {
+        return "#SpecFile" +
+                "\tSpecID" +
+                "\tScanNum" +
+                (isMgf ? "\tTitle" : "") +
+                "\tFragMethod"
+                + "\tPrecursor"
+                + "\tIsotopeError"
+                + "\tPrecursorError("
+                + (isPrecursorTolerancePPM ? "ppm" : "Da")
+                + ")" +
+                "\tCharge" +
+                "\tPeptide" +
+                (showMolecularFormula ? "\tFormula" : "") +
+                "\tProtein" +
+                "\tDeNovoScore" +
+                "\tMSGFScore" +
+                "\tSpecEValue" +
+                "\tEValue" +
+                (!this.doNotShowQValue ? "\tQValue\tPepQValue" : "");
+    }
 
-        for (CvParam param : paramList)
-            paramMap.put(param.getAccession(), param);
+    /**
+     * Read a SpectrumIdentificationResult and write its SpectrumIdentificationItems
+     */
+    private void writeSpectrumIdentificationResult(XMLStreamReader reader, PrintStream out) throws XMLStreamException {
+        String specFileName = specFileNameMap.get(reader.getAttributeValue(null, "spectraData_ref"));
+        String specID = reader.getAttributeValue(null, "spectrumID");
+        String scanNum = "-1";
+        String title = "N/A";
+
+        // the cvParams of the spectrum follow its SpectrumIdentificationItems
+        numSII = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("SpectrumIdentificationResult"))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+            String name = reader.getLocalName();
+            if (name.equals("SpectrumIdentificationItem")) {
+                readSpectrumIdentificationItem(reader, nextSpectrumIdentificationItem());
+            } else if (name.equals("cvParam")) {
+                String accession = reader.getAttributeValue(null, "accession");
+                if ("MS:1001115".equals(accession))
+                    scanNum = reader.getAttributeValue(null, "value");
+                else if ("MS:1000796".equals(accession))
+                    title = reader.getAttributeValue(null, "value");
+            }
+        }
 
-        return paramMap;
+        for (int i = 0; i < numSII; i++)
+            writeSpectrumIdentificationItem(siiList.get(i), specFileName, specID, scanNum, title, out);
     }
 
-    private Map<String, UserParam> getUserParamMap(List<UserParam> paramList) {
-        Map<String, UserParam> paramMap = new HashMap<String, UserParam>();
-
-        for (UserParam param : paramList)
-            paramMap.put(param.getName(), param);
+    private SpectrumIdentificationItemInfo nextSpectrumIdentificationItem() {
+        if (numSII == siiList.size())
+            siiList.add(new SpectrumIdentificationItemInfo());
+        SpectrumIdentificationItemInfo sii = siiList.get(numSII++);
+        sii.clear();
+        return sii;
+    }
 
-        return paramMap;
+    private void readSpectrumIdentificationItem(XMLStreamReader reader, SpectrumIdentificationItemInfo sii) throws XMLStreamException {
+        sii.calculatedMassToCharge = Double.parseDouble(reader.getAttributeValue(null, "calculatedMassToCharge"));
+        sii.experimentalMassToCharge = Double.parseDouble(reader.getAttributeValue(null, "experimentalMassToCharge"));
+        sii.charge = Integer.parseInt(reader.getAttributeValue(null, "chargeState"));
+        sii.peptideRef = reader.getAttributeValue(null, "peptide_ref");
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("SpectrumIdentificationItem"))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+            String name = reader.getLocalName();
+            if (name.equals("PeptideEvidenceRef")) {
+                sii.pepEvRefList.add(reader.getAttributeValue(null, "peptideEvidence_ref"));
+            } else if (name.equals("cvParam")) {
+                String accession = reader.getAttributeValue(null, "accession");
+                String value = reader.getAttributeValue(null, "value");
+                if (accession == null)
+                    continue;
+                switch (accession) {
+                    case "MS:1002050":
+                        sii.deNovoScore = value;
+                        break;
+                    case "MS:1002049":
+                        sii.rawScore = value;
+                        break;
+                    case "MS:1002052":
+                        sii.specEValue = value;
+                        break;
+                    case "MS:1002053":
+                        sii.eValue = value;
+                        break;
+                    case "MS:1002054":
+                        sii.psmQValue = value;
+                        break;
+                    case "MS:1002055":
+                        sii.pepQValue = value;
+                        break;
+                }
+            } else if (name.equals("userParam")) {
+                String paramName = reader.getAttributeValue(null, "name");
+                if ("AssumedDissociationMethod".equals(paramName))
+                    sii.fragMethod = reader.getAttributeValue(null, "value");
+                else if ("IsotopeError".equals(paramName))
+                    sii.isotopeError = Integer.parseInt(reader.getAttributeValue(null, "value"));
+            }
+        }
     }
 
-    private void unmarshallSequenceCollection() {
-        SequenceCollection sc = unmarshaller.unmarshal(SequenceCollection.class);
+    private void writeSpectrumIdentificationItem(SpectrumIdentificationItemInfo sii, String specFileName, String specID,
+                                                 String scanNum, String title, PrintStream out) {
+        int charge = sii.charge;
+        int isotopeError = sii.isotopeError == null ? 0 : sii.isotopeError;
+        double adjustedExpMz = sii.experimentalMassToCharge - Composition.ISOTOPE * isotopeError / charge;
+        double precursorError = adjustedExpMz - sii.calculatedMassToCharge;
+        if (isPrecursorTolerancePPM)
+            precursorError = precursorError / sii.calculatedMassToCharge * 1e6;
+
+        PeptideInfo peptide = pepMap.get(sii.peptideRef);
+        String peptideSeq = peptide.peptideSeq;
+        String molecularFormula = null;
+        if (showMolecularFormula)
+            molecularFormula = peptide.molecularFormula;
+
+        HashSet<String> proteinSet = new HashSet<String>();
+        if (this.unrollResults) {
+            for (String pepEvRef : sii.pepEvRefList) {
+                PeptideEvidenceInfo pepEv = pepEvMap.get(pepEvRef);
+
+                boolean isDecoy = pepEv.isDecoy;
+                if (isDecoy && !this.showDecoy)
+                    continue;
+
+                String pre = pepEv.pre;
+                String post = pepEv.post;
+                String protein = pepEv.accession;
+                if (proteinSet.add(pre + protein + post)) {
+                    StringBuilder row = getRowStart(sii, specFileName, specID, scanNum, title, isotopeError, precursorError);
+                    row.append('\t').append(pre).append('.').append(peptideSeq).append('.').append(post);
+                    if (molecularFormula != null)
+                        row.append('\t').append(molecularFormula);
+                    row.append('\t').append(protein);
+                    appendScores(row, sii);
+                    out.println(row);
+                }
+            }
+        } else {
+            StringBuilder proteinBuf = new StringBuilder();
+            boolean isAllDecoy = true;
+            for (String pepEvRef : sii.pepEvRefList) {
+                PeptideEvidenceInfo pepEv = pepEvMap.get(pepEvRef);
+
+                boolean isDecoy = pepEv.isDecoy;
+                if (isDecoy && !this.showDecoy) {
+                    continue;
+                }
 
-        dbSeqMap = new HashMap<String, DBSequence>();
-        for (DBSequence dbSeq : sc.getDBSequence())
-            dbSeqMap.put(dbSeq.getId(), dbSeq);
+                isAllDecoy = false;
+                String pre = pepEv.pre;
+                String post = pepEv.post;
+                String protein = pepEv.accession;
 
-        pepMap = new HashMap<String, Peptide>();
-        for (Peptide peptide : sc.getPeptide())
-            pepMap.put(peptide.getId(), peptide);
+                if (proteinSet.add(pre + protein + post)) {
+                    if (proteinBuf.length() != 0)
+                        proteinBuf.append(";");
+                    proteinBuf.append(protein).append("(pre=").append(pre).append(",post=").append(post).append(")");
+                }
+            }
 
-        pepEvMap = new HashMap<String, PeptideEvidence>();
-        for (PeptideEvidence pepEv : sc.getPeptideEvidence())
-            pepEvMap.put(pepEv.getId(), pepEv);
+            if (!isAllDecoy) {
+                StringBuilder row = getRowStart(sii, specFileName, specID, scanNum, title, isotopeError, precursorError);
+                row.append('\t').append(peptideSeq);
+                if (molecularFormula != null)
+                    row.append('\t').append(molecularFormula);
+                row.append('\t').append(proteinBuf);
+                appendScores(row, sii);
+                out.println(row);
+            }
+        }
     }
 
-    private void unmarshallAnalysisProtocolCollection() {
-        AnalysisProtocolCollection apc = unmarshaller.unmarshal(AnalysisProtocolCollection.class);
-        SpectrumIdentificationProtocol sip = apc.getSpectrumIdentificationProtocol().get(0);
+    private StringBuilder getRowStart(SpectrumIdentificationItemInfo sii, String specFileName, String specID, String scanNum,
+                                      String title, int isotopeError, double precursorError) {
+        StringBuilder row = new StringBuilder();
+        row.append(specFileName)
+                .append('\t').append(specID)
+                .append('\t').append(scanNum);
+        if (isMgf)
+            row.append('\t').append(title);
+        row.append('\t').append(sii.fragMethod)
+                .append('\t').append((float) sii.experimentalMassToCharge)
+                .append('\t').append(isotopeError)
+                .append('\t').append((float) precursorError)
+                .append('\t').append(sii.charge);
+        return row;
+    }
 
-        isPrecursorTolerancePPM = false;
-        Tolerance parentTolerance = sip.getParentTolerance();
-        for (CvParam param : parentTolerance.getCvParam()) {
-            if (param.getAccession().equals("MS:1001412")) {
-                if (param.getUnitName().equals("parts per million")) {
-                    isPrecursorTolerancePPM = true;
+    private void appendScores(StringBuilder row, SpectrumIdentificationItemInfo sii) {
+        row.append('\t').append(sii.deNovoScore)
+                .append('\t').append(sii.rawScore)
+                .append('\t').append(sii.specEValue)
+                .append('\t').append(sii.eValue);
+        if (!this.doNotShowQValue)
+            row.append('\t').append(sii.psmQValue).append('\t').append(sii.pepQValue);
+    }
+
+    private PeptideInfo readPeptide(XMLStreamReader reader) throws XMLStreamException {
+        String unmodPepSeq = null;
+        List<Integer> modLocations = new ArrayList<Integer>();
+        List<Double> modMasses = new ArrayList<Double>();
+        List<String> modDeltaCompositions = new ArrayList<String>();
+        boolean isModification = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (reader.getLocalName().equals("Peptide"))
                     break;
-                }
+                if (reader.getLocalName().equals("Modification"))
+                    isModification = false;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+            String name = reader.getLocalName();
+            if (name.equals("PeptideSequence")) {
+                unmodPepSeq = reader.getElementText().trim();
+            } else if (name.equals("Modification")) {
+                modLocations.add(Integer.parseInt(reader.getAttributeValue(null, "location")));
+                modMasses.add(Double.parseDouble(reader.getAttributeValue(null, "monoisotopicMassDelta")));
+                modDeltaCompositions.add(null);
+                isModification = true;
+            } else if (name.equals("cvParam") && isModification && showMolecularFormula) {
+                // use the first cvParam of the Modification with a unimod composition
+                int modIndex = modDeltaCompositions.size() - 1;
+                if (modDeltaCompositions.get(modIndex) == null)
+                    modDeltaCompositions.set(modIndex, Unimod.getUnimod().getDeltaComposition(reader.getAttributeValue(null, "accession")));
             }
         }
 
-        if (!doNotShowQValue) {
-            for (UserParam param : sip.getAdditionalSearchParams().getUserParam()) {
-                if (param.getName().equals("TargetDecoyApproach")) {
-                    if (param.getValue().equals("false")) {
-                        doNotShowQValue = true;
+        String peptideSeq = getPeptideSeq(unmodPepSeq, modLocations, modMasses);
+        String molecularFormula = null;
+        if (showMolecularFormula)
+            molecularFormula = getMolecularFormula(unmodPepSeq, modMasses, modDeltaCompositions);
+        return new PeptideInfo(peptideSeq, molecularFormula);
+    }
+
+    private void readParentTolerance(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("ParentTolerance"))
+                break;
+            if (event == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals("cvParam")) {
+                if ("MS:1001412".equals(reader.getAttributeValue(null, "accession"))) {
+                    if ("parts per million".equals(reader.getAttributeValue(null, "unitName"))) {
+                        isPrecursorTolerancePPM = true;
+                        break;
                     }
-                    break;
                 }
             }
         }
     }
 
-    private static String getPeptideSeq(Peptide peptide) {
-        String unmodPepSeq = peptide.getPeptideSequence();
+    private void readSpectraData(XMLStreamReader reader) throws XMLStreamException {
+        String specFileName = new File(reader.getAttributeValue(null, "location")).getName();
+        specFileNameMap.put(reader.getAttributeValue(null, "id"), specFileName);
+        boolean isFileFormat = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                if (reader.getLocalName().equals("SpectraData"))
+                    break;
+                if (reader.getLocalName().equals("FileFormat"))
+                    isFileFormat = false;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (reader.getLocalName().equals("FileFormat"))
+                    isFileFormat = true;
+                else if (isFileFormat && reader.getLocalName().equals("cvParam")
+                        && "MS:1001062".equals(reader.getAttributeValue(null, "accession")))
+                    isMgf = true;
+            }
+        }
+    }
 
+    private static String getPeptideSeq(String unmodPepSeq, List<Integer> modLocations, List<Double> modMasses) {
         String[] modArr = new String[unmodPepSeq.length() + 2];
         // Modification
-        for (Modification mod : peptide.getModification()) {
-            double modMass = mod.getMonoisotopicMassDelta();
+        for (int i = 0; i < modLocations.size(); i++) {
+            double modMass = modMasses.get(i);
+            int location = modLocations.get(i);
             String massStr;
             if (modMass >= 0)
                 massStr = "+" + String.format("%.3f", modMass);
             else
                 massStr = String.format("%.3f", modMass);
-            if (modArr[mod.getLocation()] == null)
-                modArr[mod.getLocation()] = massStr;
+            if (modArr[location] == null)
+                modArr[location] = massStr;
             else
-                modArr[mod.getLocation()] += massStr;
+                modArr[location] += massStr;
         }
 
-        StringBuffer buf = new StringBuffer();
+        StringBuilder buf = new StringBuilder();
         if (modArr[0] != null)
             buf.append(modArr[0]);
         for (int i = 0; i < unmodPepSeq.length(); i++) {
@@ -344,10 +443,9 @@ public class MzIDParser {
         return buf.toString();
     }
 
-    private static String getMolecularFormula(Peptide peptide) {
+    private static String getMolecularFormula(String unmodPepSeq, List<Double> modMasses, List<String> modDeltaCompositions) {
         AminoAcidSet stdAASet = AminoAcidSet.getStandardAminoAcidSet();
 
-        String unmodPepSeq = peptide.getPeptideSequence();
         UnimodComposition composition = new UnimodComposition();
         for (int i = 0; i < unmodPepSeq.length(); i++) {
             char residue = unmodPepSeq.charAt(i);
@@ -355,20 +453,12 @@ public class MzIDParser {
         }
 
         // Modification
-        for (Modification mod : peptide.getModification()) {
-            boolean hasComposition = false;
-            for (CvParam cvParam : mod.getCvParam()) {
-                String accession = cvParam.getAccession();
-                String deltaComposition = Unimod.getUnimod().getDeltaComposition(accession);
-                if (deltaComposition != null)    // correct unimod accession number
-                {
-                    composition.add(deltaComposition);
-                    hasComposition = true;
-                    break;
-                }
-            }
-            if (!hasComposition)
-                composition.add(mod.getMonoisotopicMassDelta());
+        for (int i = 0; i < modMasses.size(); i++) {
+            String deltaComposition = modDeltaCompositions.get(i);
+            if (deltaComposition != null)    // correct unimod accession number
+                composition.add(deltaComposition);
+            else
+                composition.add(modMasses.get(i));
         }
 
         composition.add("H", 2);    // add H2O
@@ -377,6 +467,56 @@ public class MzIDParser {
         return composition.toString();
     }
 
+    /**
+     * TSV strings of a Peptide
+     */
+    private static class PeptideInfo {
+        private final String peptideSeq;
+        private final String molecularFormula;
+
+        PeptideInfo(String peptideSeq, String molecularFormula) {
+            this.peptideSeq = peptideSeq;
+            this.molecularFormula = molecularFormula;
+        }
+    }
+
+    private static class PeptideEvidenceInfo {
+        private final String pre;
+        private final String post;
+        private final String accession;
+        private final boolean isDecoy;
+
+        PeptideEvidenceInfo(String pre, String post, String accession, boolean isDecoy) {
+            this.pre = pre;
+            this.post = post;
+            this.accession = accession;
+            this.isDecoy = isDecoy;
+        }
+    }
+
+    private static class SpectrumIdentificationItemInfo {
+        private double calculatedMassToCharge;
+        private double experimentalMassToCharge;
+        private int charge;
+        private String peptideRef;
+        private final List<String> pepEvRefList = new ArrayList<String>();
+        private String deNovoScore;
+        private String rawScore;
+        private String specEValue;
+        private String eValue;
+        private String psmQValue;
+        private String pepQValue;
+        private String fragMethod;
+        private Integer isotopeError;
+
+        void clear() {
+            pepEvRefList.clear();
+            deNovoScore = rawScore = specEValue = eValue = psmQValue = pepQValue = "";
+            fragMethod = null;
+            isotopeError = null;
+        }
+    }
+
 
     public static void main(String argv[]) throws Exception {
         long time = System.currentTimeMillis();
@@ -0,0 +1,319 @@
+package edu.ucsd.msjava.mzid;
+
+import edu.ucsd.msjava.fdr.PSMScoreWriter;
+import edu.ucsd.msjava.msdbsearch.*;
+import edu.ucsd.msjava.msutil.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Writes the results of a search as the TSV file MzIDToTsv writes from the mzIdentML file (default settings:
+ * decoy PSMs are not shown, shared peptides are merged into one row and q-values are shown, empty if the search did not use a decoy database),
+ * without writing and parsing the mzIdentML file.
+ * With -addFeatures 1, a column is added for each feature of PSMFeatureFinder.
+ * With -experimentFDR 1 or 2, the scores of all PSMs are also written to a PSM score file (see PSMScoreWriter).
+ */
+public class TSVResultWriter {
+    private final SearchParams params;
+    private final AminoAcidSet aaSet;
+    private final CompactSuffixArray sa;
+    private final SpectraAccessor specAcc;
+    private final String specFileName;
+    private final boolean isMgf;
+    private final boolean isPrecursorTolerancePPM;
+    private final boolean showFeatures;
+
+    private final AnalysisProtocolCollectionGen apcGen;
+
+    private final Map<Integer, String> accessionMap;    // start position of a protein -> accession
+    private final Map<String, Integer> featureIndexMap;    // feature name -> column
+    private final Map<edu.ucsd.msjava.msutil.Modification, String> modMassStrMap;
+
+    // reused for each row
+    private final StringBuilder row = new StringBuilder();
+    private final StringBuilder unmodPepStr = new StringBuilder();
+    private final StringBuilder proteinBuf = new StringBuilder();
+    private final Set<String> proteinSet = new HashSet<String>();
+    private final List<Pair<Integer, edu.ucsd.msjava.msutil.Modification>> modList = new ArrayList<Pair<Integer, edu.ucsd.msjava.msutil.Modification>>();
+    private final String[] featureValues;
+
+    private PSMScoreWriter scoreWriter;    // while writing a PSM score file
+
+    public TSVResultWriter(SearchParams params, AminoAcidSet aaSet, CompactSuffixArray sa, SpectraAccessor specAcc, int ioIndex) {
+        this.params = params;
+        this.aaSet = aaSet;
+        this.sa = sa;
+        this.specAcc = specAcc;
+
+        DBSearchIOFiles ioFiles = params.getDBSearchIOList().get(ioIndex);
+        specFileName = ioFiles.getSpecFile().getName();
+        isMgf = ioFiles.getSpecFileFormat() == SpecFileFormat.MGF;
+        isPrecursorTolerancePPM = params.getRightPrecursorMassTolerance().isTolerancePPM();
+        showFeatures = params.outputAdditionalFeatures();
+
+        apcGen = new AnalysisProtocolCollectionGen(params, aaSet);
+
+        accessionMap = new HashMap<Integer, String>();
+        modMassStrMap = new HashMap<edu.ucsd.msjava.msutil.Modification, String>();
+        featureIndexMap = new HashMap<String, Integer>();
+        for (int i = 0; i < PSMFeatureFinder.FEATURE_NAMES.length; i++)
+            featureIndexMap.put(PSMFeatureFinder.FEATURE_NAMES[i], i);
+        featureValues = new String[PSMFeatureFinder.FEATURE_NAMES.length];
+    }
+
+    /**
+     * Output the results to the specified TSV file.
+     *
+     * @param resultList results sorted in the order they are to be written
+     * @param file
+     * @throws IOException if the file cannot be written
+     */
+    public void writeResults(Iterable<MSGFPlusMatch> resultList, File file) throws IOException {
+        writeResults(resultList, file, null);
+    }
+
+    /**
+     * Output the results to the specified TSV file and PSM score file.
+     *
+     * @param resultList results sorted in the order they are to be written
+     * @param tsvFile    TSV file, or null to write the PSM score file only
+     * @param scoreFile  PSM score file, or null
+     * @throws IOException if a file cannot be written
+     */
+    public void writeResults(Iterable<MSGFPlusMatch> resultList, File tsvFile, File scoreFile) throws IOException {
+        try (PSMScoreWriter scoreWriter = scoreFile == null ? null : new PSMScoreWriter(scoreFile);
+             Writer out = tsvFile == null ? null : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tsvFile), MZIdentMLGen.charset), 1 << 16)) {
+            this.scoreWriter = scoreWriter;
+            if (out != null) {
+                writeResults(resultList, out);
+            } else {
+                for (MSGFPlusMatch mpMatch : resultList)
+                    writeResult(mpMatch, null);
+            }
+        } finally {
+            this.scoreWriter = null;
+        }
+    }
+
+    public void writeResults(Iterable<MSGFPlusMatch> resultList, Writer out) throws IOException {
+        out.write(getHeader());
+        out.write('\n');
+        for (MSGFPlusMatch mpMatch : resultList)
+            writeResult(mpMatch, out);
+        out.flush();
+    }
+
+    private String getHeader() {
+        StringBuilder header = new StringBuilder();
+        header.append("#SpecFile")
+                .append("\tSpecID")
+                .append("\tScanNum")
+                .append(isMgf ? "\tTitle" : "")
+                .append("\tFragMethod")
+                .append("\tPrecursor")
+                .append("\tIsotopeError")
+                .append("\tPrecursorError(").append(isPrecursorTolerancePPM ? "ppm" : "Da").append(")")
+                .append("\tCharge")
+                .append("\tPeptide")
+                .append("\tProtein")
+                .append("\tDeNovoScore")
+                .append("\tMSGFScore")
+                .append("\tSpecEValue")
+                .append("\tEValue")
+                .append("\tQValue")
+                .append("\tPepQValue");
+        if (showFeatures) {
+            for (String featureName : PSMFeatureFinder.FEATURE_NAMES)
+                header.append('\t').append(featureName);
+        }
+        return header.toString();
+    }
+
+    /**
+     * Write the rows of a spectrum, and the scores of its PSMs if a PSM score file is written
+     *
+     * @param out TSV output, or null to write the scores only
+     */
+    private void writeResult(MSGFPlusMatch mpMatch, Writer out) throws IOException {
+        List<DatabaseMatch> matchList = mpMatch.getMatchList();
+        if (matchList == null || matchList.isEmpty())
+            return;
+
+        edu.ucsd.msjava.msutil.Spectrum spec = specAcc.getSpecMap().getSpectrumBySpecIndex(mpMatch.getSpecIndex());
+        String specID = spec.getID();
+        float precursorMz = spec.getPrecursorPeak().getMz();
+        int scanNum = spec.getScanNum() >= 0 ? spec.getScanNum() : -1;
+        String title = spec.getTitle() != null ? spec.getTitle() : "N/A";
+
+        CompactFastaSequence seq = sa.getSequence();
+        for (int i = matchList.size() - 1; i >= 0; --i) {
+            DatabaseMatch match = matchList.get(i);
+            if (match.getDeNovoScore() < params.getMinDeNovoScore()) {
+                // no rows for this match and the worse ones, but their scores count for the FDR
+                if (scoreWriter != null) {
+                    for (int j = i; j >= 0; --j)
+                        scoreWriter.write((float) matchList.get(j).getSpecEValue(), matchList.get(j).getPepSeq(), isDecoy(matchList.get(j)), false);
+                }
+                break;
+            }
+
+            if (out == null) {
+                scoreWriter.write((float) match.getSpecEValue(), match.getPepSeq(), isDecoy(match), false);
+                continue;
+            }
+
+            unmodPepStr.setLength(0);
+            modList.clear();
+            MZIdentMLGen.parsePeptide(aaSet, apcGen, match.getPepSeq(), unmodPepStr, modList);
+            String peptideSequence = unmodPepStr.toString();
+
+            // protein column; PSMs matching only decoy proteins are not shown
+            proteinSet.clear();
+            proteinBuf.setLength(0);
+            boolean isAllDecoy = true;
+            for (int index : match.getIndices()) {
+                MZIdentMLGen.PeptideEvidenceInfo pepEv = MZIdentMLGen.getPeptideEvidence(seq, match, index, peptideSequence, null);
+                String protein = getAccession(pepEv.protStartIndex);
+                if (protein.startsWith(params.getDecoyProteinPrefix()))
+                    continue;
+
+                isAllDecoy = false;
+                if (proteinSet.add(pepEv.pre + protein + pepEv.post)) {
+                    if (proteinBuf.length() != 0)
+                        proteinBuf.append(';');
+                    proteinBuf.append(protein).append("(pre=").append(pepEv.pre).append(",post=").append(pepEv.post).append(')');
+                }
+            }
+            if (isAllDecoy) {
+                if (scoreWriter != null)
+                    scoreWriter.write((float) match.getSpecEValue(), match.getPepSeq(), true, false);
+                continue;
+            }
+
+            int length = match.getLength();        // Peptide length + 2
+            int charge = match.getCharge();
+            float theoMz = (match.getPeptideMass() + (float) Composition.H2O) / charge + (float) Composition.ChargeCarrierMass();
+
+            double specEValue = match.getSpecEValue();
+            int numPeptides = sa.getNumDistinctPeptides(params.getEnzyme() == null ? length - 2 : length - 1);
+            double eValue = specEValue * numPeptides;
+
+            float expMass = precursorMz * charge;
+            float theoMass = theoMz * charge;
+            int isotopeError = Math.round((expMass - theoMass) / (float) Composition.ISOTOPE);
+
+            double adjustedExpMz = (double) precursorMz - Composition.ISOTOPE * isotopeError / charge;
+            double precursorError = adjustedExpMz - (double) theoMz;
+            if (isPrecursorTolerancePPM)
+                precursorError = precursorError / (double) theoMz * 1e6;
+
+            String fragMethod = null;
+            ActivationMethod[] activationMethodArr = match.getActivationMethodArr();
+            if (activationMethodArr != null) {
+                StringBuilder actMethodStrBuf = new StringBuilder();
+                actMethodStrBuf.append(activationMethodArr[0]);
+                for (int j = 1; j < activationMethodArr.length; j++)
+                    actMethodStrBuf.append("/").append(activationMethodArr[j]);
+                fragMethod = actMethodStrBuf.toString();
+            }
+
+            row.setLength(0);
+            row.append(specFileName)
+                    .append('\t').append(specID)
+                    .append('\t').append(scanNum);
+            if (isMgf)
+                row.append('\t').append(title);
+            row.append('\t').append(fragMethod)
+                    .append('\t').append(precursorMz)
+                    .append('\t').append(isotopeError)
+                    .append('\t').append((float) precursorError)
+                    .append('\t').append(charge)
+                    .append('\t');
+            appendPeptide(peptideSequence);
+            row.append('\t').append(proteinBuf)
+                    .append('\t').append(match.getDeNovoScore())
+                    .append('\t').append(match.getScore())
+                    .append('\t').append(specEValue < Float.MIN_NORMAL ? String.valueOf(specEValue) : String.valueOf((float) specEValue))
+                    .append('\t').append(specEValue < Float.MIN_NORMAL ? String.valueOf(eValue) : String.valueOf((float) eValue));
+            row.append('\t');
+            if (match.getPSMQValue() != null)
+                row.append(match.getPSMQValue());
+            row.append('\t');
+            if (match.getPepQValue() != null)
+                row.append(match.getPepQValue());
+            if (showFeatures)
+                appendFeatures(match);
+            row.append('\n');
+            out.append(row);
+            if (scoreWriter != null)
+                scoreWriter.write((float) match.getSpecEValue(), match.getPepSeq(), false, true);
+        }
+    }
+
+    /**
+     * A match is a decoy if all of its proteins are decoys
+     */
+    private boolean isDecoy(DatabaseMatch match) {
+        for (int index : match.getIndices()) {
+            String annotation = sa.getSequence().getAnnotation(index);
+            if (annotation == null || !annotation.startsWith(params.getDecoyProteinPrefix()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Peptide with modification masses after the modified residues, e.g. C+57.021PEPTIDEM+15.995K, as MzIDToTsv writes it
+     */
+    private void appendPeptide(String peptideSequence) {
+        int length = peptideSequence.length();
+        // modifications are listed by location, 0 and length + 1 being the N- and C-term
+        for (int location = 0; location <= length + 1; location++) {
+            if (location >= 1 && location <= length)
+                row.append(peptideSequence.charAt(location - 1));
+            for (Pair<Integer, edu.ucsd.msjava.msutil.Modification> locMod : modList) {
+                if (locMod.getFirst() == location)
+                    row.append(getModMassStr(locMod.getSecond()));
+            }
+        }
+    }
+
+    private String getModMassStr(edu.ucsd.msjava.msutil.Modification mod) {
+        String massStr = modMassStrMap.get(mod);
+        if (massStr == null) {
+            double modMass = mod.getAccurateMass();
+            if (modMass >= 0)
+                massStr = "+" + String.format("%.3f", modMass);
+            else
+                massStr = String.format("%.3f", modMass);
+            modMassStrMap.put(mod, massStr);
+        }
+        return massStr;
+    }
+
+    private void appendFeatures(DatabaseMatch match) {
+        Arrays.fill(featureValues, null);
+        if (match.getAdditionalFeatureList() != null) {
+            for (Pair<String, String> feature : match.getAdditionalFeatureList()) {
+                Integer index = featureIndexMap.get(feature.getFirst());
+                if (index != null)
+                    featureValues[index] = feature.getSecond();
+            }
+        }
+        for (String value : featureValues) {
+            row.append('\t');
+            if (value != null)
+                row.append(value);
+        }
+    }
+
+    private String getAccession(int protStartIndex) {
+        String accession = accessionMap.get(protStartIndex);
+        if (accession == null) {
+            accession = MZIdentMLGen.getAccession(sa.getSequence(), protStartIndex);
+            accessionMap.put(protStartIndex, accession);
+        }
+        return accession;
+    }
+}
@@ -4,18 +4,29 @@ import org.slf4j.LoggerFactory;
 import ch.qos.logback.classic.Logger;
 import ch.qos.logback.classic.LoggerContext;
 
+import edu.ucsd.msjava.msutil.Spectrum;
 import edu.ucsd.msjava.mzid.Constants;
 import uk.ac.ebi.jmzidml.model.mzidml.CvParam;
 import uk.ac.ebi.jmzml.model.mzml.CVParam;
 import uk.ac.ebi.jmzml.model.mzml.SourceFile;
 import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 
-public class MzMLAdapter {
+/**
+ * Access to the spectra of an mzML file.
+ * Spectra are read with MzMLSpectrumReader (StAX); jmzml is only used if the file cannot be read that way,
+ * or for spectra whose binary data MzMLSpectrumReader cannot decode (e.g. MS-Numpress compression).
+ * The adapter keeps the file open until close() is called.
+ */
+public class MzMLAdapter implements Closeable {
 
     private final File specFile;
+    private MzMLSpectrumReader reader;
     private MzMLUnmarshaller unmarshaller;
     private int minMSLevel = 2;        // inclusive
     private int maxMSLevel = Integer.MAX_VALUE;        // exclusive
@@ -24,7 +35,14 @@ public class MzMLAdapter {
     public MzMLAdapter(File specFile) {
         turnOffLogs();
         this.specFile = specFile;
-        unmarshaller = new MzMLUnmarshaller(specFile);
+        try {
+            reader = new MzMLSpectrumReader(specFile);
+        } catch (IOException e) {
+            System.err.println("Warning: " + e.getMessage());
+            System.err.println("Reading " + specFile.getName() + " with jmzml");
+            reader = null;
+            getUnmarshaller();
+        }
     }
 
     /**
@@ -40,10 +58,129 @@ public class MzMLAdapter {
         return this;
     }
 
-    public MzMLUnmarshaller getUnmarshaller() {
+    /**
+     * @return jmzml unmarshaller of the file; created on first use
+     */
+    public synchronized MzMLUnmarshaller getUnmarshaller() {
+        if (unmarshaller == null)
+            unmarshaller = new MzMLUnmarshaller(specFile);
         return unmarshaller;
     }
 
+    /**
+     * @return StAX reader of the file, or null if the file could not be read by it
+     */
+    public MzMLSpectrumReader getReader() {
+        return reader;
+    }
+
+    public int getNumSpectra() {
+        if (reader != null)
+            return reader.getNumSpectra();
+        return getUnmarshaller().getSpectrumIndexes().size();
+    }
+
+    /**
+     * @param index 0-based spectrum index
+     * @return native ID of the spectrum
+     */
+    public String getSpectrumId(int index) {
+        if (reader != null)
+            return reader.getSpectrumId(index);
+        return getUnmarshaller().getSpectrumIDFromSpectrumIndex(index);
+    }
+
+    /**
+     * Read a spectrum, regardless of its MS level
+     *
+     * @param index 0-based spectrum index
+     * @return the spectrum, or null if there is no such spectrum
+     */
+    public Spectrum readSpectrum(int index) {
+        if (reader != null) {
+            try {
+                return reader.readSpectrum(index);
+            } catch (MzMLSpectrumReader.UnsupportedBinaryDataException e) {
+                // fall back to jmzml
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        String specId = getSpectrumId(index);
+        if (specId == null)
+            return null;
+        uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = getJMzMLSpectrum(specId);
+        if (jmzSpec == null)
+            return null;
+        return SpectrumConverter.getSpectrumFromJMzMLSpec(jmzSpec);
+    }
+
+    /**
+     * Read a spectrum, regardless of its MS level
+     *
+     * @param specId native ID of the spectrum
+     * @return the spectrum, or null if there is no such spectrum
+     */
+    public Spectrum readSpectrum(String specId) {
+        if (reader != null) {
+            int index = reader.getSpectrumIndex(specId);
+            return index >= 0 ? readSpectrum(index) : null;
+        }
+
+        uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = getJMzMLSpectrum(specId);
+        if (jmzSpec == null)
+            return null;
+        return SpectrumConverter.getSpectrumFromJMzMLSpec(jmzSpec);
+    }
+
+    /**
+     * @param index 0-based spectrum index
+     * @return m/z of the first selected ion of the spectrum, or null if there is none
+     */
+    public Float getPrecursorMz(int index) {
+        if (reader != null) {
+            try {
+                return reader.readSelectedIonMz(index);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        String specId = getSpectrumId(index);
+        if (specId == null)
+            return null;
+        uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = getJMzMLSpectrum(specId);
+        if (jmzSpec == null)
+            return null;
+        return SpectrumConverter.getPrecursorMzFromJMzMLSpec(jmzSpec);
+    }
+
+    private uk.ac.ebi.jmzml.model.mzml.Spectrum getJMzMLSpectrum(String specId) {
+        try {
+            return getUnmarshaller().getSpectrumById(specId);
+        } catch (MzMLUnmarshallerException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Close the file opened by MzMLSpectrumReader; the adapter must not be used afterwards
+     */
+    @Override
+    public void close() {
+        if (reader == null)
+            return;
+        try {
+            reader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public int getMinMSLevel() {
         return minMSLevel;
     }
@@ -56,23 +193,24 @@ public class MzMLAdapter {
         if (spectrumIDFormatCvParam != null)
             return spectrumIDFormatCvParam;
 
-        MzMLObjectIterator<SourceFile> itr = unmarshaller.unmarshalCollectionFromXpath("/fileDescription/sourceFileList/sourceFile", SourceFile.class);
-        while (itr.hasNext()) {
-            SourceFile sourceFile = itr.next();
-            for (CVParam param : sourceFile.getCvParam()) {
-                String tempAcc = param.getAccession();
-                long accNum = Long.parseLong(tempAcc.substring(tempAcc.lastIndexOf(':') + 1));
-                if (accNum >= 1000768 && accNum <= 1000777
-                        || accNum == 1000823 || accNum == 1000824 || accNum == 1000929
-                        || accNum == 1001508 || accNum == 1001526 || accNum == 1001528
-                        || accNum == 1001531 || accNum == 1001532 || accNum == 1001559
-                        || accNum == 1001562 || accNum == 1002818 || accNum == 1001480
-                        || accNum == 1002303 || accNum == 1002532 || accNum == 1002898
-                        ) {
+        if (reader != null) {
+            for (MzMLSpectrumReader.MzMLCvParam param : reader.getSourceFileCvParams()) {
+                if (isSpectrumIDFormat(param.getAccession())) {
                     spectrumIDFormatCvParam = Constants.makeCvParam(param.getAccession(), param.getName());
                     return spectrumIDFormatCvParam;
                 }
             }
+        } else {
+            MzMLObjectIterator<SourceFile> itr = getUnmarshaller().unmarshalCollectionFromXpath("/fileDescription/sourceFileList/sourceFile", SourceFile.class);
+            while (itr.hasNext()) {
+                SourceFile sourceFile = itr.next();
+                for (CVParam param : sourceFile.getCvParam()) {
+                    if (isSpectrumIDFormat(param.getAccession())) {
+                        spectrumIDFormatCvParam = Constants.makeCvParam(param.getAccession(), param.getName());
+                        return spectrumIDFormatCvParam;
+                    }
+                }
+            }
         }
 
         System.err.println("Unsupported mzML format: " + specFile.getAbsolutePath() + " does not contain a child term of MS:1000767 (native spectrum identifier format)");
@@ -81,6 +219,20 @@ public class MzMLAdapter {
         return null;
     }
 
+    /**
+     * @param accession cvParam accession
+     * @return true if the accession is a child term of MS:1000767 (native spectrum identifier format)
+     */
+    private static boolean isSpectrumIDFormat(String accession) {
+        long accNum = Long.parseLong(accession.substring(accession.lastIndexOf(':') + 1));
+        return accNum >= 1000768 && accNum <= 1000777
+                || accNum == 1000823 || accNum == 1000824 || accNum == 1000929
+                || accNum == 1001508 || accNum == 1001526 || accNum == 1001528
+                || accNum == 1001531 || accNum == 1001532 || accNum == 1001559
+                || accNum == 1001562 || accNum == 1002818 || accNum == 1001480
+                || accNum == 1002303 || accNum == 1002532 || accNum == 1002898;
+    }
+
     private static boolean logOff = false;
 
     public static void turnOffLogs() {
@@ -101,7 +253,7 @@ public class MzMLAdapter {
         long time = System.currentTimeMillis();
         File specFile = new File(System.getProperty("user.home") + "/Research/Data/QCShew/QC_Shew_12_02_2_1Aug12_Cougar_12-06-11.mzML");
         MzMLAdapter adapter = new MzMLAdapter(specFile);
-        System.out.println("Unmarshaller: " + (System.currentTimeMillis() - time) / 1000);
+        System.out.println("Reader: " + (System.currentTimeMillis() - time) / 1000);
         System.out.println(adapter.getSpectrumIDFormatCvParam().getAccession() + " " + adapter.getSpectrumIDFormatCvParam().getName());
 
 
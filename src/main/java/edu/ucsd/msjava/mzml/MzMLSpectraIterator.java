@@ -2,30 +2,30 @@ package edu.ucsd.msjava.mzml;
 
 import edu.ucsd.msjava.msutil.Spectrum;
 import edu.ucsd.msjava.parser.SpectrumParser;
-import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
 
 import java.io.File;
 import java.util.Iterator;
 
 
 public class MzMLSpectraIterator implements Iterator<edu.ucsd.msjava.msutil.Spectrum>, Iterable<edu.ucsd.msjava.msutil.Spectrum> {
-    private final MzMLUnmarshaller unmarshaller;
+    private final MzMLAdapter mzmlAdapter;
     private final int minMSLevel;        // inclusive
     private final int maxMSLevel;        // exclusive
 
-    private MzMLObjectIterator<uk.ac.ebi.jmzml.model.mzml.Spectrum> itr;
+    private final int numSpecs;
+    private int nextIndex;        // 0-based index of the next spectrum to read
     private boolean hasNext;
     private edu.ucsd.msjava.msutil.Spectrum currentSpectrum = null;
     private long negativePolarityWarningCount;
 
     public MzMLSpectraIterator(MzMLAdapter mzmlAdapter) {
-        unmarshaller = mzmlAdapter.getUnmarshaller();
+        this.mzmlAdapter = mzmlAdapter;
         minMSLevel = mzmlAdapter.getMinMSLevel();
         maxMSLevel = mzmlAdapter.getMaxMSLevel();
         negativePolarityWarningCount = 0;
 
-        itr = unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", uk.ac.ebi.jmzml.model.mzml.Spectrum.class);
+        numSpecs = mzmlAdapter.getNumSpectra();
+        nextIndex = 0;
         currentSpectrum = parseNextSpectrum();
         hasNext = currentSpectrum != null;
     }
@@ -53,12 +53,10 @@ public class MzMLSpectraIterator implements Iterator<edu.ucsd.msjava.msutil.Spec
 
     public edu.ucsd.msjava.msutil.Spectrum parseNextSpectrum() {
         edu.ucsd.msjava.msutil.Spectrum spec = null;
-        uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = null;
 
-        while (itr.hasNext()) {
-            jmzSpec = itr.next();
-            spec = SpectrumConverter.getSpectrumFromJMzMLSpec(jmzSpec);
-            if (spec.getMSLevel() < minMSLevel || spec.getMSLevel() > maxMSLevel)
+        while (nextIndex < numSpecs) {
+            spec = mzmlAdapter.readSpectrum(nextIndex++);
+            if (spec == null || spec.getMSLevel() < minMSLevel || spec.getMSLevel() > maxMSLevel)
                 continue;
             else
                 return spec;
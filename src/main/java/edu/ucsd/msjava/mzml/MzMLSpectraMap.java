@@ -2,72 +2,54 @@ package edu.ucsd.msjava.mzml;
 
 import edu.ucsd.msjava.msutil.Spectrum;
 import edu.ucsd.msjava.msutil.SpectrumAccessorBySpecIndex;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
-import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 import java.util.ArrayList;
 
 public class MzMLSpectraMap implements SpectrumAccessorBySpecIndex {
-    private final MzMLUnmarshaller unmarshaller;
+    private final MzMLAdapter mzmlAdapter;
     private final int minMSLevel;        // inclusive
     private final int maxMSLevel;        // exclusive
 
     public MzMLSpectraMap(MzMLAdapter mzmlAdapter) {
-        unmarshaller = mzmlAdapter.getUnmarshaller();
+        this.mzmlAdapter = mzmlAdapter;
         minMSLevel = mzmlAdapter.getMinMSLevel();
         maxMSLevel = mzmlAdapter.getMaxMSLevel();
     }
 
     public edu.ucsd.msjava.msutil.Spectrum getSpectrumBySpecIndex(int specIndex) {
-        String specId = unmarshaller.getSpectrumIDFromSpectrumIndex(specIndex - 1);
-        if (specId != null)
-            return getSpectrumById(specId);
-        return null;
+        return filterByMSLevel(mzmlAdapter.readSpectrum(specIndex - 1));
     }
 
     @Override
     public Spectrum getSpectrumById(String specId) {
-        uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = null;
-        try {
-            jmzSpec = unmarshaller.getSpectrumById(specId);
-        } catch (MzMLUnmarshallerException e) {
-            e.printStackTrace();
-        }
-        if (jmzSpec != null) {
-            edu.ucsd.msjava.msutil.Spectrum spec = SpectrumConverter.getSpectrumFromJMzMLSpec(jmzSpec);
-            if (spec.getMSLevel() < minMSLevel || spec.getMSLevel() > maxMSLevel)
-                return null;
-            else
-                return spec;
-        }
-        return null;
+        return filterByMSLevel(mzmlAdapter.readSpectrum(specId));
     }
 
+    private Spectrum filterByMSLevel(Spectrum spec) {
+        if (spec == null || spec.getMSLevel() < minMSLevel || spec.getMSLevel() > maxMSLevel)
+            return null;
+        return spec;
+    }
+
+    /**
+     * @return 1-based indices of all spectra of the file, regardless of MS level
+     */
     public ArrayList<Integer> getSpecIndexList() {
-        return new ArrayList<Integer>(unmarshaller.getSpectrumIndexes());
+        int numSpecs = mzmlAdapter.getNumSpectra();
+        ArrayList<Integer> specIndexList = new ArrayList<Integer>(numSpecs);
+        for (int specIndex = 1; specIndex <= numSpecs; specIndex++)
+            specIndexList.add(specIndex);
+        return specIndexList;
     }
 
     @Override
     public String getID(int specIndex) {
-        return unmarshaller.getSpectrumIDFromSpectrumIndex(specIndex - 1);
+        return mzmlAdapter.getSpectrumId(specIndex - 1);
     }
 
     @Override
     public Float getPrecursorMz(int specIndex) {
-        String specID = unmarshaller.getSpectrumIDFromSpectrumIndex(specIndex - 1);
-        if (specID != null) {
-            uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = null;
-            try {
-                jmzSpec = unmarshaller.getSpectrumById(specID);
-            } catch (MzMLUnmarshallerException e) {
-                e.printStackTrace();
-            }
-            if (jmzSpec != null) {
-                float precursorMz = SpectrumConverter.getPrecursorMzFromJMzMLSpec(jmzSpec);
-                return precursorMz;
-            }
-        }
-        return null;
+        return mzmlAdapter.getPrecursorMz(specIndex - 1);
     }
 
     @Override
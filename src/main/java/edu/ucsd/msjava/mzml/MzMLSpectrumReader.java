@@ -0,0 +1,878 @@
+package edu.ucsd.msjava.mzml;
+
+import edu.ucsd.msjava.msutil.ActivationMethod;
+import edu.ucsd.msjava.msutil.CvParamInfo;
+import edu.ucsd.msjava.msutil.Peak;
+import edu.ucsd.msjava.msutil.Spectrum;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads spectra from an mzML file with StAX, by random access to the byte offset of each spectrum element.
+ * Offsets are taken from the index of an indexedmzML file, or found by scanning the file once if it has no valid index.
+ * Binary data arrays are decoded (base64, then zlib if compressed) directly into float arrays.
+ * Spectra are read with positional reads of a shared FileChannel, so concurrent calls are safe.
+ * Spectra are converted to Spectrum objects the same way as SpectrumConverter does for jmzml spectra,
+ * except that cvParams of referenceable param groups are taken into account.
+ */
+public class MzMLSpectrumReader implements Closeable {
+
+    /**
+     * Thrown for binary data arrays that this reader cannot decode (e.g. MS-Numpress compression)
+     */
+    public static class UnsupportedBinaryDataException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedBinaryDataException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * cvParam of the mzML file (accession, name, value, unit accession, unit name)
+     */
+    public static class MzMLCvParam {
+        private final String accession;
+        private final String name;
+        private final String value;
+        private final String unitAccession;
+        private final String unitName;
+
+        MzMLCvParam(XMLStreamReader reader) {
+            accession = reader.getAttributeValue(null, "accession");
+            name = reader.getAttributeValue(null, "name");
+            value = reader.getAttributeValue(null, "value");
+            unitAccession = reader.getAttributeValue(null, "unitAccession");
+            unitName = reader.getAttributeValue(null, "unitName");
+        }
+
+        public String getAccession() {
+            return accession;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getUnitAccession() {
+            return unitAccession;
+        }
+
+        public String getUnitName() {
+            return unitName;
+        }
+    }
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private static final byte[] SPECTRUM_TAG = "<spectrum".getBytes(Charset.forName("US-ASCII"));
+    private static final Pattern INDEX_LIST_OFFSET_PATTERN = Pattern.compile("<indexListOffset>\\s*(\\d+)\\s*</indexListOffset>");
+    private static final Pattern ID_ATTRIBUTE_PATTERN = Pattern.compile("\\sid\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // Kinds of cvParam owners within a spectrum
+    private static final int SPECTRUM = 0;
+    private static final int SCAN = 1;
+    private static final int ISOLATION_WINDOW = 2;
+    private static final int SELECTED_ION = 3;
+    private static final int ACTIVATION = 4;
+    private static final int BINARY_DATA_ARRAY = 5;
+    private static final int OTHER = 6;
+
+    private final File specFile;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+    private String encoding = "UTF-8";
+
+    private final Map<String, List<MzMLCvParam>> referenceableParamGroups = new HashMap<String, List<MzMLCvParam>>();
+    private final List<MzMLCvParam> sourceFileCvParams = new ArrayList<MzMLCvParam>();
+
+    // spectrum index (0-based) -> byte offset of the spectrum element; sorted by offset
+    private long[] offsets;
+    private String[] ids;
+    private Map<String, Integer> idToIndex;
+
+    public MzMLSpectrumReader(File specFile) throws IOException {
+        this.specFile = specFile;
+        raf = new RandomAccessFile(specFile, "r");
+        channel = raf.getChannel();
+        fileSize = channel.size();
+
+        try {
+            readHeader();
+        } catch (XMLStreamException e) {
+            throw new IOException("Error parsing the header of " + specFile.getPath() + ": " + e.getMessage(), e);
+        }
+
+        if (!readIndexList())
+            scanSpectrumOffsets();
+
+        idToIndex = new HashMap<String, Integer>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++)
+            idToIndex.put(ids[i], i);
+    }
+
+    public File getSpecFile() {
+        return specFile;
+    }
+
+    public int getNumSpectra() {
+        return offsets.length;
+    }
+
+    /**
+     * @param index 0-based spectrum index
+     * @return native ID of the spectrum, or null if the index is out of range
+     */
+    public String getSpectrumId(int index) {
+        if (index < 0 || index >= ids.length)
+            return null;
+        return ids[index];
+    }
+
+    /**
+     * @param specId native ID of a spectrum
+     * @return 0-based index of the spectrum, or -1 if there is no such spectrum
+     */
+    public int getSpectrumIndex(String specId) {
+        Integer index = idToIndex.get(specId);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return cvParams of all sourceFile elements of the file, in file order
+     */
+    public List<MzMLCvParam> getSourceFileCvParams() {
+        return Collections.unmodifiableList(sourceFileCvParams);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Read a spectrum
+     *
+     * @param index 0-based spectrum index
+     * @return the spectrum, or null if the index is out of range
+     * @throws IOException for I/O and parsing errors, and UnsupportedBinaryDataException for binary data that cannot be decoded
+     */
+    public Spectrum readSpectrum(int index) throws IOException {
+        if (index < 0 || index >= offsets.length)
+            return null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = openSpectrum(index);
+            return parseSpectrum(reader);
+        } catch (XMLStreamException e) {
+            throw new IOException("Error parsing spectrum " + ids[index] + " of " + specFile.getPath() + ": " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Read the m/z of the first selected ion of the first precursor (MS:1000744), like SpectrumConverter.getPrecursorMzFromJMzMLSpec
+     *
+     * @param index 0-based spectrum index
+     * @return selected ion m/z, or null if the spectrum has none
+     */
+    public Float readSelectedIonMz(int index) throws IOException {
+        if (index < 0 || index >= offsets.length)
+            return null;
+
+        XMLStreamReader reader = null;
+        try {
+            reader = openSpectrum(index);
+            int precursorCount = 0;
+            int selectedIonCount = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("precursor")) {
+                        precursorCount++;
+                    } else if (name.equals("selectedIon")) {
+                        selectedIonCount++;
+                    } else if (name.equals("binaryDataArrayList")) {
+                        return null;
+                    } else if (precursorCount == 1 && selectedIonCount == 1 && name.equals("cvParam")) {
+                        if ("MS:1000744".equals(reader.getAttributeValue(null, "accession")))
+                            return Float.parseFloat(reader.getAttributeValue(null, "value"));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("selectedIonList") || name.equals("precursorList") || name.equals("spectrum"))
+                        if (precursorCount > 0 || name.equals("spectrum"))
+                            return null;
+                }
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Error parsing spectrum " + ids[index] + " of " + specFile.getPath() + ": " + e.getMessage(), e);
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private XMLStreamReader openSpectrum(int index) throws XMLStreamException {
+        long start = offsets[index];
+        long end = index + 1 < offsets.length ? offsets[index + 1] : fileSize;
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ChannelInputStream(channel, start, end), encoding);
+        reader.nextTag();    // <spectrum>
+        return reader;
+    }
+
+    private Spectrum parseSpectrum(XMLStreamReader reader) throws XMLStreamException, IOException {
+        Spectrum spec = new Spectrum();
+
+        String id = reader.getAttributeValue(null, "id");
+        spec.setID(id);
+
+        // scan number
+        String[] idToken = id.split("\\s+");
+        if (idToken.length > 0 && idToken[idToken.length - 1].matches("scan=\\d+")) {
+            int scanNum = Integer.parseInt(idToken[idToken.length - 1].substring(5));
+            spec.setScanNum(scanNum);
+        }
+
+        String indexStr = reader.getAttributeValue(null, "index");
+        int specIndex = indexStr != null ? Integer.parseInt(indexStr.trim()) : 0;
+
+        SpectrumState state = new SpectrumState();
+
+        int depth = 0;
+        int context = OTHER;
+        List<String> elementStack = new ArrayList<String>();
+        BinaryDataArray curArray = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                String parent = depth == 0 ? "spectrum" : elementStack.get(depth - 1);
+                elementStack.add(name);
+                depth++;
+
+                if (name.equals("cvParam")) {
+                    state.handleCvParam(getContext(parent, state), new MzMLCvParam(reader));
+                } else if (name.equals("referenceableParamGroupRef")) {
+                    List<MzMLCvParam> group = referenceableParamGroups.get(reader.getAttributeValue(null, "ref"));
+                    if (group != null) {
+                        context = getContext(parent, state);
+                        for (MzMLCvParam cvParam : group)
+                            state.handleCvParam(context, cvParam);
+                    }
+                } else if (name.equals("userParam")) {
+                    if (parent.equals("scan") && state.scanCount == 1 && state.precursorMz < 0
+                            && "[Thermo Trailer Extra]Monoisotopic M/Z:".equals(reader.getAttributeValue(null, "name")))
+                        state.precursorMz = Float.parseFloat(reader.getAttributeValue(null, "value"));
+                } else if (name.equals("scan")) {
+                    state.scanCount++;
+                } else if (name.equals("precursor")) {
+                    state.precursorCount++;
+                } else if (name.equals("selectedIonList")) {
+                    if (state.precursorCount == 1)
+                        state.hasSelectedIonList = true;
+                } else if (name.equals("selectedIon")) {
+                    if (state.precursorCount == 1)
+                        state.selectedIonCount++;
+                } else if (name.equals("binaryDataArray")) {
+                    String encodedLength = reader.getAttributeValue(null, "encodedLength");
+                    curArray = new BinaryDataArray(encodedLength == null || Integer.parseInt(encodedLength.trim()) != 0);
+                    state.curArray = curArray;
+                } else if (name.equals("binary")) {
+                    if (curArray != null)
+                        curArray.encodedData = reader.getElementText();
+                    elementStack.remove(--depth);
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 0)    // </spectrum>
+                    break;
+                String name = elementStack.remove(--depth);
+                if (name.equals("binaryDataArray")) {
+                    state.addBinaryDataArray(curArray);
+                    curArray = null;
+                    state.curArray = null;
+                }
+            }
+        }
+
+        state.apply(spec);
+
+        // Peak list
+        if (state.mzArray != null && state.intenArray != null) {
+            float[] mzValues = state.mzArray.decode();
+            float[] intenValues = state.intenArray.decode();
+
+            if (mzValues.length != intenValues.length)
+                throw new IOException("Different sizes for m/z and intensity value arrays for spectrum " + id
+                        + " (" + mzValues.length + " and " + intenValues.length + ")");
+
+            for (int i = 0; i < mzValues.length; i++)
+                spec.add(new Peak(mzValues[i], intenValues[i], 1));
+        }
+
+        // SpecIndex
+        spec.setSpecIndex(specIndex + 1);    // 1-based spectrum index
+
+        // sort peaks by increasing order of m/z
+        Collections.sort(spec);
+
+        spec.determineIsCentroided();
+
+        return spec;
+    }
+
+    private static int getContext(String parent, SpectrumState state) {
+        if (parent.equals("spectrum"))
+            return SPECTRUM;
+        if (parent.equals("scan"))
+            return state.scanCount == 1 ? SCAN : OTHER;
+        if (state.precursorCount != 1)
+            return parent.equals("binaryDataArray") ? BINARY_DATA_ARRAY : OTHER;
+        if (parent.equals("isolationWindow"))
+            return ISOLATION_WINDOW;
+        if (parent.equals("selectedIon"))
+            return state.selectedIonCount == 1 ? SELECTED_ION : OTHER;
+        if (parent.equals("activation"))
+            return ACTIVATION;
+        if (parent.equals("binaryDataArray"))
+            return BINARY_DATA_ARRAY;
+        return OTHER;
+    }
+
+    /**
+     * Values collected while streaming through a spectrum element
+     */
+    private static class SpectrumState {
+        int scanCount = 0;
+        int precursorCount = 0;
+        int selectedIonCount = 0;
+        boolean hasSelectedIonList = false;
+
+        String msLevel = null;
+        boolean isCentroided = false;
+        Spectrum.Polarity scanPolarity = Spectrum.Polarity.POSITIVE;
+
+        float scanStartTime = -1;
+        boolean scanStartTimeIsSeconds = true;
+        List<CvParamInfo> addlCvParams = new ArrayList<CvParamInfo>();
+
+        float precursorMz = -1;
+        Float selectedIonMz = null;
+        int precursorCharge = 0;
+        float precursorIntensity = 0;
+
+        boolean hasIsolationWindow = false;
+        Float isolationWindowTargetMz = null;
+        List<String> activationAccessions = new ArrayList<String>();
+
+        BinaryDataArray curArray = null;
+        BinaryDataArray mzArray = null;
+        BinaryDataArray intenArray = null;
+
+        void handleCvParam(int context, MzMLCvParam cvParam) {
+            String accession = cvParam.getAccession();
+            if (accession == null)
+                return;
+
+            switch (context) {
+                case SPECTRUM:
+                    if (accession.equals("MS:1000511"))    // MS level
+                        msLevel = cvParam.getValue();
+                    else if (accession.equals("MS:1000127"))    // centroid spectrum
+                        isCentroided = true;
+                    else if (accession.equals("MS:1000128"))    // profile spectrum
+                        isCentroided = false;
+                    else if (accession.equals("MS:1000129"))    // negative mode scan
+                        scanPolarity = Spectrum.Polarity.NEGATIVE;
+                    else if (accession.equals("MS:1000130"))    // positive mode scan
+                        scanPolarity = Spectrum.Polarity.POSITIVE;
+                    break;
+                case SCAN:
+                    if (accession.equals("MS:1000016")) {
+                        scanStartTime = Float.parseFloat(cvParam.getValue());
+                        if ("UO:0000031".equals(cvParam.getUnitAccession())) {
+                            // in minutes
+                            scanStartTimeIsSeconds = false;
+                        } else if ("UO:0000010".equals(cvParam.getUnitAccession())) {
+                            // in seconds
+                            scanStartTimeIsSeconds = true;
+                        }
+                    }
+                    // is_a: MS:1002892 ! ion mobility attribute cvParams
+                    else if (accession.equals("MS:1001581")      // FAIMS compensation voltage
+                            || accession.equals("MS:1002476")    // ion mobility drift time
+                            || accession.equals("MS:1002815")) { // inverse reduced ion mobility
+                        if (cvParam.getUnitAccession() != null && !cvParam.getUnitAccession().isEmpty())
+                            addlCvParams.add(new CvParamInfo(accession, cvParam.getName(), cvParam.getValue(), cvParam.getUnitAccession(), cvParam.getUnitName()));
+                        else
+                            addlCvParams.add(new CvParamInfo(accession, cvParam.getName(), cvParam.getValue()));
+                    }
+                    break;
+                case ISOLATION_WINDOW:
+                    hasIsolationWindow = true;
+                    if (accession.equals("MS:1000827"))    // isolation window target m/z
+                        isolationWindowTargetMz = Float.parseFloat(cvParam.getValue());    // assume that unit is m/z (MS:1000040)
+                    break;
+                case SELECTED_ION:
+                    if (accession.equals("MS:1000744")) {    // selected ion m/z
+                        if (selectedIonMz == null)
+                            selectedIonMz = Float.parseFloat(cvParam.getValue());    // assume that unit is m/z (MS:1000040)
+                    } else if (accession.equals("MS:1000041"))    // charge state
+                        precursorCharge = Integer.parseInt(cvParam.getValue());
+                    else if (accession.equals("MS:1000042"))    // peak intensity
+                        precursorIntensity = Float.parseFloat(cvParam.getValue());
+                    break;
+                case ACTIVATION:
+                    activationAccessions.add(accession);
+                    break;
+                case BINARY_DATA_ARRAY:
+                    if (curArray != null)
+                        curArray.handleCvParam(accession);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void addBinaryDataArray(BinaryDataArray array) {
+            if (array == null || !array.hasData || mzArray != null && intenArray != null)
+                return;
+            if (array.isMzArray)
+                mzArray = array;
+            else if (array.isIntensityArray)
+                intenArray = array;
+        }
+
+        void apply(Spectrum spec) {
+            spec.setIsCentroided(isCentroided);
+            spec.setScanPolarity(scanPolarity);
+
+            for (CvParamInfo cvParamInfo : addlCvParams)
+                spec.addAddlCvParam(cvParamInfo);
+            spec.setRt(scanStartTime);
+            spec.setRtIsSeconds(scanStartTimeIsSeconds);
+
+            spec.setMsLevel(msLevel != null ? Integer.parseInt(msLevel) : 0);
+
+            // Precursor; only the first precursor is considered
+            if (precursorCount > 0 && hasSelectedIonList) {
+                if (hasIsolationWindow)
+                    spec.setIsolationWindowTargetMz(isolationWindowTargetMz);
+
+                if (precursorMz < 0.01 && selectedIonMz != null)
+                    precursorMz = selectedIonMz;
+                spec.setPrecursor(new Peak(precursorMz, precursorIntensity, precursorCharge));
+
+                // activation method
+                boolean isETD = false;
+                for (String accession : activationAccessions) {
+                    ActivationMethod am = ActivationMethod.getByCV(accession);
+                    if (am != null) {
+                        if (am == ActivationMethod.ETD) {
+                            isETD = true;
+                            break;
+                        }
+                        if (spec.getActivationMethod() == null)
+                            spec.setActivationMethod(am);
+                    }
+                }
+                if (isETD)
+                    spec.setActivationMethod(ActivationMethod.ETD);
+            }
+        }
+    }
+
+    /**
+     * binaryDataArray element; the base64 text is only decoded for the m/z and intensity arrays that are used
+     */
+    private static class BinaryDataArray {
+        final boolean hasData;
+        boolean isMzArray = false;
+        boolean isIntensityArray = false;
+        // number of bytes per value; negative for integer types
+        int valueType = 0;
+        boolean zlibCompressed = false;
+        String unsupportedCompression = null;
+        String encodedData = null;
+
+        BinaryDataArray(boolean hasData) {
+            this.hasData = hasData;
+        }
+
+        void handleCvParam(String accession) {
+            if (accession.equals("MS:1000514"))    // m/z array
+                isMzArray = !isIntensityArray;
+            else if (accession.equals("MS:1000515"))    // intensity array
+                isIntensityArray = !isMzArray;
+            else if (accession.equals("MS:1000521"))    // 32-bit float
+                valueType = 4;
+            else if (accession.equals("MS:1000523"))    // 64-bit float
+                valueType = 8;
+            else if (accession.equals("MS:1000519"))    // 32-bit integer
+                valueType = -4;
+            else if (accession.equals("MS:1000522"))    // 64-bit integer
+                valueType = -8;
+            else if (accession.equals("MS:1000574"))    // zlib compression
+                zlibCompressed = true;
+            else if (accession.equals("MS:1002312") || accession.equals("MS:1002313") || accession.equals("MS:1002314")
+                    || accession.equals("MS:1002746") || accession.equals("MS:1002747") || accession.equals("MS:1002748"))    // MS-Numpress
+                unsupportedCompression = accession;
+        }
+
+        float[] decode() throws IOException {
+            if (unsupportedCompression != null)
+                throw new UnsupportedBinaryDataException("Unsupported binary data compression: " + unsupportedCompression);
+            if (valueType == 0)
+                throw new UnsupportedBinaryDataException("Binary data type is not specified");
+            if (encodedData == null || encodedData.isEmpty())
+                return new float[0];
+
+            byte[] bytes = Base64.getMimeDecoder().decode(encodedData);
+            if (zlibCompressed)
+                bytes = inflate(bytes);
+
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            int valueSize = Math.abs(valueType);
+            float[] values = new float[bytes.length / valueSize];
+            for (int i = 0; i < values.length; i++) {
+                switch (valueType) {
+                    case 4:
+                        values[i] = buf.getFloat(i * 4);
+                        break;
+                    case 8:
+                        values[i] = (float) buf.getDouble(i * 8);
+                        break;
+                    case -4:
+                        values[i] = buf.getInt(i * 4);
+                        break;
+                    default:
+                        values[i] = buf.getLong(i * 8);
+                        break;
+                }
+            }
+            return values;
+        }
+
+        private static byte[] inflate(byte[] compressed) throws IOException {
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buf = new byte[BUFFER_SIZE];
+            try {
+                while (!inflater.finished()) {
+                    int count = inflater.inflate(buf);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    out.write(buf, 0, count);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid zlib-compressed binary data: " + e.getMessage(), e);
+            } finally {
+                inflater.end();
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Read the referenceable param groups and source files, stopping at the run element
+     */
+    private void readHeader() throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new ChannelInputStream(channel, 0, fileSize));
+        try {
+            if (reader.getCharacterEncodingScheme() != null)
+                encoding = reader.getCharacterEncodingScheme();
+            else if (reader.getEncoding() != null)
+                encoding = reader.getEncoding();
+
+            String curGroupId = null;
+            boolean inSourceFile = false;
+            List<MzMLCvParam> curGroup = null;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("run") || name.equals("spectrumList"))
+                        break;
+                    if (name.equals("referenceableParamGroup")) {
+                        curGroupId = reader.getAttributeValue(null, "id");
+                        curGroup = new ArrayList<MzMLCvParam>();
+                    } else if (name.equals("sourceFile")) {
+                        inSourceFile = true;
+                    } else if (name.equals("cvParam")) {
+                        if (curGroup != null)
+                            curGroup.add(new MzMLCvParam(reader));
+                        else if (inSourceFile)
+                            sourceFileCvParams.add(new MzMLCvParam(reader));
+                    } else if (name.equals("referenceableParamGroupRef") && inSourceFile) {
+                        List<MzMLCvParam> group = referenceableParamGroups.get(reader.getAttributeValue(null, "ref"));
+                        if (group != null)
+                            sourceFileCvParams.addAll(group);
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("referenceableParamGroup")) {
+                        if (curGroupId != null)
+                            referenceableParamGroups.put(curGroupId, curGroup);
+                        curGroupId = null;
+                        curGroup = null;
+                    } else if (name.equals("sourceFile")) {
+                        inSourceFile = false;
+                    }
+                }
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Read the spectrum offsets from the index of an indexedmzML file
+     *
+     * @return true if a valid index was found
+     */
+    private boolean readIndexList() throws IOException {
+        int tailSize = (int) Math.min(fileSize, 4096);
+        ByteBuffer tail = ByteBuffer.allocate(tailSize);
+        readFully(fileSize - tailSize, tail);
+        Matcher matcher = INDEX_LIST_OFFSET_PATTERN.matcher(new String(tail.array(), 0, tailSize, Charset.forName("ISO-8859-1")));
+        if (!matcher.find())
+            return false;
+
+        long indexListOffset = Long.parseLong(matcher.group(1));
+        if (indexListOffset <= 0 || indexListOffset >= fileSize)
+            return false;
+
+        List<String> idList = new ArrayList<String>();
+        List<Long> offsetList = new ArrayList<Long>();
+        XMLStreamReader reader = null;
+        try {
+            reader = XML_INPUT_FACTORY.createXMLStreamReader(new ChannelInputStream(channel, indexListOffset, fileSize), encoding);
+            if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("indexList"))
+                return false;
+
+            boolean inSpectrumIndex = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("index")) {
+                        inSpectrumIndex = "spectrum".equals(reader.getAttributeValue(null, "name"));
+                    } else if (name.equals("offset") && inSpectrumIndex) {
+                        idList.add(reader.getAttributeValue(null, "idRef"));
+                        offsetList.add(Long.parseLong(reader.getElementText().trim()));
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if (name.equals("index"))
+                        inSpectrumIndex = false;
+                    else if (name.equals("indexList"))
+                        break;
+                }
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            return false;
+        } finally {
+            closeQuietly(reader);
+        }
+
+        long[] offsetArr = new long[offsetList.size()];
+        ByteBuffer buf = ByteBuffer.allocate(SPECTRUM_TAG.length + 1);
+        for (int i = 0; i < offsetArr.length; i++) {
+            offsetArr[i] = offsetList.get(i);
+            // verify that each offset points to a spectrum element
+            if (offsetArr[i] < 0 || offsetArr[i] + buf.capacity() > fileSize || i > 0 && offsetArr[i] <= offsetArr[i - 1])
+                return false;
+            buf.clear();
+            readFully(offsetArr[i], buf);
+            for (int j = 0; j < SPECTRUM_TAG.length; j++)
+                if (buf.get(j) != SPECTRUM_TAG[j])
+                    return false;
+            if (!isXmlWhitespace(buf.get(SPECTRUM_TAG.length)))
+                return false;
+        }
+
+        offsets = offsetArr;
+        ids = idList.toArray(new String[0]);
+        return true;
+    }
+
+    /**
+     * Find the offset and ID of each spectrum element by scanning the whole file once
+     */
+    private void scanSpectrumOffsets() throws IOException {
+        List<String> idList = new ArrayList<String>();
+        long[] offsetArr = new long[1024];
+        int numSpecs = 0;
+
+        Charset charset = Charset.forName(encoding);
+        ByteArrayOutputStream tagBuf = new ByteArrayOutputStream();
+        boolean inTag = false;
+        int matched = 0;
+        long tagOffset = -1;
+
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE * 16);
+        long pos = 0;
+        while (pos < fileSize) {
+            buf.clear();
+            int numRead = channel.read(buf, pos);
+            if (numRead <= 0)
+                break;
+            byte[] arr = buf.array();
+            for (int i = 0; i < numRead; i++) {
+                byte b = arr[i];
+                if (inTag) {
+                    if (b == '>') {
+                        inTag = false;
+                        if (numSpecs == offsetArr.length)
+                            offsetArr = java.util.Arrays.copyOf(offsetArr, offsetArr.length * 2);
+                        offsetArr[numSpecs++] = tagOffset;
+                        idList.add(getIdAttribute(new String(tagBuf.toByteArray(), charset)));
+                    } else {
+                        tagBuf.write(b);
+                    }
+                    continue;
+                }
+                if (matched == SPECTRUM_TAG.length) {
+                    matched = 0;
+                    if (isXmlWhitespace(b)) {
+                        inTag = true;
+                        tagOffset = pos + i - SPECTRUM_TAG.length;
+                        tagBuf.reset();
+                        tagBuf.write(' ');
+                        continue;
+                    }
+                }
+                if (b == SPECTRUM_TAG[matched])
+                    matched++;
+                else
+                    matched = b == '<' ? 1 : 0;
+            }
+            pos += numRead;
+        }
+
+        offsets = java.util.Arrays.copyOf(offsetArr, numSpecs);
+        ids = idList.toArray(new String[0]);
+    }
+
+    private static String getIdAttribute(String tag) {
+        Matcher matcher = ID_ATTRIBUTE_PATTERN.matcher(tag);
+        if (!matcher.find())
+            return null;
+        String id = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+        if (id.indexOf('&') < 0)
+            return id;
+        return id.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static boolean isXmlWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private void readFully(long position, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int numRead = channel.read(buf, position + buf.position());
+            if (numRead < 0)
+                throw new IOException("Unexpected end of file: " + specFile.getPath());
+        }
+    }
+
+    private static void closeQuietly(XMLStreamReader reader) {
+        if (reader == null)
+            return;
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Input stream over a byte range of a file channel, using positional reads (does not change the position of the channel)
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private final ByteBuffer buf;
+
+        ChannelInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            buf = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, end - start)));
+            buf.limit(0);
+        }
+
+        private boolean fill() throws IOException {
+            if (position >= end)
+                return false;
+            buf.clear();
+            if (end - position < buf.capacity())
+                buf.limit((int) (end - position));
+            int numRead = channel.read(buf, position);
+            buf.flip();
+            if (numRead <= 0)
+                return false;
+            position += numRead;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            return buf.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining() && !fill())
+                return -1;
+            int numBytes = Math.min(len, buf.remaining());
+            buf.get(b, off, numBytes);
+            return numBytes;
+        }
+    }
+}
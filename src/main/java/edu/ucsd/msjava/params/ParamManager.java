@@ -39,6 +39,16 @@ public class ParamManager {
 
         // Used by MS-GF+
         MZID_OUTPUT_FILE("o", "OutputFile (*.mzid)", "Default: [SpectrumFileName].mzid", null),
+        OUTPUT_FORMAT("outputFormat", "OutputFormat", "Format of the search results",
+                "0 means mzIdentML (Default)\n" +
+                "\t   1 means TSV, with the columns of MzIDToTsv (default settings), written to [OutputFileName].tsv\n" +
+                "\t   2 means both mzIdentML and TSV\n" +
+                "\t   With -addFeatures 1, the TSV file also has a column for each additional feature."),
+        EXPERIMENT_FDR("experimentFDR", "ExperimentFDR", "Experiment-level FDR across spectrum files (requires -tda 1)",
+                "0 means q-values are computed per spectrum file only (Default)\n" +
+                "\t   1 means also write the PSM scores to [OutputFileName].scores, for edu.ucsd.msjava.fdr.ComputeExperimentFDR\n" +
+                "\t   2 means also compute experiment-level q-values over all spectrum files of the search,\n" +
+                "\t   added to the TSV files (-outputFormat 1 or 2) as the columns ExperimentQValue and ExperimentPepQValue"),
 
         // Used by MSGF and MS-GFDB
         OUTPUT_FILE("o", "OutputFile", "Default: stdout", null),
@@ -73,13 +83,45 @@ public class ParamManager {
                 "\t   The default will try to use hyperthreading cores, which can increase the amount of time this process will take.\n" +
                 "\t   This is because the part of Scoring param generation that is multithreaded is also I/O intensive."),
 
-        NUM_TASKS("tasks", "NumTasks", "Override the number of tasks to use on the threads; Default: (internally calculated based on inputs)",
-                "More tasks than threads will reduce the memory requirements of the search, but will be slower (how much depends on the inputs).\n" +
-                "\t   1 <= tasks <= numThreads: will create one task per thread, which is the original behavior.\n" +
-                "\t   tasks = 0: use default calculation - minimum of: (threads*3) and (numSpectra/250).\n" +
+        NUM_TASKS("tasks", "NumTasks", "Override the number of tasks to use on the threads; Default: one task per thread",
+                "Each task scans the whole database for its part of the spectra; spectra are preprocessed by all threads before the search, whatever the number of tasks.\n" +
+                "\t   1 <= tasks <= numThreads: will create one task per thread.\n" +
+                "\t   tasks = 0: use the default, one task per thread.\n" +
                 "\t   tasks < 0: multiply number of threads by abs(tasks) to determine number of tasks (i.e., -2 means \"2 * numThreads\" tasks).\n" +
-                "\t   One task per thread will use the most memory, but will usually finish the fastest.\n" +
-                "\t   2-3 tasks per thread will use comparably less memory, but may cause the search to take 1.5 to 2 times as long."),
+                "\t   More tasks than threads scan the database more often, which makes the search slower, especially with large databases."),
+
+        CONCURRENT_FILES("concurrentFiles", "NumConcurrentFiles", "Number of spectrum files to search at the same time when -s is a directory; Default: 1",
+                "The database is loaded once and shared by the searches of all spectrum files.\n" +
+                "\t   With more than 1, the threads (-thread) the spectrum store memory (-specStoreMB) and the result store memory (-resultStoreMB) are split between the files searched at the same time,\n" +
+                "\t   so that the threads are kept busy while a file is read or its results are written.\n" +
+                "\t   The console output of files searched at the same time is interleaved."),
+
+        PARTITION_DATABASE("dbPartition", "PartitionDatabase", "Split the database instead of the spectra across threads",
+                "0 means Split the spectra into tasks; each task scans the whole database (Default)\n" +
+                "\t   1 means Split the database into one range of suffixes per thread, searched against all spectra at once\n" +
+                "\t   With 1, the database is scanned once in total; -tasks is ignored."),
+
+        METRICS("metrics", "Metrics", "Write counters and timings of the search phases for each spectrum file",
+                "0 means Do not write metrics (Default)\n" +
+                "\t   1 means Write [OutputFileName].metrics.json next to the output file\n" +
+                "\t   2 means Also write [OutputFileName].prom in the Prometheus text format"),
+
+        SPEC_STORE_MB("specStoreMB", "SpectrumStoreMB", "Maximum memory (in MB) for keeping all parsed spectra in memory; Default: 25% of the maximum heap size",
+                "Spectrum files are parsed once, into a compact in-memory store used for the rest of the search.\n" +
+                "\t   If the spectra need more memory than this, they are re-read from the spectrum file as needed.\n" +
+                "\t   0 means always re-read spectra from the spectrum file."),
+
+        RESULT_STORE_MB("resultStoreMB", "ResultStoreMB", "Maximum memory (in MB) for keeping search results in memory; Default: 10% of the maximum heap size",
+                "Search results beyond this are sorted by spectral E-value and written to temporary files in the output directory,\n" +
+                "\t   which are merged when computing q-values and writing the results.\n" +
+                "\t   0 means write the results of every task to a temporary file."),
+
+        SPEC_CACHE("specCache", "SpectrumCache", "Keep a binary cache of the parsed spectra for later searches of the same spectrum file",
+                "0 means Do not use a spectrum cache (Default)\n" +
+                "\t   1 means Read spectra from [SpectrumFileName].msgfspec if it is up to date, otherwise parse the spectrum file and write it\n" +
+                "\t   The cache is only used if the size, modification time and checksum of the spectrum file have not changed."),
+
+        SPEC_CACHE_DIR("specCacheDir", "SpectrumCacheDir", "Path to the directory for spectrum cache files; Default: the directory of the spectrum file", null),
 
         // Used by MS-GF+
         ISOTOPE_ERROR("ti", "IsotopeErrorRange", "Range of allowed isotope peak errors; Default: 0,1",
@@ -458,6 +500,22 @@ public class ParamManager {
         addParameter(outputParam);
     }
 
+    private void addOutputFormatParam() {
+        EnumParameter outputFormatParam = new EnumParameter(ParamNameEnum.OUTPUT_FORMAT);
+        outputFormatParam.registerEntry("mzIdentML").setDefault();
+        outputFormatParam.registerEntry("TSV");
+        outputFormatParam.registerEntry("mzIdentML and TSV");
+        addParameter(outputFormatParam);
+    }
+
+    private void addExperimentFDRParam() {
+        EnumParameter experimentFDRParam = new EnumParameter(ParamNameEnum.EXPERIMENT_FDR);
+        experimentFDRParam.registerEntry("q-values per spectrum file").setDefault();
+        experimentFDRParam.registerEntry("write PSM score files");
+        experimentFDRParam.registerEntry("write PSM score files and compute experiment-level q-values");
+        addParameter(experimentFDRParam);
+    }
+
     /**
      * -o for MSGF and MS-GFDB
      */
@@ -584,6 +642,55 @@ public class ParamManager {
         addParameter(numTasksParam);
     }
 
+    private void addConcurrentFilesParam() {
+        IntParameter concurrentFilesParam = new IntParameter(ParamNameEnum.CONCURRENT_FILES);
+        concurrentFilesParam.defaultValue(1);
+        concurrentFilesParam.minValue(1);
+        addParameter(concurrentFilesParam);
+    }
+
+    private void addPartitionDatabaseParam() {
+        EnumParameter partitionDatabaseParam = new EnumParameter(ParamNameEnum.PARTITION_DATABASE);
+        partitionDatabaseParam.registerEntry("Split the spectra into tasks").setDefault();
+        partitionDatabaseParam.registerEntry("Split the database across threads");
+        addParameter(partitionDatabaseParam);
+    }
+
+    private void addMetricsParam() {
+        EnumParameter metricsParam = new EnumParameter(ParamNameEnum.METRICS);
+        metricsParam.registerEntry("Do not write metrics").setDefault();
+        metricsParam.registerEntry("Write metrics as JSON");
+        metricsParam.registerEntry("Write metrics as JSON and in the Prometheus text format");
+        addParameter(metricsParam);
+    }
+
+    private void addSpecStoreMBParam() {
+        IntParameter specStoreMBParam = new IntParameter(ParamNameEnum.SPEC_STORE_MB);
+        specStoreMBParam.defaultValue(-1);
+        specStoreMBParam.minValue(-1);
+        addParameter(specStoreMBParam);
+    }
+
+    private void addResultStoreMBParam() {
+        IntParameter resultStoreMBParam = new IntParameter(ParamNameEnum.RESULT_STORE_MB);
+        resultStoreMBParam.defaultValue(-1);
+        resultStoreMBParam.minValue(-1);
+        addParameter(resultStoreMBParam);
+    }
+
+    private void addSpecCacheParam() {
+        EnumParameter specCacheParam = new EnumParameter(ParamNameEnum.SPEC_CACHE);
+        specCacheParam.registerEntry("Do not use a spectrum cache").setDefault();
+        specCacheParam.registerEntry("Read and write a spectrum cache");
+        addParameter(specCacheParam);
+
+        FileParameter specCacheDirParam = new FileParameter(ParamNameEnum.SPEC_CACHE_DIR);
+        specCacheDirParam.fileMustExist();
+        specCacheDirParam.mustBeADirectory();
+        specCacheDirParam.setAsOptional();
+        addParameter(specCacheDirParam);
+    }
+
     private void addTdaParam() {
         EnumParameter tdaParam = new EnumParameter(ParamNameEnum.TDA_STRATEGY);
         tdaParam.registerEntry("Don't search decoy database").setDefault();
@@ -760,6 +867,8 @@ public class ParamManager {
 
         // [-o OutputFile (*.mzid)] (Default: [SpectrumFileName].mzid)
         addMzIdOutputFileParam();
+        addOutputFormatParam();
+        addExperimentFDRParam();
 
         addPrecursorMassToleranceParam();
         addPrecursorMassToleranceUnitsParam(true);
@@ -768,7 +877,13 @@ public class ParamManager {
 
         addNumThreadsParam();
         addNumTasksParam();
+        addConcurrentFilesParam();
+        addPartitionDatabaseParam();
         addVerboseModeParam();
+        addMetricsParam();
+        addSpecStoreMBParam();
+        addResultStoreMBParam();
+        addSpecCacheParam();
 
         addTdaParam();
 
@@ -1111,6 +1226,14 @@ public class ParamManager {
         return getIntValue(ParamNameEnum.IGNORE_MET_CLEAVAGE.key);
     }
 
+    public int getOutputFormat() {
+        return getIntValue(ParamNameEnum.OUTPUT_FORMAT.key);
+    }
+
+    public int getExperimentFDR() {
+        return getIntValue(ParamNameEnum.EXPERIMENT_FDR.key);
+    }
+
     public int getOutputAdditionalFeatures() {
         return getIntValue(ParamNameEnum.ADD_FEATURES.key);
     }
@@ -1143,6 +1266,40 @@ public class ParamManager {
         return getIntValue(ParamNameEnum.NUM_TASKS.key);
     }
 
+    public int getNumConcurrentFiles() {
+        return getIntValue(ParamNameEnum.CONCURRENT_FILES.key);
+    }
+
+    public int getPartitionDatabase() {
+        return getIntValue(ParamNameEnum.PARTITION_DATABASE.key);
+    }
+
+    public int getMetrics() {
+        return getIntValue(ParamNameEnum.METRICS.key);
+    }
+
+    /**
+     * @return maximum memory of the in-memory spectrum store in MB; -1 for the default
+     */
+    public int getSpecStoreMB() {
+        return getIntValue(ParamNameEnum.SPEC_STORE_MB.key);
+    }
+
+    /**
+     * @return maximum memory of the search results kept in memory in MB; -1 for the default
+     */
+    public int getResultStoreMB() {
+        return getIntValue(ParamNameEnum.RESULT_STORE_MB.key);
+    }
+
+    public int getSpecCache() {
+        return getIntValue(ParamNameEnum.SPEC_CACHE.key);
+    }
+
+    public File getSpecCacheDir() {
+        return getFile(ParamNameEnum.SPEC_CACHE_DIR.key);
+    }
+
     public int getVerboseFlag() {
         return getIntValue(ParamNameEnum.VERBOSE.key);
     }
@@ -0,0 +1,55 @@
+package edu.ucsd.msjava.parser;
+
+/**
+ * LineReader over a byte array, e.g. a part of a file read with a positional read.
+ * Lines are terminated by \n or \r\n and decoded with the default charset, as in BufferedRandomAccessLineReader.
+ */
+public class ByteArrayLineReader extends ByteLineReader {
+    private final byte[] buffer;
+    private final int length;
+    private int pointer;
+
+    private int lineStart;
+    private int lineEnd;
+
+    public ByteArrayLineReader(byte[] buffer) {
+        this(buffer, buffer.length);
+    }
+
+    public ByteArrayLineReader(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+        pointer = 0;
+    }
+
+    @Override
+    protected boolean advance() {
+        if (pointer >= length)
+            return false;
+
+        lineStart = pointer;
+        while (pointer < length && buffer[pointer] != '\n')
+            pointer++;
+
+        lineEnd = pointer;
+        if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r')
+            lineEnd--;
+        pointer++;    // skip \n
+        return true;
+    }
+
+    @Override
+    public int getLineLength() {
+        return lineEnd - lineStart;
+    }
+
+    @Override
+    public byte getByte(int index) {
+        return buffer[lineStart + index];
+    }
+
+    @Override
+    public String getLine() {
+        return new String(buffer, lineStart, lineEnd - lineStart);
+    }
+}
@@ -0,0 +1,185 @@
+package edu.ucsd.msjava.parser;
+
+/**
+ * LineReader that also gives access to the bytes of the current line, so that spectrum parsers can parse peak lines
+ * (e.g. "412.2345 1023.5") straight from the bytes, without creating a String per line and splitting it.
+ * Lines are terminated by \n or \r\n; the terminator is not part of the line.
+ * <p>
+ * Fields are split on whitespace as String.split("\\s+") does: a line starting with whitespace has an empty first field,
+ * and trailing whitespace does not start a field.
+ * Numbers are parsed to the same float as Float.parseFloat; plain decimals with up to 8 fraction digits are parsed
+ * without creating a String, anything else (exponents, long fractions, etc.) falls back to Float.parseFloat.
+ */
+public abstract class ByteLineReader implements LineReader {
+
+    // Maximum number of fields whose bounds are recorded; further fields are only counted
+    private static final int MAX_FIELDS = 4;
+
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
+
+    private final int[] fieldStarts = new int[MAX_FIELDS];
+    private final int[] fieldEnds = new int[MAX_FIELDS];
+    private int numFields = -1;    // -1: fields of the current line not split yet
+    private boolean isLineUnread = false;
+
+    /**
+     * Move to the next line
+     *
+     * @return false if there are no more lines
+     */
+    public final boolean nextLine() {
+        if (isLineUnread) {
+            isLineUnread = false;
+            return true;
+        }
+        numFields = -1;
+        return advance();
+    }
+
+    /**
+     * Make the next call of nextLine() (or readLine()) return the current line again,
+     * e.g. to leave the first line of the next spectrum to the next call of a spectrum parser
+     */
+    public final void unreadLine() {
+        isLineUnread = true;
+    }
+
+    /**
+     * Move to the next line; implementations set the bounds of the line returned by getLineLength() and getByte()
+     *
+     * @return false if there are no more lines
+     */
+    protected abstract boolean advance();
+
+    /**
+     * @return length of the current line in bytes
+     */
+    public abstract int getLineLength();
+
+    /**
+     * @param index index of the byte in the current line, from 0 to getLineLength() - 1
+     * @return the byte
+     */
+    public abstract byte getByte(int index);
+
+    /**
+     * @return the current line, decoded with the default charset
+     */
+    public abstract String getLine();
+
+    public String readLine() {
+        return nextLine() ? getLine() : null;
+    }
+
+    /**
+     * @return number of fields of the current line, as the length of getLine().split("\\s+")
+     */
+    public int getFieldCount() {
+        if (numFields < 0)
+            splitFields();
+        return numFields;
+    }
+
+    /**
+     * Parse a field of the current line as a float
+     *
+     * @param fieldIndex index of the field; must be less than getFieldCount() and less than 4
+     * @return the same value as Float.parseFloat of the field
+     * @throws NumberFormatException if the field is not a number
+     */
+    public float getFloatField(int fieldIndex) {
+        if (numFields < 0)
+            splitFields();
+        if (fieldIndex >= Math.min(numFields, MAX_FIELDS))
+            throw new IndexOutOfBoundsException("Field " + fieldIndex + " of a line with " + numFields + " fields");
+        return parseFloat(fieldStarts[fieldIndex], fieldEnds[fieldIndex]);
+    }
+
+    private void splitFields() {
+        int length = getLineLength();
+        numFields = 0;
+        if (length == 0) {
+            // "".split("\\s+") returns {""}
+            addField(0, 0);
+            return;
+        }
+
+        int i = 0;
+        boolean leadingWhitespace = isWhitespace(getByte(0));
+        while (i < length) {
+            while (i < length && isWhitespace(getByte(i)))
+                i++;
+            if (i == length)
+                break;
+            if (leadingWhitespace && numFields == 0)
+                addField(0, 0);    // empty field before leading whitespace
+            int start = i;
+            while (i < length && !isWhitespace(getByte(i)))
+                i++;
+            addField(start, i);
+        }
+    }
+
+    private void addField(int start, int end) {
+        if (numFields < MAX_FIELDS) {
+            fieldStarts[numFields] = start;
+            fieldEnds[numFields] = end;
+        }
+        numFields++;
+    }
+
+    // whitespace as matched by \s
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Parse the bytes [start, end) of the current line to the same float as Float.parseFloat.
+     * A decimal N / 10^q with N < 10^15 and q <= 8 is exact in a double, and so is 10^q; their quotient is correctly rounded,
+     * and for q <= 8 and values below 2^24 (or q = 0) rounding that double to a float gives the correctly rounded float
+     * (the decimal cannot be close enough to the midpoint between two floats for double rounding to matter).
+     */
+    private float parseFloat(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (getByte(i) == '-' || getByte(i) == '+')) {
+            negative = getByte(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int numSignificantDigits = 0;
+        int numFractionDigits = 0;
+        boolean hasDigits = false;
+        boolean hasPoint = false;
+        for (; i < end; i++) {
+            byte b = getByte(i);
+            if (b >= '0' && b <= '9') {
+                hasDigits = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0 && ++numSignificantDigits > 15)
+                    return parseFloatFromString(start, end);
+                if (hasPoint)
+                    numFractionDigits++;
+            } else if (b == '.' && !hasPoint) {
+                hasPoint = true;
+            } else {
+                return parseFloatFromString(start, end);
+            }
+        }
+        if (!hasDigits || numFractionDigits >= POWERS_OF_TEN.length)
+            return parseFloatFromString(start, end);
+
+        double value = numFractionDigits == 0 ? (double) mantissa : mantissa / POWERS_OF_TEN[numFractionDigits];
+        if (numFractionDigits > 0 && value >= (1 << 24))
+            return parseFloatFromString(start, end);
+        return (float) (negative ? -value : value);
+    }
+
+    private float parseFloatFromString(int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++)
+            bytes[i - start] = getByte(i);
+        return Float.parseFloat(new String(bytes));
+    }
+}
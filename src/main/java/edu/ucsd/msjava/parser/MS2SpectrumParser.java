@@ -13,9 +13,6 @@ import java.util.Map;
  */
 public class MS2SpectrumParser implements SpectrumParser {
 
-    private Spectrum spec = null;
-    private Boolean isSpecSorted = null;
-
     /**
      * Number of scans where we could not determine the scan number
      * This method is required by interface SpectrumParser
@@ -29,13 +26,19 @@ public class MS2SpectrumParser implements SpectrumParser {
 
     /**
      * Reads a spectrum from ms2 file and returns it.
+     * The S line of the next spectrum is left to the next call if the reader is a ByteLineReader (see ByteLineReader.unreadLine),
+     * so that spectra can be read one after another; other readers must start at an S line.
      *
      * @param lineReader A LineReader object points to the start of a spectrum.
      * @return a spectrum object.
      */
     public Spectrum readSpectrum(LineReader lineReader) {
+        // The parser keeps no state between calls, so that concurrent calls
+        // with line readers that each start at an S line (e.g. from SpectraMap) do not interfere
         float prevMass = 0;
         String buf;
+        Spectrum spec;
+        boolean isSpecSorted = true;
 
         do {
             buf = lineReader.readLine();
@@ -46,40 +49,50 @@ public class MS2SpectrumParser implements SpectrumParser {
 
         if (buf.startsWith("S")) {
             String[] token = buf.split("\\s+");
-            spec = new Spectrum();
             int startScanNum = Integer.parseInt(token[1]);
             int endScanNum = Integer.parseInt(token[2]);
             float precursorMz = Float.parseFloat(token[3]);
             spec = new Spectrum(precursorMz, 0, 0);
             spec.setStartScanNum(startScanNum);
             spec.setEndScanNum(endScanNum);
-            isSpecSorted = true;
-        } else if (spec == null) {
+        } else {
             return null;
         }
 
+        // Peak lines are parsed from the bytes of the line if the reader gives access to them
+        ByteLineReader byteLineReader = lineReader instanceof ByteLineReader ? (ByteLineReader) lineReader : null;
+
         boolean zParsed = false;
-        while ((buf = lineReader.readLine()) != null) {
+        while (true) {
+            if (byteLineReader != null) {
+                if (!byteLineReader.nextLine())
+                    break;
+                if (byteLineReader.getLineLength() > 0 && byteLineReader.getFieldCount() == 2) {
+                    byte firstByte = byteLineReader.getByte(0);
+                    if (firstByte != 'H' && firstByte != 'S' && firstByte != 'Z') {    // a peak
+                        float mass = byteLineReader.getFloatField(0);
+                        if (isSpecSorted && mass < prevMass)
+                            isSpecSorted = false;
+                        else
+                            prevMass = mass;
+                        float intensity = byteLineReader.getFloatField(1);
+                        spec.add(new Peak(mass, intensity, 1));
+                        continue;
+                    }
+                }
+                buf = byteLineReader.getLine();
+            } else if ((buf = lineReader.readLine()) == null) {
+                break;
+            }
+
             String[] token = buf.split("\\s+");
             if (buf.startsWith("H"))
                 continue;
             else if (buf.startsWith("S"))    // start of a next spectrum
             {
-                Spectrum specCopy = spec;
-                Boolean isSpecSortedCopy = isSpecSorted;
-
-                spec = new Spectrum();
-                int startScanNum = Integer.parseInt(token[1]);
-                int endScanNum = Integer.parseInt(token[2]);
-                float precursorMz = Float.parseFloat(token[3]);
-                spec = new Spectrum(precursorMz, 0, 0);
-                spec.setStartScanNum(startScanNum);
-                spec.setEndScanNum(endScanNum);
-                isSpecSorted = true;
-
-                if (!isSpecSortedCopy)
-                    Collections.sort(specCopy);
-                return specCopy;
+                if (byteLineReader != null)
+                    byteLineReader.unreadLine();
+                break;
             } else if (buf.startsWith("Z")) {
                 if (!zParsed) {
                     int charge = Integer.parseInt(token[1]);
@@ -103,14 +116,8 @@ public class MS2SpectrumParser implements SpectrumParser {
             }
         }
 
-        if (spec != null) {
-            if (!isSpecSorted)
-                Collections.sort(spec);
-            Spectrum specCopy = spec;
-            spec = null;
-            return specCopy;
-        }
-
+        if (!isSpecSorted)
+            Collections.sort(spec);
         return spec;
     }
 
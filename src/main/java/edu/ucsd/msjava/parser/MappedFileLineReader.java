@@ -0,0 +1,126 @@
+package edu.ucsd.msjava.parser;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Line reader over a memory-mapped file, for reading large text spectrum files (mgf, ms2, pkl) from start to end.
+ * As in BufferedReader, lines are terminated by \n, \r or \r\n.
+ * The file is mapped in windows of 64 MB; lines are read from the mapped bytes, and parsers can parse peak lines
+ * from the bytes of the line (see ByteLineReader) without copying them.
+ * A UTF-8 byte order mark at the start of the file is skipped.
+ */
+public class MappedFileLineReader extends ByteLineReader implements Closeable {
+    private static final int WINDOW_SIZE = 1 << 26;
+
+    private final FileChannel channel;
+    private final long fileSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+
+    private long pointer;    // file position of the next line
+    private int lineStart;    // position of the current line in the window
+    private int lineLength;
+    private boolean afterCR = false;    // the current line was terminated by \r
+
+    public MappedFileLineReader(String fileName) throws IOException {
+        channel = new RandomAccessFile(fileName, "r").getChannel();
+        fileSize = channel.size();
+        pointer = 0;
+        windowStart = 0;
+        windowLength = 0;
+        if (fileSize > 0) {
+            mapWindow(0, WINDOW_SIZE);
+            if (windowLength >= 3 && window.get(0) == (byte) 0xEF && window.get(1) == (byte) 0xBB && window.get(2) == (byte) 0xBF)
+                pointer = 3;
+        }
+    }
+
+    @Override
+    protected boolean advance() {
+        try {
+            if (afterCR && pointer < fileSize) {
+                // \r\n: skip the \n following the \r that ended the previous line
+                if (pointer >= windowStart + windowLength)
+                    mapWindow(pointer, WINDOW_SIZE);
+                if (window.get((int) (pointer - windowStart)) == '\n')
+                    pointer++;
+            }
+            afterCR = false;
+            if (pointer >= fileSize)
+                return false;
+
+            if (pointer >= windowStart + windowLength)
+                mapWindow(pointer, WINDOW_SIZE);
+
+            int start = (int) (pointer - windowStart);
+            int i = start;
+            while (true) {
+                while (i < windowLength && window.get(i) != '\n' && window.get(i) != '\r')
+                    i++;
+                if (i < windowLength || windowStart + windowLength >= fileSize)
+                    break;
+                // the line continues past the end of the window; map a new window starting at the line
+                int scanned = i - start;
+                mapWindow(pointer, Math.max(WINDOW_SIZE, 2L * (scanned + 1)));
+                start = 0;
+                i = scanned;
+            }
+
+            // i is the position of the line terminator, or the end of the file
+            afterCR = i < windowLength && window.get(i) == '\r';
+            pointer = windowStart + i + 1;
+            lineStart = start;
+            lineLength = i - start;
+            return true;
+        } catch (IOException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    @Override
+    public byte getByte(int index) {
+        return window.get(lineStart + index);
+    }
+
+    @Override
+    public String getLine() {
+        byte[] bytes = new byte[lineLength];
+        ByteBuffer buf = window.duplicate();
+        buf.position(lineStart);
+        buf.get(bytes);
+        return new String(bytes);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return false once the reader is closed
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    private void mapWindow(long start, long size) throws IOException {
+        size = Math.min(Math.min(size, fileSize - start), Integer.MAX_VALUE);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        windowStart = start;
+        windowLength = (int) size;
+    }
+}
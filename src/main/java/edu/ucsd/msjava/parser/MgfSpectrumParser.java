@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static edu.ucsd.msjava.misc.TextParsingUtils.isInteger;
 
@@ -16,11 +17,10 @@ import static edu.ucsd.msjava.misc.TextParsingUtils.isInteger;
  */
 public class MgfSpectrumParser implements SpectrumParser {
 
-    private long linesRead;
+    // Warning counts of all spectra read by this parser; readSpectrum may be called concurrently (e.g. by SpectraMap)
+    private final AtomicLong negativePolarityWarningCount = new AtomicLong();
 
-    private long negativePolarityWarningCount;
-
-    private long scanMissingWarningCount;
+    private final AtomicLong scanMissingWarningCount = new AtomicLong();
 
     /**
      * Number of scans where we could not determine the scan number
@@ -29,7 +29,7 @@ public class MgfSpectrumParser implements SpectrumParser {
      */
     public long getScanMissingWarningCount()
     {
-        return scanMissingWarningCount;
+        return scanMissingWarningCount.get();
     }
 
     /**
@@ -45,9 +45,8 @@ public class MgfSpectrumParser implements SpectrumParser {
      */
     public MgfSpectrumParser aaSet(AminoAcidSet aaSet) {
         this.aaSet = aaSet;
-        linesRead = 0;
-        negativePolarityWarningCount = 0;
-        scanMissingWarningCount = 0;
+        negativePolarityWarningCount.set(0);
+        scanMissingWarningCount.set(0);
         return this;
     }
 
@@ -68,6 +67,7 @@ public class MgfSpectrumParser implements SpectrumParser {
         int precursorCharge = 0;
         ActivationMethod activation = null;
         float elutionTimeSeconds = 0;
+        long linesRead = 0;
 //		Float toleranceVal = null;
 //		Tolerance.Unit toleranceUnit = null;
 
@@ -76,18 +76,47 @@ public class MgfSpectrumParser implements SpectrumParser {
         boolean sorted = true;
         float prevMass = 0;
 
+        // Peak lines are parsed from the bytes of the line if the reader gives access to them
+        ByteLineReader byteLineReader = lineReader instanceof ByteLineReader ? (ByteLineReader) lineReader : null;
+
         while (true) {
-            String dataLine = (buf = lineReader.readLine());
-            if (dataLine == null)
-                break;
+            if (parse && byteLineReader != null) {
+                if (!byteLineReader.nextLine())
+                    break;
+                linesRead++;
+
+                int length = byteLineReader.getLineLength();
+                if (length == 0)
+                    continue;
+
+                byte firstByte = byteLineReader.getByte(0);
+                if (firstByte >= '0' && firstByte <= '9') {
+                    if (byteLineReader.getFieldCount() < 2)
+                        continue;
+                    float mass = byteLineReader.getFloatField(0);
+                    if (sorted && mass < prevMass)
+                        sorted = false;
+                    else
+                        prevMass = mass;
+                    float intensity = byteLineReader.getFloatField(1);
+                    spec.add(new Peak(mass, intensity, 1));
+                    continue;
+                }
+                buf = byteLineReader.getLine();
+            } else {
+                String dataLine = (buf = lineReader.readLine());
+                if (dataLine == null)
+                    break;
+
+                if (linesRead == 0) {
+                    // only the first line of a file can start with a byte order mark
+                    buf = BufferedRandomAccessLineReader.stripBOM(buf);
+                }
+                linesRead++;
 
-            if (linesRead == 0) {
-                buf = BufferedRandomAccessLineReader.stripBOM(buf);
+                if (buf.length() == 0)
+                    continue;
             }
-            linesRead++;
-
-            if (buf.length() == 0)
-                continue;
 
             if (buf.startsWith("BEGIN IONS")) {
                 parse = true;
@@ -365,27 +394,27 @@ public class MgfSpectrumParser implements SpectrumParser {
     }
 
     private void warnNegativePolarity(String currentLine) {
-        negativePolarityWarningCount++;
-        if (negativePolarityWarningCount > MAX_NEGATIVE_POLARITY_WARNINGS)
+        long warningCount = negativePolarityWarningCount.incrementAndGet();
+        if (warningCount > MAX_NEGATIVE_POLARITY_WARNINGS)
             return;
 
-        if (negativePolarityWarningCount == 1) {
+        if (warningCount == 1) {
             System.out.println(
                     "Warning: negative precursor charge found, indicating a negative polarity spectrum; " +
                     "you likely need to use a negative charge carrier");
         }
-        System.out.println("Negative charge found on line " + Long.toString(linesRead) + ": " + currentLine);
+        System.out.println("Negative charge found: " + currentLine);
 
-        if (negativePolarityWarningCount == MAX_NEGATIVE_POLARITY_WARNINGS) {
+        if (warningCount == MAX_NEGATIVE_POLARITY_WARNINGS) {
             System.out.println("Additional warnings regarding negative polarity will not be shown");
         }
     }
 
     void warnScanNotFoundInTitle(String title) {
-        scanMissingWarningCount++;
-        if (scanMissingWarningCount <= MAX_SCAN_MISSING_WARNINGS) {
+        long warningCount = scanMissingWarningCount.incrementAndGet();
+        if (warningCount <= MAX_SCAN_MISSING_WARNINGS) {
             System.out.println("Unable to extract the scan number from the title: " + title);
-            if (scanMissingWarningCount == 1) {
+            if (warningCount == 1) {
                 System.out.println("Expected format is DatasetName.ScanStart.ScanEnd.Charge");
             }
         }
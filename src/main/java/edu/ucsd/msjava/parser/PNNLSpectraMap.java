@@ -16,7 +16,7 @@ public class PNNLSpectraMap extends SpectraMap {
     }
 
     @Override
-    public synchronized Spectrum getSpectrumBySpecIndex(int specIndex) {
+    public Spectrum getSpectrumBySpecIndex(int specIndex) {
         if (scanNumScanTypeMap == null)
             return super.getSpectrumBySpecIndex(specIndex);
         else {
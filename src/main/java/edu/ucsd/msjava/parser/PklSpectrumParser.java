@@ -36,8 +36,29 @@ public class PklSpectrumParser implements SpectrumParser {
         boolean sorted = true;
         float prevMass = 0;
 
+        // Peak lines are parsed from the bytes of the line if the reader gives access to them
+        ByteLineReader byteLineReader = lineReader instanceof ByteLineReader ? (ByteLineReader) lineReader : null;
+
         String buf;
-        while ((buf = lineReader.readLine()) != null) {
+        while (true) {
+            if (byteLineReader != null) {
+                if (!byteLineReader.nextLine())
+                    break;
+                if (spec != null && byteLineReader.getFieldCount() == 2) {    // a peak
+                    float mass = byteLineReader.getFloatField(0);
+                    if (sorted && mass < prevMass)
+                        sorted = false;
+                    else
+                        prevMass = mass;
+                    float intensity = byteLineReader.getFloatField(1);
+                    spec.add(new Peak(mass, intensity, 1));
+                    continue;
+                }
+                buf = byteLineReader.getLine();
+            } else if ((buf = lineReader.readLine()) == null) {
+                break;
+            }
+
             String[] token = buf.split("\\s+");
             if (token.length == 3)    // start of a spectrum
             {
@@ -0,0 +1,102 @@
+package edu.ucsd.msjava.ui;
+
+import edu.ucsd.msjava.msdbsearch.CompactSuffixArray;
+import edu.ucsd.msjava.msdbsearch.DBScanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Databases kept loaded between searches, used by MSGFPlusServer so that searches against the same database
+ * do not read the fasta file and the suffix array again.
+ * A database is loaded again if its file was modified since it was loaded.
+ * Entries are keyed by the database file, the maximum peptide length and the decoy protein prefix;
+ * a database is loaded only once even if several searches need it at the same time.
+ * Databases are loaded one at a time, as building the suffix array of a database writes its index files.
+ */
+public class DatabaseCache {
+
+    public static class Entry {
+        private final long length;
+        private final long lastModified;
+        private volatile CompactSuffixArray sa;    // set after residueCounts, once the database is loaded
+        private long[] residueCounts;
+
+        private Entry(File databaseFile) {
+            this.length = databaseFile.length();
+            this.lastModified = databaseFile.lastModified();
+        }
+
+        public CompactSuffixArray getSuffixArray() {
+            return sa;
+        }
+
+        /**
+         * @return residue counts of the database, from DBScanner.getResidueCounts()
+         */
+        public long[] getResidueCounts() {
+            return residueCounts;
+        }
+
+        private boolean isUpToDate(File databaseFile) {
+            return databaseFile.length() == length && databaseFile.lastModified() == lastModified;
+        }
+    }
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Object loadLock = new Object();
+
+    /**
+     * Get a loaded database, loading it if it is not cached or if the database file changed
+     *
+     * @param databaseFile       database file to search (e.g. the concatenated target-decoy database)
+     * @param maxPeptideLength   maximum peptide length
+     * @param decoyProteinPrefix decoy protein prefix
+     * @param useTDA             true if the database is a concatenated target-decoy database
+     * @return the cached database
+     * @throws IOException if the database is invalid (see MSGFPlus.readDatabase); it is read again by the next search
+     */
+    public Entry get(File databaseFile, int maxPeptideLength, String decoyProteinPrefix, boolean useTDA) throws IOException {
+        String key = getPath(databaseFile) + "\t" + maxPeptideLength + "\t" + decoyProteinPrefix;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || !entry.isUpToDate(databaseFile)) {
+                entry = new Entry(databaseFile);
+                entries.put(key, entry);
+            }
+        }
+
+        if (entry.sa != null) {
+            System.out.println("Using cached database " + databaseFile.getPath());
+            return entry;
+        }
+
+        // Load outside of the lock of the cache, so that searches against loaded databases are not blocked
+        synchronized (loadLock) {
+            if (entry.sa == null) {
+                System.out.println("Loading " + databaseFile.getPath() + " into the database cache");
+                entry.residueCounts = DBScanner.getResidueCounts(databaseFile.getPath());
+                entry.sa = MSGFPlus.readDatabase(databaseFile, maxPeptideLength, decoyProteinPrefix, useTDA);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return number of cached databases
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static String getPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+}
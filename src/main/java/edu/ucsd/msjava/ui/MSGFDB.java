@@ -177,6 +177,8 @@ public class MSGFDB {
                 aaSet = AminoAcidSet.getAminoAcidSetFromXMLFile(modFile.getAbsolutePath());
             else
                 aaSet = AminoAcidSet.getAminoAcidSetFromModFile(modFile.getAbsolutePath(), paramManager);
+            if (aaSet == null)
+                return "Error parsing modification file: " + modFile.getPath();
             if (aaSet.containsPhosphorylation()) {
                 protocol = Protocol.PHOSPHORYLATION;
             }
@@ -1,22 +1,36 @@
 package edu.ucsd.msjava.ui;
 
-import edu.ucsd.msjava.fdr.ComputeFDR;
+import edu.ucsd.msjava.fdr.ComputeExperimentFDR;
+import edu.ucsd.msjava.fdr.MSGFPlusQValues;
+import edu.ucsd.msjava.fdr.PSMScoreWriter;
 import edu.ucsd.msjava.misc.ThreadPoolExecutorWithExceptions;
 import edu.ucsd.msjava.msdbsearch.*;
-import edu.ucsd.msjava.msgf.Tolerance;
 import edu.ucsd.msjava.msscorer.NewScorerFactory.SpecDataType;
 import edu.ucsd.msjava.msutil.*;
 import edu.ucsd.msjava.mzid.MZIdentMLGen;
+import edu.ucsd.msjava.mzid.TSVResultWriter;
 import edu.ucsd.msjava.mzml.MzMLAdapter;
 import edu.ucsd.msjava.params.ParamManager;
 import edu.ucsd.msjava.sequences.Constants;
 
+import org.apache.commons.io.output.NullOutputStream;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +45,9 @@ public class MSGFPlus {
     // Set this to true when debugging
     private static final boolean DISABLE_THREADING = false;
 
+    // Number of ranges of spectra per thread for preprocessing; threads pick up the next range when they finish one
+    private static final int PREPROCESS_RANGES_PER_THREAD = 4;
+
     public static void main(String argv[]) {
         long startTime = System.currentTimeMillis();
 
@@ -80,6 +97,17 @@ public class MSGFPlus {
             return errorMessage;
         }
 
+        return runMSGFPlus(params, null);
+    }
+
+    /**
+     * Search the spectrum files of the parsed parameters
+     *
+     * @param params  parsed search parameters
+     * @param dbCache databases kept loaded between searches (see MSGFPlusServer), or null to load the database for this search only
+     * @return error message, or null if successful
+     */
+    public static String runMSGFPlus(SearchParams params, DatabaseCache dbCache) {
         List<DBSearchIOFiles> ioList = params.getDBSearchIOList();
         boolean multiFiles = false;
         if (ioList.size() >= 2) {
@@ -90,40 +118,235 @@ public class MSGFPlus {
             multiFiles = true;
         }
 
-        int ioIndex = -1;
-        for (DBSearchIOFiles ioFiles : ioList) {
-            ++ioIndex;
-            File specFile = ioFiles.getSpecFile();
-            SpecFileFormat specFormat = ioFiles.getSpecFileFormat();
+        List<Integer> ioIndexList = new ArrayList<Integer>();
+        for (int ioIndex = 0; ioIndex < ioList.size(); ioIndex++) {
+            DBSearchIOFiles ioFiles = ioList.get(ioIndex);
             File outputFile = ioFiles.getOutputFile();
 
-            if (multiFiles) {
-                if (!outputFile.exists()) {
-                    System.out.println("\nProcessing " + specFile.getPath());
-                    System.out.println("Writing results to " + outputFile.getPath());
-                    String errMsg = runMSGFPlus(ioIndex, specFormat, outputFile, params);
-                    if (errMsg != null) {
-                        return errMsg;
-                    }
-                } else {
-                    System.out.println("\nIgnoring " + specFile.getPath());
-                    System.out.println("Output file " + outputFile.getPath() + " exists.");
+            File existingFile = params.writeMzIdentML() ? outputFile : getTSVFile(outputFile);
+            if (multiFiles && existingFile.exists()) {
+                System.out.println("\nIgnoring " + ioFiles.getSpecFile().getPath());
+                System.out.println("Output file " + existingFile.getPath() + " exists.");
+                continue;
+            }
+
+            String errMsg = checkOutputDirectory(outputFile);
+            if (errMsg != null) {
+                return errMsg;
+            }
+            ioIndexList.add(ioIndex);
+        }
+
+        if (ioIndexList.isEmpty()) {
+            return null;
+        }
+
+        // DB file
+        File databaseFile = params.getDatabaseFile();
+
+        if (databaseFile == null) {
+            return "Database file is not defined; use -d at the command line or DatabaseFile in a config file";
+        }
+
+        if (!databaseFile.exists()) {
+            return "Database file not found: " + databaseFile.getPath();
+        }
+
+        // The database is loaded once, then shared (read-only) by the searches of all spectrum files
+        long startTime = System.currentTimeMillis();
+        long loadDatabaseStartTime = System.nanoTime();
+        System.out.println("Loading database files...");
+        CompactSuffixArray sa;
+        try {
+            sa = loadDatabase(databaseFile, params, dbCache);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+        if (sa == null) {
+            return "Cannot create a decoy database file!";
+        }
+        long loadDatabaseNanos = System.nanoTime() - loadDatabaseStartTime;
+        System.out.print("Loading database finished ");
+        System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+
+        int numConcurrentFiles = Math.min(params.getNumConcurrentFiles(), ioIndexList.size());
+        if (numConcurrentFiles > 1) {
+            String errMsg = runConcurrentSearches(ioIndexList, sa, params, numConcurrentFiles, loadDatabaseNanos);
+            if (errMsg != null) {
+                return errMsg;
+            }
+        } else {
+            for (int ioIndex : ioIndexList) {
+                DBSearchIOFiles ioFiles = ioList.get(ioIndex);
+                if (multiFiles) {
+                    System.out.println("\nProcessing " + ioFiles.getSpecFile().getPath());
+                    System.out.println("Writing results to " + ioFiles.getOutputFile().getPath());
                 }
-            } else {
-                String errMsg = runMSGFPlus(ioIndex, specFormat, outputFile, params);
+                String errMsg = runMSGFPlus(ioIndex, ioFiles.getSpecFileFormat(), ioFiles.getOutputFile(), sa, params,
+                        params.getNumThreads(), params.getSpectrumStoreMaxBytes(), params.getResultStoreMaxBytes(), loadDatabaseNanos);
                 if (errMsg != null) {
                     return errMsg;
                 }
+                // The time to load the database is only counted in the metrics of the first file
+                loadDatabaseNanos = 0;
             }
         }
 
+        if (params.getExperimentFDR() == 2) {
+            return computeExperimentFDR(ioList);
+        }
         return null;
     }
 
-    private static String runMSGFPlus(int ioIndex, SpecFileFormat specFormat, File outputFile, SearchParams params) {
+    /**
+     * Experiment-level q-values over all spectrum files of the search (-experimentFDR 2),
+     * including those whose results were already there, added to their TSV files
+     *
+     * @return error message, or null if successful
+     */
+    private static String computeExperimentFDR(List<DBSearchIOFiles> ioList) {
+        List<File> scoreFiles = new ArrayList<File>();
+        for (DBSearchIOFiles ioFiles : ioList) {
+            File scoreFile = PSMScoreWriter.getScoreFile(ioFiles.getOutputFile());
+            if (scoreFile.exists())
+                scoreFiles.add(scoreFile);
+            else
+                System.out.println("Note: " + scoreFile.getPath() + " not found; " + ioFiles.getSpecFile().getName() + " is not included in the experiment-level FDR");
+        }
+        if (scoreFiles.isEmpty()) {
+            return null;
+        }
+
         long startTime = System.currentTimeMillis();
+        System.out.println("\nComputing experiment-level q-values over " + scoreFiles.size() + " spectrum files...");
+        String errMsg = ComputeExperimentFDR.computeExperimentFDR(scoreFiles);
+        if (errMsg == null) {
+            System.out.print("Computing experiment-level q-values finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+        }
+        return errMsg;
+    }
 
-        // Verify that the output directory exists and can be written to
+    /**
+     * Search several spectrum files at the same time against the loaded database.
+     * The threads and the memory of the spectrum store are split between the files being searched,
+     * so that while one file is read or its results are written, the other files keep the threads busy.
+     * After the first error, files that have not started yet are not searched, and the searches already running
+     * are finished before returning, so that no output file is left incomplete; the outputs of the failed file are deleted.
+     *
+     * @return error message of the first file that failed, or null if successful
+     */
+    private static String runConcurrentSearches(
+            List<Integer> ioIndexList,
+            final CompactSuffixArray sa,
+            final SearchParams params,
+            int numConcurrentFiles,
+            long loadDatabaseNanos
+    ) {
+        System.out.println("Searching " + numConcurrentFiles + " spectrum files at a time.");
+
+        final List<DBSearchIOFiles> ioList = params.getDBSearchIOList();
+        final ThreadBudget threadBudget = new ThreadBudget(Math.max(1, params.getNumThreads()), numConcurrentFiles, ioIndexList.size());
+        final long specStoreMaxBytes = params.getSpectrumStoreMaxBytes() / numConcurrentFiles;
+        final long resultStoreMaxBytes = params.getResultStoreMaxBytes() / numConcurrentFiles;
+
+        // set by the first file that fails; files that have not started yet are then skipped
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(numConcurrentFiles);
+        CompletionService<String> completionService = new ExecutorCompletionService<String>(executor);
+        int numFiles = 0;
+        for (final int ioIndex : ioIndexList) {
+            final long fileLoadDatabaseNanos = numFiles == 0 ? loadDatabaseNanos : 0;
+            completionService.submit(new Callable<String>() {
+                public String call() {
+                    if (failed.get())
+                        return null;    // not searched because of an earlier error
+
+                    DBSearchIOFiles ioFiles = ioList.get(ioIndex);
+                    List<File> newOutputFiles = new ArrayList<File>();
+                    for (File file : getOutputFiles(ioFiles.getOutputFile(), params)) {
+                        if (!file.exists())
+                            newOutputFiles.add(file);
+                    }
+                    int numThreads = threadBudget.acquire();
+                    boolean success = false;
+                    try {
+                        System.out.println("\nProcessing " + ioFiles.getSpecFile().getPath() + " using " + numThreads + (numThreads == 1 ? " thread" : " threads"));
+                        System.out.println("Writing results to " + ioFiles.getOutputFile().getPath());
+                        String errMsg = runMSGFPlus(ioIndex, ioFiles.getSpecFileFormat(), ioFiles.getOutputFile(), sa, params,
+                                numThreads, specStoreMaxBytes, resultStoreMaxBytes, fileLoadDatabaseNanos);
+                        success = errMsg == null;
+                        return errMsg;
+                    } finally {
+                        threadBudget.release(numThreads);
+                        if (!success) {
+                            failed.set(true);
+                            // partial outputs would make a rerun skip this file
+                            for (File file : newOutputFiles)
+                                file.delete();
+                        }
+                    }
+                }
+            });
+            numFiles++;
+        }
+        executor.shutdown();
+
+        // wait for all files, including those still running after an error
+        String errorMessage = null;
+        for (int i = 0; i < numFiles; i++) {
+            String errMsg;
+            try {
+                errMsg = completionService.take().get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, null, e.getCause());
+                errMsg = "Task terminated; results incomplete. Please run again.";
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                return "Search interrupted; results incomplete.";
+            }
+
+            if (errMsg != null && errorMessage == null) {
+                errorMessage = errMsg;
+            }
+        }
+
+        return errorMessage;
+    }
+
+    /**
+     * Files written by the search of a spectrum file: mzIdentML, TSV and PSM score files, depending on the parameters
+     */
+    private static List<File> getOutputFiles(File outputFile, SearchParams params) {
+        List<File> outputFiles = new ArrayList<File>();
+        if (params.writeMzIdentML())
+            outputFiles.add(outputFile);
+        if (params.writeTSV())
+            outputFiles.add(getTSVFile(outputFile));
+        if (params.getExperimentFDR() > 0)
+            outputFiles.add(PSMScoreWriter.getScoreFile(outputFile));
+        return outputFiles;
+    }
+
+    /**
+     * TSV output file (-outputFormat 1 or 2): the output file with the extension .tsv
+     */
+    private static File getTSVFile(File outputFile) {
+        String path = outputFile.getPath();
+        int extIndex = path.lastIndexOf('.');
+        if (extIndex <= path.lastIndexOf(File.separatorChar))
+            extIndex = path.length();
+        return new File(path.substring(0, extIndex) + ".tsv");
+    }
+
+    /**
+     * Verify that the output directory exists and can be written to, creating it if missing
+     *
+     * @return error message, or null if successful
+     */
+    private static String checkOutputDirectory(File outputFile) {
         File outputDirectory = outputFile.getParentFile();
         if (outputDirectory != null) {
             if (!outputDirectory.exists()) {
@@ -148,58 +371,45 @@ public class MSGFPlus {
                 return "Cannot create files in the output directory; permission denied for: " + outputDirectory.getPath();
             }
         }
+        return null;
+    }
 
-        // DB file
-        File databaseFile = params.getDatabaseFile();
-
-        if (databaseFile == null) {
-            return "Database file is not defined; use -d at the command line or DatabaseFile in a config file";
-        }
-
-        if (!databaseFile.exists()) {
-            return "Database file not found: " + databaseFile.getPath();
-        }
-
-        // Precursor mass tolerance
-        Tolerance leftPrecursorMassTolerance = params.getLeftPrecursorMassTolerance();
-        Tolerance rightPrecursorMassTolerance = params.getRightPrecursorMassTolerance();
-
-        int minIsotopeError = params.getMinIsotopeError();    // inclusive
-        int maxIsotopeError = params.getMaxIsotopeError();    // inclusive
-
-        Enzyme enzyme = params.getEnzyme();
-
-        ActivationMethod activationMethod = params.getActivationMethod();
-        InstrumentType instType = params.getInstType();
-        Protocol protocol = params.getProtocol();
+    /**
+     * Load the database and its suffix array (or get them from the cache), creating the decoy database first if needed,
+     * and set the amino acid probabilities of the search
+     *
+     * @return the suffix array, or null if the decoy database cannot be created
+     * @throws IOException if the database is not a valid target-decoy database (see readDatabase)
+     */
+    private static CompactSuffixArray loadDatabase(File databaseFile, SearchParams params, DatabaseCache dbCache) throws IOException {
+        databaseFile = getSearchDatabaseFile(databaseFile, params);
+        if (databaseFile == null)
+            return null;
 
         AminoAcidSet aaSet = params.getAASet();
-
-        int startSpecIndex = params.getStartSpecIndex();
-        int endSpecIndex = params.getEndSpecIndex();
-
-        boolean useTDA = params.useTDA();
-
-        int minCharge = params.getMinCharge();
-        int maxCharge = params.getMaxCharge();
-
-        int numThreads = params.getNumThreads();
-        boolean doNotUseEdgeScore = params.doNotUseEdgeScore();
-        boolean allowDenseCentroidedPeaks = params.getAllowDenseCentroidedPeaks();
-
-        int minNumPeaksPerSpectrum = params.getMinNumPeaksPerSpectrum();
-        if (minNumPeaksPerSpectrum == -1)    // not specified
-        {
-            if (instType == InstrumentType.TOF)
-                minNumPeaksPerSpectrum = Constants.MIN_NUM_PEAKS_PER_SPECTRUM_TOF;
-            else
-                minNumPeaksPerSpectrum = Constants.MIN_NUM_PEAKS_PER_SPECTRUM;
+        CompactSuffixArray sa;
+        if (dbCache == null) {
+            DBScanner.setAminoAcidProbabilities(databaseFile.getPath(), aaSet);
+            sa = readDatabase(databaseFile, params.getMaxPeptideLength(), params.getDecoyProteinPrefix(), params.useTDA());
+        } else {
+            DatabaseCache.Entry entry = dbCache.get(databaseFile, params.getMaxPeptideLength(), params.getDecoyProteinPrefix(), params.useTDA());
+            DBScanner.setAminoAcidProbabilities(entry.getResidueCounts(), aaSet);
+            sa = entry.getSuffixArray();
         }
+        aaSet.registerEnzyme(params.getEnzyme());
+        return sa;
+    }
 
+    /**
+     * Get the database file to search: the copy in the database index directory and/or the concatenated target-decoy
+     * database, creating them if needed. Synchronized, as searches run by MSGFPlusServer may need the same file.
+     *
+     * @return the database file to search, or null if the decoy database cannot be created
+     */
+    private static synchronized File getSearchDatabaseFile(File databaseFile, SearchParams params) {
+        boolean useTDA = params.useTDA();
         String decoyProteinPrefix = params.getDecoyProteinPrefix();
 
-        System.out.println("Loading database files...");
-
         File dbIndexDir = params.getDBIndexDir();
         if (dbIndexDir != null) {
 
@@ -223,15 +433,22 @@ public class MSGFPlus {
             if (!concatTargetDecoyDBFile.exists()) {
                 System.out.println("Creating " + concatTargetDecoyDBFile.getPath() + ".");
                 if (ReverseDB.reverseDB(databaseFile.getPath(), concatTargetDecoyDBFile.getPath(), true, decoyProteinPrefix) == false) {
-                    return "Cannot create a decoy database file!";
+                    return null;
                 }
             }
             databaseFile = concatTargetDecoyDBFile;
         }
+        return databaseFile;
+    }
 
-        DBScanner.setAminoAcidProbabilities(databaseFile.getPath(), aaSet);
-        aaSet.registerEnzyme(enzyme);
-
+    /**
+     * Read the database file and build its suffix array
+     *
+     * @param useTDA true if the database is a concatenated target-decoy database, to check its decoy proteins
+     * @throws IOException if the database has too many duplicate sequences or the fraction of decoy proteins is not
+     *                     close to 0.5; the details are printed to System.err
+     */
+    static CompactSuffixArray readDatabase(File databaseFile, int maxPeptideLength, String decoyProteinPrefix, boolean useTDA) throws IOException {
         CompactFastaSequence fastaSequence = new CompactFastaSequence(databaseFile.getPath());
         fastaSequence.setDecoyProteinPrefix(decoyProteinPrefix);
 
@@ -239,7 +456,7 @@ public class MSGFPlus {
             float ratioUniqueProteins = fastaSequence.getRatioUniqueProteins();
             if (ratioUniqueProteins < 0.5f) {
                 fastaSequence.printTooManyDuplicateSequencesMessage(databaseFile.getName(), "MS-GF+");
-                System.exit(-1);
+                throw new IOException("Error while indexing: " + databaseFile.getName() + " (too many redundant proteins)");
             }
 
             float fractionDecoyProteins = fastaSequence.getFractionDecoyProteins();
@@ -247,15 +464,68 @@ public class MSGFPlus {
                 System.err.println("Error while reading: " + databaseFile.getName() + " (fraction of decoy proteins: " + fractionDecoyProteins + ")");
                 System.err.println("Delete " + databaseFile.getName() + " and run MS-GF+ again.");
                 System.err.println("Decoy protein names should start with " + fastaSequence.getDecoyProteinPrefix());
-                System.exit(-1);
+                throw new IOException("Error while reading: " + databaseFile.getName() + " (fraction of decoy proteins: " + fractionDecoyProteins + ")");
             }
         }
 
-        CompactSuffixArray sa = new CompactSuffixArray(fastaSequence, params.getMaxPeptideLength());
-        System.out.print("Loading database finished ");
-        System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+        return new CompactSuffixArray(fastaSequence, maxPeptideLength);
+    }
+
+    /**
+     * Search a spectrum file against the loaded database and write the results
+     *
+     * @param numThreads        number of threads for this spectrum file
+     * @param specStoreMaxBytes maximum memory of the in-memory spectrum store of this spectrum file
+     * @param resultStoreMaxBytes maximum memory of the search results of this spectrum file kept in memory
+     * @param loadDatabaseNanos time spent loading the database, added to the metrics of this spectrum file
+     * @return error message, or null if successful
+     */
+    private static String runMSGFPlus(
+            int ioIndex,
+            SpecFileFormat specFormat,
+            File outputFile,
+            CompactSuffixArray sa,
+            SearchParams params,
+            int numThreads,
+            long specStoreMaxBytes,
+            long resultStoreMaxBytes,
+            long loadDatabaseNanos
+    ) {
+        long startTime = System.currentTimeMillis();
+        long metricsStartTime = System.nanoTime();
+        SearchMetrics metrics = new SearchMetrics(params.getDBSearchIOList().get(ioIndex).getSpecFile().getName());
+        if (loadDatabaseNanos > 0)
+            metrics.addNanos(SearchMetrics.Phase.LOAD_DATABASE, loadDatabaseNanos);
+
+        Enzyme enzyme = params.getEnzyme();
+
+        ActivationMethod activationMethod = params.getActivationMethod();
+        InstrumentType instType = params.getInstType();
+        Protocol protocol = params.getProtocol();
+
+        AminoAcidSet aaSet = params.getAASet();
+
+        int startSpecIndex = params.getStartSpecIndex();
+        int endSpecIndex = params.getEndSpecIndex();
+
+        int minCharge = params.getMinCharge();
+        int maxCharge = params.getMaxCharge();
+
+        boolean allowDenseCentroidedPeaks = params.getAllowDenseCentroidedPeaks();
+
+        int minNumPeaksPerSpectrum = params.getMinNumPeaksPerSpectrum();
+        if (minNumPeaksPerSpectrum == -1)    // not specified
+        {
+            if (instType == InstrumentType.TOF)
+                minNumPeaksPerSpectrum = Constants.MIN_NUM_PEAKS_PER_SPECTRUM_TOF;
+            else
+                minNumPeaksPerSpectrum = Constants.MIN_NUM_PEAKS_PER_SPECTRUM;
+        }
+
+        String decoyProteinPrefix = params.getDecoyProteinPrefix();
 
         System.out.println("Reading spectra...");
+        long readSpectraStartTime = System.nanoTime();
 
         File specFile = params.getDBSearchIOList().get(ioIndex).getSpecFile();
 
@@ -263,36 +533,33 @@ public class MSGFPlus {
         System.out.printf("Opening %s %s\n", specFormat.getPSIName(), specFile.getName());
 
         SpectraAccessor specAcc = new SpectraAccessor(specFile, specFormat);
+        if (params.useSpectrumCache())
+            specAcc.loadSpectrumCache(params.getSpectrumCacheDir(), specStoreMaxBytes);
+        else
+            specAcc.loadSpectrumStore(specStoreMaxBytes);
 
-        if (specAcc.getSpecMap() == null || specAcc.getSpecItr() == null)
+        if (specAcc.getSpecMap() == null || specAcc.getSpecItr() == null) {
+            specAcc.close();
             return "Error while parsing spectrum file: " + specFile.getPath();
+        }
 
         ArrayList<SpecKey> specKeyList = SpecKey.getSpecKeyList(specAcc,
                 startSpecIndex, endSpecIndex, minCharge, maxCharge, activationMethod, minNumPeaksPerSpectrum, allowDenseCentroidedPeaks);
 
         int specSize = specKeyList.size();
-        if (specSize == 0)
+        if (specSize == 0) {
+            specAcc.close();
             return specFile.getPath() + " does not have any valid spectra";
+        }
 
+        metrics.add(SearchMetrics.Counter.SPECTRA_READ, specSize);
+        metrics.addTime(SearchMetrics.Phase.READ_SPECTRA, readSpectraStartTime);
         System.out.print("Reading spectra finished ");
         System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
 
         if (numThreads <= 0)
             numThreads = 1;
 
-        // Use 250 spectra/task(or thread) minimum for efficiency; going smaller slows down processing
-        int spectraPerTaskMinimum = 250;
-        int maxThreads = Math.max(1, Math.round((float) specSize / spectraPerTaskMinimum));
-        if (maxThreads < numThreads) {
-            if (maxThreads == 1) {
-                System.out.println("Note: under " + spectraPerTaskMinimum + " spectra; using 1 thread instead of " + numThreads);
-            } else {
-                System.out.println("Note: " + spectraPerTaskMinimum + " spectra per thread minimum; using " + maxThreads + " threads instead of " + numThreads);
-            }
-
-            numThreads = maxThreads;
-        }
-
         System.out.println("Using " + numThreads + (numThreads == 1 ? " thread." : " threads."));
 
         // Print out parameters
@@ -301,8 +568,6 @@ public class MSGFPlus {
 
         SpecDataType specDataType = new SpecDataType(activationMethod, instType, enzyme, protocol);
 
-        List<MSGFPlusMatch> resultList = Collections.synchronizedList(new ArrayList<MSGFPlusMatch>());
-
         int toIndexGlobal = specSize;
         while (toIndexGlobal < specSize) {
             SpecKey lastSpecKey = specKeyList.get(toIndexGlobal - 1);
@@ -316,14 +581,102 @@ public class MSGFPlus {
 
         System.out.println("Spectrum 0-" + (toIndexGlobal - 1) + " (total: " + specSize + ")");
 
-        // Thread pool
-        ThreadPoolExecutorWithExceptions executor = ThreadPoolExecutorWithExceptions.newFixedThreadPool(numThreads);
-        executor.setTaskName("Search");
+        // Results beyond resultStoreMaxBytes are written to sorted temporary files next to the output file
+        MSGFPlusResultStore resultStore = new MSGFPlusResultStore(resultStoreMaxBytes, outputFile.getAbsoluteFile().getParentFile());
+        try {
+            String searchErrMsg;
+            if (params.partitionDatabase()) {
+                searchErrMsg = runDatabasePartitionedSearch(specAcc, specKeyList.subList(0, toIndexGlobal), sa, params, specDataType, numThreads, resultStore, metrics);
+            } else {
+                searchErrMsg = runSpectrumPartitionedSearch(specAcc, specKeyList, toIndexGlobal, sa, params, specDataType, numThreads, resultStore, metrics);
+            }
+            if (searchErrMsg != null) {
+                return searchErrMsg;
+            }
+            if (resultStore.getNumRuns() > 0)
+                System.out.println("Search results were written to " + resultStore.getNumRuns() + " temporary files to limit memory use (-resultStoreMB)");
+
+            long qValueStartTime = System.currentTimeMillis();
+            long qValueStartNanos = System.nanoTime();
+
+            MSGFPlusQValues qValues = null;
+            if (params.useTDA()) {
+                // Compute Q-values; they are added to the results while writing them
+                System.out.println("Computing q-values...");
+                qValues = new MSGFPlusQValues(resultStore, sa, false, decoyProteinPrefix);
+                metrics.addTime(SearchMetrics.Phase.Q_VALUES, qValueStartNanos);
+                System.out.print("Computing q-values finished ");
+                System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - qValueStartTime) / 1000);
+            }
+
+            // The result store returns the results sorted by spectral E-value
 
-        int numTasks = Math.min(numThreads * 3, Math.round((float) specSize / spectraPerTaskMinimum));
-        if (numThreads <= 1) {
-            numTasks = 1;
+            long saveResultsStartTime = System.currentTimeMillis();
+            long saveResultsStartNanos = System.nanoTime();
+
+            System.out.println("Writing results...");
+            Iterable<MSGFPlusMatch> results = qValues == null ? resultStore : qValues.withQValues(resultStore);
+            if (params.writeMzIdentML()) {
+                MZIdentMLGen mzidGen = new MZIdentMLGen(params, aaSet, sa, specAcc, ioIndex);
+                mzidGen.writeResults(results, outputFile);
+                metrics.add(SearchMetrics.Counter.BYTES_WRITTEN, outputFile.length());
+            }
+            File tsvFile = null;
+            File scoreFile = params.getExperimentFDR() > 0 ? PSMScoreWriter.getScoreFile(outputFile) : null;
+            if (params.writeTSV() || scoreFile != null) {
+                // written from the results, without parsing the mzIdentML file; the PSM scores are for the experiment-level FDR
+                if (params.writeTSV())
+                    tsvFile = getTSVFile(outputFile);
+                TSVResultWriter tsvWriter = new TSVResultWriter(params, aaSet, sa, specAcc, ioIndex);
+                try {
+                    tsvWriter.writeResults(results, tsvFile, scoreFile);
+                } catch (IOException e) {
+                    return "Error writing results to " + (tsvFile != null ? tsvFile : scoreFile).getPath() + ": " + e.getMessage();
+                }
+                if (tsvFile != null)
+                    metrics.add(SearchMetrics.Counter.BYTES_WRITTEN, tsvFile.length());
+            }
+            metrics.addTime(SearchMetrics.Phase.WRITE_RESULTS, saveResultsStartNanos);
+
+            System.out.print("Writing results finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - saveResultsStartTime) / 1000);
+
+            if (params.writeMzIdentML())
+                System.out.println("File: " + outputFile.getPath());
+            if (tsvFile != null)
+                System.out.println("File: " + tsvFile.getPath());
+            if (scoreFile != null)
+                System.out.println("File: " + scoreFile.getPath());
+
+            metrics.addTime(SearchMetrics.Phase.TOTAL, metricsStartTime);
+            if (params.getMetrics() > 0)
+                metrics.writeFiles(outputFile, params.getMetrics() == 2);
+            return null;
+        } finally {
+            resultStore.close();
+            specAcc.close();
         }
+    }
+
+    /**
+     * Search by splitting the spectra into tasks; all spectra are first preprocessed by all threads into a shared,
+     * read-only ScoredSpectraMap, then each task scans the whole database for its part of the spectra
+     *
+     * @return error message, or null if successful
+     */
+    private static String runSpectrumPartitionedSearch(
+            SpectraAccessor specAcc,
+            List<SpecKey> specKeyList,
+            int toIndexGlobal,
+            CompactSuffixArray sa,
+            SearchParams params,
+            SpecDataType specDataType,
+            int numThreads,
+            Collection<MSGFPlusMatch> resultList,
+            SearchMetrics metrics
+    ) {
+        // One task per thread by default; the number of tasks is the number of times the database is scanned
+        int numTasks = Math.max(1, Math.min(numThreads, toIndexGlobal));
 
         if (params.getNumTasks() != 0) {
             numTasks = params.getNumTasks();
@@ -366,24 +719,35 @@ public class MSGFPlus {
             }
         }
 
+        ScoredSpectraMap specScanner = new ScoredSpectraMap(
+                specAcc,
+                Collections.synchronizedList(specKeyList.subList(0, toIndexGlobal)),
+                params.getLeftPrecursorMassTolerance(),
+                params.getRightPrecursorMassTolerance(),
+                params.getMinIsotopeError(),
+                params.getMaxIsotopeError(),
+                specDataType,
+                params.outputAdditionalFeatures(),
+                false
+        );
+        if (params.doNotUseEdgeScore())
+            specScanner.turnOffEdgeScoring();
+        specScanner.setMetrics(metrics);
+
+        ThreadPoolExecutorWithExceptions executor = null;
         try {
+            // Pre-process all spectra, independent of the partitioning into tasks
+            long startTime = System.currentTimeMillis();
+            System.out.println("Preprocessing spectra...");
+            preProcessSpectra(specScanner, numThreads);
+            System.out.print("Preprocessing spectra finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+
+            executor = ThreadPoolExecutorWithExceptions.newFixedThreadPool(numThreads);
+            executor.setTaskName("Search");
             for (int i = 0; i < numTasks; i++) {
-                ScoredSpectraMap specScanner = new ScoredSpectraMap(
-                        specAcc,
-                        Collections.synchronizedList(specKeyList.subList(startIndex[i], endIndex[i])),
-                        leftPrecursorMassTolerance,
-                        rightPrecursorMassTolerance,
-                        minIsotopeError,
-                        maxIsotopeError,
-                        specDataType,
-                        params.outputAdditionalFeatures(),
-                        false
-                );
-                if (doNotUseEdgeScore)
-                    specScanner.turnOffEdgeScoring();
-
                 ConcurrentMSGFPlus.RunMSGFPlus msgfplusExecutor = new ConcurrentMSGFPlus.RunMSGFPlus(
-                        specScanner,
+                        specScanner.getSubMap(startIndex[i], endIndex[i]),
                         sa,
                         params,
                         resultList,
@@ -417,49 +781,211 @@ public class MSGFPlus {
         } catch (OutOfMemoryError ex) {
             ex.printStackTrace();
             Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, null, ex);
-            executor.shutdownNow();
-            int taskMult = numTasks / numThreads;
+            if (executor != null)
+                executor.shutdownNow();
             return "Task terminated; results incomplete. Please run again with a greater amount of memory, using \"-Xmx4G\", for example.\n" +
-                    "\tYou can also use less memory by increasing the number of tasks used for the search, at the cost of more time.\n" +
-                    "\tTry doubling the number used for this search with \"-tasks -" + (taskMult * 2) + "\" or \"-tasks " + (numTasks * 2) + "\".";
-        } catch (Exception ex) {
+                    "\tAll spectra are preprocessed before the database search; you can also search parts of the spectrum file separately, using \"-index 1,20000\", for example.";
+        } catch (Throwable ex) {
             ex.printStackTrace();
             Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, null, ex);
-            executor.shutdownNow();
+            if (executor != null)
+                executor.shutdownNow();
             return "Task terminated; results incomplete. Please run again.";
+        }
+
+        return null;
+    }
+
+    /**
+     * Search by splitting the database into one range of suffix array indices per thread;
+     * all spectra are preprocessed once into a shared, read-only ScoredSpectraMap,
+     * so that the database is scanned (and its peptides enumerated) only once in total.
+     * The top matches found by each partition are merged before computing spectral E-values.
+     *
+     * @return error message, or null if successful
+     */
+    private static String runDatabasePartitionedSearch(
+            SpectraAccessor specAcc,
+            List<SpecKey> specKeyList,
+            CompactSuffixArray sa,
+            SearchParams params,
+            SpecDataType specDataType,
+            int numThreads,
+            Collection<MSGFPlusMatch> resultList,
+            SearchMetrics metrics
+    ) {
+        ScoredSpectraMap specScanner = new ScoredSpectraMap(
+                specAcc,
+                Collections.synchronizedList(specKeyList),
+                params.getLeftPrecursorMassTolerance(),
+                params.getRightPrecursorMassTolerance(),
+                params.getMinIsotopeError(),
+                params.getMaxIsotopeError(),
+                specDataType,
+                params.outputAdditionalFeatures(),
+                false
+        );
+        if (params.doNotUseEdgeScore())
+            specScanner.turnOffEdgeScoring();
+        specScanner.setMetrics(metrics);
+
+        int numSpecs = specKeyList.size();
+        int numThreadsEValue = Math.max(1, Math.min(numThreads, numSpecs));
+
+        int numSuffixes = sa.getSize();
+        int numPartitions = Math.max(1, Math.min(numThreads, numSuffixes));
+        System.out.println("Splitting the database into " + numPartitions + (numPartitions == 1 ? " partition." : " partitions."));
+
+        ConcurrentMSGFPlus.RunDBSearchPartition[] partitions = new ConcurrentMSGFPlus.RunDBSearchPartition[numPartitions];
+        ThreadPoolExecutorWithExceptions executor = null;
+        try {
+            // Pre-process all spectra into a single precursor mass index
+            long startTime = System.currentTimeMillis();
+            System.out.println("Preprocessing spectra...");
+            specScanner.makePepMassSpecKeyMap();
+            preProcessSpectra(specScanner, numThreads);
+            System.out.print("Preprocessing spectra finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+
+            // Database search; each thread scans a contiguous range of the suffix array
+            startTime = System.currentTimeMillis();
+            System.out.println("Database search...");
+            executor = ThreadPoolExecutorWithExceptions.newFixedThreadPool(numThreads);
+            executor.setTaskName("Search");
+            for (int i = 0; i < numPartitions; i++) {
+                int fromIndex = (int) ((long) numSuffixes * i / numPartitions);
+                int toIndex = (int) ((long) numSuffixes * (i + 1) / numPartitions);
+                partitions[i] = new ConcurrentMSGFPlus.RunDBSearchPartition(specScanner, sa, params, fromIndex, toIndex, i + 1);
+                if (DISABLE_THREADING) {
+                    partitions[i].run();
+                } else {
+                    executor.execute(partitions[i]);
+                }
+            }
+            executor.outputProgressReport();
+            awaitExecutor(executor);
+            executor.outputProgressReport();
+
+            // Merge the per-partition top-N matches into the first partition's scanner
+            DBScanner scanner = partitions[0].getScanner();
+            for (int i = 1; i < numPartitions; i++) {
+                scanner.addDBMatches(partitions[i].getScanner().getSpecKeyDBMatchMap());
+                partitions[i] = null;
+            }
+            System.out.print("Database search finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+
+            // Spectral E-values
+            startTime = System.currentTimeMillis();
+            System.out.println("Computing spectral E-values...");
+            scanner.setPrintStream(params.getVerbose() ? System.out : new PrintStream(new NullOutputStream()));
+            executor = ThreadPoolExecutorWithExceptions.newFixedThreadPool(numThreadsEValue);
+            executor.setTaskName("Spectral E-value");
+            for (int i = 0; i < numThreadsEValue; i++) {
+                int fromIndex = (int) ((long) numSpecs * i / numThreadsEValue);
+                int toIndex = (int) ((long) numSpecs * (i + 1) / numThreadsEValue);
+                ConcurrentMSGFPlus.ComputeSpecEValueRange eValueTask = new ConcurrentMSGFPlus.ComputeSpecEValueRange(scanner, fromIndex, toIndex);
+                if (DISABLE_THREADING) {
+                    eValueTask.run();
+                } else {
+                    executor.execute(eValueTask);
+                }
+            }
+            awaitExecutor(executor);
+            System.out.print("Computing spectral E-values finished ");
+            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - startTime) / 1000);
+
+            scanner.generateSpecIndexDBMatchMap();
+            if (params.outputAdditionalFeatures())
+                scanner.addAdditionalFeatures();
+            scanner.addResultsToList(resultList);
+
+        } catch (OutOfMemoryError ex) {
+            ex.printStackTrace();
+            Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, null, ex);
+            if (executor != null)
+                executor.shutdownNow();
+            return "Task terminated; results incomplete. Please run again with a greater amount of memory, using \"-Xmx4G\", for example.\n" +
+                    "\tAll spectra are preprocessed before the database search; you can also search parts of the spectrum file separately, using \"-index 1,20000\", for example.";
         } catch (Throwable ex) {
             ex.printStackTrace();
             Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, null, ex);
-            executor.shutdownNow();
+            if (executor != null)
+                executor.shutdownNow();
             return "Task terminated; results incomplete. Please run again.";
         }
 
-        long qValueStartTime = System.currentTimeMillis();
+        return null;
+    }
 
-        if (params.useTDA()) {
-            // Compute Q-values
-            System.out.println("Computing q-values...");
-            ComputeFDR.addQValues(resultList, sa, false, decoyProteinPrefix);
-            System.out.print("Computing q-values finished ");
-            System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - qValueStartTime) / 1000);
+    /**
+     * Preprocess all spectra of the map using all threads, then make the map read-only.
+     * The spectra are split into many small ranges that the threads pick up as they become free,
+     * so that the threads stay busy even if some ranges take longer than others.
+     */
+    private static void preProcessSpectra(ScoredSpectraMap specScanner, int numThreads) throws Throwable {
+        int numSpecs = specScanner.getSpecKeyList().size();
+        int numThreadsPreprocess = Math.max(1, Math.min(numThreads, numSpecs));
+        int numRanges = Math.max(1, Math.min(numSpecs, numThreadsPreprocess * PREPROCESS_RANGES_PER_THREAD));
+
+        ThreadPoolExecutorWithExceptions executor = ThreadPoolExecutorWithExceptions.newFixedThreadPool(numThreadsPreprocess);
+        executor.setTaskName("Preprocessing");
+        for (int i = 0; i < numRanges; i++) {
+            int fromIndex = (int) ((long) numSpecs * i / numRanges);
+            int toIndex = (int) ((long) numSpecs * (i + 1) / numRanges);
+            ConcurrentMSGFPlus.PreProcessSpectraRange preprocessTask = new ConcurrentMSGFPlus.PreProcessSpectraRange(specScanner, fromIndex, toIndex);
+            if (DISABLE_THREADING) {
+                preprocessTask.run();
+            } else {
+                executor.execute(preprocessTask);
+            }
         }
+        awaitExecutor(executor);
+        specScanner.setPreProcessed();
+    }
 
-        // Sort by spectral E-values then write to disk
-
-        long saveResultsStartTime = System.currentTimeMillis();
-
-        System.out.println("Writing results...");
-        Collections.sort(resultList);
-
-        MZIdentMLGen mzidGen = new MZIdentMLGen(params, aaSet, sa, specAcc, ioIndex);
-        mzidGen.addSpectrumIdentificationResults(resultList);
+    private static void awaitExecutor(ThreadPoolExecutorWithExceptions executor) throws Throwable {
+        executor.shutdown();
+        try {
+            executor.awaitTerminationWithExceptions(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            if (!executor.HasThrownData()) {
+                e.printStackTrace();
+                Logger.getLogger(MSGFPlus.class.getName()).log(Level.SEVERE, e.getMessage(), e);
+            }
+        }
+    }
 
-        mzidGen.writeResults(outputFile);
+    /**
+     * Global thread budget shared by the spectrum files searched at the same time.
+     * A file starting its search gets an equal share of the threads not used by the files being searched,
+     * counting the files that can still start; the threads are returned when its search finishes.
+     */
+    private static class ThreadBudget {
+        private final int numThreads;
+        private final int numConcurrentFiles;
+        private int numFilesToStart;
+        private int numFilesRunning = 0;
+        private int numThreadsInUse = 0;
+
+        ThreadBudget(int numThreads, int numConcurrentFiles, int numFiles) {
+            this.numThreads = numThreads;
+            this.numConcurrentFiles = numConcurrentFiles;
+            this.numFilesToStart = numFiles;
+        }
 
-        System.out.print("Writing results finished ");
-        System.out.format("(elapsed time: %.2f sec)\n", (float) (System.currentTimeMillis() - saveResultsStartTime) / 1000);
+        synchronized int acquire() {
+            int numFilesSharing = Math.max(1, Math.min(numConcurrentFiles - numFilesRunning, numFilesToStart));
+            int numThreadsFile = Math.max(1, (numThreads - numThreadsInUse) / numFilesSharing);
+            numFilesToStart--;
+            numFilesRunning++;
+            numThreadsInUse += numThreadsFile;
+            return numThreadsFile;
+        }
 
-        System.out.println("File: " + outputFile.getPath());
-        return null;
+        synchronized void release(int numThreadsFile) {
+            numFilesRunning--;
+            numThreadsInUse -= numThreadsFile;
+        }
     }
 }
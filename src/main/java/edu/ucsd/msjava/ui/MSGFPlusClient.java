@@ -0,0 +1,142 @@
+package edu.ucsd.msjava.ui;
+
+import edu.ucsd.msjava.params.ParamManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line client of MSGFPlusServer: submits a search with the usual MS-GF+ arguments and waits for it to finish.
+ * File and directory paths are sent as absolute paths, as the server may run in another working directory.
+ * <p>
+ * Usage: java -cp MSGFPlus.jar edu.ucsd.msjava.ui.MSGFPlusClient [-port Port] MS-GF+ arguments (e.g. -s spec.mzML -d db.fasta)
+ * <br>
+ * or: java -cp MSGFPlus.jar edu.ucsd.msjava.ui.MSGFPlusClient [-port Port] -request STATUS|SHUTDOWN
+ */
+public class MSGFPlusClient {
+
+    // MS-GF+ parameters whose values are paths
+    private static final ParamManager.ParamNameEnum[] PATH_PARAMS = {
+            ParamManager.ParamNameEnum.SPECTRUM_FILE,
+            ParamManager.ParamNameEnum.DB_FILE,
+            ParamManager.ParamNameEnum.OUTPUT_FILE,
+            ParamManager.ParamNameEnum.CONFIGURATION_FILE,
+            ParamManager.ParamNameEnum.MOD_FILE,
+            ParamManager.ParamNameEnum.DD_DIRECTORY,
+            ParamManager.ParamNameEnum.SPEC_CACHE_DIR
+    };
+
+    public static void main(String argv[]) {
+        if (argv.length == 0) {
+            System.out.println("Usage: java -cp MSGFPlus.jar edu.ucsd.msjava.ui.MSGFPlusClient [-port Port] MS-GF+ arguments");
+            System.out.println("   or: java -cp MSGFPlus.jar edu.ucsd.msjava.ui.MSGFPlusClient [-port Port] -request STATUS|SHUTDOWN");
+            System.out.println("Default port: " + MSGFPlusServer.DEFAULT_PORT);
+            return;
+        }
+
+        int port = MSGFPlusServer.DEFAULT_PORT;
+        String request = null;
+        List<String> args = new ArrayList<String>();
+        for (int i = 0; i < argv.length; i++) {
+            if (i + 1 < argv.length && argv[i].equalsIgnoreCase("-port")) {
+                try {
+                    port = Integer.parseInt(argv[++i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("[Error] Invalid port: " + argv[i]);
+                    System.exit(-1);
+                }
+            } else if (i + 1 < argv.length && argv[i].equalsIgnoreCase("-request")) {
+                request = argv[++i];
+            } else {
+                args.add(argv[i]);
+            }
+        }
+
+        String errorMessage;
+        if (request != null) {
+            errorMessage = null;
+            try {
+                System.out.println(sendRequest(port, request));
+            } catch (IOException e) {
+                errorMessage = "Cannot connect to the server on port " + port + ": " + e.getMessage();
+            }
+        } else {
+            errorMessage = search(port, args.toArray(new String[0]));
+        }
+
+        if (errorMessage != null) {
+            System.err.println("[Error] " + errorMessage);
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * Submit a search and wait for it to finish
+     *
+     * @param port port of the server
+     * @param args MS-GF+ command line arguments
+     * @return error message, or null if the search succeeded
+     */
+    public static String search(int port, String[] args) {
+        StringBuilder request = new StringBuilder(MSGFPlusServer.SEARCH);
+        for (String arg : toAbsolutePaths(args))
+            request.append('\t').append(arg);
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            out.println(request);
+
+            String reply;
+            while ((reply = in.readLine()) != null) {
+                if (reply.startsWith(MSGFPlusServer.QUEUED)) {
+                    System.out.println("Search queued as job " + reply.substring(MSGFPlusServer.QUEUED.length()).trim());
+                } else if (reply.startsWith(MSGFPlusServer.DONE)) {
+                    return null;
+                } else if (reply.startsWith(MSGFPlusServer.FAILED) || reply.startsWith(MSGFPlusServer.ERROR)) {
+                    return reply;
+                }
+            }
+            return "Connection closed by the server";
+        } catch (IOException e) {
+            return "Cannot connect to the server on port " + port + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Send a request that has a single line reply, e.g. STATUS
+     *
+     * @return the reply
+     */
+    public static String sendRequest(int port, String request) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            out.println(request);
+            return in.readLine();
+        }
+    }
+
+    private static String[] toAbsolutePaths(String[] args) {
+        String[] result = Arrays.copyOf(args, args.length);
+        for (int i = 0; i + 1 < result.length; i++) {
+            for (ParamManager.ParamNameEnum param : PATH_PARAMS) {
+                if (result[i].equalsIgnoreCase("-" + param.getKey())) {
+                    result[i + 1] = new File(result[i + 1]).getAbsolutePath();
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,289 @@
+package edu.ucsd.msjava.ui;
+
+import edu.ucsd.msjava.msdbsearch.SearchParams;
+import edu.ucsd.msjava.msutil.Composition;
+import edu.ucsd.msjava.mzml.MzMLAdapter;
+import edu.ucsd.msjava.params.DoubleParameter;
+import edu.ucsd.msjava.params.IntParameter;
+import edu.ucsd.msjava.params.ParamManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MS-GF+ search server, for pipelines that run many searches against the same databases.
+ * The server keeps the databases (suffix arrays and residue counts, see DatabaseCache) and the scoring models loaded
+ * between searches, so that a search does not pay for starting the JVM and loading the database.
+ * <p>
+ * The server listens on a port of the loopback interface and reads requests, one per line (UTF-8):
+ * <ul>
+ * <li>SEARCH followed by MS-GF+ command line arguments, separated by tabs.
+ * The server replies QUEUED JobID, then DONE JobID or FAILED JobID Message once the search finishes.</li>
+ * <li>STATUS; the server replies STATUS running=N queued=N databases=N</li>
+ * <li>SHUTDOWN; the server replies BYE, stops accepting requests and exits once the queued searches finish</li>
+ * </ul>
+ * Invalid requests, including searches with invalid parameters or parameter files, get ERROR Message;
+ * errors found while searching, such as an invalid database, are reported as FAILED JobID Message.
+ * The server keeps running after both. Searches wait in a job queue and at most -jobs searches run at the same time;
+ * each search writes its own output file (-o, default: [SpectrumFileName].mzid).
+ * Relative paths are relative to the working directory of the server; MSGFPlusClient sends absolute paths.
+ * <p>
+ * The charge carrier mass is shared by the whole process, so it is a setting of the server (-ccm);
+ * searches with another charge carrier mass are rejected.
+ */
+public class MSGFPlusServer {
+    public static final int DEFAULT_PORT = 5233;
+
+    // Requests
+    static final String SEARCH = "SEARCH";
+    static final String STATUS = "STATUS";
+    static final String SHUTDOWN = "SHUTDOWN";
+
+    // Replies
+    static final String QUEUED = "QUEUED";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+    static final String ERROR = "ERROR";
+    static final String BYE = "BYE";
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private final DatabaseCache dbCache = new DatabaseCache();
+
+    // Parameters are parsed one search at a time, as parsing registers modifications and enzymes in tables shared by the process
+    private final Object parseLock = new Object();
+
+    private final AtomicInteger nextJobID = new AtomicInteger(1);
+    private volatile boolean isShutdown = false;
+
+    public static void main(String argv[]) {
+        ParamManager paramManager = new ParamManager("MSGFPlusServer", MSGFPlus.VERSION, MSGFPlus.RELEASE_DATE, "java -Xmx16G -cp MSGFPlus.jar edu.ucsd.msjava.ui.MSGFPlusServer");
+
+        IntParameter portParam = new IntParameter("port", "Port", "Port of the loopback interface to listen on; Default: " + DEFAULT_PORT);
+        portParam.minValue(1);
+        portParam.maxValue(65535);
+        portParam.defaultValue(DEFAULT_PORT);
+        paramManager.addParameter(portParam);
+
+        IntParameter jobsParam = new IntParameter("jobs", "MaxConcurrentJobs", "Maximum number of searches to run at the same time; Default: 1");
+        jobsParam.minValue(1);
+        jobsParam.defaultValue(1);
+        paramManager.addParameter(jobsParam);
+
+        IntParameter queueParam = new IntParameter("queue", "MaxQueuedJobs", "Maximum number of searches waiting to run; Default: 1000");
+        queueParam.minValue(1);
+        queueParam.defaultValue(1000);
+        paramManager.addParameter(queueParam);
+
+        DoubleParameter chargeCarrierMassParam = new DoubleParameter(ParamManager.ParamNameEnum.CHARGE_CARRIER_MASSES);
+        chargeCarrierMassParam.minValue(0.1);
+        chargeCarrierMassParam.setMaxInclusive();
+        chargeCarrierMassParam.defaultValue(Composition.PROTON);
+        paramManager.addParameter(chargeCarrierMassParam);
+
+        MzMLAdapter.turnOffLogs();
+
+        String errMessage = paramManager.parseParams(argv);
+        if (argv.length > 0 && errMessage != null) {
+            System.err.println("[Error] " + errMessage);
+            System.out.println();
+            paramManager.printUsageInfo();
+            System.exit(-1);
+        }
+
+        paramManager.printToolInfo();
+        paramManager.printJVMInfo();
+        Composition.setChargeCarrierMass(paramManager.getChargeCarrierMass());
+
+        MSGFPlusServer server;
+        try {
+            server = new MSGFPlusServer(paramManager.getIntValue("port"), paramManager.getIntValue("jobs"), paramManager.getIntValue("queue"));
+        } catch (IOException e) {
+            System.err.println("[Error] Cannot listen on port " + paramManager.getIntValue("port") + ": " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
+        System.out.println("Listening on " + server.serverSocket.getLocalSocketAddress() +
+                "; running up to " + paramManager.getIntValue("jobs") + " searches at a time");
+        server.run();
+        System.out.println("MSGFPlusServer stopped");
+    }
+
+    /**
+     * @param port          port of the loopback interface; 0 for any free port
+     * @param maxJobs       maximum number of searches running at the same time
+     * @param maxQueuedJobs maximum number of searches waiting to run
+     */
+    public MSGFPlusServer(int port, int maxJobs, int maxQueuedJobs) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        jobExecutor = new ThreadPoolExecutor(maxJobs, maxJobs, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(maxQueuedJobs));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accept requests until the server is shut down, then wait for the queued searches to finish
+     */
+    public void run() {
+        while (!isShutdown) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!isShutdown)
+                    e.printStackTrace();
+                break;
+            }
+            connectionExecutor.execute(new Runnable() {
+                public void run() {
+                    handleConnection(socket);
+                }
+            });
+        }
+
+        jobExecutor.shutdown();
+        try {
+            jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            jobExecutor.shutdownNow();
+        }
+        connectionExecutor.shutdown();
+    }
+
+    /**
+     * Stop accepting requests; searches already queued still run
+     */
+    public void shutdown() {
+        isShutdown = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String request;
+            while ((request = in.readLine()) != null) {
+                String[] token = request.split("\t");
+                String command = token[0].trim();
+                if (command.equalsIgnoreCase(SEARCH)) {
+                    search(Arrays.copyOfRange(token, 1, token.length), out);
+                } else if (command.equalsIgnoreCase(STATUS)) {
+                    out.println(STATUS + " running=" + jobExecutor.getActiveCount() + " queued=" + jobExecutor.getQueue().size() + " databases=" + dbCache.size());
+                } else if (command.equalsIgnoreCase(SHUTDOWN)) {
+                    out.println(BYE);
+                    shutdown();
+                    return;
+                } else if (!command.isEmpty()) {
+                    out.println(ERROR + " Unknown request: " + command);
+                }
+            }
+        } catch (IOException e) {
+            if (!isShutdown)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parse the search parameters and queue the search, then wait for it and report its result
+     */
+    private void search(String[] args, PrintWriter out) {
+        final SearchParams params = new SearchParams();
+        String errMessage = parseSearchParams(args, params);
+        if (errMessage != null) {
+            out.println(ERROR + " " + toOneLine(errMessage));
+            return;
+        }
+
+        final int jobID = nextJobID.getAndIncrement();
+        Future<String> future;
+        try {
+            future = jobExecutor.submit(new Callable<String>() {
+                public String call() {
+                    return runJob(jobID, params);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            out.println(ERROR + (isShutdown ? " The server is shutting down" : " The job queue is full"));
+            return;
+        }
+        out.println(QUEUED + " " + jobID);
+
+        String result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            result = "Search terminated: " + e.getCause();
+        } catch (InterruptedException e) {
+            result = "Search interrupted";
+        }
+
+        if (result == null)
+            out.println(DONE + " " + jobID);
+        else
+            out.println(FAILED + " " + jobID + " " + toOneLine(result));
+    }
+
+    /**
+     * Parse the MS-GF+ arguments of a search request, including its parameter file (-conf) and modification file (-mod)
+     *
+     * @return error message, or null if successful
+     */
+    private String parseSearchParams(String[] args, SearchParams params) {
+        ParamManager paramManager = new ParamManager("MS-GF+", MSGFPlus.VERSION, MSGFPlus.RELEASE_DATE, "MSGFPlusClient");
+        paramManager.addMSGFPlusParams();
+        String errorMessage = paramManager.parseParams(args);
+        if (errorMessage != null)
+            return errorMessage;
+
+        synchronized (parseLock) {
+            errorMessage = params.parse(paramManager, false);
+        }
+        if (errorMessage == null && params.getChargeCarrierMass() != Composition.ChargeCarrierMass()) {
+            errorMessage = "The charge carrier mass of the server is " + Composition.ChargeCarrierMass() +
+                    "; use another server (-ccm) for searches with a charge carrier mass of " + params.getChargeCarrierMass();
+        }
+        return errorMessage;
+    }
+
+    private String runJob(int jobID, SearchParams params) {
+        long startTime = System.currentTimeMillis();
+        System.out.println("Starting job " + jobID);
+
+        String errorMessage = MSGFPlus.runMSGFPlus(params, dbCache);
+
+        System.out.format("Job %d %s (elapsed time: %.2f sec)\n", jobID, errorMessage == null ? "complete" : "failed",
+                (System.currentTimeMillis() - startTime) / (float) 1000);
+        return errorMessage;
+    }
+
+    private static String toOneLine(String message) {
+        return message.replaceAll("\\s*[\\r\\n]+\\s*", " ");
+    }
+}
@@ -240,7 +240,7 @@ public class PRMSpecGen {
             if (activationMethod == null || activationMethod == ActivationMethod.FUSION)
                 scorer = NewScorerFactory.get(spec.getActivationMethod(), instType, enzyme, Protocol.AUTOMATIC);
 
-            scorer.doNotUseError();
+            scorer = scorer.withoutError();
             NewScoredSpectrum<NominalMass> scoredSpec = scorer.getScoredSpectrum(spec);
             int maxNominalMass = NominalMass.toNominalMass(spec.getPrecursorMass());
 
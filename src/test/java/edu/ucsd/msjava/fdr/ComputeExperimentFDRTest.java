@@ -0,0 +1,165 @@
+package edu.ucsd.msjava.fdr;
+
+import edu.ucsd.msjava.ui.SearchTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ComputeExperimentFDRTest {
+
+    @Test
+    public void qValuesAreAddedToTheTSVFiles() throws IOException {
+        File dir = Files.createTempDirectory("experimentFDR").toFile();
+        dir.deleteOnExit();
+
+        // two searches; PSMs without rows (decoys) are only in the score files
+        float[] scores = {1e-12f, 1e-3f, 1e-10f, 1e-11f, 0.5f, 1e-9f};
+        String[] peptides = {"K.PEPTIDER.A", "K.DECOYR.A", "K.PEPTIDER.A", "K.OTHERK.A", "K.DECOYR.A", "K.THIRDK.A"};
+        boolean[] isDecoy = {false, true, false, false, true, false};
+        File[] scoreFiles = {new File(dir, "a" + PSMScoreWriter.EXTENSION), new File(dir, "b" + PSMScoreWriter.EXTENSION)};
+        int[] fileOffsets = {0, 2, 6};
+        for (int f = 0; f < scoreFiles.length; f++) {
+            scoreFiles[f].deleteOnExit();
+            StringBuilder tsv = new StringBuilder("#SpecFile\tPeptide\n");
+            try (PSMScoreWriter writer = new PSMScoreWriter(scoreFiles[f])) {
+                for (int i = fileOffsets[f]; i < fileOffsets[f + 1]; i++) {
+                    writer.write(scores[i], peptides[i], isDecoy[i], !isDecoy[i]);
+                    if (!isDecoy[i])
+                        tsv.append(f).append('\t').append(peptides[i]).append('\n');
+                }
+            }
+            File tsvFile = ComputeExperimentFDR.getTSVFile(scoreFiles[f]);
+            tsvFile.deleteOnExit();
+            Files.write(tsvFile.toPath(), tsv.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertNull(ComputeExperimentFDR.computeExperimentFDR(Arrays.asList(scoreFiles)));
+        // a second run replaces the columns
+        Assert.assertNull(ComputeExperimentFDR.computeExperimentFDR(Arrays.asList(scoreFiles)));
+
+        float[] qValues = scores.clone();
+        BitSet decoys = new BitSet();
+        for (int i = 0; i < isDecoy.length; i++) {
+            if (isDecoy[i])
+                decoys.set(i);
+        }
+        MSGFPlusQValues.toQValues(qValues, decoys, qValues.length);
+
+        int[] expectedRows = {0, 2, 3, 5};
+        List<String> rowsA = Files.readAllLines(ComputeExperimentFDR.getTSVFile(scoreFiles[0]).toPath(), StandardCharsets.UTF_8);
+        List<String> rowsB = Files.readAllLines(ComputeExperimentFDR.getTSVFile(scoreFiles[1]).toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals("#SpecFile\tPeptide\t" + ComputeExperimentFDR.QVALUE_COLUMN + "\t" + ComputeExperimentFDR.PEP_QVALUE_COLUMN, rowsA.get(0));
+        Assert.assertEquals(2, rowsA.size());
+        Assert.assertEquals(4, rowsB.size());
+        for (int r = 0; r < expectedRows.length; r++) {
+            String row = r == 0 ? rowsA.get(1) : rowsB.get(r);
+            String[] token = row.split("\t");
+            Assert.assertEquals(4, token.length);
+            Assert.assertEquals(peptides[expectedRows[r]], token[1]);
+            Assert.assertEquals(qValues[expectedRows[r]], Float.parseFloat(token[2]), 0f);
+        }
+    }
+
+    @Test
+    public void mismatchedTSVFileIsAnError() throws IOException {
+        File dir = Files.createTempDirectory("experimentFDR").toFile();
+        dir.deleteOnExit();
+
+        // the TSV file of the first score file matches, the second has a row too many
+        String[] tsv = {"#SpecFile\tPeptide\na\tK.PEPTIDER.A\n", "#SpecFile\tPeptide\nb\tK.PEPTIDER.A\nb\tK.OTHERK.A\n"};
+        File[] scoreFiles = {new File(dir, "a" + PSMScoreWriter.EXTENSION), new File(dir, "b" + PSMScoreWriter.EXTENSION)};
+        File[] tsvFiles = new File[scoreFiles.length];
+        for (int f = 0; f < scoreFiles.length; f++) {
+            scoreFiles[f].deleteOnExit();
+            try (PSMScoreWriter writer = new PSMScoreWriter(scoreFiles[f])) {
+                writer.write(1e-10f, "K.PEPTIDER.A", false, true);
+            }
+            tsvFiles[f] = ComputeExperimentFDR.getTSVFile(scoreFiles[f]);
+            tsvFiles[f].deleteOnExit();
+            Files.write(tsvFiles[f].toPath(), tsv[f].getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertNotNull(ComputeExperimentFDR.computeExperimentFDR(Arrays.asList(scoreFiles)));
+        // no TSV file is changed
+        for (int f = 0; f < scoreFiles.length; f++) {
+            Assert.assertEquals(tsv[f], new String(Files.readAllBytes(tsvFiles[f].toPath()), StandardCharsets.UTF_8));
+            Assert.assertFalse(new File(tsvFiles[f].getPath() + ".tmp").exists());
+        }
+    }
+
+    @Test
+    public void experimentQValuesOfASearchMatchTheQValuesOfOneFile() throws Exception {
+        File workDir = SearchTestUtils.createWorkDir("ComputeExperimentFDRTest");
+        // the results of a spectrum directory are written to the working directory
+        List<File> resultFiles = new ArrayList<File>();
+        try {
+            // BSA_synthetic.mgf split into two spectrum files
+            String mgf = new String(Files.readAllBytes(SearchTestUtils.getResource("BSA_synthetic.mgf").toPath()), StandardCharsets.UTF_8);
+            String[] spectra = mgf.split("(?=BEGIN IONS)");
+            File specDir = new File(workDir, "spectra");
+            Assert.assertTrue(specDir.mkdir());
+            StringBuilder[] parts = {new StringBuilder(), new StringBuilder()};
+            for (int i = 0; i < spectra.length; i++)
+                parts[i % 2].append(spectra[i]);
+            for (int f = 0; f < parts.length; f++) {
+                String baseName = workDir.getName() + "_" + f;
+                Files.write(new File(specDir, baseName + ".mgf").toPath(), parts[f].toString().getBytes(StandardCharsets.UTF_8));
+                resultFiles.add(new File(baseName + ".tsv"));
+                resultFiles.add(new File(baseName + PSMScoreWriter.EXTENSION));
+            }
+
+            String dbFile = new File(workDir, "BSA.fasta").getPath();
+            String modFile = SearchTestUtils.getResource("Mods.txt").getPath();
+            // two matches per spectrum, some of them below the minimum de novo score
+            Assert.assertNull(SearchTestUtils.search("-s", specDir.getPath(), "-d", dbFile, "-mod", modFile, "-tda", "1",
+                    "-n", "2", "-minDeNovoScore", "0", "-outputFormat", "1", "-experimentFDR", "2"));
+            File combinedFile = new File(workDir, "combined.mzid");
+            Assert.assertNull(SearchTestUtils.search("-s", SearchTestUtils.getResource("BSA_synthetic.mgf").getPath(),
+                    "-d", dbFile, "-mod", modFile, "-tda", "1", "-n", "2", "-minDeNovoScore", "0", "-outputFormat", "1",
+                    "-o", combinedFile.getPath()));
+
+            // q-values of the search of all spectra in one file, by title and peptide
+            Map<String, String[]> expected = new HashMap<String, String[]>();
+            List<String> rows = Files.readAllLines(new File(workDir, "combined.tsv").toPath(), StandardCharsets.UTF_8);
+            List<String> columns = Arrays.asList(rows.get(0).split("\t"));
+            for (String row : rows.subList(1, rows.size())) {
+                String[] token = row.split("\t");
+                expected.put(token[columns.indexOf("Title")] + "\t" + token[columns.indexOf("Peptide")],
+                        new String[]{token[columns.indexOf("QValue")], token[columns.indexOf("PepQValue")]});
+            }
+
+            int numRows = 0;
+            long numPSMs = 0;
+            for (int f = 0; f < parts.length; f++) {
+                rows = Files.readAllLines(resultFiles.get(2 * f).toPath(), StandardCharsets.UTF_8);
+                columns = Arrays.asList(rows.get(0).split("\t"));
+                for (String row : rows.subList(1, rows.size())) {
+                    String[] token = row.split("\t");
+                    String[] qValues = expected.get(token[columns.indexOf("Title")] + "\t" + token[columns.indexOf("Peptide")]);
+                    Assert.assertNotNull(row, qValues);
+                    Assert.assertEquals(row, Float.parseFloat(qValues[0]), Float.parseFloat(token[columns.indexOf(ComputeExperimentFDR.QVALUE_COLUMN)]), 1e-6f);
+                    Assert.assertEquals(row, Float.parseFloat(qValues[1]), Float.parseFloat(token[columns.indexOf(ComputeExperimentFDR.PEP_QVALUE_COLUMN)]), 1e-6f);
+                    numRows++;
+                }
+                numPSMs += (resultFiles.get(2 * f + 1).length() - PSMScoreWriter.HEADER_SIZE) / PSMScoreWriter.RECORD_SIZE;
+            }
+            Assert.assertEquals(expected.size(), numRows);
+            // PSMs without rows (decoys and matches below the minimum de novo score) are counted for the FDR
+            Assert.assertTrue(numPSMs > numRows);
+        } finally {
+            for (File file : resultFiles)
+                file.delete();
+            SearchTestUtils.delete(workDir);
+        }
+    }
+}
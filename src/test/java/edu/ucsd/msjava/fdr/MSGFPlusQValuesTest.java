@@ -0,0 +1,170 @@
+package edu.ucsd.msjava.fdr;
+
+import edu.ucsd.msjava.msdbsearch.CompactFastaSequence;
+import edu.ucsd.msjava.msdbsearch.CompactSuffixArray;
+import edu.ucsd.msjava.msdbsearch.ConcurrentMSGFPlus;
+import edu.ucsd.msjava.msdbsearch.DBScanner;
+import edu.ucsd.msjava.msdbsearch.DatabaseMatch;
+import edu.ucsd.msjava.msdbsearch.MSGFPlusMatch;
+import edu.ucsd.msjava.msdbsearch.ScoredSpectraMap;
+import edu.ucsd.msjava.msdbsearch.SearchParams;
+import edu.ucsd.msjava.msscorer.NewScorerFactory.SpecDataType;
+import edu.ucsd.msjava.msutil.SpecKey;
+import edu.ucsd.msjava.msutil.SpectraAccessor;
+import edu.ucsd.msjava.params.ParamManager;
+import edu.ucsd.msjava.sequences.Constants;
+import edu.ucsd.msjava.ui.MSGFPlus;
+import edu.ucsd.msjava.ui.SearchTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class MSGFPlusQValuesTest {
+
+    @Test
+    public void qValuesAreThoseOfTargetDecoyAnalysis() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            int size = random.nextInt(500);
+            float decoyFraction = random.nextFloat();
+            boolean hasTies = random.nextBoolean();
+
+            float[] scores = new float[size];
+            BitSet isDecoy = new BitSet();
+            ArrayList<Float> targetScores = new ArrayList<Float>();
+            ArrayList<Float> decoyScores = new ArrayList<Float>();
+            for (int i = 0; i < size; i++) {
+                boolean decoy = random.nextFloat() < decoyFraction;
+                // targets tend to score better (smaller spectral E-values) than decoys
+                float score = (float) Math.pow(10, -(decoy ? 5 : 10) * random.nextDouble());
+                if (hasTies)
+                    score = random.nextInt(20) / 20f;
+                scores[i] = score;
+                if (decoy) {
+                    isDecoy.set(i);
+                    decoyScores.add(score);
+                } else {
+                    targetScores.add(score);
+                }
+            }
+
+            TreeMap<Float, Float> fdrMap = TargetDecoyAnalysis.getFDRMap(targetScores, decoyScores, false, 1);
+            float[] expected = new float[size];
+            for (int i = 0; i < size; i++)
+                expected[i] = fdrMap.higherEntry(scores[i]).getValue();
+
+            MSGFPlusQValues.toQValues(scores, isDecoy, size);
+            Assert.assertArrayEquals(expected, scores, 0f);
+        }
+    }
+
+    @Test
+    public void qValuesWithoutDecoysAreZero() {
+        float[] scores = {1e-10f, 1e-5f, 0.5f};
+        MSGFPlusQValues.toQValues(scores, new BitSet(), scores.length);
+        Assert.assertArrayEquals(new float[]{0, 0, 0}, scores, 0f);
+    }
+
+    @Test
+    public void qValuesOfSearchResultsAreThoseOfTargetDecoyAnalysis() throws Exception {
+        File workDir = SearchTestUtils.createWorkDir("msgfplus-qvalues");
+        try {
+            File specFile = SearchTestUtils.getResource("BSA_synthetic.mgf");
+            File databaseFile = new File(workDir, "BSA.fasta");
+            File outputFile = new File(workDir, "BSA_synthetic.mzid");
+            String[] argv = {"-s", specFile.getPath(), "-d", databaseFile.getPath(), "-o", outputFile.getPath(),
+                    "-tda", "1", "-n", "10", "-minDeNovoScore", "0"};
+
+            // the first search writes the target-decoy database the results are searched against
+            Assert.assertNull(SearchTestUtils.search(argv));
+            File decoyDatabaseFile = new File(workDir, "BSA" + MSGFPlus.DECOY_DB_EXTENSION);
+            Assert.assertTrue(decoyDatabaseFile.exists());
+
+            ParamManager paramManager = new ParamManager("MS-GF+", MSGFPlus.VERSION, MSGFPlus.RELEASE_DATE, "java -jar MSGFPlus.jar");
+            paramManager.addMSGFPlusParams();
+            Assert.assertNull(paramManager.parseParams(argv));
+            SearchParams params = new SearchParams();
+            Assert.assertNull(params.parse(paramManager));
+
+            CompactFastaSequence fastaSequence = new CompactFastaSequence(decoyDatabaseFile.getPath());
+            CompactSuffixArray sa = new CompactSuffixArray(fastaSequence, params.getMaxPeptideLength());
+            DBScanner.setAminoAcidProbabilities(decoyDatabaseFile.getPath(), params.getAASet());
+            List<MSGFPlusMatch> results = search(specFile, sa, params);
+
+            String decoyProteinPrefix = params.getDecoyProteinPrefix();
+            Assert.assertSame(fastaSequence.getProteinEndPositions(), fastaSequence.getProteinEndPositions());
+            Assert.assertSame(fastaSequence.getDecoyProteins(decoyProteinPrefix), fastaSequence.getDecoyProteins(decoyProteinPrefix));
+
+            for (boolean considerBestMatchOnly : new boolean[]{false, true}) {
+                MSGFPlusQValues qValues = new MSGFPlusQValues(results, sa, considerBestMatchOnly, decoyProteinPrefix);
+                qValues.addQValues(results);
+                TargetDecoyAnalysis tda = ComputeFDR.getTargetDecoyAnalysis(results, sa, considerBestMatchOnly, decoyProteinPrefix);
+
+                int numTargets = 0;
+                int numDecoys = 0;
+                for (MSGFPlusMatch match : results) {
+                    List<DatabaseMatch> dbMatchList = match.getMatchList();
+                    if (considerBestMatchOnly)
+                        dbMatchList = dbMatchList.subList(dbMatchList.size() - 1, dbMatchList.size());
+                    for (DatabaseMatch m : dbMatchList) {
+                        // as MSGFPlusPSMSet decides: a match is a decoy if the annotations of all its proteins have the prefix
+                        boolean isDecoy = true;
+                        for (int index : m.getIndices()) {
+                            if (!sa.getSequence().getAnnotation(index).startsWith(decoyProteinPrefix))
+                                isDecoy = false;
+                        }
+                        Assert.assertEquals(isDecoy, qValues.isDecoy(m));
+                        if (isDecoy)
+                            numDecoys++;
+                        else
+                            numTargets++;
+
+                        Assert.assertEquals(tda.getPSMQValue((float) m.getSpecEValue()), m.getPSMQValue(), 0f);
+                        Assert.assertEquals(tda.getPepQValue(m.getPepSeq()), m.getPepQValue(), 0f);
+                    }
+                }
+                Assert.assertEquals(numTargets + numDecoys, qValues.getNumPSMs());
+                Assert.assertEquals(tda.getTargetPSMSet().getPSMList().size(), numTargets);
+                Assert.assertEquals(tda.getDecoyPSMSet().getPSMList().size(), numDecoys);
+                Assert.assertTrue(numTargets > 0 && numDecoys > 0);
+            }
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    /**
+     * Search the spectra in a single task, as MSGFPlus does, and return the results with their spectral E-values
+     */
+    private static List<MSGFPlusMatch> search(File specFile, CompactSuffixArray sa, SearchParams params) {
+        SpectraAccessor specAcc = new SpectraAccessor(specFile);
+        try {
+            List<SpecKey> specKeyList = SpecKey.getSpecKeyList(specAcc, params.getStartSpecIndex(), params.getEndSpecIndex(),
+                    params.getMinCharge(), params.getMaxCharge(), params.getActivationMethod(),
+                    Constants.MIN_NUM_PEAKS_PER_SPECTRUM, params.getAllowDenseCentroidedPeaks());
+            ScoredSpectraMap specScanner = new ScoredSpectraMap(
+                    specAcc,
+                    specKeyList,
+                    params.getLeftPrecursorMassTolerance(),
+                    params.getRightPrecursorMassTolerance(),
+                    params.getMinIsotopeError(),
+                    params.getMaxIsotopeError(),
+                    new SpecDataType(params.getActivationMethod(), params.getInstType(), params.getEnzyme(), params.getProtocol()),
+                    false,
+                    false
+            );
+
+            List<MSGFPlusMatch> results = new ArrayList<MSGFPlusMatch>();
+            new ConcurrentMSGFPlus.RunMSGFPlus(specScanner, sa, params, results, 1).run();
+            return results;
+        } finally {
+            specAcc.close();
+        }
+    }
+}
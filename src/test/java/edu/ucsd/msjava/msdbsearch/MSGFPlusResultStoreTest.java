@@ -0,0 +1,167 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msutil.ActivationMethod;
+import edu.ucsd.msjava.msutil.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+public class MSGFPlusResultStoreTest {
+
+    @Test
+    public void resultsInMemoryAreSorted() {
+        List<List<MSGFPlusMatch>> tasks = makeTaskResults(new Random(1), 4, 50);
+        MSGFPlusResultStore store = new MSGFPlusResultStore(Long.MAX_VALUE, null);
+        List<MSGFPlusMatch> expected = new ArrayList<MSGFPlusMatch>();
+        for (List<MSGFPlusMatch> taskResults : tasks) {
+            store.addAll(taskResults);
+            expected.addAll(taskResults);
+        }
+        Collections.sort(expected);
+
+        Assert.assertEquals(0, store.getNumRuns());
+        Assert.assertEquals(expected.size(), store.size());
+        Iterator<MSGFPlusMatch> itr = store.iterator();
+        for (MSGFPlusMatch match : expected)
+            Assert.assertSame(match, itr.next());
+        Assert.assertFalse(itr.hasNext());
+    }
+
+    @Test
+    public void spilledResultsAreMergedInOrder() throws IOException {
+        File tempDir = Files.createTempDirectory("MSGFPlusResultStoreTest").toFile();
+        try {
+            List<List<MSGFPlusMatch>> tasks = makeTaskResults(new Random(2), 6, 300);
+            MSGFPlusResultStore store = new MSGFPlusResultStore(0, tempDir);
+            List<MSGFPlusMatch> expected = new ArrayList<MSGFPlusMatch>();
+            for (List<MSGFPlusMatch> taskResults : tasks) {
+                store.addAll(taskResults);
+                expected.addAll(taskResults);
+            }
+            // results added one at a time stay in memory until they exceed the limit
+            MSGFPlusResultStore smallStore = new MSGFPlusResultStore(10000, tempDir);
+            for (MSGFPlusMatch match : expected)
+                smallStore.add(match);
+            Collections.sort(expected);
+
+            Assert.assertEquals(tasks.size(), store.getNumRuns());
+            Assert.assertTrue(smallStore.getNumRuns() > tasks.size());
+
+            for (MSGFPlusResultStore s : new MSGFPlusResultStore[]{store, smallStore}) {
+                // the store can be read more than once
+                for (int pass = 0; pass < 2; pass++) {
+                    Assert.assertEquals(expected.size(), s.size());
+                    Iterator<MSGFPlusMatch> itr = s.iterator();
+                    for (MSGFPlusMatch match : expected) {
+                        Assert.assertTrue(itr.hasNext());
+                        assertSameMatch(match, itr.next());
+                    }
+                    Assert.assertFalse(itr.hasNext());
+                }
+            }
+
+            store.close();
+            smallStore.close();
+            Assert.assertEquals(0, tempDir.list().length);
+        } finally {
+            for (File file : tempDir.listFiles())
+                file.delete();
+            tempDir.delete();
+        }
+    }
+
+    private static List<List<MSGFPlusMatch>> makeTaskResults(Random random, int numTasks, int numSpecsPerTask) {
+        ActivationMethod[][] actMethodArrs = {
+                null,
+                {ActivationMethod.CID},
+                {ActivationMethod.HCD, ActivationMethod.ETD},
+                {ActivationMethod.ASWRITTEN}
+        };
+        List<List<MSGFPlusMatch>> tasks = new ArrayList<List<MSGFPlusMatch>>();
+        int specIndex = 0;
+        for (int t = 0; t < numTasks; t++) {
+            List<MSGFPlusMatch> taskResults = new ArrayList<MSGFPlusMatch>();
+            for (int s = 0; s < numSpecsPerTask; s++) {
+                PriorityQueue<DatabaseMatch> matchQueue = new PriorityQueue<DatabaseMatch>();
+                int numMatches = 1 + random.nextInt(3);
+                for (int m = 0; m < numMatches; m++) {
+                    StringBuilder pepSeq = new StringBuilder("K.");
+                    for (int i = 0; i < 7 + random.nextInt(20); i++)
+                        pepSeq.append("ACDEFGHIKLMNPQRSTVWY".charAt(random.nextInt(20)));
+                    pepSeq.append("+15.995.R");
+                    DatabaseMatch match = new DatabaseMatch(random.nextInt(1000000), (byte) (pepSeq.length() - 9),
+                            random.nextInt(300) - 50, random.nextFloat() * 3000, random.nextInt(3000), 1 + random.nextInt(4),
+                            pepSeq.toString(), actMethodArrs[random.nextInt(actMethodArrs.length)])
+                            .setProteinNTerm(random.nextBoolean())
+                            .setProteinCTerm(random.nextBoolean())
+                            .setNTermMetCleaved(random.nextBoolean());
+                    match.setDeNovoScore(random.nextInt(200));
+                    match.setSpecProb(Math.pow(10, -30 * random.nextDouble()));
+                    if (random.nextInt(4) == 0) {
+                        match.addIndex(random.nextInt(1000000));
+                        match.addIndex(random.nextInt(1000000));
+                    }
+                    if (random.nextBoolean()) {
+                        match.addAdditionalFeature("NumMatchedMainIons", String.valueOf(random.nextInt(30)));
+                        match.addAdditionalFeature("ExplainedIonCurrentRatio", String.valueOf(random.nextFloat()));
+                    }
+                    if (random.nextInt(4) == 0)
+                        match.setPSMQValue(random.nextFloat());
+                    matchQueue.add(match);
+                }
+                taskResults.add(new MSGFPlusMatch(specIndex++, matchQueue));
+            }
+            tasks.add(taskResults);
+        }
+        return tasks;
+    }
+
+    private static void assertSameMatch(MSGFPlusMatch expected, MSGFPlusMatch actual) {
+        Assert.assertEquals(expected.getSpecIndex(), actual.getSpecIndex());
+        Assert.assertEquals(expected.getSpecEValue(), actual.getSpecEValue(), 0);
+        Assert.assertEquals(expected.getMatchList().size(), actual.getMatchList().size());
+        for (int i = 0; i < expected.getMatchList().size(); i++) {
+            DatabaseMatch e = expected.getMatchList().get(i);
+            DatabaseMatch a = actual.getMatchList().get(i);
+            Assert.assertEquals(e.getIndex(), a.getIndex());
+            Assert.assertEquals(e.getLength(), a.getLength());
+            Assert.assertEquals(e.getScore(), a.getScore());
+            Assert.assertEquals(e.getPeptideMass(), a.getPeptideMass(), 0f);
+            Assert.assertEquals(e.getNominalPeptideMass(), a.getNominalPeptideMass());
+            Assert.assertEquals(e.getCharge(), a.getCharge());
+            Assert.assertEquals(e.getPepSeq(), a.getPepSeq());
+            if (e.getActivationMethodArr() == null)
+                Assert.assertNull(a.getActivationMethodArr());
+            else
+                Assert.assertArrayEquals(e.getActivationMethodArr(), a.getActivationMethodArr());
+            Assert.assertEquals(e.isProteinNTerm(), a.isProteinNTerm());
+            Assert.assertEquals(e.isProteinCTerm(), a.isProteinCTerm());
+            Assert.assertEquals(e.isNTermMetCleaved(), a.isNTermMetCleaved());
+            Assert.assertEquals(e.getDeNovoScore(), a.getDeNovoScore());
+            Assert.assertEquals(e.getSpecEValue(), a.getSpecEValue(), 0);
+            Assert.assertEquals(e.getPSMQValue(), a.getPSMQValue());
+            Assert.assertEquals(e.getPepQValue(), a.getPepQValue());
+            Assert.assertEquals(e.getIndices(), a.getIndices());
+            if (e.getAdditionalFeatureList() == null) {
+                Assert.assertNull(a.getAdditionalFeatureList());
+            } else {
+                Assert.assertEquals(e.getAdditionalFeatureList().size(), a.getAdditionalFeatureList().size());
+                for (int j = 0; j < e.getAdditionalFeatureList().size(); j++) {
+                    Pair<String, String> ef = e.getAdditionalFeatureList().get(j);
+                    Pair<String, String> af = a.getAdditionalFeatureList().get(j);
+                    Assert.assertEquals(ef.getFirst(), af.getFirst());
+                    Assert.assertEquals(ef.getSecond(), af.getSecond());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msutil.SpecKey;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+public class PrecursorMassIndexTest {
+
+    @Test
+    public void rangeLookupMatchesSubMap() {
+        Random random = new Random(42);
+        SortedMap<Double, SpecKey> pepMassSpecKeyMap = new TreeMap<Double, SpecKey>();
+        for (int i = 0; i < 2000; i++) {
+            double mass = 400 + random.nextDouble() * 3000;
+            pepMassSpecKeyMap.put(mass, new SpecKey(i, 2));
+            // neighbors separated by Math.nextUp, as in ScoredSpectraMap.makePepMassSpecKeyMap
+            if (i % 10 == 0)
+                pepMassSpecKeyMap.put(Math.nextUp(mass), new SpecKey(i, 3));
+        }
+
+        PrecursorMassIndex index = new PrecursorMassIndex(pepMassSpecKeyMap);
+        Assert.assertEquals(pepMassSpecKeyMap.size(), index.size());
+
+        for (int i = 0; i < 5000; i++) {
+            double leftThr = 350 + random.nextDouble() * 3100;
+            double rightThr = leftThr + random.nextDouble() * (i % 2 == 0 ? 0.05 : 5);
+
+            List<SpecKey> expected = new ArrayList<SpecKey>(pepMassSpecKeyMap.subMap(leftThr, rightThr).values());
+            List<SpecKey> actual = new ArrayList<SpecKey>();
+            int toIndex = index.ceilingIndex(rightThr);
+            for (int j = index.ceilingIndex(leftThr); j < toIndex; j++)
+                actual.add(index.getSpecKey(j));
+
+            Assert.assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void emptyIndex() {
+        PrecursorMassIndex index = new PrecursorMassIndex(new TreeMap<Double, SpecKey>());
+        Assert.assertEquals(0, index.size());
+        Assert.assertEquals(0, index.ceilingIndex(1000));
+    }
+}
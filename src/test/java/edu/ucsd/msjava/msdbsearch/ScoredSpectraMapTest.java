@@ -0,0 +1,51 @@
+package edu.ucsd.msjava.msdbsearch;
+
+import edu.ucsd.msjava.msgf.NominalMass;
+import edu.ucsd.msjava.msgf.Tolerance;
+import edu.ucsd.msjava.msscorer.DBScanScorer;
+import edu.ucsd.msjava.msscorer.NewRankScorer;
+import edu.ucsd.msjava.msscorer.NewScorerFactory;
+import edu.ucsd.msjava.msscorer.NewScorerFactory.SpecDataType;
+import edu.ucsd.msjava.msscorer.SimpleDBSearchScorer;
+import edu.ucsd.msjava.msutil.ActivationMethod;
+import edu.ucsd.msjava.msutil.Enzyme;
+import edu.ucsd.msjava.msutil.InstrumentType;
+import edu.ucsd.msjava.msutil.Protocol;
+import edu.ucsd.msjava.msutil.SpecKey;
+import edu.ucsd.msjava.msutil.SpectraAccessor;
+import edu.ucsd.msjava.ui.SearchTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ScoredSpectraMapTest {
+
+    @Test
+    public void turningOffEdgeScoringDoesNotChangeTheSharedScorer() throws Exception {
+        NewRankScorer sharedScorer = NewScorerFactory.get(ActivationMethod.HCD, InstrumentType.QEXACTIVE, Enzyme.TRYPSIN, Protocol.STANDARD);
+        Assert.assertTrue(sharedScorer.supportEdgeScores());
+
+        for (ActivationMethod activationMethod : new ActivationMethod[]{ActivationMethod.HCD, ActivationMethod.ASWRITTEN}) {
+            SpectraAccessor specAcc = new SpectraAccessor(SearchTestUtils.getResource("BSA_synthetic.mgf"));
+            try {
+                List<SpecKey> specKeyList = SpecKey.getSpecKeyList(specAcc, 0, Integer.MAX_VALUE, 2, 3, activationMethod, 10, false);
+                SpecDataType specDataType = new SpecDataType(activationMethod, InstrumentType.QEXACTIVE, Enzyme.TRYPSIN, Protocol.STANDARD);
+                ScoredSpectraMap specScanner = new ScoredSpectraMap(specAcc, specKeyList, new Tolerance(20, true), new Tolerance(20, true),
+                        0, 1, specDataType, true, false).turnOffEdgeScoring();
+                specScanner.preProcessSpectra();
+
+                Assert.assertFalse(specScanner.getSpecKeyScorerMap().isEmpty());
+                for (SimpleDBSearchScorer<NominalMass> scorer : specScanner.getSpecKeyScorerMap().values())
+                    Assert.assertFalse(scorer instanceof DBScanScorer);
+                for (SpecKey specKey : specScanner.getSpecKeyScorerMap().keySet())
+                    Assert.assertFalse(specScanner.getRankScorer(specKey).supportEdgeScores());
+            } finally {
+                specAcc.close();
+            }
+
+            Assert.assertSame(sharedScorer, NewScorerFactory.get(ActivationMethod.HCD, InstrumentType.QEXACTIVE, Enzyme.TRYPSIN, Protocol.STANDARD));
+            Assert.assertTrue(sharedScorer.supportEdgeScores());
+        }
+    }
+}
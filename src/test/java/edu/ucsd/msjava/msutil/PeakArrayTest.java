@@ -0,0 +1,78 @@
+package edu.ucsd.msjava.msutil;
+
+import edu.ucsd.msjava.msgf.Tolerance;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class PeakArrayTest {
+
+    private static Spectrum makeSpectrum(int numPeaks, long seed) {
+        Random random = new Random(seed);
+        Spectrum spec = new Spectrum(800, 2, 1000);
+        float mz = 100;
+        for (int i = 0; i < numPeaks; i++) {
+            mz += random.nextInt(4) == 0 ? 0 : random.nextFloat() * 2;
+            // few distinct intensities, so that there are many ties
+            spec.add(new Peak(mz, random.nextInt(20), 1));
+        }
+        return spec;
+    }
+
+    @Test
+    public void ranksMatchSortByIntensity() {
+        for (int numPeaks : new int[]{0, 1, 15, 17, 100, 3000}) {
+            Spectrum spec = makeSpectrum(numPeaks, numPeaks);
+
+            // ranks as assigned by sorting the Peak objects
+            List<Peak> sorted = new ArrayList<Peak>(spec);
+            Collections.sort(sorted, Collections.reverseOrder(new Comparator<Peak>() {
+                public int compare(Peak o1, Peak o2) {
+                    if (o1.getIntensity() > o2.getIntensity()) return 1;
+                    if (o2.getIntensity() > o1.getIntensity()) return -1;
+                    if (o1.getMz() > o2.getMz()) return 1;
+                    if (o2.getMz() > o1.getMz()) return -1;
+                    return 0;
+                }
+            }));
+            for (int i = 0; i < sorted.size(); i++)
+                sorted.get(i).setRank(i + 1);
+
+            PeakArray peaks = spec.getPeakArray();
+            Assert.assertEquals(spec.size(), peaks.size());
+            for (int i = 0; i < spec.size(); i++) {
+                Assert.assertEquals(spec.get(i).getRank(), peaks.getRank(i));
+                Assert.assertEquals(spec.get(i).getRank(), peaks.get(i).getRank());
+                Assert.assertEquals(spec.get(i).getMz(), peaks.getMz(i), 0f);
+            }
+
+            spec.setRanksOfPeaks();
+            for (int i = 0; i < spec.size(); i++)
+                Assert.assertEquals(peaks.getRank(i), spec.get(i).getRank());
+        }
+    }
+
+    @Test
+    public void mostIntensePeakMatchesGetPeakByMass() {
+        Spectrum spec = makeSpectrum(500, 7);
+        spec.setRanksOfPeaks();
+        PeakArray peaks = new PeakArray(spec);
+        Tolerance tolerance = new Tolerance(0.5f);
+        for (float mz = 90; mz < 700; mz += 0.37f) {
+            Peak p = spec.getPeakByMass(mz, tolerance);
+            int index = peaks.getMostIntensePeakIndex(mz - 0.5f, mz + 0.5f);
+            if (p == null) {
+                Assert.assertEquals(-1, index);
+            } else {
+                Assert.assertEquals(p.getMz(), peaks.getMz(index), 0f);
+                Assert.assertEquals(p.getIntensity(), peaks.getIntensity(index), 0f);
+                Assert.assertEquals(p.getRank(), peaks.getRank(index));
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package edu.ucsd.msjava.msutil;
+
+import edu.ucsd.msjava.parser.MappedFileLineReader;
+import edu.ucsd.msjava.parser.MgfSpectrumParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class SpectraIteratorTest {
+
+    @Test
+    public void fileIsClosedAtTheEnd() throws Exception {
+        File mgfFile = new File(SpectraIteratorTest.class.getClassLoader().getResource("BSA_synthetic.mgf").toURI());
+        SpectraIterator itr = new SpectraIterator(mgfFile.getPath(), new MgfSpectrumParser());
+        MappedFileLineReader lineReader = (MappedFileLineReader) itr.lineReader;
+        int numSpecs = 0;
+        while (itr.hasNext()) {
+            Assert.assertTrue(lineReader.isOpen());
+            itr.next();
+            numSpecs++;
+        }
+        Assert.assertEquals(24, numSpecs);
+        Assert.assertFalse(lineReader.isOpen());
+    }
+
+    @Test
+    public void closingTheAccessorClosesItsIterator() throws Exception {
+        File mgfFile = new File(SpectraIteratorTest.class.getClassLoader().getResource("BSA_synthetic.mgf").toURI());
+        SpectraAccessor specAcc = new SpectraAccessor(mgfFile);
+        SpectraIterator itr = (SpectraIterator) specAcc.getSpecItr();
+        itr.next();
+        MappedFileLineReader lineReader = (MappedFileLineReader) itr.lineReader;
+        Assert.assertTrue(lineReader.isOpen());
+
+        specAcc.close();
+        Assert.assertFalse(lineReader.isOpen());
+        Assert.assertFalse(itr.hasNext());
+    }
+}
@@ -0,0 +1,98 @@
+package edu.ucsd.msjava.msutil;
+
+import edu.ucsd.msjava.parser.MS2SpectrumParser;
+import edu.ucsd.msjava.parser.MgfSpectrumParser;
+import edu.ucsd.msjava.parser.SpectrumParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SpectraMapTest {
+
+    @Test
+    public void concurrentReadsOfMgfMatchSequentialRead() throws Exception {
+        File mgfFile = new File(SpectraMapTest.class.getClassLoader().getResource("BSA_synthetic.mgf").toURI());
+        checkConcurrentReads(mgfFile, new MgfSpectrumParser());
+    }
+
+    @Test
+    public void concurrentReadsOfMs2MatchSequentialRead() throws Exception {
+        File ms2File = File.createTempFile("SpectraMapTest", ".ms2");
+        try {
+            StringBuilder ms2 = new StringBuilder("H\tCreationDate\t2026\nH\tExtractor\tSpectraMapTest\n");
+            Random random = new Random(1);
+            for (int i = 0; i < 50; i++) {
+                ms2.append("S\t").append(100 + i).append('\t').append(100 + i).append('\t').append(400 + i * 10.5f).append('\n');
+                ms2.append("Z\t2\t").append(799 + i * 21f).append('\n');
+                for (int j = 0; j < 5 + i % 20; j++)
+                    ms2.append(String.format("%.4f %.1f\n", 100 + 50 * j + random.nextFloat(), random.nextFloat() * 1000));
+            }
+            Files.write(ms2File.toPath(), ms2.toString().getBytes(StandardCharsets.UTF_8));
+            checkConcurrentReads(ms2File, new MS2SpectrumParser());
+        } finally {
+            ms2File.delete();
+        }
+    }
+
+    @Test
+    public void missingFileFailsFast() throws IOException {
+        File missingFile = new File(Files.createTempDirectory("SpectraMapTest").toFile(), "missing.mgf");
+        missingFile.getParentFile().deleteOnExit();
+        try {
+            new SpectraMap(missingFile.getPath(), new MgfSpectrumParser());
+            Assert.fail("no exception for " + missingFile.getPath());
+        } catch (UncheckedIOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(missingFile.getPath()));
+        }
+    }
+
+    /**
+     * Read all spectra with one parser from several threads, in random order, and compare them with the spectra
+     * read sequentially by SpectraIterator
+     */
+    private static void checkConcurrentReads(File specFile, SpectrumParser parser) throws Exception {
+        final List<Spectrum> expected = new ArrayList<Spectrum>();
+        for (Spectrum spec : new SpectraIterator(specFile.getPath(), parser))
+            expected.add(spec);
+        Assert.assertTrue(expected.size() > 10);
+
+        final SpectraMap specMap = new SpectraMap(specFile.getPath(), parser);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            Assert.assertEquals(expected.size(), specMap.getSpecIndexList().size());
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int t = 0; t < 8; t++) {
+                final long seed = t;
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() {
+                        List<Spectrum> specList = new ArrayList<Spectrum>(expected);
+                        for (int round = 0; round < 20; round++) {
+                            Collections.shuffle(specList, new Random(seed * 100 + round));
+                            for (Spectrum spec : specList)
+                                SpectrumTestUtils.assertSameSpectrum(spec, specMap.getSpectrumBySpecIndex(spec.getSpecIndex()));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+            specMap.close();
+        }
+    }
+}
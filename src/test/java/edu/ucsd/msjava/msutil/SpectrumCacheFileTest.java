@@ -0,0 +1,106 @@
+package edu.ucsd.msjava.msutil;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SpectrumCacheFileTest {
+
+    @Test
+    public void cachedSpectraMatchInput() throws IOException {
+        File specFile = makeSpectrumFile();
+        File cacheFile = SpectrumCacheFile.getCacheFile(specFile, null);
+        try {
+            List<Spectrum> specList = SpectrumTestUtils.makeSpectra(1000);
+            SpectrumCacheFile.write(specList.iterator(), specFile, cacheFile);
+
+            SpectrumStore store = SpectrumCacheFile.read(cacheFile, specFile);
+            Assert.assertNotNull(store);
+            Assert.assertEquals(specList.size(), store.getNumSpectra());
+            Iterator<Spectrum> itr = store.iterator();
+            for (Spectrum expected : specList) {
+                SpectrumTestUtils.assertSameSpectrum(expected, store.getSpectrumBySpecIndex(expected.getSpecIndex()));
+                SpectrumTestUtils.assertSameSpectrum(expected, itr.next());
+                SpectrumTestUtils.assertSameSpectrum(expected, store.getSpectrumById(expected.getID()));
+            }
+            Assert.assertFalse(itr.hasNext());
+        } finally {
+            cacheFile.delete();
+            specFile.delete();
+        }
+    }
+
+    @Test
+    public void changedSpectrumFileInvalidatesCache() throws IOException {
+        File specFile = makeSpectrumFile();
+        File cacheFile = SpectrumCacheFile.getCacheFile(specFile, null);
+        try {
+            SpectrumCacheFile.write(SpectrumTestUtils.makeSpectra(10).iterator(), specFile, cacheFile);
+            Assert.assertNotNull(SpectrumCacheFile.read(cacheFile, specFile));
+
+            // same length and modification time, different content
+            long lastModified = specFile.lastModified();
+            FileOutputStream out = new FileOutputStream(specFile);
+            out.write("BEGIN_IONS\n".getBytes());
+            out.close();
+            specFile.setLastModified(lastModified);
+            Assert.assertNull(SpectrumCacheFile.read(cacheFile, specFile));
+        } finally {
+            cacheFile.delete();
+            specFile.delete();
+        }
+    }
+
+    @Test
+    public void concurrentWritersLeaveOneCompleteCacheFile() throws Exception {
+        final File specFile = makeSpectrumFile();
+        final File cacheFile = SpectrumCacheFile.getCacheFile(specFile, null);
+        final List<Spectrum> specList = SpectrumTestUtils.makeSpectra(1000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        SpectrumCacheFile.write(specList.iterator(), specFile, cacheFile);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+
+            SpectrumStore store = SpectrumCacheFile.read(cacheFile, specFile);
+            Assert.assertNotNull(store);
+            Assert.assertEquals(specList.size(), store.getNumSpectra());
+            SpectrumTestUtils.assertSameSpectrum(specList.get(999), store.getSpectrumBySpecIndex(specList.get(999).getSpecIndex()));
+
+            // no temporary files are left behind
+            File[] files = cacheFile.getParentFile().listFiles();
+            for (File file : files)
+                Assert.assertFalse(file.getName(), file.getName().startsWith(cacheFile.getName() + "."));
+        } finally {
+            executor.shutdown();
+            cacheFile.delete();
+            specFile.delete();
+        }
+    }
+
+    private static File makeSpectrumFile() throws IOException {
+        File specFile = File.createTempFile("SpectrumCacheFileTest", ".mgf");
+        FileOutputStream out = new FileOutputStream(specFile);
+        out.write("BEGIN IONS\n".getBytes());
+        out.close();
+        return specFile;
+    }
+}
@@ -0,0 +1,50 @@
+package edu.ucsd.msjava.msutil;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.List;
+
+public class SpectrumStoreTest {
+
+    @Test
+    public void storedSpectraMatchInput() {
+        List<Spectrum> specList = SpectrumTestUtils.makeSpectra(3000);
+        SpectrumStore store = new SpectrumStore(Long.MAX_VALUE);
+        for (Spectrum spec : specList)
+            Assert.assertTrue(store.add(spec));
+        store.trimToSize();
+
+        Assert.assertEquals(specList.size(), store.getNumSpectra());
+        Iterator<Spectrum> itr = store.iterator();
+        for (Spectrum expected : specList) {
+            Spectrum actual = store.getSpectrumBySpecIndex(expected.getSpecIndex());
+            SpectrumTestUtils.assertSameSpectrum(expected, actual);
+            SpectrumTestUtils.assertSameSpectrum(expected, itr.next());
+            SpectrumTestUtils.assertSameSpectrum(expected, store.getSpectrumById(expected.getID()));
+            Assert.assertEquals(expected.getTitle(), store.getTitle(expected.getSpecIndex()));
+            Assert.assertEquals(expected.getPrecursorPeak().getMz(), store.getPrecursorMz(expected.getSpecIndex()), 0f);
+        }
+        Assert.assertFalse(itr.hasNext());
+        Assert.assertNull(store.getSpectrumBySpecIndex(2));
+
+        // spectra returned by the store are copies
+        Spectrum spec = store.getSpectrumBySpecIndex(1);
+        spec.setCharge(3);
+        Assert.assertEquals(2, store.getSpectrumBySpecIndex(1).getCharge());
+    }
+
+    @Test
+    public void memoryLimit() {
+        SpectrumStore store = new SpectrumStore(1 << 20);
+        int numAdded = 0;
+        for (Spectrum spec : SpectrumTestUtils.makeSpectra(10000)) {
+            if (!store.add(spec))
+                break;
+            numAdded++;
+        }
+        Assert.assertTrue(numAdded > 0 && numAdded < 10000);
+        Assert.assertTrue(store.getMemoryUsage() <= 1 << 20);
+    }
+}
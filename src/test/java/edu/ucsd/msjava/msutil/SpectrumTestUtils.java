@@ -0,0 +1,59 @@
+package edu.ucsd.msjava.msutil;
+
+import org.junit.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spectra for the tests of SpectrumStore and SpectrumCacheFile
+ */
+class SpectrumTestUtils {
+
+    /**
+     * @return spectra with increasing spectrum indices (1, 3, 5, ...), between 0 and 6 peaks, and optional members
+     * (title, isolation window, additional CV params) set for some of them
+     */
+    static List<Spectrum> makeSpectra(int numSpecs) {
+        List<Spectrum> specList = new ArrayList<Spectrum>();
+        for (int i = 0; i < numSpecs; i++) {
+            Spectrum spec = new Spectrum(400 + i, 2, 1000);
+            spec.setSpecIndex(2 * i + 1);
+            spec.setID("controllerType=0 controllerNumber=1 scan=" + (100 + i));
+            spec.setTitle(i % 3 == 0 ? null : "spectrum " + i);
+            spec.setScanNum(100 + i);
+            spec.setRt(i * 0.5f);
+            spec.setActivationMethod(i % 2 == 0 ? ActivationMethod.HCD : ActivationMethod.ETD);
+            spec.setIsCentroided(i % 4 != 0);
+            if (i % 5 == 0) {
+                spec.setIsolationWindowTargetMz(400.5f + i);
+                spec.addAddlCvParam(new CvParamInfo("MS:1000512", "filter string", "FTMS + p NSI d Full ms2"));
+            }
+            for (int j = 0; j < i % 7; j++)
+                spec.add(new Peak(100 + 10 * j, j + 1, 1));
+            specList.add(spec);
+        }
+        return specList;
+    }
+
+    static void assertSameSpectrum(Spectrum expected, Spectrum actual) {
+        Assert.assertEquals(expected.getID(), actual.getID());
+        Assert.assertEquals(expected.getTitle(), actual.getTitle());
+        Assert.assertEquals(expected.getSpecIndex(), actual.getSpecIndex());
+        Assert.assertEquals(expected.getScanNum(), actual.getScanNum());
+        Assert.assertEquals(expected.getRt(), actual.getRt(), 0f);
+        Assert.assertEquals(expected.getActivationMethod(), actual.getActivationMethod());
+        Assert.assertEquals(expected.isCentroided(), actual.isCentroided());
+        Assert.assertEquals(expected.getIsolationWindowTargetMz(), actual.getIsolationWindowTargetMz());
+        Assert.assertEquals(expected.getAddlCvParams() == null, actual.getAddlCvParams() == null);
+        if (expected.getAddlCvParams() != null)
+            Assert.assertEquals(expected.getAddlCvParams().get(0).getValue(), actual.getAddlCvParams().get(0).getValue());
+        Assert.assertEquals(expected.getCharge(), actual.getCharge());
+        Assert.assertEquals(expected.getPrecursorPeak().getMz(), actual.getPrecursorPeak().getMz(), 0f);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getMz(), actual.get(i).getMz(), 0f);
+            Assert.assertEquals(expected.get(i).getIntensity(), actual.get(i).getIntensity(), 0f);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package edu.ucsd.msjava.mzid;
+
+import edu.ucsd.msjava.ui.SearchTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.NodeList;
+import uk.ac.ebi.jmzidml.model.mzidml.CvParam;
+import uk.ac.ebi.jmzidml.model.mzidml.DBSequence;
+import uk.ac.ebi.jmzidml.model.mzidml.DataCollection;
+import uk.ac.ebi.jmzidml.model.mzidml.Modification;
+import uk.ac.ebi.jmzidml.model.mzidml.Peptide;
+import uk.ac.ebi.jmzidml.model.mzidml.PeptideEvidence;
+import uk.ac.ebi.jmzidml.model.mzidml.PeptideEvidenceRef;
+import uk.ac.ebi.jmzidml.model.mzidml.SequenceCollection;
+import uk.ac.ebi.jmzidml.model.mzidml.SpectrumIdentificationItem;
+import uk.ac.ebi.jmzidml.model.mzidml.SpectrumIdentificationList;
+import uk.ac.ebi.jmzidml.model.mzidml.SpectrumIdentificationResult;
+import uk.ac.ebi.jmzidml.xml.io.MzIdentMLUnmarshaller;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class MZIdentMLGenTest {
+
+    // title of the third spectrum of BSA_synthetic.mgf and native ID of the fourth spectrum of BSA_synthetic.indexed.mzML
+    private static final String TITLE_TO_ESCAPE = "scan=3 \"BSA\" <synthetic> & more";
+    private static final String SPEC_ID_TO_ESCAPE = "file=\"BSA\" <synthetic> & more scan=3";
+
+    @Test
+    public void writeResultsOfMgfSearch() throws Exception {
+        File workDir = SearchTestUtils.createWorkDir("MZIdentMLGenTest");
+        try {
+            File mzidFile = search(workDir, "BSA_synthetic.mgf");
+            List<SpectrumIdentificationResult> sirList = checkMzIdentML(mzidFile);
+
+            Map<String, String> titles = new HashMap<String, String>();
+            for (SpectrumIdentificationResult sir : sirList) {
+                for (CvParam cvParam : sir.getCvParam()) {
+                    if (cvParam.getAccession().equals("MS:1000796"))    // spectrum title
+                        titles.put(sir.getSpectrumID(), cvParam.getValue());
+                }
+            }
+            Assert.assertEquals(TITLE_TO_ESCAPE, titles.get("index=2"));
+            Assert.assertEquals("scan=1", titles.get("index=0"));
+
+            // the oxidized peptide
+            boolean hasOxidation = false;
+            for (Peptide peptide : new MzIdentMLUnmarshaller(mzidFile).unmarshal(SequenceCollection.class).getPeptide()) {
+                for (Modification mod : peptide.getModification()) {
+                    Assert.assertEquals('M', peptide.getPeptideSequence().charAt(mod.getLocation() - 1));
+                    Assert.assertEquals(15.994915, mod.getMonoisotopicMassDelta(), 1e-5);
+                    Assert.assertEquals("UNIMOD:35", mod.getCvParam().get(0).getAccession());
+                    hasOxidation = true;
+                }
+            }
+            Assert.assertTrue(hasOxidation);
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    @Test
+    public void writeResultsOfMzMLSearch() throws Exception {
+        File workDir = SearchTestUtils.createWorkDir("MZIdentMLGenTest");
+        try {
+            File mzidFile = search(workDir, "BSA_synthetic.indexed.mzML");
+            Set<String> specIDs = new HashSet<String>();
+            for (SpectrumIdentificationResult sir : checkMzIdentML(mzidFile))
+                specIDs.add(sir.getSpectrumID());
+            Assert.assertTrue(specIDs.contains(SPEC_ID_TO_ESCAPE));
+            Assert.assertTrue(specIDs.contains("file=BSA_synthetic scan=1"));
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    private static File search(File workDir, String specFileName) throws Exception {
+        File mzidFile = new File(workDir, "result.mzid");
+        Assert.assertNull(SearchTestUtils.search(
+                "-s", SearchTestUtils.getResource(specFileName).getPath(),
+                "-d", new File(workDir, "BSA.fasta").getPath(),
+                "-o", mzidFile.getPath(),
+                "-mod", SearchTestUtils.getResource("Mods.txt").getPath(),
+                "-tda", "1"));
+        return mzidFile;
+    }
+
+    /**
+     * Check that the file is well-formed, all references resolve, params are written as empty elements,
+     * and that the peptide evidences unmarshalled by jmzidml are consistent
+     *
+     * @return the SpectrumIdentificationResults
+     */
+    private static List<SpectrumIdentificationResult> checkMzIdentML(File mzidFile) throws Exception {
+        String text = new String(Files.readAllBytes(mzidFile.toPath()), StandardCharsets.UTF_8);
+        Assert.assertFalse(text.contains("></cvParam>"));
+        Assert.assertFalse(text.contains("></userParam>"));
+
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document doc = factory.newDocumentBuilder().parse(mzidFile);
+        Set<String> ids = new HashSet<String>();
+        List<Attr> refs = new ArrayList<Attr>();
+        NodeList elements = doc.getElementsByTagNameNS("*", "*");
+        for (int i = 0; i < elements.getLength(); i++) {
+            NamedNodeMap attributes = elements.item(i).getAttributes();
+            for (int j = 0; j < attributes.getLength(); j++) {
+                Attr attr = (Attr) attributes.item(j);
+                if (attr.getName().equals("id"))
+                    Assert.assertTrue(attr.getValue(), ids.add(attr.getValue()));
+                else if (attr.getName().endsWith("_ref"))
+                    refs.add(attr);
+            }
+        }
+        for (Attr ref : refs)
+            Assert.assertTrue(ref.getOwnerElement().getLocalName() + " " + ref.getName() + "=" + ref.getValue(), ids.contains(ref.getValue()));
+
+        MzIdentMLUnmarshaller unmarshaller = new MzIdentMLUnmarshaller(mzidFile);
+        SequenceCollection sc = unmarshaller.unmarshal(SequenceCollection.class);
+        Map<String, DBSequence> dbSeqMap = new HashMap<String, DBSequence>();
+        for (DBSequence dbSeq : sc.getDBSequence())
+            dbSeqMap.put(dbSeq.getId(), dbSeq);
+        Set<String> pepIDs = new HashSet<String>();
+        for (Peptide peptide : sc.getPeptide())
+            pepIDs.add(peptide.getId());
+        Map<String, PeptideEvidence> pepEvMap = new HashMap<String, PeptideEvidence>();
+        int numDecoys = 0;
+        for (PeptideEvidence pepEv : sc.getPeptideEvidence()) {
+            pepEvMap.put(pepEv.getId(), pepEv);
+            DBSequence dbSeq = dbSeqMap.get(pepEv.getDBSequenceRef());
+            Assert.assertNotNull(pepEv.getId(), dbSeq);
+            Assert.assertTrue(pepEv.getId(), pepIDs.contains(pepEv.getPeptideRef()));
+            Assert.assertEquals(pepEv.getId(), dbSeq.getAccession().startsWith("XXX_"), pepEv.isIsDecoy());
+            if (pepEv.isIsDecoy())
+                numDecoys++;
+        }
+        Assert.assertTrue(numDecoys > 0);
+        Assert.assertTrue(numDecoys < pepEvMap.size());
+
+        List<SpectrumIdentificationResult> sirList = new ArrayList<SpectrumIdentificationResult>();
+        DataCollection dc = unmarshaller.unmarshal(DataCollection.class);
+        for (SpectrumIdentificationList sil : dc.getAnalysisData().getSpectrumIdentificationList()) {
+            for (SpectrumIdentificationResult sir : sil.getSpectrumIdentificationResult()) {
+                sirList.add(sir);
+                for (SpectrumIdentificationItem sii : sir.getSpectrumIdentificationItem()) {
+                    Assert.assertTrue(sii.getId(), pepIDs.contains(sii.getPeptideRef()));
+                    for (PeptideEvidenceRef pepEvRef : sii.getPeptideEvidenceRef()) {
+                        PeptideEvidence pepEv = pepEvMap.get(pepEvRef.getPeptideEvidenceRef());
+                        Assert.assertNotNull(sii.getId(), pepEv);
+                        Assert.assertEquals(sii.getId(), sii.getPeptideRef(), pepEv.getPeptideRef());
+                    }
+                }
+            }
+        }
+        Assert.assertFalse(sirList.isEmpty());
+        return sirList;
+    }
+}
@@ -0,0 +1,134 @@
+package edu.ucsd.msjava.mzml;
+
+import edu.ucsd.msjava.msutil.ActivationMethod;
+import edu.ucsd.msjava.msutil.Peak;
+import edu.ucsd.msjava.msutil.Spectrum;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.jmzml.xml.io.MzMLObjectIterator;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshaller;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+public class MzMLSpectrumReaderTest {
+
+    @Test
+    public void readTinyPwiz() throws URISyntaxException, IOException {
+        File specFile = new File(MzMLSpectrumReaderTest.class.getClassLoader().getResource("tiny.pwiz.mzML").toURI());
+        MzMLSpectrumReader reader = new MzMLSpectrumReader(specFile);
+        try {
+            Assert.assertEquals(4, reader.getNumSpectra());
+            Assert.assertEquals("scan=20", reader.getSpectrumId(1));
+            Assert.assertEquals(1, reader.getSpectrumIndex("scan=20"));
+            Assert.assertEquals("MS:1000563", reader.getSourceFileCvParams().get(0).getAccession());
+
+            Spectrum ms1 = reader.readSpectrum(0);
+            Assert.assertEquals(1, ms1.getMSLevel());
+            Assert.assertEquals(15, ms1.size());
+            Assert.assertNull(ms1.getPrecursorPeak());
+
+            Spectrum ms2 = reader.readSpectrum(1);
+            Assert.assertEquals("scan=20", ms2.getID());
+            Assert.assertEquals(20, ms2.getScanNum());
+            Assert.assertEquals(2, ms2.getSpecIndex());
+            Assert.assertEquals(2, ms2.getMSLevel());
+            Assert.assertEquals(5.9905f, ms2.getRt(), 1e-4f);
+            Assert.assertFalse(ms2.getRtIsSeconds());
+            Assert.assertEquals(2, ms2.getPrecursorPeak().getCharge());
+            Assert.assertEquals(ActivationMethod.CID, ms2.getActivationMethod());
+            Assert.assertTrue(ms2.isCentroided());
+            Assert.assertEquals(10, ms2.size());
+            Assert.assertEquals(18f, ms2.get(9).getMz(), 1e-6f);
+            Assert.assertEquals(2f, ms2.get(9).getIntensity(), 1e-6f);
+
+            Spectrum empty = reader.readSpectrum(2);
+            Assert.assertEquals(0, empty.size());
+
+            Assert.assertNull(reader.readSpectrum(4));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readIndexedCompressed() throws URISyntaxException, IOException {
+        // indexedmzML with zlib-compressed 64-bit m/z and 32-bit intensity arrays; one spectrum is not compressed
+        File specFile = new File(MzMLSpectrumReaderTest.class.getClassLoader().getResource("BSA_synthetic.indexed.mzML").toURI());
+        String escapedId = "file=\"BSA\" <synthetic> & more scan=3";
+        try (MzMLSpectrumReader reader = new MzMLSpectrumReader(specFile)) {
+            Assert.assertEquals(8, reader.getNumSpectra());
+            Assert.assertEquals(escapedId, reader.getSpectrumId(3));
+            Assert.assertEquals(3, reader.getSpectrumIndex(escapedId));
+            Assert.assertEquals("MS:1000777", reader.getSourceFileCvParams().get(0).getAccession());
+
+            Spectrum ms1 = reader.readSpectrum(0);
+            Assert.assertEquals(1, ms1.getMSLevel());
+            Assert.assertEquals(20, ms1.size());
+
+            Spectrum ms2 = reader.readSpectrum(3);
+            Assert.assertEquals(escapedId, ms2.getID());
+            Assert.assertEquals(3, ms2.getScanNum());
+            Assert.assertEquals(4, ms2.getSpecIndex());
+            Assert.assertEquals(740.40134f, ms2.getPrecursorPeak().getMz(), 1e-4f);
+            Assert.assertEquals(2, ms2.getPrecursorPeak().getCharge());
+            Assert.assertEquals(740.40134f, reader.readSelectedIonMz(3), 1e-4f);
+            Assert.assertEquals(ActivationMethod.CID, ms2.getActivationMethod());
+            Assert.assertEquals(56, ms2.size());
+
+            Spectrum uncompressed = reader.readSpectrum(2);
+            Assert.assertEquals(50, uncompressed.size());
+        }
+    }
+
+    @Test
+    public void sameSpectraAsJMzML() throws URISyntaxException, IOException {
+        for (String fileName : new String[]{"tiny.pwiz.mzML", "BSA_synthetic.indexed.mzML"}) {
+            File specFile = new File(MzMLSpectrumReaderTest.class.getClassLoader().getResource(fileName).toURI());
+            MzMLUnmarshaller unmarshaller = new MzMLUnmarshaller(specFile);
+            try (MzMLSpectrumReader reader = new MzMLSpectrumReader(specFile)) {
+                int numSpecs = 0;
+                MzMLObjectIterator<uk.ac.ebi.jmzml.model.mzml.Spectrum> itr =
+                        unmarshaller.unmarshalCollectionFromXpath("/run/spectrumList/spectrum", uk.ac.ebi.jmzml.model.mzml.Spectrum.class);
+                while (itr.hasNext()) {
+                    uk.ac.ebi.jmzml.model.mzml.Spectrum jmzSpec = itr.next();
+                    int index = reader.getSpectrumIndex(jmzSpec.getId());
+                    Assert.assertEquals(jmzSpec.getIndex().intValue(), index);
+                    assertSameSpectrum(SpectrumConverter.getSpectrumFromJMzMLSpec(jmzSpec), reader.readSpectrum(index));
+                    Assert.assertEquals(SpectrumConverter.getPrecursorMzFromJMzMLSpec(jmzSpec), reader.readSelectedIonMz(index));
+                    numSpecs++;
+                }
+                Assert.assertEquals(reader.getNumSpectra(), numSpecs);
+            }
+        }
+    }
+
+    private static void assertSameSpectrum(Spectrum expected, Spectrum actual) {
+        String id = expected.getID();
+        Assert.assertEquals(id, actual.getID());
+        Assert.assertEquals(id, expected.getScanNum(), actual.getScanNum());
+        Assert.assertEquals(id, expected.getSpecIndex(), actual.getSpecIndex());
+        Assert.assertEquals(id, expected.getMSLevel(), actual.getMSLevel());
+        Assert.assertEquals(id, expected.getRt(), actual.getRt(), 0f);
+        Assert.assertEquals(id, expected.getRtIsSeconds(), actual.getRtIsSeconds());
+        Assert.assertEquals(id, expected.isCentroided(), actual.isCentroided());
+        Assert.assertEquals(id, expected.getScanPolarity(), actual.getScanPolarity());
+        Assert.assertEquals(id, expected.getActivationMethod(), actual.getActivationMethod());
+        Assert.assertEquals(id, expected.getIsolationWindowTargetMz(), actual.getIsolationWindowTargetMz());
+        if (expected.getPrecursorPeak() == null) {
+            Assert.assertNull(id, actual.getPrecursorPeak());
+        } else {
+            Assert.assertEquals(id, expected.getPrecursorPeak().getMz(), actual.getPrecursorPeak().getMz(), 0f);
+            Assert.assertEquals(id, expected.getPrecursorPeak().getIntensity(), actual.getPrecursorPeak().getIntensity(), 0f);
+            Assert.assertEquals(id, expected.getCharge(), actual.getCharge());
+        }
+        Assert.assertEquals(id, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Peak e = expected.get(i);
+            Peak a = actual.get(i);
+            Assert.assertEquals(id, e.getMz(), a.getMz(), 0f);
+            Assert.assertEquals(id, e.getIntensity(), a.getIntensity(), 0f);
+        }
+    }
+}
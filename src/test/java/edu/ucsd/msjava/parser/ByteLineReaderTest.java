@@ -0,0 +1,88 @@
+package edu.ucsd.msjava.parser;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class ByteLineReaderTest {
+
+    @Test
+    public void fieldsMatchStringSplit() {
+        String[] lines = {"", " ", "\t \t", "412.2345 1023.5", "  412.2345\t1023.5  ", "1 2 3", "BEGIN IONS", "1e3 -2.5E-2", "a b c d e f"};
+        StringBuilder text = new StringBuilder();
+        for (String line : lines)
+            text.append(line).append('\n');
+
+        ByteArrayLineReader reader = new ByteArrayLineReader(text.toString().getBytes());
+        for (String line : lines) {
+            Assert.assertTrue(reader.nextLine());
+            Assert.assertEquals(line, reader.getLine());
+            String[] token = line.split("\\s+");
+            Assert.assertEquals(line, token.length, reader.getFieldCount());
+            if (line.length() > 0 && Character.isDigit(line.charAt(0))) {
+                for (int i = 0; i < token.length; i++)
+                    Assert.assertEquals(line, Float.parseFloat(token[i]), reader.getFloatField(i), 0f);
+            }
+        }
+        Assert.assertFalse(reader.nextLine());
+    }
+
+    @Test
+    public void floatsMatchFloatParseFloat() {
+        Random random = new Random(1);
+        StringBuilder text = new StringBuilder();
+        int numLines = 100000;
+        for (int i = 0; i < numLines; i++) {
+            double value = random.nextDouble() * (i % 2 == 0 ? 5000 : 1e9);
+            int numFractionDigits = random.nextInt(11);
+            text.append(String.format("%." + numFractionDigits + "f", value)).append(' ').append(random.nextInt(100000)).append('\n');
+        }
+
+        ByteArrayLineReader reader = new ByteArrayLineReader(text.toString().getBytes());
+        while (reader.nextLine()) {
+            String[] token = reader.getLine().split("\\s+");
+            Assert.assertEquals(token[0], Float.floatToIntBits(Float.parseFloat(token[0])), Float.floatToIntBits(reader.getFloatField(0)));
+            Assert.assertEquals(token[1], Float.floatToIntBits(Float.parseFloat(token[1])), Float.floatToIntBits(reader.getFloatField(1)));
+        }
+    }
+
+    @Test
+    public void unreadLineReturnsTheLineAgain() {
+        ByteArrayLineReader reader = new ByteArrayLineReader("S 1 1 500.5\n100.1 20\nS 2 2 600.5\n".getBytes());
+        Assert.assertEquals("S 1 1 500.5", reader.readLine());
+        Assert.assertEquals("100.1 20", reader.readLine());
+        Assert.assertEquals(2, reader.getFieldCount());
+        reader.unreadLine();
+        Assert.assertTrue(reader.nextLine());
+        Assert.assertEquals("100.1 20", reader.getLine());
+        Assert.assertEquals(100.1f, reader.getFloatField(0), 0f);
+        Assert.assertEquals("S 2 2 600.5", reader.readLine());
+        Assert.assertNull(reader.readLine());
+    }
+
+    @Test
+    public void mappedFileLinesMatchBufferedLineReader() throws IOException {
+        File file = File.createTempFile("ByteLineReaderTest", ".mgf");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+            out.write("BEGIN IONS\r\nPEPMASS=500.5\r\n100.1 20\n\n200.2 30\r\rEND IONS".getBytes());
+            out.close();
+
+            BufferedLineReader expected = new BufferedLineReader(file.getPath());
+            MappedFileLineReader reader = new MappedFileLineReader(file.getPath());
+            String line;
+            while ((line = expected.readLine()) != null)
+                Assert.assertEquals(BufferedRandomAccessLineReader.stripBOM(line), reader.readLine());
+            Assert.assertNull(reader.readLine());
+            expected.close();
+            reader.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package edu.ucsd.msjava.ui;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MSGFPlusServerTest {
+
+    @Test
+    public void serverAnswersRequestsAndShutsDown() throws IOException, InterruptedException {
+        final MSGFPlusServer server = new MSGFPlusServer(0, 1, 10);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.run();
+            }
+        });
+        serverThread.start();
+
+        int port = server.getPort();
+        Assert.assertEquals("STATUS running=0 queued=0 databases=0", MSGFPlusClient.sendRequest(port, "STATUS"));
+        Assert.assertTrue(MSGFPlusClient.sendRequest(port, "HELLO").startsWith(MSGFPlusServer.ERROR));
+
+        // Invalid arguments are rejected before the search is queued
+        String errorMessage = MSGFPlusClient.search(port, new String[]{"-s"});
+        Assert.assertNotNull(errorMessage);
+        Assert.assertTrue(errorMessage, errorMessage.startsWith(MSGFPlusServer.ERROR));
+
+        Assert.assertEquals(MSGFPlusServer.BYE, MSGFPlusClient.sendRequest(port, "SHUTDOWN"));
+        serverThread.join(10000);
+        Assert.assertFalse(serverThread.isAlive());
+    }
+
+    @Test
+    public void invalidConfigAndDatabaseDoNotStopTheServer() throws IOException, InterruptedException, URISyntaxException {
+        final MSGFPlusServer server = new MSGFPlusServer(0, 1, 10);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.run();
+            }
+        });
+        serverThread.start();
+
+        File workDir = SearchTestUtils.createWorkDir("MSGFPlusServerTest");
+        try {
+            int port = server.getPort();
+            String specFile = SearchTestUtils.getResource("BSA_synthetic.mgf").getPath();
+            String dbFile = new File(workDir, "BSA.fasta").getPath();
+
+            // Invalid value in the parameter file
+            File badConf = new File(workDir, "BadValue.txt");
+            Files.write(badConf.toPath(), "MinPepLength=six\n".getBytes(StandardCharsets.UTF_8));
+            String errorMessage = MSGFPlusClient.search(port, new String[]{"-s", specFile, "-d", dbFile, "-conf", badConf.getPath()});
+            Assert.assertNotNull(errorMessage);
+            Assert.assertTrue(errorMessage, errorMessage.startsWith(MSGFPlusServer.ERROR));
+            Assert.assertTrue(errorMessage, errorMessage.contains("MinPepLength=six"));
+
+            // Invalid modification in the parameter file
+            File badMod = new File(workDir, "BadMod.txt");
+            Files.write(badMod.toPath(), "DynamicMod=O1,M,sometimes,any,Oxidation\n".getBytes(StandardCharsets.UTF_8));
+            errorMessage = MSGFPlusClient.search(port, new String[]{"-s", specFile, "-d", dbFile, "-conf", badMod.getPath()});
+            Assert.assertNotNull(errorMessage);
+            Assert.assertTrue(errorMessage, errorMessage.startsWith(MSGFPlusServer.ERROR));
+
+            // Target-decoy database without decoy proteins
+            File noDecoyDB = new File(workDir, "NoDecoy.fasta");
+            Files.copy(new File(dbFile).toPath(), noDecoyDB.toPath());
+            Files.copy(new File(dbFile).toPath(), new File(workDir, "NoDecoy" + MSGFPlus.DECOY_DB_EXTENSION).toPath());
+            errorMessage = MSGFPlusClient.search(port, new String[]{"-s", specFile, "-d", noDecoyDB.getPath(), "-tda", "1",
+                    "-o", new File(workDir, "NoDecoy.mzid").getPath()});
+            Assert.assertNotNull(errorMessage);
+            Assert.assertTrue(errorMessage, errorMessage.startsWith(MSGFPlusServer.FAILED));
+            Assert.assertTrue(errorMessage, errorMessage.contains("fraction of decoy proteins"));
+
+            // The server is still running and searches
+            File mzidFile = new File(workDir, "BSA_synthetic.mzid");
+            Assert.assertNull(MSGFPlusClient.search(port, new String[]{"-s", specFile, "-d", dbFile, "-tda", "1",
+                    "-mod", SearchTestUtils.getResource("Mods.txt").getPath(), "-o", mzidFile.getPath()}));
+            Assert.assertTrue(mzidFile.length() > 0);
+            Assert.assertTrue(MSGFPlusClient.sendRequest(port, "STATUS").startsWith(MSGFPlusServer.STATUS + " running=0 queued=0"));
+
+            Assert.assertEquals(MSGFPlusServer.BYE, MSGFPlusClient.sendRequest(port, "SHUTDOWN"));
+            serverThread.join(10000);
+            Assert.assertFalse(serverThread.isAlive());
+        } finally {
+            server.shutdown();
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    @Test
+    public void concurrentSearchesOfDifferentDatabasesMatchSingleSearches() throws Exception {
+        final MSGFPlusServer server = new MSGFPlusServer(0, 4, 10);
+        Thread serverThread = new Thread(new Runnable() {
+            public void run() {
+                server.run();
+            }
+        });
+        serverThread.start();
+
+        File workDir = SearchTestUtils.createWorkDir("MSGFPlusServerTest");
+        try {
+            final int port = server.getPort();
+            String specFile = SearchTestUtils.getResource("BSA_synthetic.mgf").getPath();
+
+            // the residue frequencies, and so the amino acid probabilities of the searches, differ between the databases
+            File bsaDB = new File(workDir, "BSA.fasta");
+            File mixedDB = new File(workDir, "BSA_Tryp_Pig_Bov.fasta");
+            Files.copy(bsaDB.toPath(), mixedDB.toPath());
+            Files.write(mixedDB.toPath(), Files.readAllBytes(SearchTestUtils.getResource("Tryp_Pig_Bov.fasta").toPath()), StandardOpenOption.APPEND);
+            File[] databases = {bsaDB, mixedDB};
+
+            // one search at a time
+            List<List<String>> expected = new ArrayList<List<String>>();
+            for (File database : databases) {
+                File outputFile = new File(workDir, database.getName() + ".single.mzid");
+                Assert.assertNull(MSGFPlusClient.search(port, getSearchArgs(specFile, database, outputFile)));
+                expected.add(Files.readAllLines(getTSVFile(outputFile).toPath()));
+            }
+            Assert.assertNotEquals(getColumn(expected.get(0), "SpecEValue"), getColumn(expected.get(1), "SpecEValue"));
+
+            // two searches of each database at the same time
+            final List<String[]> searchArgs = new ArrayList<String[]>();
+            for (int i = 0; i < 4; i++) {
+                File outputFile = new File(workDir, databases[i % 2].getName() + ".concurrent" + i + ".mzid");
+                searchArgs.add(getSearchArgs(specFile, databases[i % 2], outputFile));
+            }
+            final String[] errorMessages = new String[searchArgs.size()];
+            Thread[] clients = new Thread[searchArgs.size()];
+            for (int i = 0; i < clients.length; i++) {
+                final int index = i;
+                clients[i] = new Thread(new Runnable() {
+                    public void run() {
+                        errorMessages[index] = MSGFPlusClient.search(port, searchArgs.get(index));
+                    }
+                });
+                clients[i].start();
+            }
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].join();
+                Assert.assertNull(errorMessages[i]);
+                File outputFile = new File(searchArgs.get(i)[5]);
+                Assert.assertEquals(expected.get(i % 2), Files.readAllLines(getTSVFile(outputFile).toPath()));
+            }
+
+            Assert.assertEquals(MSGFPlusServer.BYE, MSGFPlusClient.sendRequest(port, "SHUTDOWN"));
+            serverThread.join(10000);
+            Assert.assertFalse(serverThread.isAlive());
+        } finally {
+            server.shutdown();
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    private static String[] getSearchArgs(String specFile, File database, File outputFile) {
+        return new String[]{"-s", specFile, "-d", database.getPath(), "-o", outputFile.getPath(), "-outputFormat", "1"};
+    }
+
+    private static File getTSVFile(File outputFile) {
+        String name = outputFile.getName();
+        return new File(outputFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".tsv");
+    }
+
+    private static List<String> getColumn(List<String> lines, String columnName) {
+        int column = Arrays.asList(lines.get(0).split("\t")).indexOf(columnName);
+        List<String> values = new ArrayList<String>();
+        for (String line : lines.subList(1, lines.size()))
+            values.add(line.split("\t")[column]);
+        return values;
+    }
+}
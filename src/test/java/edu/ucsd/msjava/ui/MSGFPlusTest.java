@@ -0,0 +1,70 @@
+package edu.ucsd.msjava.ui;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MSGFPlusTest {
+
+    @Test
+    public void concurrentSearchesFinishRunningFilesAfterAnError() throws Exception {
+        File workDir = SearchTestUtils.createWorkDir("MSGFPlusTest");
+        // the outputs of a spectrum directory are written to the working directory
+        String prefix = "MSGFPlusTest" + System.nanoTime();
+        List<File> resultFiles = new ArrayList<File>();
+        try {
+            File specFile = SearchTestUtils.getResource("BSA_synthetic.mgf");
+            String dbFile = new File(workDir, "BSA.fasta").getPath();
+            File referenceFile = new File(workDir, "reference.mzid");
+            Assert.assertNull(SearchTestUtils.search("-s", specFile.getPath(), "-d", dbFile, "-outputFormat", "1",
+                    "-o", referenceFile.getPath()));
+            List<String> expected = withoutSpecFile(Files.readAllLines(new File(workDir, "reference.tsv").toPath()));
+
+            // one file without valid spectra, which fails as soon as it is read, and three that are searched
+            File specDir = new File(workDir, "spectra");
+            Assert.assertTrue(specDir.mkdir());
+            String badName = prefix + "_bad";
+            Files.write(new File(specDir, badName + ".mgf").toPath(),
+                    "BEGIN IONS\nPEPMASS=500.5\nCHARGE=2+\n100.1 10\n200.2 20\nEND IONS\n".getBytes(StandardCharsets.UTF_8));
+            resultFiles.add(new File(badName + ".tsv"));
+            List<File> goodFiles = new ArrayList<File>();
+            for (int i = 0; i < 3; i++) {
+                String goodName = prefix + "_good" + i;
+                Files.copy(specFile.toPath(), new File(specDir, goodName + ".mgf").toPath());
+                goodFiles.add(new File(goodName + ".tsv"));
+            }
+            resultFiles.addAll(goodFiles);
+
+            String errorMessage = SearchTestUtils.search("-s", specDir.getPath(), "-d", dbFile, "-outputFormat", "1",
+                    "-concurrentFiles", "2");
+            Assert.assertNotNull(errorMessage);
+            Assert.assertTrue(errorMessage, errorMessage.contains("does not have any valid spectra"));
+
+            // files searched before or while the bad file failed are complete; the others are not searched
+            Assert.assertFalse(new File(badName + ".tsv").exists());
+            for (File tsvFile : goodFiles) {
+                if (tsvFile.exists())
+                    Assert.assertEquals(expected, withoutSpecFile(Files.readAllLines(tsvFile.toPath())));
+            }
+        } finally {
+            for (File file : resultFiles)
+                file.delete();
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    /**
+     * Rows of a TSV file without the SpecFile column
+     */
+    private static List<String> withoutSpecFile(List<String> lines) {
+        List<String> rows = new ArrayList<String>();
+        for (String line : lines)
+            rows.add(line.substring(line.indexOf('\t') + 1));
+        return rows;
+    }
+}
@@ -0,0 +1,59 @@
+package edu.ucsd.msjava.ui;
+
+import edu.ucsd.msjava.params.ParamManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers for tests that run MS-GF+ searches of the test resources
+ */
+public class SearchTestUtils {
+
+    public static File getResource(String name) throws URISyntaxException {
+        return new File(SearchTestUtils.class.getClassLoader().getResource(name).toURI());
+    }
+
+    /**
+     * Create a temporary directory with a copy of BSA.fasta, so that the index and decoy files
+     * built for the database are not written to the test resources
+     *
+     * @param prefix prefix of the directory name
+     * @return the directory; BSA.fasta is at new File(dir, "BSA.fasta")
+     */
+    public static File createWorkDir(String prefix) throws IOException, URISyntaxException {
+        File workDir = Files.createTempDirectory(prefix).toFile();
+        Files.copy(getResource("BSA.fasta").toPath(), new File(workDir, "BSA.fasta").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return workDir;
+    }
+
+    /**
+     * Run a search as the MSGFPlus command line does
+     *
+     * @param argv command line arguments
+     * @return error message of the arguments or of the search, or null if successful
+     */
+    public static String search(String... argv) {
+        ParamManager paramManager = new ParamManager("MS-GF+", MSGFPlus.VERSION, MSGFPlus.RELEASE_DATE, "java -Xmx3500M -jar MSGFPlus.jar");
+        paramManager.addMSGFPlusParams();
+        String errMsg = paramManager.parseParams(argv);
+        if (errMsg != null)
+            return errMsg;
+        return MSGFPlus.runMSGFPlus(paramManager);
+    }
+
+    /**
+     * Delete a file, or a directory with all its contents
+     */
+    public static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
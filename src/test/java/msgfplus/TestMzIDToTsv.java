@@ -3,20 +3,35 @@ package msgfplus;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import edu.ucsd.msjava.msdbsearch.PSMFeatureFinder;
 import edu.ucsd.msjava.msutil.AminoAcidSet;
 import edu.ucsd.msjava.msutil.Composition;
 import edu.ucsd.msjava.msutil.Peptide;
+import edu.ucsd.msjava.mzid.MzIDParser;
 import edu.ucsd.msjava.mzid.Unimod;
 import edu.ucsd.msjava.mzid.UnimodComposition;
 import edu.ucsd.msjava.parser.TSVParser;
 import edu.ucsd.msjava.ui.MzIDToTsv;
+import edu.ucsd.msjava.ui.SearchTestUtils;
 
 public class TestMzIDToTsv {
 
@@ -55,7 +70,165 @@ public class TestMzIDToTsv {
         String[] argv = {"-i", mzidFile.getPath(), "-o", tsvFile.getPath(), "-showFormula", "1"};
         MzIDToTsv.main(argv);
     }
-    
+
+    @Test
+    public void testConvertedRows() throws IOException, URISyntaxException {
+        File mzidFile = new File(TestMzIDToTsv.class.getClassLoader().getResource("test.mzid").toURI());
+
+        File tsvFile = File.createTempFile("test", ".tsv");
+        tsvFile.deleteOnExit();
+        new MzIDParser(mzidFile, false, false, true, false).writeToTSVFile(tsvFile);
+
+        List<String> lines = Files.readAllLines(tsvFile.toPath());
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).startsWith("#SpecFile\tSpecID\tScanNum\tTitle\t"));
+        assertTrue(lines.get(0).contains("\tPrecursorError(ppm)\t"));
+        assertTrue(lines.get(0).endsWith("\tQValue\tPepQValue"));
+
+        String[] token = lines.get(2).split("\t");
+        assertEquals("test.mgf", token[0]);
+        assertEquals("index=1", token[1]);
+        assertEquals("-1", token[2]);
+        assertEquals("3", token[8]);
+        assertEquals("K.NLANPTSVILASIQM+15.995LEYLGMADK.A", token[9]);
+        assertEquals("test2", token[10]);
+    }
+
+    @Test
+    public void testTSVOutputOfSearch() throws IOException, URISyntaxException {
+        // -outputFormat 2 writes the TSV file alongside the mzid; it must be the same as the mzid converted by MzIDToTsv
+        File specFile = SearchTestUtils.getResource("tiny.pwiz.mzML");
+        File workDir = SearchTestUtils.createWorkDir("TestMzIDToTsv");
+        try {
+            File mzidFile = new File(workDir, "tiny.mzid");
+            assertNull(SearchTestUtils.search("-s", specFile.getPath(), "-d", new File(workDir, "BSA.fasta").getPath(), "-o", mzidFile.getPath(),
+                    "-tda", "1", "-minDeNovoScore", "-1000", "-outputFormat", "2"));
+
+            File tsvFile = new File(workDir, "tiny.tsv");
+            File convertedFile = new File(workDir, "converted.tsv");
+            new MzIDParser(mzidFile).writeToTSVFile(convertedFile);
+            assertEquals(Files.readAllLines(convertedFile.toPath()), Files.readAllLines(tsvFile.toPath()));
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    @Test
+    public void testTSVOutputOfModifiedMgfSearchWithFeatures() throws IOException, URISyntaxException, XMLStreamException {
+        // MGF search with a variable modification and -addFeatures 1: the TSV file has a Title column and modified peptides
+        // as MzIDToTsv writes them, followed by a column for each feature written to the mzid
+        File specFile = SearchTestUtils.getResource("BSA_synthetic.mgf");
+        File workDir = SearchTestUtils.createWorkDir("TestMzIDToTsv");
+        try {
+            File mzidFile = new File(workDir, "BSA_synthetic.mzid");
+            assertNull(SearchTestUtils.search("-s", specFile.getPath(), "-d", new File(workDir, "BSA.fasta").getPath(), "-o", mzidFile.getPath(),
+                    "-mod", SearchTestUtils.getResource("Mods.txt").getPath(), "-tda", "1", "-addFeatures", "1", "-outputFormat", "2"));
+
+            File convertedFile = new File(workDir, "converted.tsv");
+            new MzIDParser(mzidFile).writeToTSVFile(convertedFile);
+            List<String> convertedLines = Files.readAllLines(convertedFile.toPath());
+            List<String> lines = Files.readAllLines(new File(workDir, "BSA_synthetic.tsv").toPath());
+            List<Map<String, String>> featureList = readFeatures(mzidFile);
+            assertEquals(convertedLines.size(), lines.size());
+            assertEquals(featureList.size() + 1, lines.size());
+
+            String header = lines.get(0);
+            assertTrue(header.contains("\tScanNum\tTitle\tFragMethod\t"));
+            assertEquals(convertedLines.get(0) + "\t" + String.join("\t", PSMFeatureFinder.FEATURE_NAMES), header);
+
+            int numColumns = convertedLines.get(0).split("\t").length;
+            int peptideColumn = Arrays.asList(header.split("\t")).indexOf("Peptide");
+            boolean hasModifiedPeptide = false;
+            boolean hasQuotedTitle = false;
+            for (int i = 1; i < lines.size(); i++) {
+                String[] token = lines.get(i).split("\t", -1);
+                assertEquals(numColumns + PSMFeatureFinder.FEATURE_NAMES.length, token.length);
+                assertEquals(convertedLines.get(i), String.join("\t", Arrays.copyOf(token, numColumns)));
+
+                Map<String, String> features = featureList.get(i - 1);
+                assertFalse(features.isEmpty());
+                for (int j = 0; j < PSMFeatureFinder.FEATURE_NAMES.length; j++) {
+                    String value = features.get(PSMFeatureFinder.FEATURE_NAMES[j]);
+                    assertEquals(value == null ? "" : value, token[numColumns + j]);
+                }
+
+                if (token[peptideColumn].contains("M+15.995"))
+                    hasModifiedPeptide = true;
+                if (token[3].equals("scan=3 \"BSA\" <synthetic> & more"))
+                    hasQuotedTitle = true;
+            }
+            assertTrue(hasModifiedPeptide);
+            assertTrue(hasQuotedTitle);
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    @Test
+    public void testTSVOutputOfSearchWithoutTDA() throws IOException, URISyntaxException {
+        // without a decoy database, the QValue and PepQValue columns are written with empty values, as by MzIDToTsv
+        File specFile = SearchTestUtils.getResource("BSA_synthetic.mgf");
+        File workDir = SearchTestUtils.createWorkDir("TestMzIDToTsv");
+        try {
+            File mzidFile = new File(workDir, "BSA_synthetic.mzid");
+            assertNull(SearchTestUtils.search("-s", specFile.getPath(), "-d", new File(workDir, "BSA.fasta").getPath(), "-o", mzidFile.getPath(),
+                    "-tda", "0", "-outputFormat", "2"));
+
+            File convertedFile = new File(workDir, "converted.tsv");
+            new MzIDParser(mzidFile).writeToTSVFile(convertedFile);
+            List<String> convertedLines = Files.readAllLines(convertedFile.toPath());
+            List<String> lines = Files.readAllLines(new File(workDir, "BSA_synthetic.tsv").toPath());
+            assertEquals(convertedLines, lines);
+
+            assertTrue(lines.size() > 1);
+            assertTrue(lines.get(0).endsWith("\tEValue\tQValue\tPepQValue"));
+            for (int i = 1; i < lines.size(); i++)
+                assertTrue(lines.get(i), lines.get(i).endsWith("\t\t"));
+        } finally {
+            SearchTestUtils.delete(workDir);
+        }
+    }
+
+    /**
+     * Features (userParams other than those MzIDToTsv reads) of the SpectrumIdentificationItems MzIDToTsv writes by default,
+     * i.e. those with a target protein, in the order of the mzid
+     */
+    private static List<Map<String, String>> readFeatures(File mzidFile) throws IOException, XMLStreamException {
+        Map<String, Boolean> isDecoyMap = new HashMap<String, Boolean>();
+        List<Map<String, String>> featureList = new ArrayList<Map<String, String>>();
+        try (InputStream in = new FileInputStream(mzidFile)) {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            Map<String, String> features = null;
+            boolean isAllDecoy = true;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("SpectrumIdentificationItem")) {
+                    if (!isAllDecoy)
+                        featureList.add(features);
+                    features = null;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                String name = reader.getLocalName();
+                if (name.equals("PeptideEvidence")) {
+                    isDecoyMap.put(reader.getAttributeValue(null, "id"), "true".equals(reader.getAttributeValue(null, "isDecoy")));
+                } else if (name.equals("SpectrumIdentificationItem")) {
+                    features = new HashMap<String, String>();
+                    isAllDecoy = true;
+                } else if (features != null && name.equals("PeptideEvidenceRef")) {
+                    if (!isDecoyMap.get(reader.getAttributeValue(null, "peptideEvidence_ref")))
+                        isAllDecoy = false;
+                } else if (features != null && name.equals("userParam")) {
+                    String paramName = reader.getAttributeValue(null, "name");
+                    if (!paramName.equals("AssumedDissociationMethod") && !paramName.equals("IsotopeError"))
+                        features.put(paramName, reader.getAttributeValue(null, "value"));
+                }
+            }
+            reader.close();
+        }
+        return featureList;
+    }
+
     @Test
     public void unimodReaderTest()
     {